@@ -464,6 +464,8 @@ public class HDRPlayActivity extends AppCompatActivity implements View.OnClickLi
             menu.findItem(R.id.textureSourceY2Y).setChecked(true);
         } else if (textureSource == GLVideoOutput.TextureSource.OES) {
             menu.findItem(R.id.textureSourceOES).setChecked(true);
+        } else if (textureSource == GLVideoOutput.TextureSource.IMAGE) {
+            menu.findItem(R.id.textureSourceImage).setChecked(true);
         }
         pum.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
             @Override
@@ -478,6 +480,8 @@ public class HDRPlayActivity extends AppCompatActivity implements View.OnClickLi
                     textureSource = GLVideoOutput.TextureSource.Y2Y;
                 } else if (item.getItemId() == R.id.textureSourceOES) {
                     textureSource = GLVideoOutput.TextureSource.OES;
+                } else if (item.getItemId() == R.id.textureSourceImage) {
+                    textureSource = GLVideoOutput.TextureSource.IMAGE;
                 }
                 videoPlayer.stop();
                 glVideoOutput.setTextureSource(textureSource);
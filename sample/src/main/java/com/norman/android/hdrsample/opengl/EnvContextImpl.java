@@ -76,6 +76,7 @@ class EnvContextImpl implements GLEnvContext {
             return;
         }
         release = true;
+        GLProgramCache.remove(eglContext);
         if (!EGL14.eglDestroyContext(envDisplay.getEGLDisplay(), eglContext)) {
             GLEnvException.checkError();
         }
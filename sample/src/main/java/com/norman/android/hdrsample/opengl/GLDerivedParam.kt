@@ -0,0 +1,12 @@
+package com.norman.android.hdrsample.opengl
+
+/**
+ * Shader里的派生参数，比如pow(峰值亮度/10000, 1/2.4)这种只和uniform有关的值
+ * function只能读取{@link GLUniformBlock}里直接设置的uniform，不能读取其他派生参数
+ */
+class GLDerivedParam(
+    @JvmField val name: String,
+    private val function: (GLUniformValues) -> Float
+) {
+    fun compute(values: GLUniformValues): Float = function(values)
+}
@@ -0,0 +1,307 @@
+package com.norman.android.hdrsample.opengl;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+
+import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.GLProgramBinaryCache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Program的内存缓存，每个EGLContext一个，同一个Context上的所有Renderer共用
+ * 用顶点着色器和片段着色器代码作为key，引用计数为0的Program不会马上删除，而是按最近最少使用(LRU)保留maxUnusedCount个，
+ * 来回切换色调映射、色域映射这些设置时只需要glUseProgram，不需要重新编译
+ * 每个Program还会缓存uniform和attribute的位置
+ * <p>
+ * 设置了{@link GLProgramPrecompiler}后，缓存里没有的Program可以交给共享Context的后台线程编译，编译好再放回缓存，
+ * 渲染线程切换设置时不用等编译
+ * <p>
+ * Program的uniform和attribute位置只能在Context所在的GL线程获取
+ */
+public class GLProgramCache {
+
+    /**
+     * 默认保留的没有使用的Program数量，要能放下提前编译的所有色调映射和色域映射组合，开启生成LUT时还有同样多的生成LUT的Shader
+     */
+    public static final int DEFAULT_MAX_UNUSED_COUNT = 64;
+
+    private static final Map<EGLContext, GLProgramCache> CONTEXT_CACHE_MAP = new HashMap<>();
+
+    private static int MAX_UNUSED_COUNT = DEFAULT_MAX_UNUSED_COUNT;
+
+    /**
+     * accessOrder为true，遍历的时候第一个就是最久没用过的
+     */
+    private final LinkedHashMap<ProgramKey, Program> programMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 正在后台编译的Program
+     */
+    private final Set<ProgramKey> pendingKeySet = new HashSet<>();
+
+    /**
+     * 后台编译失败的Program，不再提交后台编译，渲染线程obtain时自己编译，编译错误在渲染线程抛出
+     */
+    private final Set<ProgramKey> failedKeySet = new HashSet<>();
+
+    private GLProgramPrecompiler precompiler;
+
+    private int unusedCount;
+
+    private GLProgramCache() {
+    }
+
+    /**
+     * 当前线程EGLContext的缓存
+     *
+     * @return 没有EGLContext返回null
+     */
+    public static GLProgramCache getCurrent() {
+        return get(EGL14.eglGetCurrentContext());
+    }
+
+    /**
+     * 指定EGLContext的缓存，后台编译线程通过它把Program放回渲染线程的缓存
+     *
+     * @param eglContext
+     * @return 没有EGLContext返回null
+     */
+    public static GLProgramCache get(EGLContext eglContext) {
+        if (eglContext == null || eglContext.equals(EGL14.EGL_NO_CONTEXT)) {
+            return null;
+        }
+        synchronized (CONTEXT_CACHE_MAP) {
+            GLProgramCache programCache = CONTEXT_CACHE_MAP.get(eglContext);
+            if (programCache == null) {
+                programCache = new GLProgramCache();
+                CONTEXT_CACHE_MAP.put(eglContext, programCache);
+            }
+            return programCache;
+        }
+    }
+
+    /**
+     * EGLContext销毁的时候调用，Program会随着Context一起销毁，这里只需要移除缓存
+     *
+     * @param eglContext
+     */
+    static void remove(EGLContext eglContext) {
+        synchronized (CONTEXT_CACHE_MAP) {
+            CONTEXT_CACHE_MAP.remove(eglContext);
+        }
+    }
+
+    /**
+     * 修改所有缓存保留的没有使用的Program数量，下次有Program不再使用时生效
+     *
+     * @param maxUnusedCount
+     */
+    public static synchronized void setMaxUnusedCount(int maxUnusedCount) {
+        MAX_UNUSED_COUNT = maxUnusedCount;
+    }
+
+    public static synchronized int getMaxUnusedCount() {
+        return MAX_UNUSED_COUNT;
+    }
+
+    /**
+     * 获取Program，引用计数加1，缓存里没有就创建
+     *
+     * @param vertCode 顶点着色器代码
+     * @param fragCode 片段着色器代码
+     * @return
+     */
+    public synchronized Program obtain(String vertCode, String fragCode) {
+        ProgramKey programKey = new ProgramKey(vertCode, fragCode);
+        Program program = programMap.get(programKey);
+        if (program == null) {
+            program = new Program(this, GLProgramBinaryCache.createProgramId(vertCode, fragCode));
+            programMap.put(programKey, program);
+            failedKeySet.remove(programKey);
+        } else if (program.refCount == 0) {
+            unusedCount--;
+        }
+        program.refCount++;
+        return program;
+    }
+
+    /**
+     * 引用计数减1，为0时保留在缓存里，超过maxUnusedCount再删除最久没用过的
+     *
+     * @param program
+     */
+    synchronized void release(Program program) {
+        if (program.refCount <= 0) {
+            return;
+        }
+        program.refCount--;
+        if (program.refCount > 0) {
+            return;
+        }
+        unusedCount++;
+        trimUnused();
+    }
+
+    /**
+     * 缓存里没有的Program交给后台编译
+     *
+     * @param vertCode 顶点着色器代码
+     * @param fragCode 片段着色器代码
+     * @return true表示正在后台编译，调用方先继续用之前的Program；缓存里已经有、后台编译失败过或者没有后台编译器返回false
+     */
+    public synchronized boolean precompile(String vertCode, String fragCode) {
+        if (precompiler == null) {
+            return false;
+        }
+        ProgramKey programKey = new ProgramKey(vertCode, fragCode);
+        if (programMap.containsKey(programKey)) {
+            return false;
+        }
+        if (pendingKeySet.contains(programKey)) {
+            return true;
+        }
+        if (failedKeySet.contains(programKey)) {
+            return false;
+        }
+        if (!precompiler.compile(vertCode, fragCode)) {
+            return false;
+        }
+        pendingKeySet.add(programKey);
+        return true;
+    }
+
+    /**
+     * 后台编译完成后放回缓存，引用计数为0
+     *
+     * @param programId 编译失败传0，记录到失败列表里，之后交给渲染线程编译
+     * @return false表示没有放进缓存，调用方要删除programId
+     */
+    synchronized boolean offer(String vertCode, String fragCode, int programId) {
+        ProgramKey programKey = new ProgramKey(vertCode, fragCode);
+        pendingKeySet.remove(programKey);
+        if (programId <= 0) {
+            failedKeySet.add(programKey);
+            return false;
+        }
+        if (programMap.containsKey(programKey)) {
+            return false;
+        }
+        programMap.put(programKey, new Program(this, programId));
+        unusedCount++;
+        trimUnused();
+        return true;
+    }
+
+    synchronized void setPrecompiler(GLProgramPrecompiler precompiler) {
+        this.precompiler = precompiler;
+    }
+
+    synchronized void removePrecompiler(GLProgramPrecompiler precompiler) {
+        if (this.precompiler == precompiler) {
+            this.precompiler = null;
+            pendingKeySet.clear();
+            failedKeySet.clear();
+        }
+    }
+
+    private void trimUnused() {
+        int maxUnusedCount = getMaxUnusedCount();
+        Iterator<Program> iterator = programMap.values().iterator();
+        while (unusedCount > maxUnusedCount && iterator.hasNext()) {
+            Program unusedProgram = iterator.next();
+            if (unusedProgram.refCount > 0) {
+                continue;
+            }
+            iterator.remove();
+            unusedCount--;
+            GLESUtil.delProgramId(unusedProgram.programId);
+        }
+    }
+
+    public synchronized int getCount() {
+        return programMap.size();
+    }
+
+    public synchronized int getUnusedCount() {
+        return unusedCount;
+    }
+
+    /**
+     * 着色器代码比较长，只在创建的时候计算一次hashCode
+     */
+    private static class ProgramKey {
+        final String vertCode;
+        final String fragCode;
+        final int hashCode;
+
+        ProgramKey(String vertCode, String fragCode) {
+            this.vertCode = vertCode;
+            this.fragCode = fragCode;
+            this.hashCode = 31 * vertCode.hashCode() + fragCode.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ProgramKey)) return false;
+            ProgramKey that = (ProgramKey) o;
+            return hashCode == that.hashCode &&
+                    vertCode.equals(that.vertCode) &&
+                    fragCode.equals(that.fragCode);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * 缓存的Program，用完要调用{@link #release()}
+     */
+    public static class Program {
+        public final int programId;
+
+        private final GLProgramCache programCache;
+
+        private final Map<String, Integer> uniformLocationMap = new HashMap<>();
+
+        private final Map<String, Integer> attribLocationMap = new HashMap<>();
+
+        private int refCount;
+
+        Program(GLProgramCache programCache, int programId) {
+            this.programCache = programCache;
+            this.programId = programId;
+        }
+
+        public int getUniformLocation(String name) {
+            Integer location = uniformLocationMap.get(name);
+            if (location == null) {
+                location = GLES20.glGetUniformLocation(programId, name);
+                uniformLocationMap.put(name, location);
+            }
+            return location;
+        }
+
+        public int getAttribLocation(String name) {
+            Integer location = attribLocationMap.get(name);
+            if (location == null) {
+                location = GLES20.glGetAttribLocation(programId, name);
+                attribLocationMap.put(name, location);
+            }
+            return location;
+        }
+
+        public void release() {
+            programCache.release(this);
+        }
+    }
+}
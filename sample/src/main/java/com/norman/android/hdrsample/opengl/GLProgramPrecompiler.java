@@ -0,0 +1,71 @@
+package com.norman.android.hdrsample.opengl;
+
+import android.opengl.GLES20;
+
+import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.GLProgramBinaryCache;
+import com.norman.android.hdrsample.util.LogUtil;
+
+/**
+ * 在共享渲染Context的后台线程编译Program，编译好放进渲染Context的{@link GLProgramCache}
+ * 共享Context之间Program是共用的，渲染线程拿到programId就能直接glUseProgram
+ * <p>
+ * prepare后可以把可能用到的Shader组合都提交过来，渲染线程切换设置时只需要从缓存获取；
+ * 缓存里没有的，{@link GLProgramCache#precompile(String, String)}也会交给这里编译，编译完成前渲染线程继续用之前的Program
+ */
+public class GLProgramPrecompiler {
+
+    private static final String TAG = "GLProgramPrecompiler";
+
+    private final GLEnvThreadManager envThreadManager;
+
+    private final GLProgramCache programCache;
+
+    /**
+     * @param envContext 渲染线程的Context，要在它所在的GL线程创建
+     */
+    public GLProgramPrecompiler(GLEnvContext envContext) {
+        envThreadManager = new GLEnvThreadManager.Builder(envContext.getEnvDisplay(),
+                envContext.getEnvConfig(),
+                envContext.getEGLContext())
+                .build();
+        programCache = GLProgramCache.get(envContext.getEGLContext());
+        programCache.setPrecompiler(this);
+    }
+
+    /**
+     * 提交后台编译，缓存里已经有或者正在编译的不会重复编译
+     *
+     * @param vertCode 顶点着色器代码
+     * @param fragCode 片段着色器代码
+     */
+    public void precompile(String vertCode, String fragCode) {
+        programCache.precompile(vertCode, fragCode);
+    }
+
+    boolean compile(String vertCode, String fragCode) {
+        return envThreadManager.post(() -> {
+            int programId = 0;
+            try {
+                programId = GLProgramBinaryCache.createProgramId(vertCode, fragCode);
+                // 等编译链接真正完成，其他Context看到的才是完整的Program
+                GLES20.glFinish();
+            } catch (RuntimeException e) {
+                // 不抛到后台线程，programId为0时缓存会标记失败，渲染线程自己编译一次拿到真正的错误
+                LogUtil.e(TAG, "precompile fail " + e.getMessage());
+            } finally {
+                if (!programCache.offer(vertCode, fragCode, programId)) {
+                    GLESUtil.delProgramId(programId);
+                }
+            }
+        });
+    }
+
+    /**
+     * 要在渲染Context销毁前调用，没有编译完成的会被丢弃
+     */
+    public void release() {
+        programCache.removePrecompiler(this);
+        envThreadManager.release();
+    }
+}
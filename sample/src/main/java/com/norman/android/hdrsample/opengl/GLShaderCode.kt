@@ -5,6 +5,14 @@ package com.norman.android.hdrsample.opengl
  */
 abstract class GLShaderCode{
       abstract val code:String
+
+      /**
+       * 只和uniform有关的派生参数，名字在所有模块里要唯一
+       * 这些值每个像素都一样，在CPU上uniform变化时算一次，通过{@link GLUniformBlock}传给Shader，Shader里直接用名字访问
+       */
+      open val derivedParams: List<GLDerivedParam>
+            get() = emptyList()
+
       override fun equals(other: Any?): Boolean {
             if (this === other) return true
             if (javaClass != other?.javaClass) return false
@@ -0,0 +1,152 @@
+package com.norman.android.hdrsample.opengl;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * std140布局的Uniform Block，成员都是float，std140里float按4字节紧密排列，不需要填充
+ * 前面是直接设置的uniform，后面是{@link GLDerivedParam}，uniform变化时才重新计算派生参数并上传，
+ * 每次绘制只需要一次glBindBufferBase，Shader里的参数再多也不用每个都调用glUniform
+ * <p>
+ * 需要OpenGL ES 3.0，Shader要用#version 300 es，所有GL方法都要在GL线程调用
+ */
+public class GLUniformBlock implements GLUniformValues {
+
+    private static final int FLOAT_BYTES = 4;
+
+    private final String blockName;
+
+    private final String[] uniformNames;
+
+    private final GLDerivedParam[] derivedParams;
+
+    /**
+     * uniform和派生参数的值，顺序和Shader里声明的一样
+     */
+    private final float[] values;
+
+    private final FloatBuffer valueBuffer;
+
+    private int bufferId;
+
+    private boolean dirty = true;
+
+    public GLUniformBlock(String blockName, List<String> uniformNames, List<GLDerivedParam> derivedParams) {
+        this.blockName = blockName;
+        this.uniformNames = uniformNames.toArray(new String[0]);
+        this.derivedParams = derivedParams.toArray(new GLDerivedParam[0]);
+        this.values = new float[this.uniformNames.length + this.derivedParams.length];
+        this.valueBuffer = ByteBuffer.allocateDirect(values.length * FLOAT_BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    /**
+     * Shader里Uniform Block的声明，没有实例名，Shader里直接用成员的名字访问
+     *
+     * @param blockName     Uniform Block的名字
+     * @param uniformNames  直接设置的uniform
+     * @param derivedParams 派生参数
+     * @return
+     */
+    public static String createCode(String blockName, List<String> uniformNames, List<GLDerivedParam> derivedParams) {
+        StringBuilder codeBuilder = new StringBuilder();
+        codeBuilder.append("layout(std140) uniform ").append(blockName).append(" {\n");
+        for (String uniformName : uniformNames) {
+            codeBuilder.append("    float ").append(uniformName).append(";\n");
+        }
+        for (GLDerivedParam derivedParam : derivedParams) {
+            codeBuilder.append("    float ").append(derivedParam.name).append(";\n");
+        }
+        codeBuilder.append("};");
+        return codeBuilder.toString();
+    }
+
+    /**
+     * 设置uniform，值没变不会重新上传
+     *
+     * @param name
+     * @param value
+     */
+    public void set(String name, float value) {
+        int index = indexOf(name);
+        if (index >= 0 && values[index] != value) {
+            values[index] = value;
+            dirty = true;
+        }
+    }
+
+    @Override
+    public float get(String name) {
+        int index = indexOf(name);
+        return index >= 0 ? values[index] : 0;
+    }
+
+    /**
+     * Program切换后调用，把Program里的Uniform Block绑定到bindingPoint
+     *
+     * @param programId
+     * @param bindingPoint
+     */
+    public void bindProgram(int programId, int bindingPoint) {
+        int blockIndex = GLES30.glGetUniformBlockIndex(programId, blockName);
+        if (blockIndex != GLES30.GL_INVALID_INDEX) {
+            GLES30.glUniformBlockBinding(programId, blockIndex, bindingPoint);
+        }
+    }
+
+    /**
+     * 绘制前调用，有变化时计算派生参数并上传，再把buffer绑定到bindingPoint
+     *
+     * @param bindingPoint
+     */
+    public void bind(int bindingPoint) {
+        if (bufferId == 0) {
+            int[] buffers = new int[1];
+            GLES20.glGenBuffers(1, buffers, 0);
+            bufferId = buffers[0];
+            GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, bufferId);
+            GLES20.glBufferData(GLES30.GL_UNIFORM_BUFFER, values.length * FLOAT_BYTES, null, GLES20.GL_DYNAMIC_DRAW);
+            dirty = true;
+        } else {
+            GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, bufferId);
+        }
+        if (dirty) {
+            dirty = false;
+            for (int i = 0; i < derivedParams.length; i++) {
+                values[uniformNames.length + i] = derivedParams[i].compute(this);
+            }
+            valueBuffer.clear();
+            valueBuffer.put(values);
+            valueBuffer.flip();
+            GLES20.glBufferSubData(GLES30.GL_UNIFORM_BUFFER, 0, values.length * FLOAT_BYTES, valueBuffer);
+        }
+        GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, 0);
+        GLES30.glBindBufferBase(GLES30.GL_UNIFORM_BUFFER, bindingPoint, bufferId);
+    }
+
+    public void release() {
+        if (bufferId != 0) {
+            GLES20.glDeleteBuffers(1, new int[]{bufferId}, 0);
+            bufferId = 0;
+        }
+        dirty = true;
+    }
+
+    /**
+     * 派生参数只能读取直接设置的uniform，数量很少，直接遍历
+     */
+    private int indexOf(String name) {
+        for (int i = 0; i < uniformNames.length; i++) {
+            if (uniformNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
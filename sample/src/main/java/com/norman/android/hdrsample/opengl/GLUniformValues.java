@@ -0,0 +1,13 @@
+package com.norman.android.hdrsample.opengl;
+
+/**
+ * 按名字读取uniform的值，给{@link GLDerivedParam}计算派生参数用
+ */
+public interface GLUniformValues {
+
+    /**
+     * @param name uniform的名字
+     * @return 没有设置过返回0
+     */
+    float get(String name);
+}
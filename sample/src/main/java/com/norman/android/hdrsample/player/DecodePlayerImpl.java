@@ -143,6 +143,9 @@ abstract class DecodePlayerImpl<D extends Decoder,E extends Extractor> extends P
         public MediaCodec.BufferInfo onInputBufferAvailable(ByteBuffer inputBuffer) {
             MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
             extractor.read(inputBuffer, bufferInfo);//读取一帧时间去解码
+            if (bufferInfo.size > 0) {
+                DecodePlayerImpl.this.onInputBufferRead(inputBuffer, bufferInfo.presentationTimeUs);
+            }
             extractor.advance();
             return bufferInfo;
         }
@@ -182,6 +185,16 @@ abstract class DecodePlayerImpl<D extends Decoder,E extends Extractor> extends P
 
     protected abstract void onInputFormatConfigure(E extractor, D decoder, MediaFormat inputFormat);
 
+    /**
+     * 读取一帧数据后，送去解码前回调，可以解析码流里的信息，不能修改buffer
+     *
+     * @param inputBuffer        position到limit是这一帧的数据
+     * @param presentationTimeUs
+     */
+    protected void onInputBufferRead(ByteBuffer inputBuffer, long presentationTimeUs) {
+
+    }
+
 
     protected abstract void onOutputFormatChanged(MediaFormat outputFormat);
 
@@ -0,0 +1,143 @@
+package com.norman.android.hdrsample.player;
+
+import android.opengl.GLES20;
+
+import com.norman.android.hdrsample.opengl.GLUniformBlock;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 合并渲染的Program，在{@link GLVideoTransform#onFuseTransform(GLFuseProgram)}里设置uniform和绑定纹理
+ * 输入纹理固定用0号纹理单元，其他纹理按绑定的顺序从1开始分配，Uniform Block的绑定位置从0开始分配
+ */
+public class GLFuseProgram {
+
+    /**
+     * 和各个Transform单独渲染时的顶点着色器一样
+     */
+    public static final String VERTEX_SHADER = "#version 300 es\n" +
+            "in vec4 position;\n" +
+            "in vec4 inputTextureCoordinate;\n" +
+            "out vec2 textureCoordinate;\n" +
+            "void main() {\n" +
+            "    gl_Position =position;\n" +
+            "    textureCoordinate =(inputTextureCoordinate).xy;\n" +
+            "}";
+
+    static final String INPUT_IMAGE_TEXTURE = "inputImageTexture";
+
+    /**
+     * GLES 3.0保证片段着色器至少有16个纹理单元
+     */
+    private static final int MAX_TEXTURE_UNITS = 16;
+
+    private final GLRenderer renderer;
+
+    private final int[] textureTargets = new int[MAX_TEXTURE_UNITS];
+
+    private int programId;
+
+    private boolean programChange;
+
+    private int textureUnit;
+
+    private int blockBinding;
+
+    GLFuseProgram(GLRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * 按顺序执行每个Transform的函数，纹理坐标在mediump下4K视频会偏差一个像素，一直用highp
+     *
+     * @param methods {@link GLVideoTransform#getFuseMethod()}
+     * @param codes   {@link GLVideoTransform#onFuseCode(String)}
+     * @return 片段着色器
+     */
+    public static String createFrameShader(List<String> methods, List<String> codes) {
+        StringBuilder codeBuilder = new StringBuilder();
+        codeBuilder.append("#version 300 es\n")
+                .append("precision highp float;\n")
+                .append("precision highp sampler3D;\n")
+                .append("in highp vec2 textureCoordinate;\n")
+                .append("out vec4 outColor;\n")
+                .append("uniform sampler2D ").append(INPUT_IMAGE_TEXTURE).append(";\n")
+                .append("\n");
+        for (String code : codes) {
+            codeBuilder.append(code).append("\n\n");
+        }
+        codeBuilder.append("void main() {\n")
+                .append("    vec4 color = texture(").append(INPUT_IMAGE_TEXTURE).append(", textureCoordinate);\n");
+        for (String method : methods) {
+            codeBuilder.append("    color = ").append(method).append("(color);\n");
+        }
+        codeBuilder.append("    outColor = color;\n")
+                .append("}");
+        return codeBuilder.toString();
+    }
+
+    /**
+     * 只有一个Transform时的片段着色器，用来提前编译
+     *
+     * @param method
+     * @param code
+     * @return
+     */
+    public static String createFrameShader(String method, String code) {
+        return createFrameShader(Collections.singletonList(method), Collections.singletonList(code));
+    }
+
+    void begin(int programId, boolean programChange) {
+        this.programId = programId;
+        this.programChange = programChange;
+        textureUnit = 1;
+        blockBinding = 0;
+    }
+
+    /**
+     * 绘制完成后解绑所有纹理
+     */
+    void end() {
+        for (int i = textureUnit - 1; i > 0; i--) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+            GLES20.glBindTexture(textureTargets[i], 0);
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+
+    public int getUniformLocation(String name) {
+        return renderer.getUniformLocation(name);
+    }
+
+    /**
+     * 分配一个纹理单元并绑定纹理
+     *
+     * @param target      GL_TEXTURE_2D或GL_TEXTURE_3D
+     * @param textureId
+     * @param uniformName 着色器里sampler的名字
+     */
+    public void bindTexture(int target, int textureId, String uniformName) {
+        if (textureUnit >= MAX_TEXTURE_UNITS) {
+            throw new IllegalStateException("fuse texture unit exceed " + MAX_TEXTURE_UNITS);
+        }
+        int unit = textureUnit++;
+        textureTargets[unit] = target;
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        GLES20.glBindTexture(target, textureId);
+        GLES20.glUniform1i(getUniformLocation(uniformName), unit);
+    }
+
+    /**
+     * 分配一个绑定位置，Program切换后才重新绑定Program里的Uniform Block
+     *
+     * @param uniformBlock
+     */
+    public void bindUniformBlock(GLUniformBlock uniformBlock) {
+        int binding = blockBinding++;
+        if (programChange) {
+            uniformBlock.bindProgram(programId, binding);
+        }
+        uniformBlock.bind(binding);
+    }
+}
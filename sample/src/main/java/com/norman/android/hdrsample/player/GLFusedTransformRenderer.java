@@ -0,0 +1,275 @@
+package com.norman.android.hdrsample.player;
+
+import android.opengl.GLES20;
+
+import com.norman.android.hdrsample.opengl.GLProgramPrecompiler;
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.util.GLESUtil;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把相邻的可以合并的{@link GLVideoTransform}生成一个Shader，一次绘制完成，不需要在frontTarget和backTarget之间中转
+ * Transform的onTransformStart在加入时已经执行，这里只负责生成Shader、设置uniform和绘制
+ * 同一个类的Transform不能合并到一起，它们的函数和uniform会重名
+ * 新的Shader还在后台编译时继续用之前的Program绘制，每个Transform按之前的代码设置uniform和纹理，和单独渲染一样
+ */
+class GLFusedTransformRenderer extends GLRenderer {
+
+    private final FloatBuffer textureCoordinateBuffer;
+    private final FloatBuffer positionCoordinateBuffer;
+
+    private int positionCoordinateAttribute;
+    private int textureCoordinateAttribute;
+    private int textureUnitUniform;
+
+    private final List<GLVideoTransform> transformList = new ArrayList<>();
+
+    private final List<String> methodList = new ArrayList<>();
+
+    private final List<String> codeList = new ArrayList<>();
+
+    /**
+     * 当前Shader对应的代码，Transform返回的代码没变化时不重新生成Shader
+     */
+    private final List<String> shaderCodeList = new ArrayList<>();
+
+    /**
+     * 当前Program编译时的函数和代码，新的Shader编译完成前Transform按这些代码设置uniform
+     */
+    private final List<String> programMethodList = new ArrayList<>();
+
+    private final List<String> programCodeList = new ArrayList<>();
+
+    /**
+     * 每个Transform的输出，只用来记录颜色空间和亮度，不会创建纹理，下一个Transform把它作为输入
+     * 每个Transform一个，绘制时各自的输入还要保持不变
+     */
+    private final List<GLRenderTextureTarget> metadataTargetList = new ArrayList<>();
+
+    private final GLFuseProgram fuseProgram = new GLFuseProgram(this);
+
+    private boolean programChange;
+
+    private GLRenderTextureTarget inputTarget;
+
+    GLFusedTransformRenderer() {
+        positionCoordinateBuffer = GLESUtil.createPositionFlatBuffer();
+        textureCoordinateBuffer = GLESUtil.createTextureFlatBuffer();
+        setVertexShader(GLFuseProgram.VERTEX_SHADER);
+    }
+
+    /**
+     * 视频格式确定后把相邻Transform在当前设置下的代码组合起来提交后台编译，第一次合并渲染时不需要在渲染线程编译
+     * 之后只是代码变化的组合会在渲染时交给后台编译
+     *
+     * @param transformList 启用的Transform，按渲染顺序
+     * @param colorSpace    视频的色域
+     * @param bitDepth      中转纹理的位深
+     * @param precompiler
+     */
+    static void precompile(List<GLVideoTransform> transformList,
+                           @ColorSpace int colorSpace,
+                           int bitDepth,
+                           GLProgramPrecompiler precompiler) {
+        List<GLVideoTransform> groupList = new ArrayList<>();
+        List<List<String>> groupCodesList = new ArrayList<>();
+        for (GLVideoTransform videoTransform : transformList) {
+            List<String> codes = videoTransform.onPrecompileFuseCodes(colorSpace, bitDepth);
+            boolean sameClass = false;
+            for (GLVideoTransform transform : groupList) {
+                if (transform.getClass() == videoTransform.getClass()) {
+                    sameClass = true;
+                    break;
+                }
+            }
+            if (codes.isEmpty() || sameClass) {// 不能合并到这一组，前面的组合先提交
+                precompileGroup(groupList, groupCodesList, precompiler);
+                groupList.clear();
+                groupCodesList.clear();
+                if (codes.isEmpty()) {
+                    continue;
+                }
+            }
+            groupList.add(videoTransform);
+            groupCodesList.add(codes);
+        }
+        precompileGroup(groupList, groupCodesList, precompiler);
+    }
+
+    /**
+     * 一组里所有连续的两个以上的Transform，每个Transform的代码都组合一遍
+     */
+    private static void precompileGroup(List<GLVideoTransform> groupList,
+                                        List<List<String>> groupCodesList,
+                                        GLProgramPrecompiler precompiler) {
+        for (int start = 0; start < groupList.size(); start++) {
+            for (int end = start + 2; end <= groupList.size(); end++) {
+                List<String> methods = new ArrayList<>();
+                for (int i = start; i < end; i++) {
+                    methods.add(groupList.get(i).getFuseMethod());
+                }
+                precompileCodes(methods, groupCodesList.subList(start, end), new ArrayList<>(), precompiler);
+            }
+        }
+    }
+
+    private static void precompileCodes(List<String> methods,
+                                        List<List<String>> codesList,
+                                        List<String> codes,
+                                        GLProgramPrecompiler precompiler) {
+        if (codes.size() == codesList.size()) {
+            precompiler.precompile(GLFuseProgram.VERTEX_SHADER, GLFuseProgram.createFrameShader(methods, codes));
+            return;
+        }
+        for (String code : codesList.get(codes.size())) {
+            codes.add(code);
+            precompileCodes(methods, codesList, codes, precompiler);
+            codes.remove(codes.size() - 1);
+        }
+    }
+
+    /**
+     * 开始新的一组
+     *
+     * @param inputTarget 第一个Transform的输入
+     */
+    void start(GLRenderTextureTarget inputTarget) {
+        this.inputTarget = inputTarget;
+        transformList.clear();
+        methodList.clear();
+        codeList.clear();
+    }
+
+    boolean isEmpty() {
+        return transformList.isEmpty();
+    }
+
+    /**
+     * @param videoTransform
+     * @return 同一个类的Transform已经在这一组里返回false
+     */
+    boolean canFuse(GLVideoTransform videoTransform) {
+        for (GLVideoTransform transform : transformList) {
+            if (transform.getClass() == videoTransform.getClass()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 执行onTransformStart，返回true才加入这一组
+     *
+     * @param videoTransform
+     * @return 是否加入
+     */
+    boolean add(GLVideoTransform videoTransform) {
+        int index = transformList.size();
+        if (metadataTargetList.size() <= index) {
+            metadataTargetList.add(new GLRenderTextureTarget());
+        }
+        GLRenderTextureTarget outputTarget = metadataTargetList.get(index);
+        outputTarget.setRenderSize(inputTarget.width, inputTarget.height);
+        if (!videoTransform.startFuse(getOutputTarget(), outputTarget)) {
+            return false;
+        }
+        String method = videoTransform.getFuseMethod();
+        transformList.add(videoTransform);
+        methodList.add(method);
+        codeList.add(videoTransform.onFuseCode(method));
+        return true;
+    }
+
+    /**
+     * @return 最后一个Transform的输出，没有Transform时是这一组的输入
+     */
+    GLRenderTextureTarget getOutputTarget() {
+        return transformList.isEmpty() ? inputTarget : metadataTargetList.get(transformList.size() - 1);
+    }
+
+    @Override
+    boolean onRenderStart() {
+        if (transformList.isEmpty() || inputTarget.textureId <= 0) {
+            return false;
+        }
+        updateFrameShader();
+        return true;
+    }
+
+    /**
+     * 组里的Transform没变、只是代码变化时交给后台编译，之前的Program还能按原来的代码绘制；
+     * Transform增减时之前的Program对不上，在渲染线程获取，视频格式确定时已经用{@link #precompile}提交过当前的组合
+     */
+    @Override
+    boolean isPrecompileEnabled() {
+        return methodList.equals(programMethodList);
+    }
+
+    private void updateFrameShader() {
+        if (!isSameCode()) {
+            shaderCodeList.clear();
+            shaderCodeList.addAll(codeList);
+            setFrameShader(GLFuseProgram.createFrameShader(methodList, codeList));
+        }
+    }
+
+    /**
+     * Transform代码没变化时返回的是同一个String，一般只需要比较引用
+     */
+    private boolean isSameCode() {
+        if (shaderCodeList.size() != codeList.size()) {
+            return false;
+        }
+        for (int i = 0; i < codeList.size(); i++) {
+            if (!codeList.get(i).equals(shaderCodeList.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void onProgramChange(int programId) {
+        positionCoordinateAttribute = getAttribLocation("position");
+        textureCoordinateAttribute = getAttribLocation("inputTextureCoordinate");
+        textureUnitUniform = getUniformLocation(GLFuseProgram.INPUT_IMAGE_TEXTURE);
+        programMethodList.clear();
+        programMethodList.addAll(methodList);
+        programCodeList.clear();
+        programCodeList.addAll(shaderCodeList);
+        programChange = true;
+    }
+
+    @Override
+    void onRender() {
+        positionCoordinateBuffer.clear();
+        textureCoordinateBuffer.clear();
+        GLES20.glEnableVertexAttribArray(positionCoordinateAttribute);
+        GLES20.glVertexAttribPointer(positionCoordinateAttribute, GLESUtil.FLAT_VERTEX_LENGTH, GLES20.GL_FLOAT, false, 0, positionCoordinateBuffer);
+        GLES20.glEnableVertexAttribArray(textureCoordinateAttribute);
+        GLES20.glVertexAttribPointer(textureCoordinateAttribute, GLESUtil.FLAT_VERTEX_LENGTH, GLES20.GL_FLOAT, false, 0, textureCoordinateBuffer);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, inputTarget.textureId);
+        GLES20.glUniform1i(textureUnitUniform, 0);
+        fuseProgram.begin(programId, programChange);
+        programChange = false;
+        for (int i = 0; i < transformList.size(); i++) {
+            transformList.get(i).fuseTransform(fuseProgram, programCodeList.get(i));
+        }
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        fuseProgram.end();
+        GLES20.glDisableVertexAttribArray(positionCoordinateAttribute);
+        GLES20.glDisableVertexAttribArray(textureCoordinateAttribute);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    @Override
+    void onRenderFinish() {
+        for (GLVideoTransform videoTransform : transformList) {
+            videoTransform.finishFuse();
+        }
+    }
+}
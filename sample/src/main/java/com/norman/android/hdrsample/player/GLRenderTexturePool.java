@@ -0,0 +1,113 @@
+package com.norman.android.hdrsample.player;
+
+import com.norman.android.hdrsample.util.GLESUtil;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@link GLRenderTextureTarget}的frameBuffer和纹理池，按宽高和位深(也就是纹理内部格式)复用
+ * 切换HDR位深、Surface大小变化、增加Transform时，中转纹理从池里取，之前用过的大小和位深不需要重新创建
+ * 空闲超过{@link #MAX_IDLE_FRAME}帧的纹理才删除，来回切换时不会反复创建删除
+ * <p>
+ * 纹理只能在创建它的EGLContext里用，每个Context一个池，所有方法都要在GL线程调用
+ */
+class GLRenderTexturePool {
+
+    /**
+     * 空闲的纹理最多保留的帧数，大概几秒
+     */
+    private static final int MAX_IDLE_FRAME = 120;
+
+    private final List<RenderTexture> idleList = new ArrayList<>();
+
+    private long frameIndex;
+
+    /**
+     * 优先复用空闲的，没有就创建
+     *
+     * @param width
+     * @param height
+     * @param bitDepth 和{@link GLESUtil#createTextureId(int, int, int)}一样
+     * @return
+     */
+    RenderTexture obtain(int width, int height, int bitDepth) {
+        for (int i = idleList.size() - 1; i >= 0; i--) {//后放回的先用，刚释放的大概率马上还会用
+            RenderTexture renderTexture = idleList.get(i);
+            if (renderTexture.width == width &&
+                    renderTexture.height == height &&
+                    renderTexture.bitDepth == bitDepth) {
+                idleList.remove(i);
+                return renderTexture;
+            }
+        }
+        return new RenderTexture(width, height, bitDepth);
+    }
+
+    /**
+     * 放回池里，等待复用或者空闲太久后删除
+     *
+     * @param renderTexture
+     */
+    void recycle(RenderTexture renderTexture) {
+        renderTexture.idleFrameIndex = frameIndex;
+        idleList.add(renderTexture);
+    }
+
+    /**
+     * 每帧渲染完调用，删除空闲太久的纹理
+     */
+    void trim() {
+        frameIndex++;
+        Iterator<RenderTexture> iterator = idleList.iterator();
+        while (iterator.hasNext()) {
+            RenderTexture renderTexture = iterator.next();
+            if (frameIndex - renderTexture.idleFrameIndex > MAX_IDLE_FRAME) {
+                renderTexture.delete();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 删除所有空闲的纹理，正在使用的纹理由{@link GLRenderTextureTarget#destroy}先放回来
+     */
+    void release() {
+        for (RenderTexture renderTexture : idleList) {
+            renderTexture.delete();
+        }
+        idleList.clear();
+        frameIndex = 0;
+    }
+
+    /**
+     * 绑定了纹理的frameBuffer
+     */
+    static class RenderTexture {
+        final int frameBufferId;
+        final int textureId;
+
+        final int width;
+
+        final int height;
+
+        final int bitDepth;
+
+        long idleFrameIndex;
+
+        RenderTexture(int width, int height, int bitDepth) {
+            this.width = width;
+            this.height = height;
+            this.bitDepth = bitDepth;
+            frameBufferId = GLESUtil.createFrameBufferId();
+            textureId = GLESUtil.createTextureId(width, height, bitDepth);
+            GLESUtil.attachTexture(frameBufferId, textureId);
+        }
+
+        void delete() {
+            GLESUtil.delTextureId(textureId);
+            GLESUtil.deleteFrameBufferId(frameBufferId);
+        }
+    }
+}
@@ -13,6 +13,7 @@ import android.opengl.GLES20;
 import android.opengl.GLES30;
 
 import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.player.extract.HDR10PlusMetadata;
 import com.norman.android.hdrsample.util.GLESUtil;
 
 
@@ -21,6 +22,13 @@ class GLRenderTextureTarget extends GLRenderTarget {
     int frameBufferId;
     int textureId;
 
+    /**
+     * 设置后frameBuffer和纹理从池里取，销毁时放回池里
+     */
+    private GLRenderTexturePool texturePool;
+
+    private GLRenderTexturePool.RenderTexture renderTexture;
+
     int bitDepth = 8;
 
     @ColorSpace
@@ -30,6 +38,11 @@ class GLRenderTextureTarget extends GLRenderTarget {
     int maxFrameAverageLuminance;
     int maxMasteringLuminance;
 
+    /**
+     * 当前帧的HDR10+动态元数据，没有是null
+     */
+    HDR10PlusMetadata dynamicMetadata;
+
     void setBitDepth(int bitDepth) {
         if (this.bitDepth != bitDepth) {
             this.bitDepth = bitDepth;
@@ -37,6 +50,15 @@ class GLRenderTextureTarget extends GLRenderTarget {
         }
     }
 
+    /**
+     * 要在第一次渲染前设置
+     *
+     * @param texturePool
+     */
+    void setTexturePool(GLRenderTexturePool texturePool) {
+        this.texturePool = texturePool;
+    }
+
     void setColorSpace(@ColorSpace int colorSpace) {
         this.colorSpace = colorSpace;
     }
@@ -54,20 +76,51 @@ class GLRenderTextureTarget extends GLRenderTarget {
         this.maxMasteringLuminance = maxMasteringLuminance;
     }
 
+    protected void setDynamicMetadata(HDR10PlusMetadata dynamicMetadata) {
+        this.dynamicMetadata = dynamicMetadata;
+    }
+
     /**
-     * 根据位数和宽高创建纹理并绑定到frameBuffer
+     * 复制颜色空间、亮度元数据和位深，Transform的输出默认和输入一样
+     *
+     * @param target
+     */
+    void copyMetadata(GLRenderTextureTarget target) {
+        setColorSpace(target.colorSpace);
+        setMaxContentLuminance(target.maxContentLuminance);
+        setMaxFrameAverageLuminance(target.maxFrameAverageLuminance);
+        setMaxMasteringLuminance(target.maxMasteringLuminance);
+        setDynamicMetadata(target.dynamicMetadata);
+        setBitDepth(target.bitDepth);
+    }
+
+    /**
+     * 根据位数和宽高创建纹理并绑定到frameBuffer，有纹理池时从池里取
      */
     @Override
     void onCreate() {
-        frameBufferId = GLESUtil.createFrameBufferId();
-        textureId = GLESUtil.createTextureId(width, height, bitDepth);
-        GLESUtil.attachTexture(frameBufferId, textureId);
+        if (texturePool != null) {
+            renderTexture = texturePool.obtain(width, height, bitDepth);
+            frameBufferId = renderTexture.frameBufferId;
+            textureId = renderTexture.textureId;
+        } else {
+            frameBufferId = GLESUtil.createFrameBufferId();
+            textureId = GLESUtil.createTextureId(width, height, bitDepth);
+            GLESUtil.attachTexture(frameBufferId, textureId);
+        }
     }
 
     @Override
     void onDestroy() {
-        GLESUtil.delTextureId(textureId);
-        GLESUtil.deleteFrameBufferId(frameBufferId);
+        if (renderTexture != null) {
+            texturePool.recycle(renderTexture);
+            renderTexture = null;
+        } else {
+            GLESUtil.delTextureId(textureId);
+            GLESUtil.deleteFrameBufferId(frameBufferId);
+        }
+        frameBufferId = 0;
+        textureId = 0;
     }
 
     @Override
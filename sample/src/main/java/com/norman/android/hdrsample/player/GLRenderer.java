@@ -4,8 +4,10 @@ import android.opengl.GLES20;
 
 import androidx.annotation.NonNull;
 
+import com.norman.android.hdrsample.opengl.GLProgramCache;
 import com.norman.android.hdrsample.opengl.GLShaderCode;
 import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.GLProgramBinaryCache;
 
 import java.util.Objects;
 
@@ -18,6 +20,11 @@ abstract class GLRenderer {
 
     protected int programId;
 
+    /**
+     * 从{@link GLProgramCache}获取的Program，切换Shader时还给缓存而不是删除
+     */
+    private GLProgramCache.Program program;
+
     private GLShaderCode vertexShader;
 
     private GLShaderCode frameShader;
@@ -50,8 +57,7 @@ abstract class GLRenderer {
         if (create){
             create = false;
             renderSuccess = false;
-            GLESUtil.delProgramId(programId);
-            programId =0;
+            releaseProgram();
             onDestroy();
         }
     }
@@ -74,14 +80,20 @@ abstract class GLRenderer {
                 && frameShader != null){
             requestProgram = true;
         }
-        if (requestProgram) {
+        // 新的Program还在后台编译时继续用之前的Program绘制，编译完成后再切换
+        if (requestProgram && !waitPrecompile()) {
             requestProgram = false;
-            GLESUtil.delProgramId(programId);
-            programId = 0;
+            releaseProgram();
             if (vertexShader != null
                     && frameShader != null){
-                programId = GLESUtil.createProgramId(vertexShader.getCode(),frameShader.getCode());
-                onProgramChange(programId);
+                GLProgramCache programCache = GLProgramCache.getCurrent();
+                if (programCache != null) {
+                    program = programCache.obtain(vertexShader.getCode(), frameShader.getCode());
+                    programId = program.programId;
+                } else {
+                    programId = GLProgramBinaryCache.createProgramId(vertexShader.getCode(), frameShader.getCode());
+                }
+                programChange(programId);
             }
         }
         if (programId <= 0) {
@@ -96,6 +108,77 @@ abstract class GLRenderer {
         renderSuccess = true;
     }
 
+    /**
+     * 返回true时切换Shader交给后台编译，编译完成前继续用之前的Program绘制，
+     * 子类在{@link #onProgramChange(int)}之前要按之前的Shader设置uniform和纹理；
+     * 视频转纹理的Renderer只在格式变化时切换，直接在渲染线程编译
+     *
+     * @return 默认false
+     */
+    boolean isPrecompileEnabled() {
+        return false;
+    }
+
+    /**
+     * 已经有Program时切换Shader不在渲染线程编译，交给后台编译
+     *
+     * @return true表示正在后台编译
+     */
+    private boolean waitPrecompile() {
+        if (!isPrecompileEnabled() ||
+                programId <= 0 ||
+                vertexShader == null ||
+                frameShader == null) {
+            return false;
+        }
+        GLProgramCache programCache = GLProgramCache.getCurrent();
+        return programCache != null &&
+                programCache.precompile(vertexShader.getCode(), frameShader.getCode());
+    }
+
+    /**
+     * 切换到新的Program，子类可以在onProgramChange之前记录新的Program对应的状态
+     *
+     * @param programId
+     */
+    void programChange(int programId) {
+        onProgramChange(programId);
+    }
+
+    private void releaseProgram() {
+        if (program != null) {
+            program.release();
+            program = null;
+        } else {
+            GLESUtil.delProgramId(programId);
+        }
+        programId = 0;
+    }
+
+    /**
+     * 获取当前Program的uniform位置，同一个Program只会查询一次
+     * @param name
+     * @return
+     */
+    protected int getUniformLocation(String name) {
+        if (program != null) {
+            return program.getUniformLocation(name);
+        }
+        return GLES20.glGetUniformLocation(programId, name);
+    }
+
+    /**
+     * 获取当前Program的attribute位置，同一个Program只会查询一次
+     * @param name
+     * @return
+     */
+    protected int getAttribLocation(String name) {
+        if (program != null) {
+            return program.getAttribLocation(name);
+        }
+        return GLES20.glGetAttribLocation(programId, name);
+    }
+
     protected synchronized void setVertexShader(GLShaderCode vertexShader) {
         if (!Objects.equals(this.vertexShader,vertexShader)){
             this.vertexShader = vertexShader;
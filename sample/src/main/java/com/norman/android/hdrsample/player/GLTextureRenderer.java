@@ -55,10 +55,10 @@ class GLTextureRenderer extends GLRenderer {
     @CallSuper
     @Override
     protected void onProgramChange(int programId) {
-        positionCoordinateAttribute = GLES20.glGetAttribLocation(programId, TextureVertexShader.POSITION);
-        textureMatrixUniform = GLES20.glGetUniformLocation(programId, TextureVertexShader.TEXTURE_MATRIX);
-        textureCoordinateAttribute = GLES20.glGetAttribLocation(programId, TextureVertexShader.INPUT_TEXTURE_COORDINATE);
-        textureUnitUniform = GLES20.glGetUniformLocation(programId, TextureFragmentShader.INPUT_IMAGE_TEXTURE);
+        positionCoordinateAttribute = getAttribLocation(TextureVertexShader.POSITION);
+        textureMatrixUniform = getUniformLocation(TextureVertexShader.TEXTURE_MATRIX);
+        textureCoordinateAttribute = getAttribLocation(TextureVertexShader.INPUT_TEXTURE_COORDINATE);
+        textureUnitUniform = getUniformLocation(TextureFragmentShader.INPUT_IMAGE_TEXTURE);
     }
 
     @Override
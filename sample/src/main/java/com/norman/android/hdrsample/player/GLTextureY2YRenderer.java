@@ -38,7 +38,7 @@ class GLTextureY2YRenderer extends GLTextureRenderer {
     @Override
     protected void onProgramChange(int programId) {
         super.onProgramChange(programId);
-        yuvToRgbMatrixUniform = GLES20.glGetUniformLocation(programId, TextureFragmentShader.Y2Y_TO_RGB_MATRIX);
+        yuvToRgbMatrixUniform = getUniformLocation(TextureFragmentShader.Y2Y_TO_RGB_MATRIX);
     }
 
 
@@ -15,7 +15,7 @@ public abstract class GLVideoOutput extends VideoOutput {
      * 视频的纹理来源
      */
 
-    @IntDef({TextureSource.AUTO, TextureSource.BUFFER, TextureSource.EXT, TextureSource.Y2Y, TextureSource.OES})
+    @IntDef({TextureSource.AUTO, TextureSource.BUFFER, TextureSource.EXT, TextureSource.Y2Y, TextureSource.OES, TextureSource.IMAGE})
     @Retention(RetentionPolicy.SOURCE)
     public @interface TextureSource {
         /**
@@ -39,6 +39,11 @@ public abstract class GLVideoOutput extends VideoOutput {
          * 从OES纹理转成2D纹理
          */
         int OES = 4;
+        /**
+         * 解码到P010格式的ImageReader，和Buffer一样按量化数据转纹理，10位精度没有损失
+         * 只支持Android12以上的10位视频，不支持时用外部纹理
+         */
+        int IMAGE = 5;
     }
 
 
@@ -62,6 +67,23 @@ public abstract class GLVideoOutput extends VideoOutput {
         int BIT_DEPTH_16 = 2;
     }
 
+    @IntDef({ResolutionPolicy.SOURCE, ResolutionPolicy.DISPLAY_FIT, ResolutionPolicy.FIXED_SCALE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ResolutionPolicy {
+        /**
+         * Transform按视频的原始分辨率处理
+         */
+        int SOURCE = 0;
+        /**
+         * 按屏幕上显示的大小处理，保持宽高比，不会超过视频的原始分辨率，4K视频显示在1080P的View上只需要处理四分之一的像素
+         */
+        int DISPLAY_FIT = 1;
+        /**
+         * 按{@link #setResolutionScale(float)}的比例缩小后处理
+         */
+        int FIXED_SCALE = 2;
+    }
+
     /**
      * 经过OpenGL中转
      *
@@ -84,6 +106,24 @@ public abstract class GLVideoOutput extends VideoOutput {
 
     public abstract void addVideoTransform(GLVideoTransform videoTransform);
 
+    /**
+     * Transform处理的分辨率，视频转成纹理时就缩小，后面的Transform都按缩小后的大小处理，可以在播放时切换
+     *
+     * @param resolutionPolicy
+     */
+    public abstract void setResolutionPolicy(@ResolutionPolicy int resolutionPolicy);
+
+    public abstract @ResolutionPolicy int getResolutionPolicy();
+
+    /**
+     * {@link ResolutionPolicy#FIXED_SCALE}时的缩小比例
+     *
+     * @param resolutionScale 大于0并且不超过1
+     */
+    public abstract void setResolutionScale(float resolutionScale);
+
+    public abstract float getResolutionScale();
+
 
 
 
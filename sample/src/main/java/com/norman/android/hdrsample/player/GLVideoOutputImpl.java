@@ -1,6 +1,9 @@
 package com.norman.android.hdrsample.player;
 
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
+import android.media.Image;
+import android.media.ImageReader;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.view.Surface;
@@ -12,10 +15,14 @@ import com.norman.android.hdrsample.opengl.GLEnvContext;
 import com.norman.android.hdrsample.opengl.GLEnvContextManager;
 import com.norman.android.hdrsample.opengl.GLEnvDisplay;
 import com.norman.android.hdrsample.opengl.GLEnvWindowSurface;
+import com.norman.android.hdrsample.opengl.GLProgramPrecompiler;
 import com.norman.android.hdrsample.opengl.GLTextureSurface;
 import com.norman.android.hdrsample.player.color.ColorRange;
 import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.player.color.YUV420Type;
 import com.norman.android.hdrsample.player.decode.VideoDecoder;
+import com.norman.android.hdrsample.player.extract.HDR10PlusMetadata;
+import com.norman.android.hdrsample.player.extract.HDR10PlusParser;
 import com.norman.android.hdrsample.util.GLESUtil;
 import com.norman.android.hdrsample.util.MediaFormatUtil;
 import com.norman.android.hdrsample.util.TimeUtil;
@@ -31,6 +38,8 @@ import java.util.regex.Pattern;
 /**
  * GLVideoOutput的具体实现，先通过外部纹理(OES或Y2Y)或YUV420 Buffer转成2D纹理，然后再用frontTarget和backTarget对纹理
  * 作Transform输出一个最终纹理，然后把纹理上屏， 如果最终纹理是PQ或者HLG传递函数，上屏的Surface要配置对应的色域
+ * 相邻的能合并的Transform用{@link GLFusedTransformRenderer}一次渲染，最后一组直接渲染到屏幕
+ * frontTarget和backTarget的大小由{@link ResolutionPolicy}决定，视频转成纹理时就缩小
  * 注意TextureView在Android13以下配置对应的色域是无效的，只有SurfaceView或者Android以上才有效，这个时候可以转成SDR解决
  */
 class GLVideoOutputImpl extends GLVideoOutput {
@@ -44,11 +53,21 @@ class GLVideoOutputImpl extends GLVideoOutput {
      */
     private GLEnvContext envContext;
 
+    /**
+     * 共享envContext的后台线程，提前编译Transform可能用到的Program
+     */
+    private GLProgramPrecompiler programPrecompiler;
+
     /**
      * 如果是Surface模式，视频就先输出到videoSurface的纹理上
      */
     private GLTextureSurface videoSurface;
 
+    /**
+     * 如果是Image模式，视频解码到imageReader的P010图像上
+     */
+    private ImageReader imageReader;
+
     private final OutputSurface outputSurface = new OutputSurface();//对最终渲染的Surface对应的GLWindowSurface的封装
 
     /**
@@ -66,7 +85,7 @@ class GLVideoOutputImpl extends GLVideoOutput {
     private final GLTexture2DRenderer texture2DRenderer = new GLTexture2DRenderer();
 
     /**
-     * 如果是Buffer模式，就把Buffer根据YUV420的四种格式对应转换成纹理
+     * 如果是Buffer模式或Image模式，就把Buffer根据YUV420的四种格式对应转换成纹理
      */
     private final GLYUV420Renderer bufferYUV420Renderer = new GLYUV420Renderer();
 
@@ -94,10 +113,25 @@ class GLVideoOutputImpl extends GLVideoOutput {
 
     private GLRenderTextureTarget backTarget = new GLRenderTextureTarget();
 
+    /**
+     * yuv420TextureTarget、frontTarget和backTarget的纹理池，切换位深或大小时复用之前的纹理
+     */
+    private final GLRenderTexturePool texturePool = new GLRenderTexturePool();
+
+    /**
+     * 相邻的能合并的Transform生成一个Shader一次渲染，最后一组直接渲染到屏幕
+     */
+    private final GLFusedTransformRenderer fusedRenderer = new GLFusedTransformRenderer();
+
     /**
      * buffer转纹理模式
      */
     private boolean bufferMode;
+
+    /**
+     * ImageReader转纹理模式
+     */
+    private boolean imageMode;
     /**
      * true表示Y2Y转纹理，不然就是OES转纹理
      */
@@ -114,6 +148,20 @@ class GLVideoOutputImpl extends GLVideoOutput {
     private int maxFrameAverageLuminance;
     private int maxMasteringLuminance;
 
+    /**
+     * 解码前从HEVC码流的SEI里解析HDR10+元数据，按pts在渲染时取出
+     */
+    private final HDR10PlusParser hdr10PlusParser = new HDR10PlusParser();
+
+    /**
+     * 最近一帧的HDR10+元数据，没有元数据的帧沿用前面的，同一个场景元数据不变
+     */
+    private final HDR10PlusMetadata hdr10PlusMetadata = new HDR10PlusMetadata();
+
+    private boolean hdr10PlusParse;
+
+    private boolean hdr10PlusAvailable;
+
     private @ColorRange int colorRange;
 
 
@@ -122,9 +170,27 @@ class GLVideoOutputImpl extends GLVideoOutput {
 
     private  @HdrBitDepth int hdrDisplayBitDepth = HdrBitDepth.BIT_DEPTH_10;
 
+    private @ResolutionPolicy int resolutionPolicy = ResolutionPolicy.SOURCE;
+
+    private float resolutionScale = 1.0f;
+
+    /**
+     * 上一帧屏幕Surface的大小，{@link ResolutionPolicy#DISPLAY_FIT}按这个大小计算
+     */
+    private int displayWidth;
+    private int displayHeight;
+
+    /**
+     * Transform处理的大小，frontTarget和backTarget都是这个大小
+     */
+    private int transformWidth;
+    private int transformHeight;
 
-    public GLVideoOutputImpl() {
 
+    public GLVideoOutputImpl() {
+        yuv420TextureTarget.setTexturePool(texturePool);
+        frontTarget.setTexturePool(texturePool);
+        backTarget.setTexturePool(texturePool);
     }
 
     @Override
@@ -137,14 +203,23 @@ class GLVideoOutputImpl extends GLVideoOutput {
         screenTarget.destroy();
         frontTarget.destroy();
         backTarget.destroy();
+        texturePool.release();//要在中转纹理都放回后删除
+        fusedRenderer.destroy();
         for (GLVideoTransform videoTransform : transformList) {
             videoTransform.destroy();
         }
         outputSurface.release();
+        programPrecompiler.release();
+        hdr10PlusParser.clear();
+        hdr10PlusAvailable = false;
         envContextManager.detach();
         if (videoSurface != null) {
             videoSurface.release();
         }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
     }
 
     @Override
@@ -156,6 +231,10 @@ class GLVideoOutputImpl extends GLVideoOutput {
     protected void onOutputPrepare(MediaFormat inputFormat) {
 
         profile10Bit = MediaFormatUtil.is10BitProfile(inputFormat);
+        hdr10PlusParse = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(MediaFormatUtil.getString(inputFormat, MediaFormat.KEY_MIME));
+        if (hdr10PlusParse) {//码流格式和csd-0一样
+            hdr10PlusParser.setCodecConfig(MediaFormatUtil.getByteBuffer(inputFormat, "csd-0"));
+        }
         GLEnvDisplay glEnvDisplay = GLEnvDisplay.createDisplay();
 
         // 8位
@@ -195,6 +274,7 @@ class GLVideoOutputImpl extends GLVideoOutput {
         envContextManager = GLEnvContextManager.create(glEnvDisplay, envConfig);
         envContextManager.attach();
         envContext = envContextManager.getEnvContext();
+        programPrecompiler = new GLProgramPrecompiler(envContext);
         if (textureSource == TextureSource.AUTO) {
             // 支持10位YUV420Buffer就用Buffer模式，不然就用外部纹理模式
             bufferMode = profile10Bit &&
@@ -202,9 +282,20 @@ class GLVideoOutputImpl extends GLVideoOutput {
         } else {
             bufferMode = textureSource == TextureSource.BUFFER;
         }
+        // P010的ImageReader需要Android12，8位视频没有精度问题，不支持时用外部纹理
+        imageMode = textureSource == TextureSource.IMAGE &&
+                profile10Bit &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.S;
         if (bufferMode) {//buffer解码
             videoDecoder.setOutputSurface(null);
             videoDecoder.setOutputMode(VideoDecoder.OutputMode.BUFFER_MODE);
+        } else if (imageMode) {//解码到ImageReader
+            int width = MediaFormatUtil.getInteger(inputFormat, MediaFormat.KEY_WIDTH);
+            int height = MediaFormatUtil.getInteger(inputFormat, MediaFormat.KEY_HEIGHT);
+            // 图像拷贝到Pixel Buffer后马上close，3个就够解码器轮流使用
+            imageReader = ImageReader.newInstance(width, height, ImageFormat.YCBCR_P010, 3);
+            videoDecoder.setOutputMode(VideoDecoder.OutputMode.SURFACE_MODE);
+            videoDecoder.setOutputSurface(imageReader.getSurface());
         } else {//解码到Surface
             videoDecoder.setOutputMode(VideoDecoder.OutputMode.SURFACE_MODE);
             videoSurface = new GLTextureSurface(GLESUtil.createExternalTextureId());
@@ -241,6 +332,29 @@ class GLVideoOutputImpl extends GLVideoOutput {
         return hdrDisplayBitDepth;
     }
 
+    @Override
+    public synchronized void setResolutionPolicy(@ResolutionPolicy int resolutionPolicy) {
+        this.resolutionPolicy = resolutionPolicy;
+    }
+
+    @Override
+    public synchronized @ResolutionPolicy int getResolutionPolicy() {
+        return resolutionPolicy;
+    }
+
+    @Override
+    public synchronized void setResolutionScale(float resolutionScale) {
+        if (resolutionScale <= 0 || resolutionScale > 1) {
+            throw new IllegalArgumentException("resolutionScale must in (0, 1] " + resolutionScale);
+        }
+        this.resolutionScale = resolutionScale;
+    }
+
+    @Override
+    public synchronized float getResolutionScale() {
+        return resolutionScale;
+    }
+
     /**
      * 添加GLVideoTransform
      *
@@ -256,7 +370,7 @@ class GLVideoOutputImpl extends GLVideoOutput {
         super.onOutputFormatChanged(outputFormat);
         colorRange = MediaFormatUtil.getColorRange(outputFormat);
         colorSpace = MediaFormatUtil.getColorSpace(outputFormat);
-        //MediaExtractor不兼容KEY_HDR10_PLUS_INFO，不论HDR10还是HDR10+出来的都是KEY_HDR_STATIC_INFO，后续看看怎么解决
+        //MediaExtractor不兼容KEY_HDR10_PLUS_INFO，不论HDR10还是HDR10+出来的都是KEY_HDR_STATIC_INFO，HDR10+的动态元数据用hdr10PlusParser从码流解析
         ByteBuffer hdrStaticInfo = MediaFormatUtil.getByteBuffer(outputFormat, MediaFormat.KEY_HDR_STATIC_INFO);
         if (hdrStaticInfo != null) {
             hdrStaticInfo.clear();
@@ -287,9 +401,10 @@ class GLVideoOutputImpl extends GLVideoOutput {
             int yuv420Type = MediaFormatUtil.getYUV420Type(outputFormat);
             int bitDepth = strideWidth / videoWidth == 2 ? 10 : 8;// strideWidth表示字节宽度，除以宽就是表示几个字节，10位其实是16位(2个字节)存储
             bufferYUV420Renderer.setBufferFormat(strideWidth, sliceHeight, bitDepth, new Rect(cropLeft, cropTop, cropRight, cropBottom), yuv420Type);
-        } else {//用扩展纹理转2D纹理
+        } else if (!imageMode) {//用扩展纹理转2D纹理，Image模式每帧按图像设置格式
             if (textureSource == TextureSource.AUTO ||
-                    textureSource == TextureSource.EXT) {
+                    textureSource == TextureSource.EXT ||
+                    textureSource == TextureSource.IMAGE) {//Image模式不支持时和EXT一样
                 // HDR且支持Y2Y才有必要用Y2Y处理
                 textureY2YMode = colorSpace != ColorSpace.VIDEO_SDR &&
                         GLTextureY2YRenderer.isSupportY2YEXT();
@@ -301,6 +416,24 @@ class GLVideoOutputImpl extends GLVideoOutput {
                 y2yExtTextureRenderer.setColorRange(colorRange);
             }
         }
+        synchronized (this) {
+            List<GLVideoTransform> enableTransformList = new ArrayList<>();
+            for (GLVideoTransform videoTransform : transformList) {
+                videoTransform.onPrecompile(colorSpace, getTargetBitDepth(), programPrecompiler);
+                if (videoTransform.isEnable()) {
+                    enableTransformList.add(videoTransform);
+                }
+            }
+            GLFusedTransformRenderer.precompile(enableTransformList, colorSpace, getTargetBitDepth(), programPrecompiler);
+        }
+    }
+
+    @Override
+    protected void onInputBufferAvailable(ByteBuffer inputBuffer, long presentationTimeUs) {
+        super.onInputBufferAvailable(inputBuffer, presentationTimeUs);
+        if (hdr10PlusParse) {
+            hdr10PlusParser.parse(inputBuffer, presentationTimeUs);
+        }
     }
 
     @Override
@@ -316,62 +449,83 @@ class GLVideoOutputImpl extends GLVideoOutput {
         if (!outputSurface.isValid()) {
             return false;
         }
-        GLTextureRenderer textureRenderer;
+        GLRenderer textureRenderer;
         if (bufferMode) {
-            // buffer通过bufferYUV420Renderer转成2D纹理，2D纹理再去后续处理就能重采样，虽然消耗了一点性能但是方便
-            // 注意bufferYUV420Renderer是通过texelFetch获取量化数据的不能重采样，要确保yuv420的图像大小和yuv420TextureTarget图像大小一样
-            textureRenderer = texture2DRenderer;
-            yuv420TextureTarget.setRenderSize(videoWidth, videoHeight);
-            bufferYUV420Renderer.renderToTarget(yuv420TextureTarget);
-            textureRenderer.setTextureId(yuv420TextureTarget.textureId);
+            textureRenderer = bufferYUV420Renderer;
+        } else if (imageMode) {
+            updateImage();
+            textureRenderer = bufferYUV420Renderer;
         } else {//两种扩展纹理 OES或Y2Y
-            textureRenderer = textureY2YMode ? y2yExtTextureRenderer : externalTextureRenderer;
+            GLTextureRenderer externalRenderer = textureY2YMode ? y2yExtTextureRenderer : externalTextureRenderer;
             videoSurface.updateTexImage();
-            videoSurface.getTransformMatrix(textureRenderer.getTextureMatrix());//纹理矩阵能解决绿边问题
+            videoSurface.getTransformMatrix(externalRenderer.getTextureMatrix());//纹理矩阵能解决绿边问题
+            textureRenderer = externalRenderer;
         }
 
-        GLTextureRenderer screenRenderer;
+        GLRenderer screenRenderer;
         int finalColorSpace = colorSpace;
         if (transformList.isEmpty()) {//没有transform直接输出到screen
-            screenRenderer = textureRenderer;
-        } else {
-            // 前面得到的纹理输出到frontTarget上
-            int targetBitDepth = 8;
-            if (profile10Bit){
-                if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_8){
-                    targetBitDepth =  8;
-                }else if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_10){
-                    targetBitDepth =  10;
-                }else if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_16){
-                    targetBitDepth =  16;
-                }
+            if (bufferMode || imageMode) {
+                // bufferYUV420Renderer是通过texelFetch获取量化数据的，只能缩小不能放大，先按视频大小转成2D纹理，上屏时再重采样
+                yuv420TextureTarget.setRenderSize(videoWidth, videoHeight);
+                bufferYUV420Renderer.renderToTarget(yuv420TextureTarget);
+                texture2DRenderer.setTextureId(yuv420TextureTarget.textureId);
+                screenRenderer = texture2DRenderer;
+            } else {
+                screenRenderer = textureRenderer;
             }
+        } else {
+            // 前面得到的纹理按分辨率策略缩小后输出到frontTarget上，buffer模式在YUV转RGB时就做过滤
+            int targetBitDepth = getTargetBitDepth();
+            updateTransformSize();
             frontTarget.setBitDepth(targetBitDepth);
             backTarget.setBitDepth(targetBitDepth);
-            frontTarget.setRenderSize(videoWidth, videoHeight);
-            backTarget.setRenderSize(videoWidth, videoHeight);
+            frontTarget.setRenderSize(transformWidth, transformHeight);
+            backTarget.setRenderSize(transformWidth, transformHeight);
 
             // 标记frontTarget的属性，方便后续处理
             frontTarget.setColorSpace(colorSpace);
             frontTarget.setMaxContentLuminance(maxContentLuminance);
             frontTarget.setMaxFrameAverageLuminance(maxFrameAverageLuminance);
             frontTarget.setMaxMasteringLuminance(maxMasteringLuminance);
+            if (hdr10PlusParser.poll(presentationTimeUs, hdr10PlusMetadata)) {
+                hdr10PlusAvailable = true;
+            }
+            frontTarget.setDynamicMetadata(hdr10PlusAvailable ? hdr10PlusMetadata : null);
             //把前面的数据渲染到新的纹理上面
             textureRenderer.renderToTarget(frontTarget);
 
-            //用frontTarget和backTarget做中转做Transform的处理
+            //用frontTarget和backTarget做中转做Transform的处理，相邻的能合并的Transform放到一组一次渲染
+            fusedRenderer.start(frontTarget);
             for (GLVideoTransform videoTransform : transformList) {
-                videoTransform.renderToTarget(frontTarget, backTarget);
-                if (videoTransform.renderSuccess) {//如果绘制成功了，才中转纹理
-                    GLRenderTextureTarget temp = frontTarget;
-                    frontTarget = backTarget;
-                    backTarget = temp;
+                if (!videoTransform.isEnable()) {
+                    continue;
+                }
+                boolean fusible = fusedRenderer.canFuse(videoTransform) &&
+                        videoTransform.isFusible(fusedRenderer.isEmpty());
+                if (!fusible && !fusedRenderer.isEmpty()) {//不能合并到前面的一组，先把前面的渲染出来
+                    renderFusedTransform();
+                    fusible = videoTransform.isFusible(true);
+                }
+                if (fusible) {
+                    fusedRenderer.add(videoTransform);
+                } else {
+                    videoTransform.renderToTarget(frontTarget, backTarget);
+                    if (videoTransform.renderSuccess) {//如果绘制成功了，才中转纹理
+                        swapTarget();
+                    }
+                    fusedRenderer.start(frontTarget);
                 }
             }
-            // 获得最终纹理
-            texture2DRenderer.setTextureId(frontTarget.textureId);
-            finalColorSpace = frontTarget.colorSpace;//
-            screenRenderer = texture2DRenderer;
+            if (fusedRenderer.isEmpty()) {
+                // 获得最终纹理
+                texture2DRenderer.setTextureId(frontTarget.textureId);
+                finalColorSpace = frontTarget.colorSpace;//
+                screenRenderer = texture2DRenderer;
+            } else {//最后一组直接渲染到屏幕，不需要再中转一次
+                finalColorSpace = fusedRenderer.getOutputTarget().colorSpace;
+                screenRenderer = fusedRenderer;
+            }
         }
         GLEnvWindowSurface windowSurface = outputSurface.getWindowSurface(finalColorSpace);
         if (windowSurface == null) {
@@ -379,14 +533,85 @@ class GLVideoOutputImpl extends GLVideoOutput {
         }
         // 把最终的纹理上屏
         envContext.makeCurrent(windowSurface);
-        screenTarget.setRenderSize(windowSurface.getWidth(), windowSurface.getHeight());
+        displayWidth = windowSurface.getWidth();
+        displayHeight = windowSurface.getHeight();
+        screenTarget.setRenderSize(displayWidth, displayHeight);
         screenTarget.clearColor();
         screenRenderer.renderToTarget(screenTarget);
         windowSurface.setPresentationTime(TimeUtil.microToNano(presentationTimeUs));
         windowSurface.swapBuffers();
+        texturePool.trim();
         return true;
     }
 
+    /**
+     * 取最新的P010图像拷贝到Pixel Buffer，没有新的图像时沿用上一帧的纹理
+     * 图像的行字节宽度和裁剪区域每帧都设置一次，没变化时不会重新创建纹理
+     */
+    private void updateImage() {
+        Image image = imageReader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        try {
+            int rowStride = image.getPlanes()[0].getRowStride();
+            bufferYUV420Renderer.setBufferFormat(rowStride, image.getHeight(), 10, image.getCropRect(), YUV420Type.NV12);
+            bufferYUV420Renderer.updateImage(image);
+        } finally {
+            image.close();
+        }
+    }
+
+    /**
+     * 按分辨率策略计算Transform处理的大小，保持宽高比，不会超过视频的原始分辨率
+     * 还没有屏幕大小时按原始分辨率
+     */
+    private void updateTransformSize() {
+        float scale = 1.0f;
+        if (resolutionPolicy == ResolutionPolicy.DISPLAY_FIT) {
+            if (displayWidth > 0 && displayHeight > 0) {
+                scale = Math.min(displayWidth * 1.0f / videoWidth, displayHeight * 1.0f / videoHeight);
+            }
+        } else if (resolutionPolicy == ResolutionPolicy.FIXED_SCALE) {
+            scale = resolutionScale;
+        }
+        scale = Math.min(scale, 1.0f);
+        transformWidth = Math.max(1, Math.round(videoWidth * scale));
+        transformHeight = Math.max(1, Math.round(videoHeight * scale));
+    }
+
+    /**
+     * 合并的一组渲染到backTarget，成功后交换，再开始新的一组
+     */
+    private void renderFusedTransform() {
+        backTarget.copyMetadata(fusedRenderer.getOutputTarget());
+        fusedRenderer.renderToTarget(backTarget);
+        if (fusedRenderer.renderSuccess) {
+            swapTarget();
+        }
+        fusedRenderer.start(frontTarget);
+    }
+
+    private void swapTarget() {
+        GLRenderTextureTarget temp = frontTarget;
+        frontTarget = backTarget;
+        backTarget = temp;
+    }
+
+    /**
+     * Transform中转纹理的位深，10位视频按设置的HDR位深，其他都是8位
+     */
+    private int getTargetBitDepth() {
+        if (profile10Bit) {
+            if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_10) {
+                return 10;
+            } else if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_16) {
+                return 16;
+            }
+        }
+        return 8;
+    }
+
 
     class OutputSurface {
         private GLEnvWindowSurface windowSurface;
@@ -1,6 +1,11 @@
 package com.norman.android.hdrsample.player;
 
+import com.norman.android.hdrsample.opengl.GLProgramPrecompiler;
 import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.player.extract.HDR10PlusMetadata;
+
+import java.util.Collections;
+import java.util.List;
 
 /**
  * 视频图像处理，如果需要输出到新的纹理需要调用success
@@ -12,6 +17,16 @@ public abstract class GLVideoTransform extends GLRenderer {
 
     boolean enable;
 
+    /**
+     * 单独渲染时当前Program编译用的合并代码
+     */
+    private String programFuseCode;
+
+    /**
+     * 正在绘制的Program里这个Transform的合并代码
+     */
+    private String drawFuseCode;
+
 
     protected final int getInputWidth() {
         return inputTarget.width;
@@ -57,6 +72,15 @@ public abstract class GLVideoTransform extends GLRenderer {
         return inputTarget.maxMasteringLuminance;
     }
 
+    /**
+     * 当前帧的HDR10+动态元数据，在渲染线程使用，不要保存
+     *
+     * @return 不是HDR10+视频返回null
+     */
+    protected final HDR10PlusMetadata getInputDynamicMetadata() {
+        return inputTarget.dynamicMetadata;
+    }
+
 
     protected final int getOutputWidth() {
         return outputTarget.width;
@@ -79,14 +103,55 @@ public abstract class GLVideoTransform extends GLRenderer {
         }
         this.inputTarget = inputTarget;
         this.outputTarget = outputTarget;
-        outputTarget.setColorSpace(inputTarget.colorSpace);
-        outputTarget.setMaxContentLuminance(inputTarget.maxContentLuminance);
-        outputTarget.setMaxFrameAverageLuminance(inputTarget.maxFrameAverageLuminance);
-        outputTarget.setMaxMasteringLuminance(inputTarget.maxMasteringLuminance);
-        outputTarget.setBitDepth(inputTarget.bitDepth);
+        outputTarget.copyMetadata(inputTarget);
         super.renderToTarget(outputTarget);
     }
 
+    /**
+     * 合并渲染时只执行onTransformStart，绘制交给{@link GLFusedTransformRenderer}
+     * outputTarget只用来记录输出的颜色空间和亮度，没有纹理，合并到前面的Transform后面时inputTarget是前一个的outputTarget
+     *
+     * @return onTransformStart是否返回true
+     */
+    synchronized boolean startFuse(GLRenderTextureTarget inputTarget, GLRenderTextureTarget outputTarget) {
+        renderSuccess = false;
+        if (!enable) {
+            return false;
+        }
+        this.inputTarget = inputTarget;
+        this.outputTarget = outputTarget;
+        outputTarget.copyMetadata(inputTarget);
+        create();
+        return onTransformStart();
+    }
+
+    /**
+     * @param fuseProgram
+     * @param fuseCode    合并的Program编译时这个Transform的代码
+     */
+    synchronized void fuseTransform(GLFuseProgram fuseProgram, String fuseCode) {
+        drawFuseCode = fuseCode;
+        onFuseTransform(fuseProgram);
+    }
+
+    synchronized void finishFuse() {
+        renderSuccess = true;
+        onTransformFinish();
+    }
+
+    synchronized boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 合并后GLSL函数的名字，也是uniform的前缀，同一个类的Transform不会合并到一起，用类名区分
+     *
+     * @return
+     */
+    protected final String getFuseMethod() {
+        return "fuse" + Integer.toHexString(getClass().getName().hashCode());
+    }
+
     @Override
     synchronized void renderToTarget(GLRenderTarget renderTarget) {
         throw new RuntimeException("not support renderToTarget(GLRenderTarget renderTarget)");
@@ -98,6 +163,7 @@ public abstract class GLVideoTransform extends GLRenderer {
             outputTarget.setMaxContentLuminance(0);
             outputTarget.setMaxFrameAverageLuminance(0);
             outputTarget.setMaxMasteringLuminance(0);
+            outputTarget.setDynamicMetadata(null);
         }
     }
 
@@ -110,6 +176,33 @@ public abstract class GLVideoTransform extends GLRenderer {
     }
 
 
+    /**
+     * 编译完成前继续用之前的Program绘制，onTransform里按{@link #getProgramFuseCode()}设置对应的uniform和纹理
+     */
+    @Override
+    final boolean isPrecompileEnabled() {
+        return true;
+    }
+
+    /**
+     * 单独渲染的Shader也是用{@link #onFuseCode(String)}生成的，切换Program时记录下来
+     */
+    @Override
+    void programChange(int programId) {
+        programFuseCode = onFuseCode(getFuseMethod());
+        super.programChange(programId);
+    }
+
+    /**
+     * 正在绘制的Program编译时用的{@link #onFuseCode(String)}，切换Shader后新的Program还在后台编译时是之前的代码，
+     * onTransform和onFuseTransform里要按它设置uniform和纹理，新的Program可以用之后再释放之前的资源
+     *
+     * @return
+     */
+    protected final String getProgramFuseCode() {
+        return drawFuseCode;
+    }
+
     @Override
     final boolean onRenderStart() {
         return onTransformStart();
@@ -118,6 +211,7 @@ public abstract class GLVideoTransform extends GLRenderer {
 
     @Override
     final void onRender() {
+        drawFuseCode = programFuseCode;
         onTransform();
     }
 
@@ -126,6 +220,63 @@ public abstract class GLVideoTransform extends GLRenderer {
         onTransformFinish();
     }
 
+    /**
+     * 视频格式确定后调用，把可能用到的Shader组合提交给precompiler在后台编译，切换设置时就不用在渲染线程编译
+     *
+     * @param colorSpace   视频的色域
+     * @param bitDepth     中转纹理的位深，和{@link #getInputBitDepth()}一样
+     * @param precompiler
+     */
+    protected void onPrecompile(@ColorSpace int colorSpace, int bitDepth, GLProgramPrecompiler precompiler) {
+
+    }
+
+    /**
+     * 视频格式确定后调用，返回当前设置下可能用到的{@link #onFuseCode(String)}，和相邻的Transform组合成合并的Shader提前编译
+     *
+     * @param colorSpace 视频的色域
+     * @param bitDepth   中转纹理的位深
+     * @return 默认没有，不参与组合
+     */
+    protected List<String> onPrecompileFuseCodes(@ColorSpace int colorSpace, int bitDepth) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 每帧在onTransformStart之前调用，返回true时和相邻的Transform合并成一个Shader一次渲染，最后一组直接渲染到屏幕，要满足
+     * 1. onTransformStart返回true时已经调用{@link #setOutputColorSpace(int)}，合并时不会调用onTransform
+     * 2. {@link #onFuseCode(String)}返回逐像素处理的代码，{@link #onFuseTransform(GLFuseProgram)}设置uniform和纹理
+     * 3. inputTextureReady为false时前面还有没渲染的Transform，onTransformStart里读不到输入纹理
+     *
+     * @param inputTextureReady 输入纹理是否已经渲染好
+     * @return 默认false，单独渲染
+     */
+    protected boolean isFusible(boolean inputTextureReady) {
+        return false;
+    }
+
+    /**
+     * 合并渲染的代码，要声明函数vec4 method(vec4 color)，输入和输出都是颜色
+     * uniform和其他函数要用method做前缀，避免和其他Transform重名，不要声明#version和输入输出变量
+     * 代码没变化时要返回同一个String，合并的Shader只在代码变化时重新生成
+     * 单独渲染时也要用{@link GLFuseProgram#createFrameShader(String, String)}和这里的代码生成Shader，{@link #getProgramFuseCode()}才对得上
+     *
+     * @param method {@link #getFuseMethod()}
+     * @return
+     */
+    protected String onFuseCode(String method) {
+        return null;
+    }
+
+    /**
+     * 合并渲染时代替onTransform，只设置uniform和纹理，不需要绘制
+     *
+     * @param fuseProgram
+     */
+    protected void onFuseTransform(GLFuseProgram fuseProgram) {
+
+    }
+
     protected abstract boolean onTransformStart();
 
     protected abstract void onTransform();
@@ -1,6 +1,7 @@
 package com.norman.android.hdrsample.player;
 
 import android.graphics.Rect;
+import android.media.Image;
 import android.opengl.GLES20;
 import android.opengl.GLES30;
 
@@ -13,6 +14,7 @@ import com.norman.android.hdrsample.util.GLESUtil;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -22,6 +24,21 @@ import java.util.Objects;
  */
 class GLYUV420Renderer extends GLRenderer {
 
+    /**
+     * 缩小时最多取4x4个点平均，再大的缩小倍数也按4倍过滤
+     */
+    private static final int MAX_SAMPLE_SCALE = 4;
+
+    /**
+     * 宽高取整后的缩小倍数会略大于整数，不需要多取一圈点
+     */
+    private static final float SCALE_EPSILON = 0.01f;
+
+    /**
+     * Pixel Buffer的数量，三个轮流写入，GPU还在读上一帧的buffer时不用等待
+     */
+    private static final int PIXEL_BUFFER_COUNT = 3;
+
     /**
      * YUV420 buffer数据对齐以后的字节宽度
      */
@@ -90,6 +107,18 @@ class GLYUV420Renderer extends GLRenderer {
      */
     private PlaneTexture chromaPlanarVTexture;
 
+    /**
+     * GL_PIXEL_UNPACK_BUFFER的环，codec的buffer先拷贝到映射的Pixel Buffer，纹理再从Pixel Buffer异步上传
+     */
+    private final int[] pixelBufferIds = new int[PIXEL_BUFFER_COUNT];
+
+    private int pixelBufferIndex;
+
+    /**
+     * Pixel Buffer不可用时ImageReader的图像先拷贝到这里
+     */
+    private ByteBuffer imageBuffer;
+
 
     private final FloatBuffer textureCoordinateBuffer;
     private final FloatBuffer positionCoordinateBuffer;
@@ -118,6 +147,8 @@ class GLYUV420Renderer extends GLRenderer {
     private int yuvToRgbMatrixUniform;
     private int bitDepthUniform;
     private int bitMaskUniform;
+    private int sampleScaleUniform;
+    private int lumaRectUniform;
 
     private @ColorRange int colorRange = ColorRange.LIMITED;
 
@@ -147,7 +178,7 @@ class GLYUV420Renderer extends GLRenderer {
                 || strideWidth != requestStrideWidth
                 || bitDepth != requestBitDepth
                 || yuv420Type != requestYuv420Type
-                || Objects.equals(requestDisplayRect, displayRect)) {//相同的清空下不需要重新创建纹理
+                || !Objects.equals(requestDisplayRect, displayRect)) {//相同的清空下不需要重新创建纹理，ImageReader每帧都会设置
             if (yuv420Type != requestYuv420Type){
                 setFrameShader(new YUV420FragmentShader(requestYuv420Type));
             }
@@ -177,6 +208,7 @@ class GLYUV420Renderer extends GLRenderer {
                 GLESUtil.delTextureId(chromaPlanarVTexture.textureId);
                 chromaPlanarVTexture = null;
             }
+            deletePixelBuffers();//大小变了，下次更新时重新创建
             int byteCount = (int) Math.ceil(bitDepth / 8.0);//位数除以8向上取整，譬如10其实是16位存储的，每个字节8位，最终就是2字节
             bitMask = byteCount * 8 - bitDepth;//多余的位数最终要移除掉
 
@@ -228,6 +260,12 @@ class GLYUV420Renderer extends GLRenderer {
     }
 
 
+    /**
+     * 把codec的buffer拷贝到下一个Pixel Buffer，再从Pixel Buffer更新纹理
+     * 拷贝完codec的buffer就不再使用，可以马上releaseOutputBuffer，glTexSubImage2D从Pixel Buffer读取不会阻塞GL线程
+     *
+     * @param outputBuffer
+     */
     public void updateBuffer(ByteBuffer outputBuffer) {
         if (!formatValid) {
             return;
@@ -240,6 +278,136 @@ class GLYUV420Renderer extends GLRenderer {
         }
         bufferAvailable = true;
 
+        ByteBuffer pixelBuffer = mapPixelBuffer();
+        if (pixelBuffer == null) {//映射失败直接从codec的buffer上传
+            updateTexture(outputBuffer, offset);
+            return;
+        }
+        // Y和UV平面的位置和codec的buffer一样，整块拷贝一次
+        outputBuffer.clear();
+        outputBuffer.position(offset);
+        outputBuffer.limit(offset + bufferSize);
+        pixelBuffer.put(outputBuffer);
+        if (!unmapPixelBuffer()) {//映射期间数据损坏，重新从codec的buffer上传
+            updateTexture(outputBuffer, offset);
+        }
+    }
+
+    /**
+     * ImageReader的P010图像，Y和UV平面是分开的两个buffer，分别拷贝到Pixel Buffer里和codec的buffer一样的位置
+     * 拷贝完就可以close图像，HardwareBuffer马上还给解码器
+     * 需要先按图像的行字节宽度和裁剪区域{@link #setBufferFormat}，格式是NV12
+     *
+     * @param image
+     */
+    public void updateImage(Image image) {
+        if (!formatValid || chromaSemiTexture == null) {
+            return;
+        }
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer lumaBuffer = planes[0].getBuffer();
+        ByteBuffer chromaBuffer = planes[1].getBuffer();//U平面的buffer从Cb开始，UV交错，就是NV12的UV平面
+        ByteBuffer chromaVBuffer = planes[2].getBuffer();
+        // 图像的buffer最后一行后面没有对齐的数据，只要求到最后一行的有效数据
+        int rowByteWidth = displayRect.right * lumaTexture.byteCount;
+        int lumaSize = strideWidth * (lumaTexture.height - 1) + rowByteWidth;
+        int chromaSize = strideWidth * (chromaSemiTexture.height - 1) + rowByteWidth;
+        // U平面的buffer到最后一个U结束，最后一个V在V平面的buffer末尾
+        int chromaMissing = chromaSize - chromaBuffer.remaining();
+        if (lumaBuffer.remaining() < lumaSize ||
+                chromaMissing > lumaTexture.byteCount ||
+                chromaVBuffer.remaining() < chromaMissing) {
+            throw new IllegalArgumentException("image size is less than required size");
+        }
+        bufferAvailable = true;
+
+        ByteBuffer pixelBuffer = mapPixelBuffer();
+        if (pixelBuffer != null) {
+            copyImage(lumaBuffer, chromaBuffer, chromaVBuffer, lumaSize, chromaSize, pixelBuffer);
+            if (unmapPixelBuffer()) {
+                return;
+            }
+        }
+        // Pixel Buffer不可用时先拷贝成和codec的buffer一样的布局，纹理上传读取的范围不会超出buffer
+        if (imageBuffer == null || imageBuffer.capacity() < bufferSize) {
+            imageBuffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        copyImage(lumaBuffer, chromaBuffer, chromaVBuffer, lumaSize, chromaSize, imageBuffer);
+        updateTexture(imageBuffer, 0);
+    }
+
+    /**
+     * Y平面拷贝到0，UV平面拷贝到lumaBufferSize，和codec的buffer一样，不改变图像buffer的position和limit
+     */
+    private void copyImage(ByteBuffer lumaBuffer, ByteBuffer chromaBuffer, ByteBuffer chromaVBuffer,
+                           int lumaSize, int chromaSize, ByteBuffer targetBuffer) {
+        targetBuffer.clear();
+        ByteBuffer lumaData = lumaBuffer.duplicate();
+        lumaData.limit(lumaData.position() + lumaSize);
+        targetBuffer.put(lumaData);
+
+        targetBuffer.position(lumaBufferSize);
+        ByteBuffer chromaData = chromaBuffer.duplicate();
+        int chromaCount = Math.min(chromaData.remaining(), chromaSize);
+        chromaData.limit(chromaData.position() + chromaCount);
+        targetBuffer.put(chromaData);
+        if (chromaCount < chromaSize) {
+            ByteBuffer chromaVData = chromaVBuffer.duplicate();
+            chromaVData.position(chromaVData.limit() - (chromaSize - chromaCount));
+            targetBuffer.put(chromaVData);
+        }
+    }
+
+    /**
+     * 绑定并映射下一个Pixel Buffer
+     *
+     * @return 映射失败返回null
+     */
+    private ByteBuffer mapPixelBuffer() {
+        if (pixelBufferIds[0] == 0) {
+            createPixelBuffers();
+        }
+        int pixelBufferId = pixelBufferIds[pixelBufferIndex];
+        pixelBufferIndex = (pixelBufferIndex + 1) % PIXEL_BUFFER_COUNT;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, pixelBufferId);
+        // GL_MAP_INVALIDATE_BUFFER_BIT表示不需要原来的数据，GPU还在读这个buffer时驱动会分配新的内存，不用等待
+        ByteBuffer pixelBuffer = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER,
+                0,
+                bufferSize,
+                GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+        if (pixelBuffer == null) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        }
+        return pixelBuffer;
+    }
+
+    /**
+     * 取消映射，成功后从Pixel Buffer更新每个平面的纹理
+     *
+     * @return false表示映射期间数据损坏，需要重新上传
+     */
+    private boolean unmapPixelBuffer() {
+        boolean unmap = GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+        if (unmap) {
+            lumaTexture.updateBuffer(0);
+            if (yuv420Type == YUV420Type.NV12 || yuv420Type == YUV420Type.NV21) {
+                chromaSemiTexture.updateBuffer(lumaBufferSize);
+            } else if (yuv420Type == YUV420Type.YV21) {
+                chromaPlanarUTexture.updateBuffer(lumaBufferSize);
+                chromaPlanarVTexture.updateBuffer(lumaBufferSize + chromaPlanarUTexture.bufferSize);
+            } else if (yuv420Type == YUV420Type.YV12) {
+                chromaPlanarVTexture.updateBuffer(lumaBufferSize);
+                chromaPlanarUTexture.updateBuffer(lumaBufferSize + chromaPlanarVTexture.bufferSize);
+            }
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        return unmap;
+    }
+
+    /**
+     * 直接从codec的buffer更新纹理，Pixel Buffer不可用时使用
+     */
+    private void updateTexture(ByteBuffer outputBuffer, int offset) {
         int lumaLimit = offset + lumaTexture.bufferSize;//Y平面需要读取的数据大小
         outputBuffer.clear();
         outputBuffer.position(offset);
@@ -281,25 +449,50 @@ class GLYUV420Renderer extends GLRenderer {
         }
     }
 
+    private void createPixelBuffers() {
+        create();//还没渲染过也要标记创建，destroy时才会删除Pixel Buffer
+        GLES20.glGenBuffers(PIXEL_BUFFER_COUNT, pixelBufferIds, 0);
+        for (int pixelBufferId : pixelBufferIds) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, pixelBufferId);
+            GLES20.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, bufferSize, null, GLES30.GL_STREAM_DRAW);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        pixelBufferIndex = 0;
+    }
+
+    private void deletePixelBuffers() {
+        if (pixelBufferIds[0] != 0) {
+            GLES20.glDeleteBuffers(PIXEL_BUFFER_COUNT, pixelBufferIds, 0);
+            Arrays.fill(pixelBufferIds, 0);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        deletePixelBuffers();
+    }
+
 
     @Override
     protected void onProgramChange(int programId) {
-        positionCoordinateAttribute = GLES20.glGetAttribLocation(programId, YUV420VertexShader.POSITION);
-        textureCoordinateAttribute = GLES20.glGetAttribLocation(programId, YUV420VertexShader.INPUT_TEXTURE_COORDINATE);
-
-        lumaTextureUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.LUMA_TEXTURE);
-        chromaSemiTextureUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.CHROMA_SEMI_TEXTURE);
-        chromaPlanarUTextureUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.CHROMA_PLANAR_U_TEXTURE);
-        chromaPlanarVTextureUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.CHROMA_PLANAR_V_TEXTURE);
-
-        lumaSizeUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.LUMA_SIZE);
-        chromaPlanarUSizeUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.CHROMA_PLANAR_U_SIZE);
-        chromaPlanarVSizeUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.CHROMA_PLANAR_V_SIZE);
-        chromaSemiSizeUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.CHROMA_SEMI_SIZE);
-
-        yuvToRgbMatrixUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.YUV_TO_RGB_MATRIX);
-        bitDepthUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.BIT_DEPTH);
-        bitMaskUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.BIT_MASK);
+        positionCoordinateAttribute = getAttribLocation(YUV420VertexShader.POSITION);
+        textureCoordinateAttribute = getAttribLocation(YUV420VertexShader.INPUT_TEXTURE_COORDINATE);
+
+        lumaTextureUniform = getUniformLocation(YUV420FragmentShader.LUMA_TEXTURE);
+        chromaSemiTextureUniform = getUniformLocation(YUV420FragmentShader.CHROMA_SEMI_TEXTURE);
+        chromaPlanarUTextureUniform = getUniformLocation(YUV420FragmentShader.CHROMA_PLANAR_U_TEXTURE);
+        chromaPlanarVTextureUniform = getUniformLocation(YUV420FragmentShader.CHROMA_PLANAR_V_TEXTURE);
+
+        lumaSizeUniform = getUniformLocation(YUV420FragmentShader.LUMA_SIZE);
+        chromaPlanarUSizeUniform = getUniformLocation(YUV420FragmentShader.CHROMA_PLANAR_U_SIZE);
+        chromaPlanarVSizeUniform = getUniformLocation(YUV420FragmentShader.CHROMA_PLANAR_V_SIZE);
+        chromaSemiSizeUniform = getUniformLocation(YUV420FragmentShader.CHROMA_SEMI_SIZE);
+
+        yuvToRgbMatrixUniform = getUniformLocation(YUV420FragmentShader.YUV_TO_RGB_MATRIX);
+        bitDepthUniform = getUniformLocation(YUV420FragmentShader.BIT_DEPTH);
+        bitMaskUniform = getUniformLocation(YUV420FragmentShader.BIT_MASK);
+        sampleScaleUniform = getUniformLocation(YUV420FragmentShader.SAMPLE_SCALE);
+        lumaRectUniform = getUniformLocation(YUV420FragmentShader.LUMA_RECT);
     }
 
     @Override
@@ -352,12 +545,27 @@ class GLYUV420Renderer extends GLRenderer {
                 0);
         GLES20.glUniform1i(bitDepthUniform, bitDepth);
         GLES20.glUniform1i(bitMaskUniform, bitMask);
+        GLES20.glUniform1i(sampleScaleUniform, getSampleScale());
+        GLES20.glUniform4i(lumaRectUniform, displayRect.left, 0, displayRect.right - 1, lumaTexture.height - 1);
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         GLES20.glDisableVertexAttribArray(positionCoordinateAttribute);
         GLES20.glDisableVertexAttribArray(textureCoordinateAttribute);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);//虽然glActiveTexture有多次，但是绑定纹理回去就只要调用一次就行，不需要多次glActiveTexture
     }
 
+    /**
+     * 渲染目标比视频小时texelFetch取最近的点会有锯齿，按缩小倍数向上取整，取多个点的平均值
+     */
+    private int getSampleScale() {
+        int displayWidth = displayRect.right - displayRect.left;
+        int displayHeight = displayRect.bottom - displayRect.top;
+        if (renderTarget.width <= 0 || renderTarget.height <= 0) {
+            return 1;
+        }
+        float scale = Math.max(displayWidth * 1.0f / renderTarget.width, displayHeight * 1.0f / renderTarget.height);
+        return Math.max(1, Math.min(MAX_SAMPLE_SCALE, (int) Math.ceil(scale - SCALE_EPSILON)));
+    }
+
     /**
      * YUV每个平面的纹理数据封装
      */
@@ -444,6 +652,28 @@ class GLYUV420Renderer extends GLRenderer {
             GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
 
         }
+
+        /**
+         * 从绑定的GL_PIXEL_UNPACK_BUFFER更新，数据由GPU异步拷贝
+         *
+         * @param pixelBufferOffset 平面数据在Pixel Buffer里的字节偏移
+         */
+        public void updateBuffer(int pixelBufferOffset) {
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, alignment);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GLES30.glTexSubImage2D(
+                    GLES20.GL_TEXTURE_2D,
+                    0,
+                    0,
+                    0,
+                    width,
+                    height,
+                    bufferFormat,
+                    bufferType,
+                    pixelBufferOffset);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        }
     }
 
 
@@ -230,6 +230,16 @@ public abstract class VideoOutput {
         return videoPlayer != null &&videoPlayer.isPrepared();
     }
 
+    /**
+     * 每一帧送去解码前的数据回调
+     *
+     * @param inputBuffer
+     * @param presentationTimeUs
+     */
+    final synchronized void onDecodeInputBuffer(ByteBuffer inputBuffer, long presentationTimeUs) {
+        onInputBufferAvailable(inputBuffer, presentationTimeUs);
+    }
+
     /**
      * 每一帧数据回调
      *
@@ -345,6 +355,16 @@ public abstract class VideoOutput {
 
     }
 
+    /**
+     * 解码前的数据，不能修改buffer的position和limit
+     *
+     * @param inputBuffer
+     * @param presentationTimeUs
+     */
+    protected void onInputBufferAvailable(ByteBuffer inputBuffer, long presentationTimeUs) {
+
+    }
+
     protected void onOutputBufferAvailable(ByteBuffer outputBuffer, long presentationTimeUs) {
 
     }
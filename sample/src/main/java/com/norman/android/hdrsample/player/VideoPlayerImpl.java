@@ -79,6 +79,11 @@ class VideoPlayerImpl extends DecodePlayerImpl<VideoDecoder, VideoExtractor> imp
         currentVideoOutput.prepare(extractor,decoder, inputFormat);
     }
 
+    @Override
+    protected void onInputBufferRead(ByteBuffer inputBuffer, long presentationTimeUs) {
+        currentVideoOutput.onDecodeInputBuffer(inputBuffer, presentationTimeUs);
+    }
+
     @Override
     protected void onOutputFormatChanged(MediaFormat outputFormat) {
         currentVideoOutput.onDecodeMediaFormatChanged(outputFormat);
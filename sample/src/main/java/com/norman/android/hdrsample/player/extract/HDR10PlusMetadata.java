@@ -0,0 +1,91 @@
+package com.norman.android.hdrsample.player.extract;
+
+/**
+ * HDR10+(SMPTE ST 2094-40)每帧的动态元数据，只保存第一个窗口(整个画面)的统计信息
+ * 亮度单位都是nit，码流里的值是以10000nit为1的0.00001倍，也就是0.1nit
+ * 数组都是提前分配好的，解析和复制的时候不会创建对象
+ */
+public class HDR10PlusMetadata {
+
+    /**
+     * 最多15个百分位，码流里用4位表示
+     */
+    public static final int MAX_DISTRIBUTION_COUNT = 15;
+
+    public long presentationTimeUs;
+
+    /**
+     * 制作时目标显示器的最大亮度
+     */
+    public int targetedSystemDisplayMaximumLuminance;
+
+    /**
+     * 场景里线性RGB每个通道的最大值
+     */
+    public final float[] maxScl = new float[3];
+
+    /**
+     * 场景里maxRGB的平均值
+     */
+    public float averageMaxRgb;
+
+    public int distributionCount;
+
+    /**
+     * 百分位，0到100
+     */
+    public final int[] distributionPercentages = new int[MAX_DISTRIBUTION_COUNT];
+
+    /**
+     * 百分位对应的maxRGB亮度
+     */
+    public final float[] distributionMaxRgb = new float[MAX_DISTRIBUTION_COUNT];
+
+    /**
+     * 亮像素的比例，0到1
+     */
+    public float fractionBrightPixels;
+
+    /**
+     * @return 场景的最大亮度，maxScl三个通道的最大值
+     */
+    public float getMaxLuminance() {
+        return Math.max(maxScl[0], Math.max(maxScl[1], maxScl[2]));
+    }
+
+    /**
+     * 找到第一个不小于percentage的百分位亮度
+     *
+     * @param percentage 0到100
+     * @return 没有百分位信息返回最大亮度
+     */
+    public float getPercentileLuminance(int percentage) {
+        for (int i = 0; i < distributionCount; i++) {
+            if (distributionPercentages[i] >= percentage) {
+                return distributionMaxRgb[i];
+            }
+        }
+        return getMaxLuminance();
+    }
+
+    public void set(HDR10PlusMetadata metadata) {
+        presentationTimeUs = metadata.presentationTimeUs;
+        targetedSystemDisplayMaximumLuminance = metadata.targetedSystemDisplayMaximumLuminance;
+        System.arraycopy(metadata.maxScl, 0, maxScl, 0, maxScl.length);
+        averageMaxRgb = metadata.averageMaxRgb;
+        distributionCount = metadata.distributionCount;
+        System.arraycopy(metadata.distributionPercentages, 0, distributionPercentages, 0, distributionCount);
+        System.arraycopy(metadata.distributionMaxRgb, 0, distributionMaxRgb, 0, distributionCount);
+        fractionBrightPixels = metadata.fractionBrightPixels;
+    }
+
+    @Override
+    public String toString() {
+        return "HDR10PlusMetadata{" +
+                "presentationTimeUs=" + presentationTimeUs +
+                ", maxLuminance=" + getMaxLuminance() +
+                ", averageMaxRgb=" + averageMaxRgb +
+                ", distributionCount=" + distributionCount +
+                '}';
+    }
+}
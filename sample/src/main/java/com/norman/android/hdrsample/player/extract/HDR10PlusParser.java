@@ -0,0 +1,393 @@
+package com.norman.android.hdrsample.player.extract;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 从HEVC的SEI里解析HDR10+动态元数据，MediaExtractor只会给出KEY_HDR_STATIC_INFO，HDR10+的信息只在码流里
+ * <p>
+ * HDR10+放在prefix SEI的user_data_registered_itu_t_t35里，T.35头是country_code 0xB5、provider_code 0x003C、
+ * provider_oriented_code 0x0001、application_identifier 4，后面是ST 2094-40的语法
+ * SEI一定在第一个slice前面，遇到slice就不再往后找，不用扫描整帧数据
+ * <p>
+ * 支持起始码(Annex-B)和4字节长度前缀两种格式，格式按{@link #setCodecConfig}的csd-0确定，只用绝对位置读取，不会改变buffer的position和limit
+ * 解析结果按pts放在固定大小的环形队列里，渲染时用pts取出，整个过程不创建对象
+ */
+public class HDR10PlusParser {
+
+    /**
+     * 解码器里最多同时存在的帧数，超过后覆盖最早解析的
+     */
+    private static final int QUEUE_CAPACITY = 32;
+
+    private static final int NAL_UNIT_TYPE_VCL_MAX = 31;
+
+    private static final int NAL_UNIT_TYPE_PREFIX_SEI = 39;
+
+    private static final int NAL_HEADER_LENGTH = 2;
+
+    private static final int SEI_PAYLOAD_TYPE_ITU_T_T35 = 4;
+
+    private static final int ITU_T_T35_COUNTRY_CODE = 0xB5;
+
+    private static final int ITU_T_T35_PROVIDER_CODE = 0x003C;
+
+    private static final int ITU_T_T35_PROVIDER_ORIENTED_CODE = 0x0001;
+
+    private static final int APPLICATION_IDENTIFIER = 4;
+
+    private static final int MAX_APPLICATION_VERSION = 1;
+
+    private static final int RBSP_TRAILING_BITS = 0x80;
+
+    /**
+     * 码流里的亮度值乘上这个值就是nit
+     */
+    private static final float LUMINANCE_SCALE = 10000.0f / 100000.0f;
+
+    private static final float FRACTION_BRIGHT_PIXELS_SCALE = 1.0f / 1000.0f;
+
+    /**
+     * 没有csd-0时每帧判断格式
+     */
+    private static final int FRAMING_UNKNOWN = 0;
+
+    private static final int FRAMING_ANNEX_B = 1;
+
+    private static final int FRAMING_LENGTH_PREFIXED = 2;
+
+    private int framing = FRAMING_UNKNOWN;
+
+    private final HDR10PlusMetadata[] queue = new HDR10PlusMetadata[QUEUE_CAPACITY];
+
+    private final boolean[] queueValid = new boolean[QUEUE_CAPACITY];
+
+    private int queueWriteIndex;
+
+    private ByteBuffer buffer;
+
+    /**
+     * 下一个要读取的字节在buffer里的位置
+     */
+    private int rbspPosition;
+
+    private int rbspEnd;
+
+    private int rbspZeroCount;
+
+    /**
+     * 已经读取的RBSP字节数，不包括防竞争字节
+     */
+    private int rbspReadCount;
+
+    private int currentByte;
+
+    private int bitOffset = 8;
+
+    private boolean readOverflow;
+
+    public HDR10PlusParser() {
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            queue[i] = new HDR10PlusMetadata();
+        }
+    }
+
+    /**
+     * 按解码配置确定码流格式，Annex-B的csd-0以起始码开头，hvcC的csd-0第一个字节是configurationVersion(1)
+     *
+     * @param csd MediaFormat的csd-0，null表示不知道格式
+     */
+    public synchronized void setCodecConfig(ByteBuffer csd) {
+        if (csd == null || csd.remaining() < 4) {
+            framing = FRAMING_UNKNOWN;
+            return;
+        }
+        buffer = csd;
+        try {
+            int start = csd.position();
+            framing = findStartCode(start, start + 4) == start ? FRAMING_ANNEX_B : FRAMING_LENGTH_PREFIXED;
+        } finally {
+            buffer = null;
+        }
+    }
+
+    /**
+     * 解析一帧数据，有HDR10+元数据就放进队列
+     *
+     * @param sampleBuffer       MediaExtractor读取的一帧数据，解析的范围是position到limit
+     * @param presentationTimeUs
+     * @return 是否解析到元数据
+     */
+    public synchronized boolean parse(ByteBuffer sampleBuffer, long presentationTimeUs) {
+        int start = sampleBuffer.position();
+        int end = sampleBuffer.limit();
+        if (end - start <= NAL_HEADER_LENGTH) {
+            return false;
+        }
+        buffer = sampleBuffer;
+        try {
+            if (isAnnexB(start, end)) {
+                return parseAnnexB(skipStartCode(start, end), end, presentationTimeUs);
+            }
+            return parseLengthPrefixed(start, end, presentationTimeUs);
+        } finally {
+            buffer = null;
+        }
+    }
+
+    /**
+     * 格式未知时，长度前缀正好覆盖整帧就是长度前缀格式，第一个NAL长度是256到511时也是00 00 01开头，不能只看起始码
+     */
+    private boolean isAnnexB(int start, int end) {
+        if (framing != FRAMING_UNKNOWN) {
+            return framing == FRAMING_ANNEX_B;
+        }
+        if (findStartCode(start, Math.min(end, start + 4)) != start) {
+            return false;
+        }
+        int position = start;
+        while (end - position >= 4 + NAL_HEADER_LENGTH) {
+            int nalLength = buffer.getInt(position);
+            if (nalLength < NAL_HEADER_LENGTH || nalLength > end - position - 4) {
+                return true;
+            }
+            position += 4 + nalLength;
+        }
+        return position != end;
+    }
+
+    private boolean parseAnnexB(int nalStart, int end, long presentationTimeUs) {
+        while (end - nalStart > NAL_HEADER_LENGTH) {
+            int nalUnitType = getNalUnitType(nalStart);
+            if (nalUnitType <= NAL_UNIT_TYPE_VCL_MAX) {
+                return false;
+            }
+            int startCode = findStartCode(nalStart, end);
+            int nalEnd = startCode < 0 ? end : startCode;
+            if (nalUnitType == NAL_UNIT_TYPE_PREFIX_SEI &&
+                    parseSEI(nalStart + NAL_HEADER_LENGTH, nalEnd, presentationTimeUs)) {
+                return true;
+            }
+            if (startCode < 0) {
+                return false;
+            }
+            nalStart = skipStartCode(startCode, end);
+        }
+        return false;
+    }
+
+    private boolean parseLengthPrefixed(int position, int end, long presentationTimeUs) {
+        while (end - position > 4 + NAL_HEADER_LENGTH) {
+            int nalLength = buffer.getInt(position);
+            int nalStart = position + 4;
+            if (nalLength < NAL_HEADER_LENGTH || nalLength > end - nalStart) {
+                return false;
+            }
+            int nalUnitType = getNalUnitType(nalStart);
+            if (nalUnitType <= NAL_UNIT_TYPE_VCL_MAX) {
+                return false;
+            }
+            int nalEnd = nalStart + nalLength;
+            if (nalUnitType == NAL_UNIT_TYPE_PREFIX_SEI &&
+                    parseSEI(nalStart + NAL_HEADER_LENGTH, nalEnd, presentationTimeUs)) {
+                return true;
+            }
+            position = nalEnd;
+        }
+        return false;
+    }
+
+    private int getNalUnitType(int nalStart) {
+        return (buffer.get(nalStart) >> 1) & 0x3F;
+    }
+
+    /**
+     * 取出pts对应的元数据
+     *
+     * @param presentationTimeUs
+     * @param outMetadata        复制到这个对象
+     * @return 没有这一帧的元数据返回false
+     */
+    public synchronized boolean poll(long presentationTimeUs, HDR10PlusMetadata outMetadata) {
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            if (queueValid[i] && queue[i].presentationTimeUs == presentationTimeUs) {
+                queueValid[i] = false;
+                outMetadata.set(queue[i]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * seek或者停止后清空队列
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            queueValid[i] = false;
+        }
+        queueWriteIndex = 0;
+    }
+
+    private boolean parseSEI(int payloadStart, int nalEnd, long presentationTimeUs) {
+        startRbsp(payloadStart, nalEnd);
+        while (!readOverflow && hasMoreRbspData()) {
+            int payloadType = readSEIValue();
+            int payloadSize = readSEIValue();
+            if (readOverflow) {
+                return false;
+            }
+            int payloadEnd = rbspReadCount + payloadSize;
+            if (payloadType == SEI_PAYLOAD_TYPE_ITU_T_T35) {
+                // 写入最早解析的位置，先标记无效，解析失败也不会留下一半的数据
+                HDR10PlusMetadata metadata = queue[queueWriteIndex];
+                queueValid[queueWriteIndex] = false;
+                if (parseITUT35(metadata)) {
+                    metadata.presentationTimeUs = presentationTimeUs;
+                    queueValid[queueWriteIndex] = true;
+                    queueWriteIndex = (queueWriteIndex + 1) % QUEUE_CAPACITY;
+                    return true;
+                }
+            }
+            // 可能有防竞争字节，不能直接跳过payloadSize个字节，只能一个个字节读取
+            bitOffset = 8;
+            while (!readOverflow && rbspReadCount < payloadEnd) {
+                readRbspByte();
+            }
+        }
+        return false;
+    }
+
+    private boolean parseITUT35(HDR10PlusMetadata metadata) {
+        if (readBits(8) != ITU_T_T35_COUNTRY_CODE ||
+                readBits(16) != ITU_T_T35_PROVIDER_CODE ||
+                readBits(16) != ITU_T_T35_PROVIDER_ORIENTED_CODE ||
+                readBits(8) != APPLICATION_IDENTIFIER ||
+                readBits(8) > MAX_APPLICATION_VERSION) {
+            return false;
+        }
+        int numWindows = readBits(2);
+        if (numWindows < 1) {
+            return false;
+        }
+        for (int i = 1; i < numWindows; i++) {
+            // 其他窗口的位置和椭圆参数，只用第一个窗口，直接跳过
+            skipBits(16 * 4 + 16 * 2 + 8 + 16 * 3 + 1);
+        }
+        metadata.targetedSystemDisplayMaximumLuminance = readBits(27);
+        if (readBits(1) == 1) {
+            int numRows = readBits(5);
+            int numCols = readBits(5);
+            skipBits(numRows * numCols * 4);
+        }
+        for (int i = 0; i < metadata.maxScl.length; i++) {
+            metadata.maxScl[i] = readBits(17) * LUMINANCE_SCALE;
+        }
+        metadata.averageMaxRgb = readBits(17) * LUMINANCE_SCALE;
+        metadata.distributionCount = readBits(4);
+        for (int i = 0; i < metadata.distributionCount; i++) {
+            metadata.distributionPercentages[i] = readBits(7);
+            metadata.distributionMaxRgb[i] = readBits(17) * LUMINANCE_SCALE;
+        }
+        metadata.fractionBrightPixels = readBits(10) * FRACTION_BRIGHT_PIXELS_SCALE;
+        return !readOverflow;
+    }
+
+    /**
+     * SEI的payloadType和payloadSize，0xFF表示后面还有
+     */
+    private int readSEIValue() {
+        int value = 0;
+        int b;
+        do {
+            b = readBits(8);
+            value += b;
+        } while (b == 0xFF && !readOverflow);
+        return value;
+    }
+
+    private boolean hasMoreRbspData() {
+        if (rbspPosition >= rbspEnd) {
+            return false;
+        }
+        // 只剩结尾的rbsp_trailing_bits
+        return !(rbspPosition == rbspEnd - 1 && (buffer.get(rbspPosition) & 0xFF) == RBSP_TRAILING_BITS);
+    }
+
+    private void startRbsp(int start, int end) {
+        rbspPosition = start;
+        rbspEnd = end;
+        rbspZeroCount = 0;
+        rbspReadCount = 0;
+        bitOffset = 8;
+        readOverflow = false;
+    }
+
+    /**
+     * 读取一个字节，跳过00 00 03里的03
+     */
+    private int readRbspByte() {
+        if (rbspPosition >= rbspEnd) {
+            readOverflow = true;
+            return 0;
+        }
+        int b = buffer.get(rbspPosition++) & 0xFF;
+        if (rbspZeroCount >= 2 && b == 0x03) {
+            rbspZeroCount = 0;
+            if (rbspPosition >= rbspEnd) {
+                readOverflow = true;
+                return 0;
+            }
+            b = buffer.get(rbspPosition++) & 0xFF;
+        }
+        rbspZeroCount = b == 0 ? rbspZeroCount + 1 : 0;
+        rbspReadCount++;
+        return b;
+    }
+
+    /**
+     * 最多读取31位
+     */
+    private int readBits(int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            if (bitOffset == 8) {
+                currentByte = readRbspByte();
+                bitOffset = 0;
+            }
+            value = (value << 1) | ((currentByte >> (7 - bitOffset)) & 1);
+            bitOffset++;
+        }
+        return value;
+    }
+
+    private void skipBits(int count) {
+        while (count > 0 && !readOverflow) {
+            int skipCount = Math.min(count, 16);
+            readBits(skipCount);
+            count -= skipCount;
+        }
+    }
+
+    /**
+     * @return 00 00 01的位置，4字节起始码返回的是前面多出来的00的位置，没有返回-1
+     */
+    private int findStartCode(int start, int end) {
+        for (int i = start; i + 2 < end; i++) {
+            if ((buffer.get(i + 2) & 0xFF) > 1) {
+                // 第三个字节大于1，这三个字节都不可能是起始码的开头，跳过
+                i += 2;
+            } else if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i > start && buffer.get(i - 1) == 0 ? i - 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    private int skipStartCode(int startCode, int end) {
+        int position = startCode;
+        while (position < end && buffer.get(position) == 0) {
+            position++;
+        }
+        return position + 1;
+    }
+}
@@ -13,6 +13,8 @@ import com.norman.android.hdrsample.player.color.YUV420Type
  * NV21 两个平面依次 Y平面 VU平面，VU平面里面是按VU间隔，U平面和V平面的宽高都是Y平面的1/2
  *
  * 总结：https://juejin.cn/post/7207637337572606007
+ *
+ * 输出比视频小时Y平面和NV12/NV21的UV平面取多个点的平均值做过滤，YV12和YV21的UV平面一行存了两行数据，还是只取一个点
  */
 class YUV420FragmentShader(@YUV420Type type: Int) : GLShaderCode() {
 
@@ -36,6 +38,8 @@ class YUV420FragmentShader(@YUV420Type type: Int) : GLShaderCode() {
             uniform mat4 $YUV_TO_RGB_MATRIX;//YUV转RGB矩阵
             uniform int $BIT_DEPTH;//深度
             uniform int $BIT_MASK;//10位纹理其实是16位位移后的数据，所以需要位移回去，8位是0，10位是6
+            uniform int $SAMPLE_SCALE;//缩小的倍数，大于1时Y平面取SAMPLE_SCALE x SAMPLE_SCALE个点的平均值
+            uniform ivec4 $LUMA_RECT;//Y平面的有效区域，left top right bottom，都包含在内，平均时不会取到对齐的绿边
 
             in  vec2 textureCoordinate;
             out vec4 outColor;
@@ -61,14 +65,41 @@ class YUV420FragmentShader(@YUV420Type type: Int) : GLShaderCode() {
                 return ivec2(coord*(size-1.0)+0.5);//不直接乘以size是因为个人觉得纹理访问其实取的是中间值
             }
 
+            ivec2 boxStartCoord(vec2 coord, vec2 size, int scale){//缩小时一个像素覆盖scale x scale个点，返回左上角的点
+                return ivec2(floor(coord*size-float(scale)*0.5+0.5));
+            }
+
             float getLumaColor(vec2 textureCoord){
-                uint color = texelFetch($LUMA_TEXTURE, quantizedCoord(textureCoord, $LUMA_SIZE), 0).x;
-                return normalizedColor(color);
+                if($SAMPLE_SCALE <= 1){
+                    uint color = texelFetch($LUMA_TEXTURE, quantizedCoord(textureCoord, $LUMA_SIZE), 0).x;
+                    return normalizedColor(color);
+                }
+                ivec2 start = boxStartCoord(textureCoord, $LUMA_SIZE, $SAMPLE_SCALE);
+                float sum = 0.0;
+                for(int y = 0; y < $SAMPLE_SCALE; y++){
+                    for(int x = 0; x < $SAMPLE_SCALE; x++){
+                        ivec2 coord = clamp(start+ivec2(x, y), $LUMA_RECT.xy, $LUMA_RECT.zw);
+                        sum += normalizedColor(texelFetch($LUMA_TEXTURE, coord, 0).x);
+                    }
+                }
+                return sum/float($SAMPLE_SCALE*$SAMPLE_SCALE);
             }
 
-            vec2 getChromaSemiColor(vec2 textureCoord){
-                uvec2 color = texelFetch($CHROMA_SEMI_TEXTURE, quantizedCoord(textureCoord, $CHROMA_SEMI_SIZE), 0).xy;
-                return normalizedColor(color);
+            vec2 getChromaSemiColor(vec2 textureCoord){//UV平面是Y平面的一半，缩小4倍时UV平面取2x2个点
+                int scale = $SAMPLE_SCALE/2;
+                if(scale <= 1){
+                    uvec2 color = texelFetch($CHROMA_SEMI_TEXTURE, quantizedCoord(textureCoord, $CHROMA_SEMI_SIZE), 0).xy;
+                    return normalizedColor(color);
+                }
+                ivec2 start = boxStartCoord(textureCoord, $CHROMA_SEMI_SIZE, scale);
+                vec2 sum = vec2(0.0);
+                for(int y = 0; y < scale; y++){
+                    for(int x = 0; x < scale; x++){
+                        ivec2 coord = clamp(start+ivec2(x, y), $LUMA_RECT.xy/2, $LUMA_RECT.zw/2);
+                        sum += normalizedColor(texelFetch($CHROMA_SEMI_TEXTURE, coord, 0).xy);
+                    }
+                }
+                return sum/float(scale*scale);
             }
 
             float getChromaPlanarUColor(vec2 textureCoord){
@@ -172,6 +203,16 @@ class YUV420FragmentShader(@YUV420Type type: Int) : GLShaderCode() {
          */
 
         const val BIT_MASK = "bitMask"
+
+        /**
+         * 缩小的倍数，1表示不过滤，直接取最近的点
+         */
+        const val SAMPLE_SCALE = "sampleScale"
+
+        /**
+         * Y平面的有效区域
+         */
+        const val LUMA_RECT = "lumaRect"
     }
 
 }
\ No newline at end of file
@@ -3,41 +3,55 @@ package com.norman.android.hdrsample.transform;
 import android.content.res.AssetFileDescriptor;
 import android.opengl.GLES20;
 import android.opengl.GLES30;
+import android.os.Build;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.RequiresApi;
 
 import com.norman.android.hdrsample.exception.IORuntimeException;
 import com.norman.android.hdrsample.util.BufferUtil;
 import com.norman.android.hdrsample.util.FileUtil;
 import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.HalfFloatUtil;
 import com.norman.android.hdrsample.util.LogUtil;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * 加载Cube文件中的Buffer的工具类
  * 刚开始参考<a href="https://github.com/Milchreis/processing-imageprocessing/blob/master/src/milchreis/imageprocessing/CubeLUT.java">CubeLUT</a>发现加载特别慢
  * 加载时间从3s左右优化成70ms，措施如下
  * 1. MappedByteBuffer减轻内核上下文切换带来的时间开销
- * 2. 原先读取一行String再去匹配，改成匹配缓存ByteBuffer，降低内存开销
- * 3. 原先String转Float，改成读取byte计算出Float，降低String中重新创建Buffer的开销
+ * 2. 只有文件头按行转成String处理，RGB数据直接匹配ByteBuffer，降低内存开销
+ * 3. RGB数据原先String转Float，改成读取byte计算出Float，降低String中重新创建Buffer的开销
+ * 4. RGB数据在换行处分块，用ForkJoinPool多核并行解析，每块直接写入rgbBuffer对应的位置
+ * 5. 解析时可以直接转换成half float或者RGB10_A2，rgbBuffer的大小减半，上传纹理时驱动也不需要再转换
  * 代码逻辑有点复杂，如果看不懂，可以尝试自己写，也许加载速度更快
  * 核心逻辑就是读取Cube文件中的 title size 和 RGB数据
  *  title就是从Cube文件读取像TITLE "BT2020_HLG_BT601_PAL"中的BT2020_HLG_BT601_PAL
  *  size就是从Cube文件读取像LUT_3D_SIZE 33中的33
+ *  定义域就是DOMAIN_MIN、DOMAIN_MAX或者LUT_3D_INPUT_RANGE，没有就是0到1
+ *  shaper就是LUT_1D_SIZE和后面的1D LUT数据，有shaper的时候先查找1D LUT，结果再查找3D LUT
  *  RGB数据就是从Cube文件读取像0.50289002 0.59033508 0.77007249读取数字转换成RGB Buffer
  * 如果还像加速速度，可以把cube文件内容读取到rgbBuffer后直接保存到文件中，读取的时候就不需要处理，速度会快很多
+ * 现在第一次解析后会通过{@link CubeLutCache}保存成二进制文件，后续加载直接映射到rgbBuffer
  */
 public class CubeLutBuffer {
 
-    private static final byte MATCH_RUNNING = 0;
-    private static final byte MATCH_COMPLETE = 1;
-    private static final byte MATCH_STOP = 2;
-
     /**
      * 匹配RGB float数据的符号位
      */
@@ -107,15 +121,33 @@ public class CubeLutBuffer {
     private static final byte BYTE_MINUS = '-';
 
     /**
-     * 匹配Cube文件的Size
+     * Cube文件中的Title
      */
+    private static final String KEYWORD_TITLE = "TITLE";
 
-    private static final byte[] MATCH_ARRAY_3D_SIZE = "LUT_3D_SIZE".getBytes(StandardCharsets.UTF_8);
+    /**
+     * Cube文件中3D LUT的Size
+     */
+    private static final String KEYWORD_3D_SIZE = "LUT_3D_SIZE";
 
     /**
-     * 匹配Cube文件中的Title
+     * Cube文件中1D LUT(shaper)的Size，和3D LUT同时存在时先执行1D LUT
      */
-    private static final byte[] MATCH_ARRAY_TITLE = "TITLE".getBytes(StandardCharsets.UTF_8);
+    private static final String KEYWORD_1D_SIZE = "LUT_1D_SIZE";
+
+    /**
+     * Adobe格式的定义域，每个通道一个值
+     */
+    private static final String KEYWORD_DOMAIN_MIN = "DOMAIN_MIN";
+
+    private static final String KEYWORD_DOMAIN_MAX = "DOMAIN_MAX";
+
+    /**
+     * Resolve格式的定义域，所有通道都是一样的最小值和最大值
+     */
+    private static final String KEYWORD_3D_INPUT_RANGE = "LUT_3D_INPUT_RANGE";
+
+    private static final String KEYWORD_1D_INPUT_RANGE = "LUT_1D_INPUT_RANGE";
 
     /**
      * 一次读取Buffer缓存的大小64k，拍脑袋瓜定的数值，感觉速度和内存都还可以
@@ -124,9 +156,14 @@ public class CubeLutBuffer {
     private static final int DEFAULT_LENGTH_READ_BUFFER = 65536;
 
     /**
-     * 匹配Title和Size的读取缓存，也是拍脑袋瓜定的数值
+     * 读取文件头一行数据的缓存，也是拍脑袋瓜定的数值
      */
-    private static final int DEFAULT_LENGTH_TITLE_OR_SIZE_MATCH_BUFFER = 128;
+    private static final int DEFAULT_LENGTH_LINE_BUFFER = 128;
+
+    /**
+     * 多线程解析时每块RGB数据的最小长度，256k，33的LUT大概1M会分成4块，数据太少分块反而更慢
+     */
+    private static final int MIN_LENGTH_PARALLEL_CHUNK = 262144;
 
 
 
@@ -140,275 +177,607 @@ public class CubeLutBuffer {
     public Integer size;
 
     /**
-     * RGB数据 每行中有3个float数字，依次是RGB，需要把String转float
+     * RGB数据 每行中有3个float数字，依次是RGB，需要把String转float，再根据dataType转换成对应的格式
      */
 
     public ByteBuffer rgbBuffer;
 
-    private CubeLutBuffer(String assetName) {
-        FileInputStream inputStream = null;
-        try {
-            // 读取asset文件
-            AssetFileDescriptor assetFileDescriptor = FileUtil.openAssetFileDescriptor(assetName);
-            inputStream = assetFileDescriptor.createInputStream();
-            FileChannel fileChannel = inputStream.getChannel();
-            long startOffset = assetFileDescriptor.getStartOffset();
-            long declaredLength = assetFileDescriptor.getDeclaredLength();
+    /**
+     * rgbBuffer中的数据格式
+     */
+    public @DataType int dataType = DataType.FLOAT;
 
-            // 把文件转换成MappedByteBuffer
-            // 读取大文件的一种方式(共享内存避免上下文切换带来的耗时)，注意只能读取2G以下的文件
-            // 注意要传offset不能直接传0，不然会发现读取除出来的文字前面多了一些莫名奇妙的字符
-            MappedByteBuffer assetMapBuffer = fileChannel
-                    .map(FileChannel.MapMode.READ_ONLY,
-                            startOffset,
-                            declaredLength);
-
-            //匹配不同的状态值
-            byte matchStateNextLine = MATCH_RUNNING;//新的一行匹配模式
-            byte matchStateComment = MATCH_STOP;//注释模式
-            byte matchStateTitle = MATCH_STOP;//title匹配模式
-            byte matchStateSize = MATCH_STOP;//size匹配模式
-            byte matchStateRGBBuffer = MATCH_STOP;//rgb匹配模式
-
-            // 从assetMapBuffer一次读取readArray进行处理
-            byte[] readBuffer = new byte[DEFAULT_LENGTH_READ_BUFFER];
-            int readLength = readBuffer.length;
-            // 匹配title和size的Buffer
-            ByteBuffer titleOrSizeMatchBuffer = ByteBuffer.allocate(DEFAULT_LENGTH_TITLE_OR_SIZE_MATCH_BUFFER);
-            int matchIndex = -1;//匹配的索引
-            int floatValueSignPart = 1;// float的符号位
-            float floatValuePart = 0; // float的整数部分和小数部分
-            float  floatDecimalPlace = 0.1f;//float的小数位数
-            int floatExponentPart = 0; // float的指数部分
-            int floatExponentSignPart = 1; // float的指数里面的符号位
-            byte floatState = FLOAT_STATE_SIGN;//匹配float已经到哪个状态，刚开始标记还在符号位
-
-            while (assetMapBuffer.hasRemaining()) {//数据还没读完
-                int remaining = assetMapBuffer.remaining();
-                if (remaining < readLength) {//最后剩余的数据
-                    readLength = remaining;
+    /**
+     * 定义域最小值，Cube文件中的DOMAIN_MIN，默认是0 0 0
+     */
+    public float[] domainMin = {0.0f, 0.0f, 0.0f};
+
+    /**
+     * 定义域最大值，Cube文件中的DOMAIN_MAX，默认是1 1 1
+     */
+    public float[] domainMax = {1.0f, 1.0f, 1.0f};
+
+    /**
+     * 1D LUT(shaper)的大小，Cube文件中的LUT_1D_SIZE，没有shaper就是null
+     * shaper先把输入转换到更均匀的空间(譬如PQ)，再查找3D LUT，小的3D LUT就能达到大的线性3D LUT的精度
+     */
+    public Integer shaperSize;
+
+    /**
+     * shaper数据，每行RGB 3个float，一直是float格式，数据量很小
+     */
+    public ByteBuffer shaperBuffer;
+
+    /**
+     * shaper的定义域，Cube文件中的LUT_1D_INPUT_RANGE
+     */
+    public float[] shaperDomainMin = {0.0f, 0.0f, 0.0f};
+
+    public float[] shaperDomainMax = {1.0f, 1.0f, 1.0f};
+
+    CubeLutBuffer() {
+    }
+
+    /**
+     * 解析Cube文件的内容
+     * @param cubeBuffer Cube文件的内容
+     * @param parallel true表示RGB数据分块后用ForkJoinPool多线程解析，结果和单线程完全一致
+     * @param dataType rgbBuffer中的数据格式
+     */
+    private CubeLutBuffer(ByteBuffer cubeBuffer, boolean parallel, @DataType int dataType) {
+        this.dataType = dataType;
+        parse(cubeBuffer, parallel);
+    }
+
+    /**
+     * 先单线程按行读取文件头和shaper数据，直到第一行3D LUT的RGB数据，后面的RGB数据再交给parseRGB或者parseRGBParallel处理
+     * 文件头只有几十行，shaper最多几千行，按行转换成String处理就够了
+     */
+    private void parse(ByteBuffer assetMapBuffer, boolean parallel) {
+        // 从assetMapBuffer一次读取readArray进行处理
+        byte[] readBuffer = new byte[DEFAULT_LENGTH_READ_BUFFER];
+        int readLength = readBuffer.length;
+        // 记录一行的数据
+        ByteBuffer lineBuffer = ByteBuffer.allocate(DEFAULT_LENGTH_LINE_BUFFER);
+        int dataStart = -1;//第一行RGB数据后面的位置，后面都是RGB数据
+
+        readLoop:
+        while (assetMapBuffer.hasRemaining()) {//数据还没读完
+            int remaining = assetMapBuffer.remaining();
+            if (remaining < readLength) {//最后剩余的数据
+                readLength = remaining;
+            }
+            int readStart = assetMapBuffer.position();
+            //一次读取readBuffer
+            assetMapBuffer.get(readBuffer, 0, readLength);
+
+            for (int i = 0; i < readLength; i++) {
+                byte readByte = readBuffer[i];
+                if (readByte != BYTE_LINE) {//还没到换行就记录字符
+                    if (!lineBuffer.hasRemaining())//大小不够扩容
+                        lineBuffer = BufferUtil.growCapacity(lineBuffer);
+                    lineBuffer.put(readByte);
+                    continue;
                 }
-                //一次读取readBuffer
-                assetMapBuffer.get(readBuffer, 0, readLength);
-
-                for (int i = 0; i < readLength; i++) {
-                    byte readByte = readBuffer[i];
-                    matchIndex++;
-                    //开始匹配RGB数据
-                    if (matchStateRGBBuffer == MATCH_RUNNING) {
-                        //找到空格、换行、读取到最后表示前面的float读取完成了可以加到rgbBuffer中了
-                        if (readByte == BYTE_LINE || readByte == BYTE_SPACE) {
-                            if (floatState != FLOAT_STATE_SIGN){//只有不是在找符号位，数据才是有效的
-                                //根据符号位、整数位、小数位、指数位计算float的数据
-                                float finalValue =  floatValueSignPart * floatValuePart * (float)Math.pow(10, floatExponentSignPart*floatExponentPart);
-                                rgbBuffer.putFloat(finalValue);
-                                //为下一次读取float还原状态
-                                matchIndex = -1;
-                                floatValueSignPart = 1;
-                                floatValuePart = 0;
-                                floatDecimalPlace = 0.1f;
-                                floatExponentPart = 0;
-                                floatExponentSignPart = 1;
-                                floatState = FLOAT_STATE_SIGN;
-                            }
-                            continue;
-                        }
-                        if (floatState == FLOAT_STATE_SIGN) {//找符号位
-                            floatState = FLOAT_STATE_INT;//变成找整数位
-                            if (matchIndex == 0 && readByte == BYTE_PLUS) {//正数
-                                floatValueSignPart = 1;
-                            } else if (matchIndex == 0 && readByte == BYTE_MINUS) {//负数
-                                floatValueSignPart = -1;
-                            } else if (matchIndex == 0 && BYTE_0 <= readByte && readByte <= BYTE_9) {//第一个字符没有符号就是正数
-                                floatValuePart = floatValuePart * 10 + readByte - BYTE_0;
-                            } else {
-                                throw new IllegalArgumentException("float parse fail");
-                            }
-                        } else if (floatState == FLOAT_STATE_INT) {//找整数位
-                            if (BYTE_0 <= readByte && readByte <= BYTE_9) {//找到一个数就乘以10
-                                floatValuePart = floatValuePart * 10 + readByte - BYTE_0;
-                            } else if (readByte == BYTE_DOT) {//小数点，表示开始小数位匹配
-                                floatState = FLOAT_STATE_DECIMAL;
-                            } else if (readByte == BYTE_e || readByte == BYTE_E) {//指数
-                                floatState = FLOAT_STATE_EXPONENT;
-                            } else {
-                                throw new IllegalArgumentException("float parse fail");
-                            }
-                        } else if (floatState == FLOAT_STATE_DECIMAL) {//小数位
-                            if (BYTE_0 <= readByte && readByte <= BYTE_9) {//
-                                floatValuePart = floatValuePart +  (readByte - BYTE_0)*floatDecimalPlace;
-                                floatDecimalPlace = floatDecimalPlace/10;//位数就是除以10
-                            } else if ((readByte == BYTE_e || readByte == BYTE_E)) {
-                                floatState = FLOAT_STATE_EXPONENT;
-                            } else {
-                                throw new IllegalArgumentException("float parse fail");
-                            }
-
-                        } else if (floatState == FLOAT_STATE_EXPONENT) {//指数
-
-                            if (matchIndex == 0 && readByte == BYTE_PLUS) {//指数的符号是正
-                                floatExponentSignPart = 1;
-                            } else if (matchIndex == 0 && readByte == BYTE_MINUS) {
-                                floatExponentSignPart = -1;
-                            } else if (BYTE_0 <= readByte && readByte <= BYTE_9) {
-                                floatExponentPart = floatExponentPart * 10 + readByte - BYTE_0;
-                            } else {
-                                throw new IllegalArgumentException("float parse fail");
-                            }
-                        }
-                        continue;
-                    }
+                lineBuffer.flip();//写入索引改成读取索引
+                String line = new String(lineBuffer.array(), lineBuffer.position(), lineBuffer.limit(), StandardCharsets.UTF_8).trim();
+                lineBuffer.clear();
+                if (parseLine(line)) {
+                    //后面的数据都是RGB数据，交给parseRGB处理
+                    dataStart = readStart + i + 1;
+                    break readLoop;
+                }
+            }
+        }
 
-                    if (matchStateComment == MATCH_RUNNING) {//注释模式
-                        if (readByte == BYTE_LINE) {//换行
-                            matchStateNextLine = MATCH_RUNNING;//新的一行开始
-                            matchStateComment = MATCH_STOP;//注释模式结束
-                        }
-                        //如果是注释模式就直接读取下一个字符
-                        continue;
-                    }
+        if (dataStart < 0) {
+            throw new IllegalArgumentException("cubeLut rgb data not found");
+        }
+        int dataEnd = assetMapBuffer.limit();
+        int chunkCount = parallel ? getParallelChunkCount(dataEnd - dataStart) : 1;
+        if (chunkCount > 1) {
+            parseRGBParallel(assetMapBuffer, dataStart, dataEnd, chunkCount);
+        } else {
+            int rgbIndex = parseRGB(assetMapBuffer, dataStart, dataEnd, rgbBuffer, dataType, 3);
+            rgbBuffer.position(getByteLength(rgbIndex, dataType));
+        }
+        if (rgbBuffer.hasRemaining()){
+            LogUtil.w("cubeLut rgbBuffer load fail, there is still data not written");
+        }
+    }
 
+    /**
+     * 处理文件头的一行
+     * @param line 去掉前后空格的一行数据
+     * @return true表示这一行是3D LUT的第一行RGB数据，已经写入rgbBuffer
+     */
+    private boolean parseLine(String line) {
+        if (line.isEmpty() || line.charAt(0) == BYTE_NUMBER) {//空行和注释
+            return false;
+        }
+        if (line.startsWith(KEYWORD_TITLE)) {
+            title = line.substring(KEYWORD_TITLE.length()).trim();
+            title = title.replaceAll("^\"|\"$", "");//去除前后的引号
+        } else if (line.startsWith(KEYWORD_3D_SIZE)) {
+            size = Integer.parseInt(line.substring(KEYWORD_3D_SIZE.length()).trim());
+        } else if (line.startsWith(KEYWORD_1D_SIZE)) {
+            shaperSize = Integer.parseInt(line.substring(KEYWORD_1D_SIZE.length()).trim());
+        } else if (line.startsWith(KEYWORD_DOMAIN_MIN)) {
+            domainMin = parseFloats(line.substring(KEYWORD_DOMAIN_MIN.length()), 3);
+        } else if (line.startsWith(KEYWORD_DOMAIN_MAX)) {
+            domainMax = parseFloats(line.substring(KEYWORD_DOMAIN_MAX.length()), 3);
+        } else if (line.startsWith(KEYWORD_3D_INPUT_RANGE)) {
+            float[] range = parseFloats(line.substring(KEYWORD_3D_INPUT_RANGE.length()), 2);
+            domainMin = new float[]{range[0], range[0], range[0]};
+            domainMax = new float[]{range[1], range[1], range[1]};
+        } else if (line.startsWith(KEYWORD_1D_INPUT_RANGE)) {
+            float[] range = parseFloats(line.substring(KEYWORD_1D_INPUT_RANGE.length()), 2);
+            shaperDomainMin = new float[]{range[0], range[0], range[0]};
+            shaperDomainMax = new float[]{range[1], range[1], range[1]};
+        } else {
+            float[] rgb;
+            try {
+                rgb = parseFloats(line, 3);
+            } catch (NumberFormatException e) {//不认识的关键字直接忽略
+                return false;
+            }
+            if (shaperSize != null) {//有shaper时前面shaperSize行是1D LUT的数据
+                if (shaperBuffer == null) {
+                    shaperBuffer = ByteBuffer.allocateDirect(shaperSize * 3 * Float.BYTES);
+                    shaperBuffer.order(ByteOrder.nativeOrder());
+                }
+                if (shaperBuffer.hasRemaining()) {
+                    shaperBuffer.putFloat(rgb[0]);
+                    shaperBuffer.putFloat(rgb[1]);
+                    shaperBuffer.putFloat(rgb[2]);
+                    return false;
+                }
+            }
+            if (size == null) {
+                throw new IllegalArgumentException("cubeLut " + KEYWORD_3D_SIZE + " not found");
+            }
+            int bytesPerPixel = getBytesPerPixel(dataType);//一个像素的字节大小
+            //根据size算出rgbBuffer大小
+            rgbBuffer = ByteBuffer.allocateDirect(size * size * size * bytesPerPixel);
+            rgbBuffer.order(ByteOrder.nativeOrder());
+            putValue(rgbBuffer, dataType, 0, rgb[0]);
+            putValue(rgbBuffer, dataType, 1, rgb[1]);
+            putValue(rgbBuffer, dataType, 2, rgb[2]);
+            return true;
+        }
+        return false;
+    }
 
-                    if (matchStateNextLine == MATCH_RUNNING && readByte <= BYTE_SPACE) {
-                        //新的一行开始前面的空格不需要读
-                        continue;
-                    } else if (matchStateNextLine == MATCH_RUNNING) {//开始找新的一行
-                        matchStateNextLine = MATCH_COMPLETE;//新的一行找到了，开始匹配tile和size
-                        if (title == null) {//还没匹配title就开启tile模式
-                            matchStateTitle = MATCH_RUNNING;
-                        }
-                        if (size == null) {//还没匹配size就开启size模式
-                            matchStateSize = MATCH_RUNNING;
-                        }
-                        matchIndex =0;
-                    }
+    /**
+     * 解析空格分割的float
+     * @param text
+     * @param count 需要的数量
+     * @return
+     * @throws NumberFormatException 数量不够或者不是float
+     */
+    private static float[] parseFloats(String text, int count) {
+        String[] arr = text.trim().split("\\s+");
+        if (arr.length < count) {
+            throw new NumberFormatException("need " + count + " float but " + text);
+        }
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Float.parseFloat(arr[i]);
+        }
+        return values;
+    }
 
-                    //匹配到开头是#，注释模式开始
-                    if (matchIndex == 0 && readByte == BYTE_NUMBER) {
-                        matchStateComment = MATCH_RUNNING;
-                        continue;
-                    }
+    /**
+     * 根据数据长度和CPU核数计算分块数量，数据太少分块反而更慢
+     * @param dataLength RGB数据的字节长度
+     * @return
+     */
+    private static int getParallelChunkCount(int dataLength) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int chunkCount = dataLength / MIN_LENGTH_PARALLEL_CHUNK;
+        return Math.max(1, Math.min(processors, chunkCount));
+    }
 
+    /**
+     * 多线程解析RGB数据，数据在换行处分成chunkCount块
+     * 1. 每块并行统计float数量，算出每块在rgbBuffer中写入的位置
+     * 2. 每块并行解析float直接写入rgbBuffer对应的位置
+     * 每块都是从新的一行开始解析，和单线程的parseRGB计算过程一样，所以结果完全一致
+     */
+    private void parseRGBParallel(ByteBuffer cubeBuffer, int dataStart, int dataEnd, int chunkCount) {
+        int[] chunkStarts = new int[chunkCount + 1];
+        chunkStarts[0] = dataStart;
+        chunkStarts[chunkCount] = dataEnd;
+        for (int k = 1; k < chunkCount; k++) {
+            int position = dataStart + (int) ((long) (dataEnd - dataStart) * k / chunkCount);
+            position = Math.max(position, chunkStarts[k - 1]);
+            //找到换行，下一块从换行后面开始
+            while (position < dataEnd && cubeBuffer.get(position) != BYTE_LINE) {
+                position++;
+            }
+            chunkStarts[k] = Math.min(position + 1, dataEnd);
+        }
+        ParseRGBChunkTask[] chunkTasks = new ParseRGBChunkTask[chunkCount];
+        for (int k = 0; k < chunkCount; k++) {
+            chunkTasks[k] = new ParseRGBChunkTask(cubeBuffer, chunkStarts[k], chunkStarts[k + 1]);
+        }
+        ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+        forkJoinPool.invoke(new ParseRGBTask(chunkTasks));//统计每块的float数量
 
-                    //找TITLE后的字符记录到matchBuffer，转换成title
-
-                    if (matchStateTitle == MATCH_RUNNING) {//匹配Title
-                        byte[] search = MATCH_ARRAY_TITLE;
-                        if (matchIndex < search.length) {//小于TITLE的长度
-                            if (readByte != search[matchIndex]) {//匹配TITLE失败
-                                matchStateTitle = MATCH_STOP;//停止匹配Title
-                            } else if (matchIndex == search.length - 1) {//匹配TITLE标记完成，表示可以匹配TITLE后面的字符
-                                titleOrSizeMatchBuffer.clear();//为开始记录Title后面的字符把索引清空
-                            }
-                        } else {//TITLE后面的字符
-                            if (readByte == BYTE_LINE) {//换行
-                                titleOrSizeMatchBuffer.flip();//写入索引改成读取索引
-                                // buffer中有效的数据转化成title
-                                title = new String(titleOrSizeMatchBuffer.array(), titleOrSizeMatchBuffer.position(), titleOrSizeMatchBuffer.limit()).trim();
-                                title =   title.replaceAll("^\"|\"$", "");//去除前后的引号
-                                matchStateTitle = MATCH_COMPLETE;//title匹配完成
-                                matchStateNextLine = MATCH_RUNNING;//开始找下一行
-                                titleOrSizeMatchBuffer.clear();
-                                continue;
-                            } else {//还没到换行就记录字符
-                                if (!titleOrSizeMatchBuffer.hasRemaining())//大小不够扩容
-                                    titleOrSizeMatchBuffer = BufferUtil.growCapacity(titleOrSizeMatchBuffer);
-                                titleOrSizeMatchBuffer.put(readByte);//把匹配的Title后字符记录到Buffer中
-                            }
-                        }
-                    }
+        int rgbIndex = 3;//第一行的3个数据已经写入
+        for (ParseRGBChunkTask chunkTask : chunkTasks) {
+            chunkTask.reinitialize();
+            chunkTask.rgbBuffer = rgbBuffer;
+            chunkTask.dataType = dataType;
+            chunkTask.rgbIndex = rgbIndex;
+            rgbIndex += chunkTask.floatCount;
+        }
+        if (rgbIndex > getChannelCapacity(rgbBuffer, dataType)) {//和单线程一样，数据超过size就报错
+            throw new BufferOverflowException();
+        }
+        forkJoinPool.invoke(new ParseRGBTask(chunkTasks));//解析float写入rgbBuffer
+        rgbBuffer.position(getByteLength(rgbIndex, dataType));
+    }
 
-                    //找LUT_3D_SIZE后的字符记录到matchBuffer，转换成size
-                    if (matchStateSize == MATCH_RUNNING) {// 匹配size
-                        byte[] search = MATCH_ARRAY_3D_SIZE;
-                        if (matchIndex < search.length) {//小于LUT_3D_SIZE的长度
-                            if (readByte != search[matchIndex]) {//匹配LUT_3D_SIZE失败
-                                matchStateSize = MATCH_STOP;
-                            } else if (matchIndex == search.length - 1) {
-                                //匹配LUT_3D_SIZ标记完成，表示可以匹配LUT_3D_SIZ后面的字符
-                                titleOrSizeMatchBuffer.clear();
-                            }
-                        } else {
-                            if (readByte == BYTE_LINE) {//换行
-                                titleOrSizeMatchBuffer.flip();//写入索引改成读取索引
-                                // buffer中有效的数据转化成size
-                                String result = new String(titleOrSizeMatchBuffer.array(), titleOrSizeMatchBuffer.position(), titleOrSizeMatchBuffer.limit()).trim();
-                                size = Integer.parseInt(result);
-                                matchStateSize = MATCH_COMPLETE;//匹配LUT_3D_SIZ完成
-                                matchStateNextLine = MATCH_RUNNING;//开始找下一行
-                                titleOrSizeMatchBuffer.clear();
-                                continue;
-                            } else {//还没到换行就记录字符
-                                if (!titleOrSizeMatchBuffer.hasRemaining())//大小不够扩容
-                                    titleOrSizeMatchBuffer = BufferUtil.growCapacity(titleOrSizeMatchBuffer);
-                                titleOrSizeMatchBuffer.put(readByte);//把匹配的LUT_3D_SIZE后字符记录到Buffer中
-                            }
-                        }
-                    }
+    /**
+     * 统计RGB数据中float的数量，float之间用空格或者换行分割
+     */
+    private static int countRGB(ByteBuffer cubeBuffer, int start, int end) {
+        ByteBuffer readBuffer = cubeBuffer.duplicate();
+        readBuffer.limit(end);
+        readBuffer.position(start);
+        byte[] readArray = new byte[DEFAULT_LENGTH_READ_BUFFER];
+        int floatCount = 0;
+        boolean separator = true;
+        while (readBuffer.hasRemaining()) {
+            int readLength = Math.min(readArray.length, readBuffer.remaining());
+            readBuffer.get(readArray, 0, readLength);
+            for (int i = 0; i < readLength; i++) {
+                byte readByte = readArray[i];
+                if (readByte == BYTE_LINE || readByte == BYTE_SPACE) {
+                    separator = true;
+                } else if (separator) {
+                    separator = false;
+                    floatCount++;
+                }
+            }
+        }
+        return floatCount;
+    }
 
+    /**
+     * 解析[start,end)的RGB数据，读取byte计算出Float写入rgbBuffer，start必须是新的一行
+     * @param cubeBuffer Cube文件的内容
+     * @param rgbBuffer 写入的Buffer，只用绝对位置写入，多线程可以写入同一个Buffer的不同位置
+     * @param dataType rgbBuffer中的数据格式
+     * @param rgbIndex 开始写入的通道索引，也就是前面已经有几个float
+     * @return 写入结束后的通道索引
+     */
+    private static int parseRGB(ByteBuffer cubeBuffer, int start, int end, ByteBuffer rgbBuffer, @DataType int dataType, int rgbIndex) {
+        int channelCapacity = getChannelCapacity(rgbBuffer, dataType);
+        ByteBuffer readBuffer = cubeBuffer.duplicate();
+        readBuffer.limit(end);
+        readBuffer.position(start);
+        byte[] readArray = new byte[DEFAULT_LENGTH_READ_BUFFER];
+        int readLength = readArray.length;
+        int matchIndex = -1;//匹配的索引
+        int floatValueSignPart = 1;// float的符号位
+        float floatValuePart = 0; // float的整数部分和小数部分
+        float  floatDecimalPlace = 0.1f;//float的小数位数
+        int floatExponentPart = 0; // float的指数部分
+        int floatExponentSignPart = 1; // float的指数里面的符号位
+        byte floatState = FLOAT_STATE_SIGN;//匹配float已经到哪个状态，刚开始标记还在符号位
+        while (readBuffer.hasRemaining()) {//数据还没读完
+            int remaining = readBuffer.remaining();
+            if (remaining < readLength) {//最后剩余的数据
+                readLength = remaining;
+            }
+            //一次读取readBuffer
+            readBuffer.get(readArray, 0, readLength);
 
-                    // 匹配title和size完成，还没开始匹配rgb数据时中间有可能有一堆数据，
-                    // 如果发现有一行的数据满足RGB数据的条件就标记可以开始开始匹配RGB模式，读取byte计算出Float
-                    if (matchStateTitle == MATCH_COMPLETE
-                            && matchStateSize == MATCH_COMPLETE
-                            && matchStateRGBBuffer == MATCH_STOP) {
-                        if (readByte == BYTE_LINE) {//换行
-                            titleOrSizeMatchBuffer.flip();
-                            //读取一行的数据
-                            String result = new String(titleOrSizeMatchBuffer.array(), titleOrSizeMatchBuffer.position(), titleOrSizeMatchBuffer.limit()).trim();
-                            //用空格分割字符串，因为RGB数据中间是空格
-                            String[] arr = result.split("\\s+");
-                            try {//没有异常表示存在rgb数据
-                                float r = Float.parseFloat(arr[0]);
-                                float g = Float.parseFloat(arr[1]);
-                                float b = Float.parseFloat(arr[2]);
-                                int numChannels = 3;//3个通道
-                                int bytesPerChannel = Float.BYTES;//一个通道是float
-                                int bytesPerPixel = numChannels * bytesPerChannel;//一个像素的字节大小
-                                //根据size算出rgbBuffer大小
-                                rgbBuffer = ByteBuffer.allocateDirect(size * size * size * bytesPerPixel);
-                                rgbBuffer.order(ByteOrder.nativeOrder());
-                                rgbBuffer.putFloat(r);//
-                                rgbBuffer.putFloat(g);
-                                rgbBuffer.putFloat(b);
-                                matchStateRGBBuffer = MATCH_RUNNING;//开始RGB转换模式
-                                matchIndex = -1;
-                            } catch (Exception ignored) {
-
-                            }
-                            matchStateNextLine = MATCH_RUNNING;//匹配下一行
-                            titleOrSizeMatchBuffer.clear();
-                        } else {//还没到换行就记录字符
-                            if (!titleOrSizeMatchBuffer.hasRemaining())//大小不够扩容
-                                titleOrSizeMatchBuffer = BufferUtil.growCapacity(titleOrSizeMatchBuffer);
-                            titleOrSizeMatchBuffer.put(readByte);//加入到buffer中
+            for (int i = 0; i < readLength; i++) {
+                byte readByte = readArray[i];
+                matchIndex++;
+                //找到空格、换行、读取到最后表示前面的float读取完成了可以加到rgbBuffer中了
+                if (readByte == BYTE_LINE || readByte == BYTE_SPACE) {
+                    if (floatState != FLOAT_STATE_SIGN){//只有不是在找符号位，数据才是有效的
+                        //根据符号位、整数位、小数位、指数位计算float的数据
+                        float finalValue =  floatValueSignPart * floatValuePart * (float)Math.pow(10, floatExponentSignPart*floatExponentPart);
+                        if (rgbIndex >= channelCapacity) {
+                            throw new BufferOverflowException();
                         }
+                        putValue(rgbBuffer, dataType, rgbIndex++, finalValue);
+                        //为下一次读取float还原状态
+                        matchIndex = -1;
+                        floatValueSignPart = 1;
+                        floatValuePart = 0;
+                        floatDecimalPlace = 0.1f;
+                        floatExponentPart = 0;
+                        floatExponentSignPart = 1;
+                        floatState = FLOAT_STATE_SIGN;
+                    }
+                    continue;
+                }
+                if (floatState == FLOAT_STATE_SIGN) {//找符号位
+                    floatState = FLOAT_STATE_INT;//变成找整数位
+                    if (matchIndex == 0 && readByte == BYTE_PLUS) {//正数
+                        floatValueSignPart = 1;
+                    } else if (matchIndex == 0 && readByte == BYTE_MINUS) {//负数
+                        floatValueSignPart = -1;
+                    } else if (matchIndex == 0 && BYTE_0 <= readByte && readByte <= BYTE_9) {//第一个字符没有符号就是正数
+                        floatValuePart = floatValuePart * 10 + readByte - BYTE_0;
+                    } else {
+                        throw new IllegalArgumentException("float parse fail");
                     }
-                    if (readByte == BYTE_LINE) {//换行
-                        matchStateNextLine = MATCH_RUNNING;
+                } else if (floatState == FLOAT_STATE_INT) {//找整数位
+                    if (BYTE_0 <= readByte && readByte <= BYTE_9) {//找到一个数就乘以10
+                        floatValuePart = floatValuePart * 10 + readByte - BYTE_0;
+                    } else if (readByte == BYTE_DOT) {//小数点，表示开始小数位匹配
+                        floatState = FLOAT_STATE_DECIMAL;
+                    } else if (readByte == BYTE_e || readByte == BYTE_E) {//指数
+                        floatState = FLOAT_STATE_EXPONENT;
+                    } else {
+                        throw new IllegalArgumentException("float parse fail");
+                    }
+                } else if (floatState == FLOAT_STATE_DECIMAL) {//小数位
+                    if (BYTE_0 <= readByte && readByte <= BYTE_9) {//
+                        floatValuePart = floatValuePart +  (readByte - BYTE_0)*floatDecimalPlace;
+                        floatDecimalPlace = floatDecimalPlace/10;//位数就是除以10
+                    } else if ((readByte == BYTE_e || readByte == BYTE_E)) {
+                        floatState = FLOAT_STATE_EXPONENT;
+                    } else {
+                        throw new IllegalArgumentException("float parse fail");
+                    }
+
+                } else if (floatState == FLOAT_STATE_EXPONENT) {//指数
+
+                    if (matchIndex == 0 && readByte == BYTE_PLUS) {//指数的符号是正
+                        floatExponentSignPart = 1;
+                    } else if (matchIndex == 0 && readByte == BYTE_MINUS) {
+                        floatExponentSignPart = -1;
+                    } else if (BYTE_0 <= readByte && readByte <= BYTE_9) {
+                        floatExponentPart = floatExponentPart * 10 + readByte - BYTE_0;
+                    } else {
+                        throw new IllegalArgumentException("float parse fail");
                     }
                 }
             }
+        }
 
-            // 最后有可能数字没加入到Buffer中
+        // 最后有可能数字没加入到Buffer中
 
-            if (floatState != FLOAT_STATE_SIGN){
-                float finalValue =  floatValueSignPart * floatValuePart * (float)Math.pow(10, floatExponentSignPart*floatExponentPart);
-                rgbBuffer.putFloat(finalValue);
-            }
-            if (rgbBuffer.hasRemaining()){
-                LogUtil.w("cubeLut rgbBuffer load fail, there is still data not written");
+        if (floatState != FLOAT_STATE_SIGN){
+            float finalValue =  floatValueSignPart * floatValuePart * (float)Math.pow(10, floatExponentSignPart*floatExponentPart);
+            if (rgbIndex >= channelCapacity) {
+                throw new BufferOverflowException();
             }
+            putValue(rgbBuffer, dataType, rgbIndex++, finalValue);
+        }
+        return rgbIndex;
+    }
 
-        } catch (IOException e) {
-            throw  new IORuntimeException(e);
-        } finally {
-            try {
-                if (inputStream != null) {
-                    inputStream.close();
+    /**
+     * 用绝对位置把一个通道的数据写入rgbBuffer，不会创建对象
+     * @param rgbBuffer
+     * @param dataType 数据格式
+     * @param rgbIndex 通道索引，除以3是像素索引，余数是RGB哪个通道
+     * @param value
+     */
+    static void putValue(ByteBuffer rgbBuffer, @DataType int dataType, int rgbIndex, float value) {
+        if (dataType == DataType.HALF_FLOAT) {
+            rgbBuffer.putShort(rgbIndex * 2, HalfFloatUtil.toHalf(value));
+        } else if (dataType == DataType.RGB10_A2) {
+            // 一个像素是一个int，R在低10位，然后是G和B，最高2位是alpha
+            int pixelPosition = rgbIndex / 3 * 4;
+            int channel = rgbIndex % 3;
+            int pixel = channel == 0 ? 0xC0000000 : rgbBuffer.getInt(pixelPosition);//R是像素的第一个通道，顺便把alpha设置成1
+            int quantizeValue = Math.round(Math.min(Math.max(value, 0.0f), 1.0f) * 1023);
+            rgbBuffer.putInt(pixelPosition, pixel | (quantizeValue << (channel * 10)));
+        } else {
+            rgbBuffer.putFloat(rgbIndex * Float.BYTES, value);
+        }
+    }
+
+    /**
+     * 用绝对位置读取一个通道的数据，和{@link #putValue(ByteBuffer, int, int, float)}对应
+     * @param rgbBuffer
+     * @param dataType 数据格式
+     * @param rgbIndex 通道索引
+     * @return
+     */
+    static float getValue(ByteBuffer rgbBuffer, @DataType int dataType, int rgbIndex) {
+        if (dataType == DataType.HALF_FLOAT) {
+            return HalfFloatUtil.toFloat(rgbBuffer.getShort(rgbIndex * 2));
+        } else if (dataType == DataType.RGB10_A2) {
+            int pixel = rgbBuffer.getInt(rgbIndex / 3 * 4);
+            return ((pixel >>> (rgbIndex % 3 * 10)) & 0x3FF) / 1023.0f;
+        } else {
+            return rgbBuffer.getFloat(rgbIndex * Float.BYTES);
+        }
+    }
+
+    /**
+     * 三线性插值查找颜色，和GPU对3D纹理线性采样的结果一致，超出定义域的值会被截断
+     * @param r
+     * @param g
+     * @param b
+     * @param outRGB 输出的RGB，长度至少是3
+     */
+    public void sample(float r, float g, float b, float[] outRGB) {
+        if (hasShaper()) {
+            r = sampleShaper(r, 0);
+            g = sampleShaper(g, 1);
+            b = sampleShaper(b, 2);
+        }
+        int maxIndex = size - 1;
+        float x = toLutCoordinate(r, 0) * maxIndex;
+        float y = toLutCoordinate(g, 1) * maxIndex;
+        float z = toLutCoordinate(b, 2) * maxIndex;
+        int x0 = Math.min((int) x, maxIndex - 1);
+        int y0 = Math.min((int) y, maxIndex - 1);
+        int z0 = Math.min((int) z, maxIndex - 1);
+        if (maxIndex == 0) {
+            x0 = y0 = z0 = 0;
+        }
+        float fx = x - x0;
+        float fy = y - y0;
+        float fz = z - z0;
+        int x1 = Math.min(x0 + 1, maxIndex);
+        int y1 = Math.min(y0 + 1, maxIndex);
+        int z1 = Math.min(z0 + 1, maxIndex);
+        for (int channel = 0; channel < 3; channel++) {
+            //Cube文件中R变化最快，然后是G，最后是B
+            float c000 = getLutValue(x0, y0, z0, channel);
+            float c100 = getLutValue(x1, y0, z0, channel);
+            float c010 = getLutValue(x0, y1, z0, channel);
+            float c110 = getLutValue(x1, y1, z0, channel);
+            float c001 = getLutValue(x0, y0, z1, channel);
+            float c101 = getLutValue(x1, y0, z1, channel);
+            float c011 = getLutValue(x0, y1, z1, channel);
+            float c111 = getLutValue(x1, y1, z1, channel);
+            float c00 = c000 + (c100 - c000) * fx;
+            float c10 = c010 + (c110 - c010) * fx;
+            float c01 = c001 + (c101 - c001) * fx;
+            float c11 = c011 + (c111 - c011) * fx;
+            float c0 = c00 + (c10 - c00) * fy;
+            float c1 = c01 + (c11 - c01) * fy;
+            outRGB[channel] = c0 + (c1 - c0) * fz;
+        }
+    }
+
+    /**
+     * 四面体插值查找颜色，只用立方体里4个顶点，比三线性插值少一半读取，灰阶上的误差也更小
+     * 主要用于CPU上重采样LUT，GPU上3D纹理还是三线性插值
+     * @param r
+     * @param g
+     * @param b
+     * @param outRGB 输出的RGB，长度至少是3
+     */
+    public void sampleTetrahedral(float r, float g, float b, float[] outRGB) {
+        if (hasShaper()) {
+            r = sampleShaper(r, 0);
+            g = sampleShaper(g, 1);
+            b = sampleShaper(b, 2);
+        }
+        sampleLutTetrahedral(toLutCoordinate(r, 0), toLutCoordinate(g, 1), toLutCoordinate(b, 2), outRGB);
+    }
+
+    /**
+     * 四面体插值，不经过shaper和定义域
+     * @param x R方向归一化的坐标，0到1
+     * @param y G方向归一化的坐标，0到1
+     * @param z B方向归一化的坐标，0到1
+     * @param outRGB 输出的RGB，长度至少是3
+     */
+    void sampleLutTetrahedral(float x, float y, float z, float[] outRGB) {
+        int maxIndex = size - 1;
+        x *= maxIndex;
+        y *= maxIndex;
+        z *= maxIndex;
+        int x0 = maxIndex == 0 ? 0 : Math.min((int) x, maxIndex - 1);
+        int y0 = maxIndex == 0 ? 0 : Math.min((int) y, maxIndex - 1);
+        int z0 = maxIndex == 0 ? 0 : Math.min((int) z, maxIndex - 1);
+        float fx = x - x0;
+        float fy = y - y0;
+        float fz = z - z0;
+        int x1 = Math.min(x0 + 1, maxIndex);
+        int y1 = Math.min(y0 + 1, maxIndex);
+        int z1 = Math.min(z0 + 1, maxIndex);
+        for (int channel = 0; channel < 3; channel++) {
+            float c000 = getLutValue(x0, y0, z0, channel);
+            float c111 = getLutValue(x1, y1, z1, channel);
+            float value;
+            //按fx、fy、fz的大小关系把立方体分成6个四面体，从c000沿着最大的分量走到c111
+            if (fx >= fy) {
+                if (fy >= fz) {
+                    float c100 = getLutValue(x1, y0, z0, channel);
+                    float c110 = getLutValue(x1, y1, z0, channel);
+                    value = c000 + fx * (c100 - c000) + fy * (c110 - c100) + fz * (c111 - c110);
+                } else if (fx >= fz) {
+                    float c100 = getLutValue(x1, y0, z0, channel);
+                    float c101 = getLutValue(x1, y0, z1, channel);
+                    value = c000 + fx * (c100 - c000) + fz * (c101 - c100) + fy * (c111 - c101);
+                } else {
+                    float c001 = getLutValue(x0, y0, z1, channel);
+                    float c101 = getLutValue(x1, y0, z1, channel);
+                    value = c000 + fz * (c001 - c000) + fx * (c101 - c001) + fy * (c111 - c101);
+                }
+            } else {
+                if (fz >= fy) {
+                    float c001 = getLutValue(x0, y0, z1, channel);
+                    float c011 = getLutValue(x0, y1, z1, channel);
+                    value = c000 + fz * (c001 - c000) + fy * (c011 - c001) + fx * (c111 - c011);
+                } else if (fz >= fx) {
+                    float c010 = getLutValue(x0, y1, z0, channel);
+                    float c011 = getLutValue(x0, y1, z1, channel);
+                    value = c000 + fy * (c010 - c000) + fz * (c011 - c010) + fx * (c111 - c011);
+                } else {
+                    float c010 = getLutValue(x0, y1, z0, channel);
+                    float c110 = getLutValue(x1, y1, z0, channel);
+                    value = c000 + fy * (c010 - c000) + fx * (c110 - c010) + fz * (c111 - c110);
                 }
-            } catch (IOException ignored) {
             }
+            outRGB[channel] = value;
+        }
+    }
+
+    /**
+     * 是否有1D LUT(shaper)
+     * @return
+     */
+    public boolean hasShaper() {
+        return shaperSize != null && shaperBuffer != null;
+    }
+
+    /**
+     * 线性插值查找shaper，和GPU对1D纹理线性采样的结果一致
+     */
+    private float sampleShaper(float value, int channel) {
+        int maxIndex = shaperSize - 1;
+        float coordinate = (value - shaperDomainMin[channel]) / (shaperDomainMax[channel] - shaperDomainMin[channel]);
+        float x = Math.min(Math.max(coordinate, 0.0f), 1.0f) * maxIndex;
+        int x0 = maxIndex == 0 ? 0 : Math.min((int) x, maxIndex - 1);
+        int x1 = Math.min(x0 + 1, maxIndex);
+        float c0 = shaperBuffer.getFloat((x0 * 3 + channel) * Float.BYTES);
+        float c1 = shaperBuffer.getFloat((x1 * 3 + channel) * Float.BYTES);
+        return c0 + (c1 - c0) * (x - x0);
+    }
+
+    private float toLutCoordinate(float value, int channel) {
+        float coordinate = (value - domainMin[channel]) / (domainMax[channel] - domainMin[channel]);
+        return Math.min(Math.max(coordinate, 0.0f), 1.0f);
+    }
+
+    private float getLutValue(int x, int y, int z, int channel) {
+        return getValue(rgbBuffer, dataType, ((z * size + y) * size + x) * 3 + channel);
+    }
+
+    /**
+     * rgbBuffer能写入的通道数量
+     */
+    private static int getChannelCapacity(ByteBuffer rgbBuffer, @DataType int dataType) {
+        return rgbBuffer.capacity() / getBytesPerPixel(dataType) * 3;
+    }
+
+    /**
+     * 写入了rgbIndex个通道后rgbBuffer中的字节长度
+     */
+    private static int getByteLength(int rgbIndex, @DataType int dataType) {
+        return (rgbIndex + 2) / 3 * getBytesPerPixel(dataType);
+    }
+
+    /**
+     * 每个像素的字节大小
+     * @param dataType
+     * @return
+     */
+    static int getBytesPerPixel(@DataType int dataType) {
+        if (dataType == DataType.HALF_FLOAT) {
+            return 3 * 2;//RGB 3个通道，每个通道2字节
+        } else if (dataType == DataType.RGB10_A2) {
+            return 4;//(10+10+10+2)/8 =4
+        } else {
+            return 3 * Float.BYTES;
         }
     }
 
@@ -417,23 +786,123 @@ public class CubeLutBuffer {
      * @return
      */
     public  int createTextureId(){
-        rgbBuffer.rewind();
+        int textureId = createEmptyTextureId();
+        uploadTextureSlices(textureId, 0, size);
+        return textureId;
+    }
+
+    /**
+     * 创建纹理并分配显存，不上传数据，数据在{@link #uploadTextureSlices(int, int, int)}中分批上传
+     * @return
+     */
+    public int createEmptyTextureId() {
         int textureId = GLESUtil.create3DTextureId();
         GLESUtil.checkGLError();
         GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, textureId);
         GLES30.glTexImage3D(GLES30.GL_TEXTURE_3D,
-                0, GLES30.GL_RGB16F,//纹理RGBA16格式，保证数据精度够用
+                0, getInternalFormat(),
                 size,//宽
                 size,//高
                 size,//深度
                 0,
-                GLES30.GL_RGB,
-                GLES30.GL_FLOAT,
-                rgbBuffer);
+                getBufferFormat(),
+                getBufferType(),
+                null);
         GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, 0);
         return textureId;
     }
 
+    /**
+     * 上传深度方向上的一部分数据，大的LUT可以分到多帧上传，避免一帧的耗时太长
+     * @param textureId {@link #createEmptyTextureId()}创建的纹理
+     * @param sliceStart 开始的深度
+     * @param sliceCount 上传的深度数量
+     */
+    public void uploadTextureSlices(int textureId, int sliceStart, int sliceCount) {
+        int sliceByteLength = getSliceByteLength();
+        ByteBuffer sliceBuffer = rgbBuffer.duplicate();
+        sliceBuffer.order(rgbBuffer.order());
+        sliceBuffer.limit((sliceStart + sliceCount) * sliceByteLength);
+        sliceBuffer.position(sliceStart * sliceByteLength);
+        //half float一行的字节数可能不是4的倍数，要修改OpenGL对齐大小，不然读取的数据是错的
+        int byteWidth = size * getBytesPerPixel(dataType);
+        int alignment;
+        if (byteWidth % 8 == 0) alignment = 8;
+        else if (byteWidth % 4 == 0) alignment = 4;
+        else if (byteWidth % 2 == 0) alignment = 2;
+        else alignment = 1;
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, alignment);
+        GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, textureId);
+        GLES30.glTexSubImage3D(GLES30.GL_TEXTURE_3D,
+                0,
+                0, 0, sliceStart,
+                size,//宽
+                size,//高
+                sliceCount,//深度
+                getBufferFormat(),
+                getBufferType(),
+                sliceBuffer);
+        GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, 0);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);//OpenGL的字节对齐默认是4，需要还原
+    }
+
+    /**
+     * 把shaper转换成shaperSize x 1的2D纹理，ES 3.0没有1D纹理
+     * @return 没有shaper返回0
+     */
+    public int createShaperTextureId() {
+        if (!hasShaper()) {
+            return 0;
+        }
+        int textureId = GLESUtil.createTextureId();
+        ByteBuffer uploadBuffer = shaperBuffer.duplicate();
+        uploadBuffer.order(shaperBuffer.order());
+        uploadBuffer.clear();
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D,
+                0, GLES30.GL_RGB16F,
+                shaperSize,//宽
+                1,//高
+                0,
+                GLES20.GL_RGB,
+                GLES20.GL_FLOAT,
+                uploadBuffer);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        return textureId;
+    }
+
+    /**
+     * 深度方向上一层数据的字节大小
+     * @return
+     */
+    public int getSliceByteLength() {
+        return size * size * getBytesPerPixel(dataType);
+    }
+
+    private int getInternalFormat() {
+        if (dataType == DataType.HALF_FLOAT) {
+            return GLES30.GL_RGB16F;//纹理RGB16格式，数据已经是half float，驱动不需要转换
+        } else if (dataType == DataType.RGB10_A2) {
+            return GLES30.GL_RGB10_A2;//RGBA1010102，只适合输出是SDR的LUT
+        } else {
+            return GLES30.GL_RGB16F;//纹理RGB16格式，保证数据精度够用
+        }
+    }
+
+    private int getBufferFormat() {
+        return dataType == DataType.RGB10_A2 ? GLES30.GL_RGBA : GLES30.GL_RGB;
+    }
+
+    private int getBufferType() {
+        if (dataType == DataType.HALF_FLOAT) {
+            return GLES30.GL_HALF_FLOAT;
+        } else if (dataType == DataType.RGB10_A2) {
+            return GLES30.GL_UNSIGNED_INT_2_10_10_10_REV;
+        } else {
+            return GLES30.GL_FLOAT;
+        }
+    }
+
     /**
      * 加载asset中的Cube文件
      * @param assetName
@@ -441,9 +910,244 @@ public class CubeLutBuffer {
      */
 
     public static CubeLutBuffer loadAsset(String assetName) {
-        return new CubeLutBuffer(assetName);
+        return loadAsset(assetName, true);
     }
 
+    /**
+     * 加载asset中的Cube文件
+     * @param assetName
+     * @param useCache true表示优先读取{@link CubeLutCache}中解析好的二进制文件，没有缓存就解析后写入缓存
+     * @return
+     */
+    public static CubeLutBuffer loadAsset(String assetName, boolean useCache) {
+        return loadAsset(assetName, useCache, true);
+    }
 
-}
+    /**
+     * 加载asset中的Cube文件
+     * @param assetName
+     * @param useCache true表示优先读取{@link CubeLutCache}中解析好的二进制文件，没有缓存就解析后写入缓存
+     * @param parallel true表示多核分块解析RGB数据，数据比较少时还是单线程解析
+     * @return
+     */
+    public static CubeLutBuffer loadAsset(String assetName, boolean useCache, boolean parallel) {
+        return loadAsset(assetName, useCache, parallel, DataType.FLOAT);
+    }
+
+    /**
+     * 加载asset中的Cube文件
+     * @param assetName
+     * @param useCache true表示优先读取{@link CubeLutCache}中解析好的二进制文件，没有缓存就解析后写入缓存
+     * @param parallel true表示多核分块解析RGB数据，数据比较少时还是单线程解析
+     * @param dataType rgbBuffer中的数据格式
+     * @return
+     */
+    public static CubeLutBuffer loadAsset(String assetName, boolean useCache, boolean parallel, @DataType int dataType) {
+        AssetFileDescriptor assetFileDescriptor = null;
+        FileInputStream inputStream = null;
+        try {
+            // 读取asset文件
+            assetFileDescriptor = FileUtil.openAssetFileDescriptor(assetName);
+            long startOffset = assetFileDescriptor.getStartOffset();
+            long declaredLength = assetFileDescriptor.getDeclaredLength();
+            if (useCache) {
+                // 缓存有效的话直接映射缓存文件，不需要再解析
+                CubeLutBuffer cacheBuffer = CubeLutCache.load(assetName, startOffset, declaredLength, dataType);
+                if (cacheBuffer != null) {
+                    return cacheBuffer;
+                }
+            }
+            inputStream = assetFileDescriptor.createInputStream();
+            // 注意要传offset不能直接传0，不然会发现读取除出来的文字前面多了一些莫名奇妙的字符
+            CubeLutBuffer cubeLutBuffer = load(inputStream.getChannel(), startOffset, declaredLength, parallel, dataType);
+            if (useCache) {
+                CubeLutCache.save(assetName, startOffset, declaredLength, cubeLutBuffer);
+            }
+            return cubeLutBuffer;
+        } catch (IOException e) {
+            throw  new IORuntimeException(e);
+        } finally {
+            try {
+                // inputStream关闭时也会关闭assetFileDescriptor
+                if (inputStream != null) {
+                    inputStream.close();
+                } else if (assetFileDescriptor != null) {
+                    assetFileDescriptor.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 加载Cube文件，不经过{@link CubeLutCache}，主要用于测量解析速度或者加载不在asset中的文件
+     * @param file
+     * @param parallel true表示多核分块解析RGB数据，数据比较少时还是单线程解析
+     * @param dataType rgbBuffer中的数据格式
+     * @return
+     */
+    public static CubeLutBuffer loadFile(File file, boolean parallel, @DataType int dataType) {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            FileChannel fileChannel = inputStream.getChannel();
+            return load(fileChannel, 0, fileChannel.size(), parallel, dataType);
+        } catch (IOException e) {
+            throw new IORuntimeException(e);
+        } finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
 
+    /**
+     * 加载Cube文件，Path在Android 8.0才有
+     * @param path
+     * @param parallel true表示多核分块解析RGB数据，数据比较少时还是单线程解析
+     * @param dataType rgbBuffer中的数据格式
+     * @return
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    public static CubeLutBuffer loadFile(Path path, boolean parallel, @DataType int dataType) {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return load(fileChannel, 0, fileChannel.size(), parallel, dataType);
+        } catch (IOException e) {
+            throw new IORuntimeException(e);
+        }
+    }
+
+    /**
+     * 解析FileChannel中[offset, offset + length)的Cube文件内容，不会关闭fileChannel
+     * @param fileChannel
+     * @param offset 文件内容的开始位置，asset文件不是从0开始的
+     * @param length 文件内容的长度
+     * @param parallel true表示多核分块解析RGB数据，数据比较少时还是单线程解析
+     * @param dataType rgbBuffer中的数据格式
+     * @return
+     */
+    public static CubeLutBuffer load(FileChannel fileChannel, long offset, long length, boolean parallel, @DataType int dataType) {
+        try {
+            // 把文件转换成MappedByteBuffer
+            // 读取大文件的一种方式(共享内存避免上下文切换带来的耗时)，注意只能读取2G以下的文件
+            // 映射的内存在channel关闭后依然有效
+            MappedByteBuffer mapBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            return new CubeLutBuffer(mapBuffer, parallel, dataType);
+        } catch (IOException e) {
+            throw new IORuntimeException(e);
+        }
+    }
+
+    /**
+     * 加载asset中的Cube文件，size超过maxSize时用{@link CubeLutResampler}重采样成maxSize
+     * 重采样的结果也会写入{@link CubeLutCache}，下次直接映射
+     * @param assetName
+     * @param useCache true表示优先读取{@link CubeLutCache}中解析好的二进制文件，没有缓存就解析后写入缓存
+     * @param parallel true表示多核分块解析RGB数据，数据比较少时还是单线程解析
+     * @param dataType rgbBuffer中的数据格式
+     * @param maxSize LUT的最大大小，可以用{@link CubeLutResampler#getMaxSize()}根据设备性能选择
+     * @return
+     */
+    public static CubeLutBuffer loadAsset(String assetName, boolean useCache, boolean parallel, @DataType int dataType, int maxSize) {
+        String resampleCacheName = CubeLutResampler.getCacheName(assetName, maxSize);
+        long startOffset;
+        long declaredLength;
+        try {
+            AssetFileDescriptor assetFileDescriptor = FileUtil.openAssetFileDescriptor(assetName);
+            startOffset = assetFileDescriptor.getStartOffset();
+            declaredLength = assetFileDescriptor.getDeclaredLength();
+            assetFileDescriptor.close();
+        } catch (IOException e) {
+            throw new IORuntimeException(e);
+        }
+        if (useCache) {
+            CubeLutBuffer cacheBuffer = CubeLutCache.load(resampleCacheName, startOffset, declaredLength, dataType);
+            if (cacheBuffer != null) {
+                return cacheBuffer;
+            }
+        }
+        CubeLutBuffer cubeLutBuffer = loadAsset(assetName, useCache, parallel, dataType);
+        if (cubeLutBuffer.size <= maxSize) {
+            return cubeLutBuffer;
+        }
+        CubeLutResampler.Result result = CubeLutResampler.resample(cubeLutBuffer, maxSize, dataType);
+        LogUtil.i("resample " + assetName + " from " + cubeLutBuffer.size + " " + result);
+        if (useCache) {
+            CubeLutCache.save(resampleCacheName, startOffset, declaredLength, result.cubeLutBuffer);
+        }
+        return result.cubeLutBuffer;
+    }
+
+    /**
+     * rgbBuffer中的数据格式
+     */
+    @IntDef({DataType.FLOAT, DataType.HALF_FLOAT, DataType.RGB10_A2})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface DataType {
+        /**
+         * 每个通道是float，上传纹理时驱动会转换成half float
+         */
+        int FLOAT = 0;
+        /**
+         * 每个通道是half float，内存和上传的数据量是FLOAT的一半
+         */
+        int HALF_FLOAT = 1;
+        /**
+         * 每个像素是RGBA1010102，数据会截断到0到1，只适合输出是SDR的LUT
+         */
+        int RGB10_A2 = 2;
+    }
+
+    /**
+     * 并行执行所有分块任务
+     */
+    private static class ParseRGBTask extends RecursiveAction {
+
+        private final ParseRGBChunkTask[] chunkTasks;
+
+        ParseRGBTask(ParseRGBChunkTask[] chunkTasks) {
+            this.chunkTasks = chunkTasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(chunkTasks);
+        }
+    }
+
+    /**
+     * 一块RGB数据的任务，rgbBuffer为空时统计float数量，不为空时解析float写入rgbBuffer
+     */
+    private static class ParseRGBChunkTask extends RecursiveAction {
+        private final ByteBuffer cubeBuffer;
+        private final int start;
+        private final int end;
+
+        int floatCount;
+
+        ByteBuffer rgbBuffer;
+
+        @DataType
+        int dataType;
+
+        int rgbIndex;
+
+        ParseRGBChunkTask(ByteBuffer cubeBuffer, int start, int end) {
+            this.cubeBuffer = cubeBuffer;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (rgbBuffer == null) {
+                floatCount = countRGB(cubeBuffer, start, end);
+            } else {
+                parseRGB(cubeBuffer, start, end, rgbBuffer, dataType, rgbIndex);
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.norman.android.hdrsample.transform;
+
+import android.content.Context;
+
+import com.norman.android.hdrsample.BuildConfig;
+import com.norman.android.hdrsample.util.AppUtil;
+import com.norman.android.hdrsample.util.LogUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * CubeLutBuffer的二进制缓存，第一次解析Cube文件后把title、size、domain、rgbBuffer和shaper按下面的格式保存到cache目录，
+ * 后续加载直接把文件映射到rgbBuffer，不需要再解析文本
+ * <pre>
+ * int    魔数 CLUT
+ * int    版本号
+ * byte   数据的字节序 0小端 1大端
+ * byte   数据类型 {@link CubeLutBuffer.DataType}
+ * long   asset文件的offset
+ * long   asset文件的length
+ * int    size
+ * float  domainMin rgb
+ * float  domainMax rgb
+ * short  title的字节长度
+ * byte[] title的utf8数据
+ * int    数据长度
+ * int    shaperSize，没有shaper是0
+ * float  shaperDomainMin rgb
+ * float  shaperDomainMax rgb
+ * int    shaper数据长度
+ * long   rgbBuffer和shaper数据的CRC32校验值，保存时计算，只有debug包加载时校验
+ * 补齐到16字节对齐
+ * byte[] rgbBuffer数据
+ * byte[] shaper数据，float格式
+ * </pre>
+ * asset的offset和length不一样表示apk更新了，缓存已经过期需要重新解析
+ */
+class CubeLutCache {
+
+    private static final String TAG = "CubeLutCache";
+
+    /**
+     * 缓存目录名
+     */
+    private static final String CACHE_DIR_NAME = "cubelut";
+
+    private static final String CACHE_FILE_SUFFIX = ".bin";
+
+    private static final String CACHE_FILE_TEMP_SUFFIX = ".tmp";
+
+    /**
+     * 魔数 CLUT
+     */
+    private static final int MAGIC = 0x434C5554;
+
+    /**
+     * 格式有变化要修改版本号，老的缓存会失效
+     */
+    private static final int VERSION = 2;
+
+    private static final byte BYTE_ORDER_LITTLE_ENDIAN = 0;
+
+    private static final byte BYTE_ORDER_BIG_ENDIAN = 1;
+
+    /**
+     * 数据开始的位置按16字节对齐
+     */
+    private static final int DATA_ALIGNMENT = 16;
+
+    /**
+     * 校验CRC32要读一遍整个映射文件，每一页都要从磁盘读进来，release包加载时只检查文件头、版本和长度
+     */
+    private static final boolean VERIFY_CHECKSUM = BuildConfig.DEBUG;
+
+    /**
+     * 计算校验值时一次读取的大小，和CubeLutBuffer一样是64k
+     */
+    private static final int DEFAULT_LENGTH_READ_BUFFER = 65536;
+
+    /**
+     * 读取缓存
+     *
+     * @param assetName    asset名字
+     * @param sourceOffset asset文件的offset
+     * @param sourceLength asset文件的length
+     * @param dataType     rgbBuffer中的数据格式
+     * @return 缓存不存在或者已经过期返回null
+     */
+    static CubeLutBuffer load(String assetName, long sourceOffset, long sourceLength, @CubeLutBuffer.DataType int dataType) {
+        File cacheFile = getCacheFile(assetName, dataType);
+        if (cacheFile == null || !cacheFile.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(cacheFile, "r");
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            // 映射的内存在channel关闭后依然有效
+            MappedByteBuffer cacheMapBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            cacheMapBuffer.order(ByteOrder.BIG_ENDIAN);
+            if (cacheMapBuffer.getInt() != MAGIC || cacheMapBuffer.getInt() != VERSION) {
+                deleteCache(cacheFile);
+                return null;
+            }
+            byte byteOrder = cacheMapBuffer.get();
+            byte cacheDataType = cacheMapBuffer.get();
+            long cacheSourceOffset = cacheMapBuffer.getLong();
+            long cacheSourceLength = cacheMapBuffer.getLong();
+            if (byteOrder != getByteOrderFlag(ByteOrder.nativeOrder()) ||
+                    cacheDataType != dataType ||
+                    cacheSourceOffset != sourceOffset ||
+                    cacheSourceLength != sourceLength) {//asset文件变化了缓存过期
+                deleteCache(cacheFile);
+                return null;
+            }
+            CubeLutBuffer cubeLutBuffer = new CubeLutBuffer();
+            cubeLutBuffer.dataType = dataType;
+            cubeLutBuffer.size = cacheMapBuffer.getInt();
+            for (int i = 0; i < 3; i++) {
+                cubeLutBuffer.domainMin[i] = cacheMapBuffer.getFloat();
+            }
+            for (int i = 0; i < 3; i++) {
+                cubeLutBuffer.domainMax[i] = cacheMapBuffer.getFloat();
+            }
+            byte[] titleBytes = new byte[cacheMapBuffer.getShort() & 0xFFFF];
+            cacheMapBuffer.get(titleBytes);
+            cubeLutBuffer.title = new String(titleBytes, StandardCharsets.UTF_8);
+            int dataLength = cacheMapBuffer.getInt();
+            int shaperSize = cacheMapBuffer.getInt();
+            for (int i = 0; i < 3; i++) {
+                cubeLutBuffer.shaperDomainMin[i] = cacheMapBuffer.getFloat();
+            }
+            for (int i = 0; i < 3; i++) {
+                cubeLutBuffer.shaperDomainMax[i] = cacheMapBuffer.getFloat();
+            }
+            int shaperLength = cacheMapBuffer.getInt();
+            long checksum = cacheMapBuffer.getLong();
+            int dataOffset = alignDataOffset(cacheMapBuffer.position());
+            if (dataOffset + (long) dataLength + shaperLength != cacheMapBuffer.capacity()) {//文件被截断了
+                deleteCache(cacheFile);
+                return null;
+            }
+            cacheMapBuffer.limit(dataOffset + dataLength);
+            cacheMapBuffer.position(dataOffset);
+            ByteBuffer rgbBuffer = cacheMapBuffer.slice();
+            rgbBuffer.order(ByteOrder.nativeOrder());
+            cacheMapBuffer.limit(cacheMapBuffer.capacity());
+            cacheMapBuffer.position(dataOffset + dataLength);
+            ByteBuffer shaperBuffer = cacheMapBuffer.slice();
+            shaperBuffer.order(ByteOrder.nativeOrder());
+            if (VERIFY_CHECKSUM && computeChecksum(rgbBuffer, shaperBuffer) != checksum) {
+                deleteCache(cacheFile);
+                return null;
+            }
+            cubeLutBuffer.rgbBuffer = rgbBuffer;
+            if (shaperSize > 0) {
+                cubeLutBuffer.shaperSize = shaperSize;
+                cubeLutBuffer.shaperBuffer = shaperBuffer;
+            }
+            return cubeLutBuffer;
+        } catch (IOException | RuntimeException e) {
+            LogUtil.w(TAG, "load cache " + assetName + " fail " + e.getMessage());
+            deleteCache(cacheFile);
+            return null;
+        } finally {
+            try {
+                if (randomAccessFile != null) {
+                    randomAccessFile.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 保存缓存，先写入临时文件再重命名，避免写了一半的文件被读取
+     *
+     * @param assetName    asset名字
+     * @param sourceOffset asset文件的offset
+     * @param sourceLength asset文件的length
+     * @param cubeLutBuffer 解析好的数据
+     */
+    static void save(String assetName, long sourceOffset, long sourceLength, CubeLutBuffer cubeLutBuffer) {
+        if (cubeLutBuffer.rgbBuffer == null || cubeLutBuffer.size == null) {
+            return;
+        }
+        File cacheFile = getCacheFile(assetName, cubeLutBuffer.dataType);
+        if (cacheFile == null) {
+            return;
+        }
+        File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + CACHE_FILE_TEMP_SUFFIX);
+        FileOutputStream outputStream = null;
+        try {
+            // 注意duplicate后的字节序会变成大端，要用原来的字节序
+            ByteOrder byteOrder = cubeLutBuffer.rgbBuffer.order();
+            ByteBuffer rgbBuffer = cubeLutBuffer.rgbBuffer.duplicate();
+            rgbBuffer.clear();
+            ByteBuffer shaperBuffer;
+            if (cubeLutBuffer.hasShaper()) {
+                shaperBuffer = cubeLutBuffer.shaperBuffer.duplicate();
+                shaperBuffer.clear();
+            } else {
+                shaperBuffer = ByteBuffer.allocate(0);
+            }
+            byte[] titleBytes = cubeLutBuffer.title == null ? new byte[0] : cubeLutBuffer.title.getBytes(StandardCharsets.UTF_8);
+            int headerLength = 4 + 4 + 1 + 1 + 8 + 8 + 4 + 3 * 4 + 3 * 4 + 2 + titleBytes.length + 4 + 4 + 3 * 4 + 3 * 4 + 4 + 8;
+            ByteBuffer headerBuffer = ByteBuffer.allocate(alignDataOffset(headerLength));
+            headerBuffer.order(ByteOrder.BIG_ENDIAN);
+            headerBuffer.putInt(MAGIC);
+            headerBuffer.putInt(VERSION);
+            headerBuffer.put(getByteOrderFlag(byteOrder));
+            headerBuffer.put((byte) cubeLutBuffer.dataType);
+            headerBuffer.putLong(sourceOffset);
+            headerBuffer.putLong(sourceLength);
+            headerBuffer.putInt(cubeLutBuffer.size);
+            for (int i = 0; i < 3; i++) {
+                headerBuffer.putFloat(cubeLutBuffer.domainMin[i]);
+            }
+            for (int i = 0; i < 3; i++) {
+                headerBuffer.putFloat(cubeLutBuffer.domainMax[i]);
+            }
+            headerBuffer.putShort((short) titleBytes.length);
+            headerBuffer.put(titleBytes);
+            headerBuffer.putInt(rgbBuffer.remaining());
+            headerBuffer.putInt(cubeLutBuffer.hasShaper() ? cubeLutBuffer.shaperSize : 0);
+            for (int i = 0; i < 3; i++) {
+                headerBuffer.putFloat(cubeLutBuffer.shaperDomainMin[i]);
+            }
+            for (int i = 0; i < 3; i++) {
+                headerBuffer.putFloat(cubeLutBuffer.shaperDomainMax[i]);
+            }
+            headerBuffer.putInt(shaperBuffer.remaining());
+            headerBuffer.putLong(computeChecksum(rgbBuffer, shaperBuffer));
+            headerBuffer.clear();//补齐的部分都是0
+
+            outputStream = new FileOutputStream(tempFile);
+            FileChannel fileChannel = outputStream.getChannel();
+            while (headerBuffer.hasRemaining()) {
+                fileChannel.write(headerBuffer);
+            }
+            while (rgbBuffer.hasRemaining()) {
+                fileChannel.write(rgbBuffer);
+            }
+            while (shaperBuffer.hasRemaining()) {
+                fileChannel.write(shaperBuffer);
+            }
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(cacheFile)) {
+                deleteCache(tempFile);
+            }
+        } catch (IOException | RuntimeException e) {
+            LogUtil.w(TAG, "save cache " + assetName + " fail " + e.getMessage());
+            deleteCache(tempFile);
+        } finally {
+            try {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 依次计算所有数据的CRC32校验值，不会修改buffer的position
+     *
+     * @param dataBuffers
+     * @return
+     */
+    private static long computeChecksum(ByteBuffer... dataBuffers) {
+        CRC32 crc32 = new CRC32();
+        byte[] readArray = new byte[DEFAULT_LENGTH_READ_BUFFER];
+        for (ByteBuffer dataBuffer : dataBuffers) {
+            ByteBuffer readBuffer = dataBuffer.duplicate();
+            while (readBuffer.hasRemaining()) {
+                int readLength = Math.min(readArray.length, readBuffer.remaining());
+                readBuffer.get(readArray, 0, readLength);
+                crc32.update(readArray, 0, readLength);
+            }
+        }
+        return crc32.getValue();
+    }
+
+    private static int alignDataOffset(int offset) {
+        return (offset + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+    }
+
+    private static byte getByteOrderFlag(ByteOrder byteOrder) {
+        return byteOrder == ByteOrder.BIG_ENDIAN ? BYTE_ORDER_BIG_ENDIAN : BYTE_ORDER_LITTLE_ENDIAN;
+    }
+
+    /**
+     * asset名字里的路径分隔符换成下划线再加上数据格式作为缓存文件名，不同数据格式的缓存可以同时存在
+     *
+     * @param assetName
+     * @param dataType
+     * @return
+     */
+    private static File getCacheFile(String assetName, @CubeLutBuffer.DataType int dataType) {
+        Context context = AppUtil.getAppContext();
+        if (context == null) {
+            return null;
+        }
+        File cacheDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            return null;
+        }
+        return new File(cacheDir, assetName.replace('/', '_') + "." + dataType + CACHE_FILE_SUFFIX);
+    }
+
+    private static void deleteCache(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            LogUtil.w(TAG, "delete cache " + file.getName() + " fail");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.norman.android.hdrsample.transform;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 把多个依次执行的LUT合成一个LUT，原来N次全分辨率渲染变成1次
+ * 合成的LUT每个网格点都依次经过所有LUT的三线性插值，和GPU上依次采样的结果基本一致，
+ * 差别只在中间结果没有被纹理格式量化
+ * 按深度分块用ForkJoinPool并行计算
+ */
+public class CubeLutComposer {
+
+    /**
+     * 每个任务至少计算的深度层数，太小了任务调度的开销比计算还大
+     */
+    private static final int MIN_SLICE_COUNT_PER_TASK = 2;
+
+    /**
+     * 合成LUT
+     *
+     * @param cubeLutList 按执行顺序排列的LUT，前一个LUT的输出是后一个LUT的输入
+     * @param size        合成后LUT的大小
+     * @param dataType    合成后rgbBuffer的数据格式
+     * @return
+     */
+    public static CubeLutBuffer compose(List<CubeLutBuffer> cubeLutList, int size, @CubeLutBuffer.DataType int dataType) {
+        if (cubeLutList.isEmpty()) {
+            throw new IllegalArgumentException("cubeLut list is empty");
+        }
+        if (size < 2) {
+            throw new IllegalArgumentException("cubeLut size " + size + " less than 2");
+        }
+        CubeLutBuffer firstCubeLut = cubeLutList.get(0);
+        CubeLutBuffer composeCubeLut = new CubeLutBuffer();
+        composeCubeLut.size = size;
+        composeCubeLut.dataType = dataType;
+        // 合成后的输入范围就是第一个LUT的输入范围，有shaper的时候是shaper的输入范围
+        // shaper在每个LUT的sample里执行，合成后的LUT没有shaper
+        if (firstCubeLut.hasShaper()) {
+            composeCubeLut.domainMin = firstCubeLut.shaperDomainMin.clone();
+            composeCubeLut.domainMax = firstCubeLut.shaperDomainMax.clone();
+        } else {
+            composeCubeLut.domainMin = firstCubeLut.domainMin.clone();
+            composeCubeLut.domainMax = firstCubeLut.domainMax.clone();
+        }
+        StringBuilder titleBuilder = new StringBuilder();
+        for (CubeLutBuffer cubeLutBuffer : cubeLutList) {
+            if (titleBuilder.length() > 0) {
+                titleBuilder.append(" + ");
+            }
+            titleBuilder.append(cubeLutBuffer.title);
+        }
+        composeCubeLut.title = titleBuilder.toString();
+        composeCubeLut.rgbBuffer = ByteBuffer.allocateDirect(size * size * size * CubeLutBuffer.getBytesPerPixel(dataType))
+                .order(ByteOrder.nativeOrder());
+        CubeLutBuffer[] cubeLuts = cubeLutList.toArray(new CubeLutBuffer[0]);
+        ForkJoinPool.commonPool().invoke(new ComposeTask(cubeLuts, composeCubeLut, 0, size));
+        return composeCubeLut;
+    }
+
+    /**
+     * 计算[sliceStart, sliceEnd)深度的数据，数量多了就拆成两半并行计算
+     */
+    private static class ComposeTask extends RecursiveAction {
+        private final CubeLutBuffer[] cubeLuts;
+        private final CubeLutBuffer composeCubeLut;
+        private final int sliceStart;
+        private final int sliceEnd;
+
+        ComposeTask(CubeLutBuffer[] cubeLuts, CubeLutBuffer composeCubeLut, int sliceStart, int sliceEnd) {
+            this.cubeLuts = cubeLuts;
+            this.composeCubeLut = composeCubeLut;
+            this.sliceStart = sliceStart;
+            this.sliceEnd = sliceEnd;
+        }
+
+        @Override
+        protected void compute() {
+            int sliceCount = sliceEnd - sliceStart;
+            if (sliceCount > MIN_SLICE_COUNT_PER_TASK) {
+                int sliceMiddle = sliceStart + sliceCount / 2;
+                invokeAll(new ComposeTask(cubeLuts, composeCubeLut, sliceStart, sliceMiddle),
+                        new ComposeTask(cubeLuts, composeCubeLut, sliceMiddle, sliceEnd));
+                return;
+            }
+            int size = composeCubeLut.size;
+            int maxIndex = size - 1;
+            float[] domainMin = composeCubeLut.domainMin;
+            float[] domainMax = composeCubeLut.domainMax;
+            ByteBuffer rgbBuffer = composeCubeLut.rgbBuffer;
+            int dataType = composeCubeLut.dataType;
+            float[] rgb = new float[3];
+            for (int z = sliceStart; z < sliceEnd; z++) {
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        rgb[0] = domainMin[0] + (domainMax[0] - domainMin[0]) * x / maxIndex;
+                        rgb[1] = domainMin[1] + (domainMax[1] - domainMin[1]) * y / maxIndex;
+                        rgb[2] = domainMin[2] + (domainMax[2] - domainMin[2]) * z / maxIndex;
+                        for (CubeLutBuffer cubeLut : cubeLuts) {
+                            cubeLut.sample(rgb[0], rgb[1], rgb[2], rgb);
+                        }
+                        int rgbIndex = ((z * size + y) * size + x) * 3;
+                        // RGB10_A2是按通道顺序拼接的，要先写R
+                        CubeLutBuffer.putValue(rgbBuffer, dataType, rgbIndex, rgb[0]);
+                        CubeLutBuffer.putValue(rgbBuffer, dataType, rgbIndex + 1, rgb[1]);
+                        CubeLutBuffer.putValue(rgbBuffer, dataType, rgbIndex + 2, rgb[2]);
+                    }
+                }
+            }
+        }
+    }
+}
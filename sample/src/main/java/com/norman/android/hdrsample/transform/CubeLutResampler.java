@@ -0,0 +1,305 @@
+package com.norman.android.hdrsample.transform;
+
+import com.norman.android.hdrsample.util.DeviceUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 把大的LUT重采样成小的LUT，65阶的LUT显存是33阶的8倍，低端机上采样3D纹理的缓存命中率也更低
+ * 新LUT的每个网格点用原LUT四面体插值得到，然后在原LUT的每个网格点上比较两者的ΔE，得到最大和平均误差
+ * 重采样和计算误差都按深度分块用ForkJoinPool并行计算
+ * <p>
+ * ΔE把LUT的输出当作BT.709、gamma 2.4的SDR颜色转换到CIELAB后用CIE76公式计算，
+ * 输出是PQ之类HDR编码的LUT，数值只能作为相对的参考
+ */
+public class CubeLutResampler {
+
+    /**
+     * 每个任务至少计算的深度层数，太小了任务调度的开销比计算还大
+     */
+    private static final int MIN_SLICE_COUNT_PER_TASK = 2;
+
+    /**
+     * 各个性能等级的最大LUT大小
+     */
+    public static final int MAX_SIZE_LOW_TIER = 17;
+    public static final int MAX_SIZE_MEDIUM_TIER = 33;
+    public static final int MAX_SIZE_HIGH_TIER = 65;
+
+    /**
+     * 重采样的缓存名，和原LUT的缓存区分开
+     */
+    private static final String CACHE_NAME_SEPARATOR = "@";
+
+    /**
+     * BT.709转XYZ矩阵，D65白点
+     */
+    private static final float[] BT709_TO_XYZ = {
+            0.4124f, 0.3576f, 0.1805f,
+            0.2126f, 0.7152f, 0.0722f,
+            0.0193f, 0.1192f, 0.9505f
+    };
+
+    private static final float D65_WHITE_X = 0.95047f;
+    private static final float D65_WHITE_Y = 1.0f;
+    private static final float D65_WHITE_Z = 1.08883f;
+
+    private static final float GAMMA = 2.4f;
+
+    /**
+     * 根据性能等级选择LUT的最大大小
+     *
+     * @param performanceTier {@link DeviceUtil#getPerformanceTier()}
+     * @return
+     */
+    public static int getMaxSize(@DeviceUtil.PerformanceTier int performanceTier) {
+        if (performanceTier == DeviceUtil.PerformanceTier.LOW) {
+            return MAX_SIZE_LOW_TIER;
+        } else if (performanceTier == DeviceUtil.PerformanceTier.MEDIUM) {
+            return MAX_SIZE_MEDIUM_TIER;
+        } else {
+            return MAX_SIZE_HIGH_TIER;
+        }
+    }
+
+    /**
+     * 当前设备的LUT最大大小
+     *
+     * @return
+     */
+    public static int getMaxSize() {
+        return getMaxSize(DeviceUtil.getPerformanceTier());
+    }
+
+    /**
+     * 重采样后的缓存名，配合{@link CubeLutCache}使用
+     *
+     * @param assetName
+     * @param size      重采样后的大小
+     * @return
+     */
+    static String getCacheName(String assetName, int size) {
+        return assetName + CACHE_NAME_SEPARATOR + size;
+    }
+
+    /**
+     * 重采样LUT，shaper和定义域不变
+     *
+     * @param cubeLutBuffer 原LUT
+     * @param size          重采样后的大小
+     * @param dataType      重采样后rgbBuffer的数据格式
+     * @return
+     */
+    public static Result resample(CubeLutBuffer cubeLutBuffer, int size, @CubeLutBuffer.DataType int dataType) {
+        if (size < 2) {
+            throw new IllegalArgumentException("cubeLut size " + size + " less than 2");
+        }
+        CubeLutBuffer resampleCubeLut = new CubeLutBuffer();
+        resampleCubeLut.title = cubeLutBuffer.title;
+        resampleCubeLut.size = size;
+        resampleCubeLut.dataType = dataType;
+        resampleCubeLut.domainMin = cubeLutBuffer.domainMin.clone();
+        resampleCubeLut.domainMax = cubeLutBuffer.domainMax.clone();
+        resampleCubeLut.shaperSize = cubeLutBuffer.shaperSize;
+        resampleCubeLut.shaperBuffer = cubeLutBuffer.shaperBuffer;
+        resampleCubeLut.shaperDomainMin = cubeLutBuffer.shaperDomainMin.clone();
+        resampleCubeLut.shaperDomainMax = cubeLutBuffer.shaperDomainMax.clone();
+        resampleCubeLut.rgbBuffer = ByteBuffer.allocateDirect(size * size * size * CubeLutBuffer.getBytesPerPixel(dataType))
+                .order(ByteOrder.nativeOrder());
+        ForkJoinPool.commonPool().invoke(new ResampleTask(cubeLutBuffer, resampleCubeLut, 0, size));
+
+        // 在原LUT的网格点上比较误差，每层深度的结果分开保存，最后再汇总，不需要同步
+        int sourceSize = cubeLutBuffer.size;
+        float[] sliceMaxDeltaE = new float[sourceSize];
+        double[] sliceSumDeltaE = new double[sourceSize];
+        ForkJoinPool.commonPool().invoke(new ErrorTask(cubeLutBuffer, resampleCubeLut, sliceMaxDeltaE, sliceSumDeltaE, 0, sourceSize));
+        float maxDeltaE = 0;
+        double sumDeltaE = 0;
+        for (int i = 0; i < sourceSize; i++) {
+            maxDeltaE = Math.max(maxDeltaE, sliceMaxDeltaE[i]);
+            sumDeltaE += sliceSumDeltaE[i];
+        }
+        float meanDeltaE = (float) (sumDeltaE / ((long) sourceSize * sourceSize * sourceSize));
+        return new Result(resampleCubeLut, maxDeltaE, meanDeltaE);
+    }
+
+    /**
+     * 两个颜色的CIE76 ΔE
+     *
+     * @param rgb1
+     * @param rgb2
+     * @param lab1 临时数组，长度至少是3，避免每次创建对象
+     * @param lab2 临时数组，长度至少是3
+     * @return
+     */
+    static float computeDeltaE(float[] rgb1, float[] rgb2, float[] lab1, float[] lab2) {
+        rgbToLab(rgb1, lab1);
+        rgbToLab(rgb2, lab2);
+        float dl = lab1[0] - lab2[0];
+        float da = lab1[1] - lab2[1];
+        float db = lab1[2] - lab2[2];
+        return (float) Math.sqrt(dl * dl + da * da + db * db);
+    }
+
+    private static void rgbToLab(float[] rgb, float[] outLab) {
+        float r = (float) Math.pow(Math.min(Math.max(rgb[0], 0.0f), 1.0f), GAMMA);
+        float g = (float) Math.pow(Math.min(Math.max(rgb[1], 0.0f), 1.0f), GAMMA);
+        float b = (float) Math.pow(Math.min(Math.max(rgb[2], 0.0f), 1.0f), GAMMA);
+        float x = BT709_TO_XYZ[0] * r + BT709_TO_XYZ[1] * g + BT709_TO_XYZ[2] * b;
+        float y = BT709_TO_XYZ[3] * r + BT709_TO_XYZ[4] * g + BT709_TO_XYZ[5] * b;
+        float z = BT709_TO_XYZ[6] * r + BT709_TO_XYZ[7] * g + BT709_TO_XYZ[8] * b;
+        float fx = labF(x / D65_WHITE_X);
+        float fy = labF(y / D65_WHITE_Y);
+        float fz = labF(z / D65_WHITE_Z);
+        outLab[0] = 116 * fy - 16;
+        outLab[1] = 500 * (fx - fy);
+        outLab[2] = 200 * (fy - fz);
+    }
+
+    private static float labF(float t) {
+        if (t > 216.0f / 24389.0f) {
+            return (float) Math.cbrt(t);
+        }
+        return (24389.0f / 27.0f * t + 16) / 116;
+    }
+
+    /**
+     * 重采样的结果
+     */
+    public static class Result {
+        public final CubeLutBuffer cubeLutBuffer;
+
+        /**
+         * 在原LUT网格点上的最大ΔE
+         */
+        public final float maxDeltaE;
+
+        /**
+         * 在原LUT网格点上的平均ΔE
+         */
+        public final float meanDeltaE;
+
+        Result(CubeLutBuffer cubeLutBuffer, float maxDeltaE, float meanDeltaE) {
+            this.cubeLutBuffer = cubeLutBuffer;
+            this.maxDeltaE = maxDeltaE;
+            this.meanDeltaE = meanDeltaE;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "size=" + cubeLutBuffer.size +
+                    ", maxDeltaE=" + maxDeltaE +
+                    ", meanDeltaE=" + meanDeltaE +
+                    '}';
+        }
+    }
+
+    /**
+     * 计算新LUT[sliceStart, sliceEnd)深度的数据，数量多了就拆成两半并行计算
+     */
+    private static class ResampleTask extends RecursiveAction {
+        private final CubeLutBuffer sourceCubeLut;
+        private final CubeLutBuffer resampleCubeLut;
+        private final int sliceStart;
+        private final int sliceEnd;
+
+        ResampleTask(CubeLutBuffer sourceCubeLut, CubeLutBuffer resampleCubeLut, int sliceStart, int sliceEnd) {
+            this.sourceCubeLut = sourceCubeLut;
+            this.resampleCubeLut = resampleCubeLut;
+            this.sliceStart = sliceStart;
+            this.sliceEnd = sliceEnd;
+        }
+
+        @Override
+        protected void compute() {
+            int sliceCount = sliceEnd - sliceStart;
+            if (sliceCount > MIN_SLICE_COUNT_PER_TASK) {
+                int sliceMiddle = sliceStart + sliceCount / 2;
+                invokeAll(new ResampleTask(sourceCubeLut, resampleCubeLut, sliceStart, sliceMiddle),
+                        new ResampleTask(sourceCubeLut, resampleCubeLut, sliceMiddle, sliceEnd));
+                return;
+            }
+            int size = resampleCubeLut.size;
+            float maxIndex = size - 1;
+            ByteBuffer rgbBuffer = resampleCubeLut.rgbBuffer;
+            int dataType = resampleCubeLut.dataType;
+            float[] rgb = new float[3];
+            for (int z = sliceStart; z < sliceEnd; z++) {
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        sourceCubeLut.sampleLutTetrahedral(x / maxIndex, y / maxIndex, z / maxIndex, rgb);
+                        int rgbIndex = ((z * size + y) * size + x) * 3;
+                        // RGB10_A2是按通道顺序拼接的，要先写R
+                        CubeLutBuffer.putValue(rgbBuffer, dataType, rgbIndex, rgb[0]);
+                        CubeLutBuffer.putValue(rgbBuffer, dataType, rgbIndex + 1, rgb[1]);
+                        CubeLutBuffer.putValue(rgbBuffer, dataType, rgbIndex + 2, rgb[2]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 计算原LUT[sliceStart, sliceEnd)深度网格点上的误差
+     */
+    private static class ErrorTask extends RecursiveAction {
+        private final CubeLutBuffer sourceCubeLut;
+        private final CubeLutBuffer resampleCubeLut;
+        private final float[] sliceMaxDeltaE;
+        private final double[] sliceSumDeltaE;
+        private final int sliceStart;
+        private final int sliceEnd;
+
+        ErrorTask(CubeLutBuffer sourceCubeLut, CubeLutBuffer resampleCubeLut,
+                  float[] sliceMaxDeltaE, double[] sliceSumDeltaE,
+                  int sliceStart, int sliceEnd) {
+            this.sourceCubeLut = sourceCubeLut;
+            this.resampleCubeLut = resampleCubeLut;
+            this.sliceMaxDeltaE = sliceMaxDeltaE;
+            this.sliceSumDeltaE = sliceSumDeltaE;
+            this.sliceStart = sliceStart;
+            this.sliceEnd = sliceEnd;
+        }
+
+        @Override
+        protected void compute() {
+            int sliceCount = sliceEnd - sliceStart;
+            if (sliceCount > MIN_SLICE_COUNT_PER_TASK) {
+                int sliceMiddle = sliceStart + sliceCount / 2;
+                invokeAll(new ErrorTask(sourceCubeLut, resampleCubeLut, sliceMaxDeltaE, sliceSumDeltaE, sliceStart, sliceMiddle),
+                        new ErrorTask(sourceCubeLut, resampleCubeLut, sliceMaxDeltaE, sliceSumDeltaE, sliceMiddle, sliceEnd));
+                return;
+            }
+            int size = sourceCubeLut.size;
+            float maxIndex = size - 1;
+            ByteBuffer rgbBuffer = sourceCubeLut.rgbBuffer;
+            int dataType = sourceCubeLut.dataType;
+            float[] sourceRgb = new float[3];
+            float[] resampleRgb = new float[3];
+            float[] sourceLab = new float[3];
+            float[] resampleLab = new float[3];
+            for (int z = sliceStart; z < sliceEnd; z++) {
+                float maxDeltaE = 0;
+                double sumDeltaE = 0;
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        int rgbIndex = ((z * size + y) * size + x) * 3;
+                        sourceRgb[0] = CubeLutBuffer.getValue(rgbBuffer, dataType, rgbIndex);
+                        sourceRgb[1] = CubeLutBuffer.getValue(rgbBuffer, dataType, rgbIndex + 1);
+                        sourceRgb[2] = CubeLutBuffer.getValue(rgbBuffer, dataType, rgbIndex + 2);
+                        resampleCubeLut.sampleLutTetrahedral(x / maxIndex, y / maxIndex, z / maxIndex, resampleRgb);
+                        float deltaE = computeDeltaE(sourceRgb, resampleRgb, sourceLab, resampleLab);
+                        maxDeltaE = Math.max(maxDeltaE, deltaE);
+                        sumDeltaE += deltaE;
+                    }
+                }
+                sliceMaxDeltaE[z] = maxDeltaE;
+                sliceSumDeltaE[z] = sumDeltaE;
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.norman.android.hdrsample.transform;
+
+import com.norman.android.hdrsample.transform.math.PrecisionErrorReport;
+import com.norman.android.hdrsample.util.GLESUtil;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * CubeLut的3D纹理缓存，按最近最少使用(LRU)淘汰，纹理占用的显存超过maxBytes就删除最久没用过的纹理
+ * 来回切换LUT的时候不需要重新解析和上传，直接用缓存里的纹理
+ * <p>
+ * 创建和删除纹理的方法(get、put、clear)都要在GL线程调用，其他方法可以在任意线程调用
+ */
+public class CubeLutTextureCache {
+
+    /**
+     * 默认32M显存，65阶的LUT用半精度浮点数大概1.6M
+     */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * accessOrder为true，遍历的时候第一个就是最久没用过的
+     */
+    private final LinkedHashMap<String, Entry> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxBytes;
+
+    private long currentBytes;
+
+    private int hitCount;
+
+    private int missCount;
+
+    private int evictionCount;
+
+    public CubeLutTextureCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public CubeLutTextureCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 获取缓存的纹理，并且标记为最近使用
+     *
+     * @param key
+     * @return 没有缓存返回null
+     */
+    synchronized Entry get(String key) {
+        Entry entry = entryMap.get(key);
+        if (entry == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return entry;
+    }
+
+    /**
+     * 缓存中是否有纹理，不会修改使用顺序和计数
+     *
+     * @param key
+     * @return
+     */
+    public synchronized boolean contains(String key) {
+        return entryMap.containsKey(key);
+    }
+
+    /**
+     * 纹理加入缓存，超过maxBytes会淘汰最久没用过的纹理，刚加入的纹理不会被淘汰
+     *
+     * @param key
+     * @param cubeLutBuffer   纹理对应的数据，用来计算显存大小和记录定义域
+     * @param textureId       已经上传好数据的纹理，之后由缓存负责删除
+     * @param shaperTextureId shaper纹理，没有shaper是0，之后由缓存负责删除
+     * @param mediumpBitDepth 可以用mediump采样的最大输出位深，见{@link PrecisionErrorReport#getMediumpBitDepth(CubeLutBuffer)}
+     * @return
+     */
+    synchronized Entry put(String key, CubeLutBuffer cubeLutBuffer, int textureId, int shaperTextureId, int mediumpBitDepth) {
+        int size = cubeLutBuffer.size;
+        long byteSize = (long) size * size * size * CubeLutBuffer.getBytesPerPixel(cubeLutBuffer.dataType);
+        int shaperSize = 0;
+        if (shaperTextureId != 0) {
+            shaperSize = cubeLutBuffer.shaperSize;
+            byteSize += (long) shaperSize * 3 * 2;//shaper纹理是RGB16F
+        }
+        return put(key, new Entry(textureId, size, byteSize,
+                cubeLutBuffer.domainMin.clone(), cubeLutBuffer.domainMax.clone(),
+                shaperTextureId, shaperSize,
+                cubeLutBuffer.shaperDomainMin.clone(), cubeLutBuffer.shaperDomainMax.clone(),
+                mediumpBitDepth));
+    }
+
+    /**
+     * 纹理加入缓存，用于不是从CubeLutBuffer上传的纹理，比如渲染生成的LUT
+     *
+     * @param key
+     * @param textureId     已经有数据的纹理，之后由缓存负责删除
+     * @param size          LUT的大小
+     * @param bytesPerPixel 每个像素的字节大小
+     * @return
+     */
+    synchronized Entry put(String key, int textureId, int size, int bytesPerPixel) {
+        return put(key, new Entry(textureId, size, (long) size * size * size * bytesPerPixel,
+                new float[]{0.0f, 0.0f, 0.0f}, new float[]{1.0f, 1.0f, 1.0f},
+                0, 0, null, null, 0));
+    }
+
+    private Entry put(String key, Entry entry) {
+        Entry oldEntry = entryMap.put(key, entry);
+        if (oldEntry != null) {
+            currentBytes -= oldEntry.byteSize;
+            oldEntry.delete();
+        }
+        currentBytes += entry.byteSize;
+        trimToSize(entry);
+        return entry;
+    }
+
+    private void trimToSize(Entry keepEntry) {
+        Iterator<Map.Entry<String, Entry>> iterator = entryMap.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry == keepEntry) {
+                continue;
+            }
+            iterator.remove();
+            currentBytes -= entry.byteSize;
+            evictionCount++;
+            entry.delete();
+        }
+    }
+
+    /**
+     * 删除所有纹理，GL环境销毁的时候调用，不算淘汰次数
+     */
+    synchronized void clear() {
+        for (Entry entry : entryMap.values()) {
+            entry.delete();
+        }
+        entryMap.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * 修改显存上限，纹理要在GL线程删除，所以下次加入纹理的时候才会淘汰
+     *
+     * @param maxBytes
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int getCount() {
+        return entryMap.size();
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CubeLutTextureCache{" +
+                "count=" + entryMap.size() +
+                ", currentBytes=" + currentBytes +
+                ", maxBytes=" + maxBytes +
+                ", hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", evictionCount=" + evictionCount +
+                '}';
+    }
+
+    static class Entry {
+        final int textureId;
+        final int size;
+        final long byteSize;
+        final float[] domainMin;
+        final float[] domainMax;
+        /**
+         * shaper纹理，没有shaper是0
+         */
+        final int shaperTextureId;
+        final int shaperSize;
+        final float[] shaperDomainMin;
+        final float[] shaperDomainMax;
+        /**
+         * 输出位深不超过这个值时可以用mediump采样，0表示只能用highp
+         */
+        final int mediumpBitDepth;
+
+        Entry(int textureId, int size, long byteSize,
+              float[] domainMin, float[] domainMax,
+              int shaperTextureId, int shaperSize,
+              float[] shaperDomainMin, float[] shaperDomainMax,
+              int mediumpBitDepth) {
+            this.textureId = textureId;
+            this.size = size;
+            this.byteSize = byteSize;
+            this.domainMin = domainMin;
+            this.domainMax = domainMax;
+            this.shaperTextureId = shaperTextureId;
+            this.shaperSize = shaperSize;
+            this.shaperDomainMin = shaperDomainMin;
+            this.shaperDomainMax = shaperDomainMax;
+            this.mediumpBitDepth = mediumpBitDepth;
+        }
+
+        boolean hasShaper() {
+            return shaperTextureId != 0;
+        }
+
+        private void delete() {
+            GLESUtil.delTextureId(textureId);
+            if (shaperTextureId != 0) {
+                GLESUtil.delTextureId(shaperTextureId);
+            }
+        }
+    }
+}
@@ -2,61 +2,164 @@ package com.norman.android.hdrsample.transform;
 
 import android.opengl.GLES20;
 import android.opengl.GLES30;
+import android.text.TextUtils;
 
+import com.norman.android.hdrsample.handler.Future;
+import com.norman.android.hdrsample.handler.MessageHandler;
+import com.norman.android.hdrsample.opengl.GLProgramPrecompiler;
+import com.norman.android.hdrsample.player.GLFuseProgram;
 import com.norman.android.hdrsample.player.GLVideoTransform;
 import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.math.PrecisionErrorReport;
 import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.LogUtil;
 
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * 直接使用3D纹理加载CubeLut数据，和@see <a href="https://github.com/google/ExoPlayer/blob/release-v2/library/effect/src/main/assets/shaders/fragment_shader_lut_es2.glsl#L23"/> ExoPlayer</a> 的LUT区别
  * 1. 不需要手动手动去插值处理更方便
  * 2. 不使用Bitmap直接使用ByteBuffer加载CUBE文件
+ * 3. 默认用半精度浮点数上传纹理，显存和带宽是float的一半，输出SDR的LUT还可以用RGB10_A2再减少一半
+ * 4. 用过的LUT纹理放在{@link CubeLutTextureCache}里，切换回来不需要重新解析和上传
+ * 5. 在后台线程解析，GL线程每帧只上传一部分数据，上传完成前继续使用之前的LUT，不会阻塞UI线程和渲染
+ * 6. 设置多个LUT时用{@link CubeLutComposer}合成一个LUT，只需要渲染一次
+ * 7. 支持DOMAIN_MIN/DOMAIN_MAX定义域，有1D shaper的LUT切换到先采样shaper纹理再采样3D纹理的Shader
+ * 8. 加载时用{@link PrecisionErrorReport}评估LUT，输出位深误差不超过1个码值时用mediump的Shader
+ * 9. 可以和相邻的Transform合并成一次渲染，单独渲染时也用合并的Shader
  */
 public class CubeLutVideoTransform extends GLVideoTransform {
 
     private static final int VERTEX_LENGTH = 2;
 
-    private static final String VERTEX_SHADER = "#version 300 es\n" +
-            "in vec4 position;\n" +
-            "in vec4 inputTextureCoordinate;\n" +
-            "out vec2 textureCoordinate;\n" +
-            "void main() {\n" +
-            "    gl_Position =position;\n" +
-            "    textureCoordinate =(inputTextureCoordinate).xy;\n" +
-            "}";
-
-
-    private static final String FRAGMENT_SHADER = "#version 300 es\n" +
-            "#extension GL_OES_EGL_image_external : require\n" +
-            "precision highp float;\n" +
-            "precision highp sampler3D;\n" +
-            "in  vec2 textureCoordinate;\n" +
-            "out vec4 outColor;\n" +
-            "\n" +
-            "uniform sampler2D inputImageTexture;\n" +
-            "uniform sampler3D cubeLutTexture;\n" +
-            "uniform float cubeLutSize;\n" +
-            "\n" +
-            "\n" +
-            "void main() {\n" +
-            "\n" +
-            "    // 解决OpenGL时线性插值在边缘处的精度问题\n" +
-            "    // https://zhuanlan.zhihu.com/p/302608139\n" +
-            "    vec4 rawColor = texture(inputImageTexture, textureCoordinate);\n" +
-            "    vec3 scale = vec3((cubeLutSize - 1.0) / cubeLutSize);\n" +
-            "    vec3 offset = vec3(1.0 / (2.0 * cubeLutSize));\n" +
-            "    outColor.rgb = texture(cubeLutTexture, scale * rawColor.rgb + offset).rgb;\n" +
-            "    outColor.a = rawColor.a;\n" +
-            "}";
+    private static final String TAG = "CubeLutVideoTransform";
+
+    private static final String CUBE_KEY_SEPARATOR = ":";
+
+    private static final String CUBE_KEY_ASSET_SEPARATOR = "|";
 
+    private static final String LOAD_THREAD_NAME = "CubeLutLoadThread";
 
-    private int lutTextureId;
-    private int lutSize;
+    /**
+     * 每帧最多上传的字节数，65阶的半精度LUT大概分4帧上传完
+     */
+    private static final int MAX_UPLOAD_BYTES_PER_FRAME = 512 * 1024;
 
+    private static final String PRECISION_HIGHP = "precision highp float;\n" +
+            "precision highp sampler3D;\n";
 
-    private CubeLutBuffer currentCube;
+    private static final String PRECISION_MEDIUMP = "precision mediump float;\n" +
+            "precision mediump sampler3D;\n";
+
+    /**
+     * 3D LUT纹理的采样，坐标在0到1，%1$s是uniform和函数的前缀，{@link HDRToSDRVideoTransform}生成的LUT也用它采样
+     */
+    static final String LUT_SAMPLE_CODE = "uniform sampler3D %1$sCubeLutTexture;\n" +
+            "uniform float %1$sCubeLutSize;\n" +
+            "\n" +
+            "vec3 %1$sSampleCubeLutTexture(vec3 coordinate) {\n" +
+            "    // 解决OpenGL时线性插值在边缘处的精度问题\n" +
+            "    // https://zhuanlan.zhihu.com/p/302608139\n" +
+            "    vec3 scale = vec3((%1$sCubeLutSize - 1.0) / %1$sCubeLutSize);\n" +
+            "    vec3 offset = vec3(1.0 / (2.0 * %1$sCubeLutSize));\n" +
+            "    return texture(%1$sCubeLutTexture, scale * coordinate + offset).rgb;\n" +
+            "}\n" +
+            "\n";
+
+    /**
+     * 合并渲染的代码，%1$s是{@link #getFuseMethod()}，uniform和函数都用它做前缀
+     */
+    private static final String FUSE_CODE_HEADER = LUT_SAMPLE_CODE +
+            "uniform vec3 %1$sCubeLutDomainMin;\n" +
+            "uniform vec3 %1$sCubeLutDomainMax;\n" +
+            "\n" +
+            "vec3 %1$sSampleCubeLut(vec3 color) {\n" +
+            "    vec3 coordinate = clamp((color - %1$sCubeLutDomainMin) / (%1$sCubeLutDomainMax - %1$sCubeLutDomainMin), 0.0, 1.0);\n" +
+            "    return %1$sSampleCubeLutTexture(coordinate);\n" +
+            "}\n" +
+            "\n";
+
+    private static final String FUSE_CODE_MAIN = "vec4 %1$s(vec4 color) {\n" +
+            "    return vec4(%1$sSampleCubeLut(color.rgb), color.a);\n" +
+            "}\n";
+
+    /**
+     * 有shaper的LUT，shaper是shaperSize x 1的2D纹理，RGB三个通道分别采样
+     */
+    private static final String FUSE_CODE_SHAPER_MAIN = "uniform sampler2D %1$sShaperTexture;\n" +
+            "uniform float %1$sShaperSize;\n" +
+            "uniform vec3 %1$sShaperDomainMin;\n" +
+            "uniform vec3 %1$sShaperDomainMax;\n" +
+            "\n" +
+            "vec3 %1$sSampleShaper(vec3 color) {\n" +
+            "    vec3 coordinate = clamp((color - %1$sShaperDomainMin) / (%1$sShaperDomainMax - %1$sShaperDomainMin), 0.0, 1.0);\n" +
+            "    coordinate = coordinate * ((%1$sShaperSize - 1.0) / %1$sShaperSize) + 1.0 / (2.0 * %1$sShaperSize);\n" +
+            "    return vec3(texture(%1$sShaperTexture, vec2(coordinate.r, 0.5)).r,\n" +
+            "                texture(%1$sShaperTexture, vec2(coordinate.g, 0.5)).g,\n" +
+            "                texture(%1$sShaperTexture, vec2(coordinate.b, 0.5)).b);\n" +
+            "}\n" +
+            "\n" +
+            "vec4 %1$s(vec4 color) {\n" +
+            "    return vec4(%1$sSampleCubeLut(%1$sSampleShaper(color.rgb)), color.a);\n" +
+            "}\n";
+
+    private static final int FUSE_CODE_SHAPER = 1;
+
+    private static final int FUSE_CODE_MEDIUMP = 2;
+
+    /**
+     * 有没有shaper、是否mediump四种组合的合并代码，下标是FUSE_CODE_SHAPER和FUSE_CODE_MEDIUMP的组合
+     */
+    private final String[] fuseCodes = new String[4];
+
+    /**
+     * 单独渲染时用只有一个Transform的合并Shader，和合并渲染共用编译好的Program
+     */
+    private final String[] frameShaders = new String[4];
+
+    private final String cubeLutTextureName;
+    private final String cubeLutSizeName;
+    private final String cubeLutDomainMinName;
+    private final String cubeLutDomainMaxName;
+    private final String shaperTextureName;
+    private final String shaperSizeName;
+    private final String shaperDomainMinName;
+    private final String shaperDomainMaxName;
+
+    /**
+     * 当前的LUT纹理
+     */
+    private CubeLutTextureCache.Entry lutEntry;
+
+    /**
+     * 切换前的LUT，有没有shaper和当前的不一样时要换Shader，新的Program还在后台编译时之前的Program继续用它绘制
+     */
+    private CubeLutTextureCache.Entry previousLutEntry;
+
+    /**
+     * 当前用的合并代码下标，只在变化时才调用setFrameShader
+     */
+    private int fuseCodeIndex;
+
+
+    private String currentCubeKey;
+
+    /**
+     * 正在分批上传的LUT，只在GL线程访问
+     */
+    private String uploadCubeKey;
+    private CubeLutBuffer uploadCubeBuffer;
+    private int uploadMediumpBitDepth;
+    private int uploadTextureId;
+    private int uploadSliceCount;
+
+    /**
+     * 纹理被淘汰后重新加载的LUT，避免每帧都重复提交加载
+     */
+    private String reloadCubeKey;
 
     private FloatBuffer textureCoordinateBuffer;
     private FloatBuffer positionCoordinateBuffer;
@@ -69,24 +172,136 @@ public class CubeLutVideoTransform extends GLVideoTransform {
 
     private int cubeLutSizeUniform;
 
+    private int cubeLutDomainMinUniform;
 
+    private int cubeLutDomainMaxUniform;
+
+    private int shaperTextureUniform;
+
+    private int shaperSizeUniform;
+
+    private int shaperDomainMinUniform;
+
+    private int shaperDomainMaxUniform;
+
+
+    /**
+     * 已经加载完成的LUT，GL线程会切换到这个LUT
+     */
+    private String[] cubeLutAssets;
+
+    private String cubeLutKey;
+
+    private @CubeLutBuffer.DataType int cubeLutDataType;
+
+    /**
+     * 纹理缓存里没有时才会加载，开始上传后就置空
+     */
     private CubeLutBuffer cubeLutBuffer;
 
+    private int cubeLutMediumpBitDepth;
+
+    /**
+     * LUT的最大大小，0表示根据设备性能等级选择
+     */
+    private int maxCubeLutSize;
+
+    /**
+     * 每次设置LUT都会加1，加载完成时不是最新的请求就丢弃
+     */
+    private int cubeLutRequestCount;
+
+    private MessageHandler loadHandler;
+
+    private final CubeLutTextureCache lutTextureCache = new CubeLutTextureCache();
+
 
     public CubeLutVideoTransform() {
         positionCoordinateBuffer = GLESUtil.createPositionFlatBuffer();
         textureCoordinateBuffer = GLESUtil.createTextureFlatBuffer();
-        setVertexShader(VERTEX_SHADER);
-        setFrameShader(FRAGMENT_SHADER);
+        String method = getFuseMethod();
+        for (int i = 0; i < fuseCodes.length; i++) {
+            fuseCodes[i] = createFuseCode(method, (i & FUSE_CODE_SHAPER) != 0, (i & FUSE_CODE_MEDIUMP) != 0);
+            frameShaders[i] = GLFuseProgram.createFrameShader(method, fuseCodes[i]);
+        }
+        cubeLutTextureName = method + "CubeLutTexture";
+        cubeLutSizeName = method + "CubeLutSize";
+        cubeLutDomainMinName = method + "CubeLutDomainMin";
+        cubeLutDomainMaxName = method + "CubeLutDomainMax";
+        shaperTextureName = method + "ShaperTexture";
+        shaperSizeName = method + "ShaperSize";
+        shaperDomainMinName = method + "ShaperDomainMin";
+        shaperDomainMaxName = method + "ShaperDomainMax";
+        setVertexShader(GLFuseProgram.VERTEX_SHADER);
+        setFrameShader(frameShaders[fuseCodeIndex]);
+    }
+
+    /**
+     * mediump时只有LUT的函数用mediump，声明完再改回highp，纹理坐标和后面合并的代码不受影响
+     */
+    private static String createFuseCode(String method, boolean shaper, boolean mediump) {
+        String code = String.format(FUSE_CODE_HEADER + (shaper ? FUSE_CODE_SHAPER_MAIN : FUSE_CODE_MAIN), method);
+        return mediump ? PRECISION_MEDIUMP + code + PRECISION_HIGHP : code;
     }
 
     @Override
     protected void onProgramChange(int programId) {
-        positionCoordinateAttribute = GLES20.glGetAttribLocation(programId, "position");
-        textureCoordinateAttribute = GLES20.glGetAttribLocation(programId, "inputTextureCoordinate");
-        textureUnitUniform = GLES20.glGetUniformLocation(programId, "inputImageTexture");
-        cubeLutTextureUniform = GLES20.glGetUniformLocation(programId, "cubeLutTexture");
-        cubeLutSizeUniform = GLES20.glGetUniformLocation(programId, "cubeLutSize");
+        positionCoordinateAttribute = getAttribLocation("position");
+        textureCoordinateAttribute = getAttribLocation("inputTextureCoordinate");
+        textureUnitUniform = getUniformLocation("inputImageTexture");
+        cubeLutTextureUniform = getUniformLocation(cubeLutTextureName);
+        cubeLutSizeUniform = getUniformLocation(cubeLutSizeName);
+        cubeLutDomainMinUniform = getUniformLocation(cubeLutDomainMinName);
+        cubeLutDomainMaxUniform = getUniformLocation(cubeLutDomainMaxName);
+        shaperTextureUniform = getUniformLocation(shaperTextureName);
+        shaperSizeUniform = getUniformLocation(shaperSizeName);
+        shaperDomainMinUniform = getUniformLocation(shaperDomainMinName);
+        shaperDomainMaxUniform = getUniformLocation(shaperDomainMaxName);
+    }
+
+    /**
+     * 切换有没有Shaper的LUT时要换Shader，两种都提前编译，输出不超过10位时还可能用mediump
+     * 单独渲染和合并渲染是同一个Shader，只编译一次
+     */
+    @Override
+    protected void onPrecompile(@ColorSpace int colorSpace, int bitDepth, GLProgramPrecompiler precompiler) {
+        if (colorSpace == ColorSpace.VIDEO_SDR) {
+            return;
+        }
+        precompiler.precompile(GLFuseProgram.VERTEX_SHADER, frameShaders[0]);
+        precompiler.precompile(GLFuseProgram.VERTEX_SHADER, frameShaders[FUSE_CODE_SHAPER]);
+        if (bitDepth <= PrecisionErrorReport.MAX_MEDIUMP_BIT_DEPTH) {
+            precompiler.precompile(GLFuseProgram.VERTEX_SHADER, frameShaders[FUSE_CODE_MEDIUMP]);
+            precompiler.precompile(GLFuseProgram.VERTEX_SHADER, frameShaders[FUSE_CODE_SHAPER | FUSE_CODE_MEDIUMP]);
+        }
+    }
+
+    @Override
+    protected List<String> onPrecompileFuseCodes(@ColorSpace int colorSpace, int bitDepth) {
+        List<String> codes = new ArrayList<>();
+        if (colorSpace == ColorSpace.VIDEO_SDR) {
+            return codes;
+        }
+        codes.add(fuseCodes[0]);
+        codes.add(fuseCodes[FUSE_CODE_SHAPER]);
+        if (bitDepth <= PrecisionErrorReport.MAX_MEDIUMP_BIT_DEPTH) {
+            codes.add(fuseCodes[FUSE_CODE_MEDIUMP]);
+            codes.add(fuseCodes[FUSE_CODE_SHAPER | FUSE_CODE_MEDIUMP]);
+        }
+        return codes;
+    }
+
+    /**
+     * 只需要输入的颜色空间和位深，可以合并到前面的Transform后面
+     */
+    @Override
+    protected boolean isFusible(boolean inputTextureReady) {
+        return true;
+    }
+
+    @Override
+    protected String onFuseCode(String method) {
+        return fuseCodes[fuseCodeIndex];
     }
 
     @Override
@@ -95,29 +310,157 @@ public class CubeLutVideoTransform extends GLVideoTransform {
         if (colorSpace == ColorSpace.VIDEO_SDR) {
             return false;
         }
-        if (cubeLutBuffer != currentCube) {
-            currentCube = cubeLutBuffer;
-            GLESUtil.delTextureId(lutTextureId);
-            lutTextureId = 0;
-            lutSize = 0;
-            if (currentCube != null) {
-                lutTextureId = currentCube.createTextureId();
-                lutSize = currentCube.size;
+        String[] cubeAssets;
+        String cubeKey;
+        int cubeDataType;
+        CubeLutBuffer cubeBuffer;
+        int cubeMediumpBitDepth;
+        synchronized (this) {
+            cubeAssets = cubeLutAssets;
+            cubeKey = cubeLutKey;
+            cubeDataType = cubeLutDataType;
+            cubeBuffer = cubeLutBuffer;
+            cubeMediumpBitDepth = cubeLutMediumpBitDepth;
+            cubeLutBuffer = null;
+        }
+        if (TextUtils.equals(cubeKey, currentCubeKey)) {
+            if (uploadCubeKey != null) {// 上传完成前又切换回了当前的LUT
+                cancelUpload();
             }
+        } else if (cubeKey == null) {
+            cancelUpload();
+            currentCubeKey = null;
+            resetCubeLut();
+        } else {
+            if (!TextUtils.equals(cubeKey, uploadCubeKey)) {
+                cancelUpload();
+                CubeLutTextureCache.Entry entry = lutTextureCache.get(cubeKey);
+                if (entry != null) {
+                    switchCubeLut(cubeKey, entry);
+                } else if (cubeBuffer != null) {
+                    uploadCubeKey = cubeKey;
+                    uploadCubeBuffer = cubeBuffer;
+                    uploadMediumpBitDepth = cubeMediumpBitDepth;
+                    uploadTextureId = cubeBuffer.createEmptyTextureId();
+                    uploadSliceCount = 0;
+                } else if (!TextUtils.equals(cubeKey, reloadCubeKey)) {// 加载完成后纹理又被淘汰了，重新加载
+                    reloadCubeKey = cubeKey;
+                    setCubeLutAsync(cubeAssets, cubeDataType);
+                }
+            }
+            if (uploadCubeKey != null) {
+                uploadSlices();
+            }
+        }
+        updateFrameShader();
+        if (lutEntry == null) {
+            return false;
         }
-        return lutTextureId >0;
+        setOutputColorSpace(ColorSpace.VIDEO_SDR);
+        return true;
+    }
+
+    /**
+     * 上传一帧的数据，全部上传完成后加入缓存并切换
+     */
+    private void uploadSlices() {
+        int size = uploadCubeBuffer.size;
+        int sliceCount = Math.max(1, MAX_UPLOAD_BYTES_PER_FRAME / uploadCubeBuffer.getSliceByteLength());
+        sliceCount = Math.min(sliceCount, size - uploadSliceCount);
+        uploadCubeBuffer.uploadTextureSlices(uploadTextureId, uploadSliceCount, sliceCount);
+        uploadSliceCount += sliceCount;
+        if (uploadSliceCount < size) {
+            return;
+        }
+        int uploadShaperTextureId = uploadCubeBuffer.createShaperTextureId();
+        CubeLutTextureCache.Entry entry = lutTextureCache.put(uploadCubeKey, uploadCubeBuffer,
+                uploadTextureId, uploadShaperTextureId, uploadMediumpBitDepth);
+        switchCubeLut(uploadCubeKey, entry);
+        uploadCubeKey = null;
+        uploadCubeBuffer = null;
+        uploadMediumpBitDepth = 0;
+        uploadTextureId = 0;
+        uploadSliceCount = 0;
+    }
+
+    private void cancelUpload() {
+        GLESUtil.delTextureId(uploadTextureId);
+        uploadCubeKey = null;
+        uploadCubeBuffer = null;
+        uploadMediumpBitDepth = 0;
+        uploadTextureId = 0;
+        uploadSliceCount = 0;
+    }
+
+    private void switchCubeLut(String cubeKey, CubeLutTextureCache.Entry entry) {
+        currentCubeKey = cubeKey;
+        reloadCubeKey = null;
+        if (previousLutEntry == null) {// 已经有之前的说明Program还没切换过来，当前的LUT没有用过
+            previousLutEntry = lutEntry;
+        }
+        lutEntry = entry;
+    }
+
+    /**
+     * 按shaper有无和输出位深选择Shader，Shader的比较是比较代码，只在变化时切换
+     */
+    private void updateFrameShader() {
+        if (lutEntry == null) {
+            return;
+        }
+        int index = 0;
+        if (lutEntry.hasShaper()) {
+            index |= FUSE_CODE_SHAPER;
+        }
+        if (getInputBitDepth() <= lutEntry.mediumpBitDepth) {
+            index |= FUSE_CODE_MEDIUMP;
+        }
+        if (index != fuseCodeIndex) {
+            fuseCodeIndex = index;
+            setFrameShader(frameShaders[index]);
+        }
+    }
+
+    private void resetCubeLut() {
+        lutEntry = null;
+        previousLutEntry = null;
+    }
+
+    /**
+     * 正在绘制的Program有没有shaper和当前的LUT一样就用当前的LUT，之前的不再需要；
+     * 不一样说明新的Program还在后台编译，用之前的LUT
+     */
+    private CubeLutTextureCache.Entry getProgramLutEntry() {
+        String programFuseCode = getProgramFuseCode();
+        boolean programShaper = fuseCodes[FUSE_CODE_SHAPER].equals(programFuseCode) ||
+                fuseCodes[FUSE_CODE_SHAPER | FUSE_CODE_MEDIUMP].equals(programFuseCode);
+        if (programShaper == lutEntry.hasShaper()) {
+            previousLutEntry = null;
+            return lutEntry;
+        }
+        if (previousLutEntry != null && programShaper == previousLutEntry.hasShaper()) {
+            return previousLutEntry;
+        }
+        return lutEntry;
     }
 
     @Override
     protected void onDestroy() {
-        currentCube = null;
-        GLESUtil.delTextureId(lutTextureId);
-        lutTextureId = 0;
+        cancelUpload();
+        synchronized (this) {
+            if (loadHandler != null) {//已经提交的解析异步执行完再退出线程，等待结果的Future不会一直阻塞
+                loadHandler.finishSafe();
+                loadHandler = null;
+            }
+        }
+        currentCubeKey = null;
+        reloadCubeKey = null;
+        lutTextureCache.clear();
+        resetCubeLut();
     }
 
     @Override
     protected void onTransform() {
-        setOutputColorSpace(ColorSpace.VIDEO_SDR);
         clearColor();
         positionCoordinateBuffer.clear();
         textureCoordinateBuffer.clear();
@@ -133,10 +476,23 @@ public class CubeLutVideoTransform extends GLVideoTransform {
         GLES20.glUniform1i(textureUnitUniform, 0);
 
         // CubeLut纹理
+        CubeLutTextureCache.Entry entry = getProgramLutEntry();
         GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, lutTextureId);
+        GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, entry.textureId);
         GLES20.glUniform1i(cubeLutTextureUniform, 1);
-        GLES20.glUniform1f(cubeLutSizeUniform, lutSize);
+        GLES20.glUniform1f(cubeLutSizeUniform, entry.size);
+        GLES20.glUniform3fv(cubeLutDomainMinUniform, 1, entry.domainMin, 0);
+        GLES20.glUniform3fv(cubeLutDomainMaxUniform, 1, entry.domainMax, 0);
+
+        // shaper纹理
+        if (entry.hasShaper()) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, entry.shaperTextureId);
+            GLES20.glUniform1i(shaperTextureUniform, 2);
+            GLES20.glUniform1f(shaperSizeUniform, entry.shaperSize);
+            GLES20.glUniform3fv(shaperDomainMinUniform, 1, entry.shaperDomainMin, 0);
+            GLES20.glUniform3fv(shaperDomainMaxUniform, 1, entry.shaperDomainMax, 0);
+        }
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         GLES20.glDisableVertexAttribArray(positionCoordinateAttribute);
@@ -146,13 +502,170 @@ public class CubeLutVideoTransform extends GLVideoTransform {
 
     }
 
+    @Override
+    protected void onFuseTransform(GLFuseProgram fuseProgram) {
+        CubeLutTextureCache.Entry entry = getProgramLutEntry();
+        fuseProgram.bindTexture(GLES30.GL_TEXTURE_3D, entry.textureId, cubeLutTextureName);
+        GLES20.glUniform1f(fuseProgram.getUniformLocation(cubeLutSizeName), entry.size);
+        GLES20.glUniform3fv(fuseProgram.getUniformLocation(cubeLutDomainMinName), 1, entry.domainMin, 0);
+        GLES20.glUniform3fv(fuseProgram.getUniformLocation(cubeLutDomainMaxName), 1, entry.domainMax, 0);
+        if (entry.hasShaper()) {
+            fuseProgram.bindTexture(GLES20.GL_TEXTURE_2D, entry.shaperTextureId, shaperTextureName);
+            GLES20.glUniform1f(fuseProgram.getUniformLocation(shaperSizeName), entry.shaperSize);
+            GLES20.glUniform3fv(fuseProgram.getUniformLocation(shaperDomainMinName), 1, entry.shaperDomainMin, 0);
+            GLES20.glUniform3fv(fuseProgram.getUniformLocation(shaperDomainMaxName), 1, entry.shaperDomainMax, 0);
+        }
+    }
 
-    public synchronized void setCubeLut(String asset) {
-        if (asset == null) {
-            cubeLutBuffer = null;
-            return;
+
+    /**
+     * 异步设置LUT，不会阻塞调用线程
+     *
+     * @param asset cube文件的asset名字，null表示不使用LUT
+     */
+    public void setCubeLut(String asset) {
+        setCubeLut(asset, CubeLutBuffer.DataType.HALF_FLOAT);
+    }
+
+    /**
+     * 异步设置LUT，不会阻塞调用线程
+     *
+     * @param asset    cube文件的asset名字，null表示不使用LUT
+     * @param dataType 纹理的数据格式，{@link CubeLutBuffer.DataType#RGB10_A2}只适合输出范围在0到1的LUT
+     */
+    public void setCubeLut(String asset, @CubeLutBuffer.DataType int dataType) {
+        setCubeLutAsync(asset, dataType);
+    }
+
+    /**
+     * 设置多个依次执行的LUT，合成一个LUT后只需要渲染一次
+     *
+     * @param assets 按执行顺序排列的cube文件asset名字，null或者空表示不使用LUT
+     */
+    public void setCubeLuts(String... assets) {
+        setCubeLutAsync(assets, CubeLutBuffer.DataType.HALF_FLOAT);
+    }
+
+    /**
+     * 在后台线程解析LUT，解析完成后在GL线程分批上传纹理，上传完成前继续使用之前的LUT
+     *
+     * @param asset    cube文件的asset名字，null表示不使用LUT
+     * @param dataType 纹理的数据格式
+     * @return 解析完成返回true，解析失败或者已经有新的LUT请求返回false
+     */
+    public Future<Boolean> setCubeLutAsync(String asset, @CubeLutBuffer.DataType int dataType) {
+        return setCubeLutAsync(asset == null ? null : new String[]{asset}, dataType);
+    }
+
+    /**
+     * 在后台线程解析LUT，多个LUT会合成一个，完成后在GL线程分批上传纹理，上传完成前继续使用之前的LUT
+     *
+     * @param assets   按执行顺序排列的cube文件asset名字，null或者空表示不使用LUT
+     * @param dataType 纹理的数据格式
+     * @return 解析完成返回true，解析失败或者已经有新的LUT请求返回false
+     */
+    public Future<Boolean> setCubeLutAsync(String[] assets, @CubeLutBuffer.DataType int dataType) {
+        String[] cubeAssets = assets == null || assets.length == 0 ? null : assets.clone();
+        int requestId;
+        int maxSize;
+        MessageHandler handler;
+        synchronized (this) {
+            requestId = ++cubeLutRequestCount;
+            maxSize = maxCubeLutSize;
+            if (loadHandler == null || loadHandler.isFinish()) {
+                loadHandler = MessageHandler.obtain(LOAD_THREAD_NAME);
+            }
+            handler = loadHandler;
+        }
+        return handler.submit(() -> {
+            if (!isLatestRequest(requestId)) {//已经有新的请求了不需要再解析
+                return false;
+            }
+            CubeLutBuffer cubeBuffer = null;
+            int mediumpBitDepth = 0;
+            int cubeMaxSize = maxSize > 0 ? maxSize : CubeLutResampler.getMaxSize();
+            String cubeKey = cubeAssets == null ? null : createCubeKey(cubeAssets, dataType, cubeMaxSize);
+            if (cubeKey != null && !lutTextureCache.contains(cubeKey)) {
+                try {
+                    cubeBuffer = loadCubeLut(cubeAssets, dataType, cubeMaxSize);
+                } catch (RuntimeException e) {//加载失败继续使用之前的LUT
+                    LogUtil.e(TAG, "load " + Arrays.toString(cubeAssets) + " fail " + e.getMessage());
+                    return false;
+                }
+                mediumpBitDepth = PrecisionErrorReport.getMediumpBitDepth(cubeBuffer);
+            }
+            synchronized (CubeLutVideoTransform.this) {
+                if (requestId != cubeLutRequestCount) {
+                    return false;
+                }
+                cubeLutAssets = cubeAssets;
+                cubeLutKey = cubeKey;
+                cubeLutDataType = dataType;
+                cubeLutBuffer = cubeBuffer;
+                cubeLutMediumpBitDepth = mediumpBitDepth;
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 一个LUT直接加载，多个LUT用float精度加载后再合成，合成的LUT大小取最大的那个
+     * LUT的大小不超过maxSize，超过的用{@link CubeLutResampler}重采样
+     */
+    private static CubeLutBuffer loadCubeLut(String[] assets, @CubeLutBuffer.DataType int dataType, int maxSize) {
+        if (assets.length == 1) {
+            return CubeLutBuffer.loadAsset(assets[0], true, true, dataType, maxSize);
+        }
+        List<CubeLutBuffer> cubeLutList = new ArrayList<>();
+        int size = 0;
+        for (String asset : assets) {
+            CubeLutBuffer cubeLutBuffer = CubeLutBuffer.loadAsset(asset, true, true, CubeLutBuffer.DataType.FLOAT);
+            size = Math.max(size, cubeLutBuffer.size);
+            cubeLutList.add(cubeLutBuffer);
+        }
+        return CubeLutComposer.compose(cubeLutList, Math.min(size, maxSize), dataType);
+    }
+
+    /**
+     * 设置LUT的最大大小，大于它的LUT加载时会重采样，只对之后设置的LUT生效
+     * 默认根据设备性能等级用{@link CubeLutResampler#getMaxSize()}，中端机上65阶的LUT会重采样成33阶
+     *
+     * @param maxCubeLutSize 0表示根据设备性能等级选择，{@link Integer#MAX_VALUE}表示不重采样
+     */
+    public synchronized void setMaxCubeLutSize(int maxCubeLutSize) {
+        if (maxCubeLutSize != 0 && maxCubeLutSize < 2) {
+            throw new IllegalArgumentException("maxCubeLutSize " + maxCubeLutSize + " less than 2");
+        }
+        this.maxCubeLutSize = maxCubeLutSize;
+    }
+
+    public synchronized int getMaxCubeLutSize() {
+        return maxCubeLutSize;
+    }
+
+    private synchronized boolean isLatestRequest(int requestId) {
+        return requestId == cubeLutRequestCount;
+    }
+
+    /**
+     * 纹理缓存，可以修改显存上限和查看命中次数
+     *
+     * @return
+     */
+    public CubeLutTextureCache getLutTextureCache() {
+        return lutTextureCache;
+    }
+
+    private static String createCubeKey(String[] assets, @CubeLutBuffer.DataType int dataType, int maxSize) {
+        StringBuilder keyBuilder = new StringBuilder();
+        for (String asset : assets) {
+            if (keyBuilder.length() > 0) {
+                keyBuilder.append(CUBE_KEY_ASSET_SEPARATOR);
+            }
+            keyBuilder.append(asset);
         }
-        cubeLutBuffer = CubeLutBuffer.loadAsset(asset);
+        return keyBuilder.append(CUBE_KEY_SEPARATOR).append(dataType)
+                .append(CUBE_KEY_SEPARATOR).append(maxSize).toString();
     }
 
 
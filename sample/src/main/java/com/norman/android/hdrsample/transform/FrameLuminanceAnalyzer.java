@@ -0,0 +1,506 @@
+package com.norman.android.hdrsample.transform;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.norman.android.hdrsample.opengl.GLProgramCache;
+import com.norman.android.hdrsample.opengl.GLProgramPrecompiler;
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.math.ColorParams;
+import com.norman.android.hdrsample.transform.math.TransferFunctions;
+import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.LogUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * 在GPU上统计每帧的最大亮度和平均亮度，用来代替静态元数据里的峰值亮度做色调映射，暗场景就不会按亮场景压缩
+ * <p>
+ * 1. 第一次用texelFetch读取视频的每个像素，每4x4个像素输出一个，计算maxRGB的最大值和平均值，小的高光也不会漏掉
+ * 2. 再每次缩小4倍直到1x1，texelFetch取4x4个像素，R通道取最大值，G通道取平均值，边缘不够4x4的只取范围内的像素
+ * 3. 1x1的结果用glReadPixels读到PBO，插入Fence，后面的帧Fence完成后再读取，不会阻塞渲染线程，结果会延迟1到2帧
+ * 4. 读取到的结果做指数平滑，亮度变亮时跟得快，变暗时跟得慢，避免画面闪烁
+ * <p>
+ * 亮度都转成PQ编码保存，maxRGB的PQ编码最大值就是maxRGB最大值的PQ编码，平均值是感知上的平均亮度
+ * 纹理用RGB10_A2格式，OpenGL ES 3.0就支持渲染和读取，10位的PQ编码精度和HDR10视频一样
+ * Program从{@link GLProgramCache}获取，还在后台编译时跳过统计，沿用之前的结果
+ * 所有方法都要在GL线程调用
+ */
+class FrameLuminanceAnalyzer {
+
+    private static final String TAG = "FrameLuminanceAnalyzer";
+
+    /**
+     * 每次缩小的倍数，和Shader里的4x4个像素对应，4K视频要6次缩小到1x1
+     */
+    private static final int REDUCE_FACTOR = 4;
+
+    /**
+     * PBO的数量，最多同时有这么多帧在等待读取，都没完成就跳过这一帧的统计
+     */
+    private static final int READBACK_BUFFER_COUNT = 3;
+
+    /**
+     * RGB10_A2读取出来是一个int
+     */
+    private static final int READBACK_BYTES = 4;
+
+    /**
+     * 亮度变亮时的平滑系数，PQ编码下每帧向目标靠近的比例
+     */
+    private static final float BRIGHTEN_SMOOTH_FACTOR = 0.3f;
+
+    /**
+     * 亮度变暗时的平滑系数，30帧的视频大概1秒适应
+     */
+    private static final float DARKEN_SMOOTH_FACTOR = 0.05f;
+
+    private static final int VERTEX_LENGTH = 2;
+
+    private static final String VERTEX_SHADER = "#version 300 es\n" +
+            "in vec4 position;\n" +
+            "void main() {\n" +
+            "    gl_Position = position;\n" +
+            "}";
+
+    /**
+     * 转成PQ编码的maxRGB，PQ视频不需要转换
+     * HLG视频用场景光的maxRGB乘上系统伽马1.2近似显示光，峰值是1000
+     */
+    private static final String ANALYZE_FRAGMENT_SHADER = "precision highp float;\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform ivec2 inputSize;\n" +
+            "out vec4 outColor;\n" +
+            "\n" +
+            "#define REDUCE_FACTOR " + REDUCE_FACTOR + "\n" +
+            "#define COLOR_SPACE_BT2020_HLG " + ColorSpace.VIDEO_BT2020_HLG + "\n" +
+            "\n" +
+            "float hlgSceneEOTF(float x) {\n" +
+            "    const float a = 0.17883277;\n" +
+            "    const float b = 0.28466892;\n" +
+            "    const float c = 0.55991073;\n" +
+            "    return x <= 0.5 ? x * x / 3.0 : (exp((x - c) / a) + b) / 12.0;\n" +
+            "}\n" +
+            "\n" +
+            "float pqDisplayOETF(float x) {\n" +
+            "    const float m1 = 0.1593017578125;\n" +
+            "    const float m2 = 78.84375;\n" +
+            "    const float c1 = 0.8359375;\n" +
+            "    const float c2 = 18.8515625;\n" +
+            "    const float c3 = 18.6875;\n" +
+            "    float ym = pow(max(x, 0.0), m1);\n" +
+            "    return pow((c1 + c2 * ym) / (1.0 + c3 * ym), m2);\n" +
+            "}\n" +
+            "\n" +
+            "float toPQ(vec3 rgb) {\n" +
+            "    float maxRGB = clamp(max(rgb.r, max(rgb.g, rgb.b)), 0.0, 1.0);\n" +
+            "#if COLOR_SPACE == COLOR_SPACE_BT2020_HLG\n" +
+            "    return pqDisplayOETF(pow(hlgSceneEOTF(maxRGB), 1.2) * " + ColorParams.HLG_MAX_LUMINANCE + " / " + ColorParams.PQ_MAX_LUMINANCE + ");\n" +
+            "#else\n" +
+            "    return maxRGB;\n" +
+            "#endif\n" +
+            "}\n" +
+            "\n" +
+            "void main() {\n" +
+            "    ivec2 origin = ivec2(gl_FragCoord.xy) * REDUCE_FACTOR;\n" +
+            "    ivec2 end = min(origin + REDUCE_FACTOR, inputSize);\n" +
+            "    float maxPQ = 0.0;\n" +
+            "    float sumPQ = 0.0;\n" +
+            "    for (int y = origin.y; y < end.y; y++) {\n" +
+            "        for (int x = origin.x; x < end.x; x++) {\n" +
+            "            float pq = toPQ(texelFetch(inputImageTexture, ivec2(x, y), 0).rgb);\n" +
+            "            maxPQ = max(maxPQ, pq);\n" +
+            "            sumPQ += pq;\n" +
+            "        }\n" +
+            "    }\n" +
+            "    outColor = vec4(maxPQ, sumPQ / float((end.x - origin.x) * (end.y - origin.y)), 0.0, 1.0);\n" +
+            "}";
+
+    private static final String REDUCE_FRAGMENT_SHADER = "#version 300 es\n" +
+            "precision highp float;\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform ivec2 inputSize;\n" +
+            "out vec4 outColor;\n" +
+            "\n" +
+            "#define REDUCE_FACTOR " + REDUCE_FACTOR + "\n" +
+            "\n" +
+            "void main() {\n" +
+            "    ivec2 origin = ivec2(gl_FragCoord.xy) * REDUCE_FACTOR;\n" +
+            "    ivec2 end = min(origin + REDUCE_FACTOR, inputSize);\n" +
+            "    float maxPQ = 0.0;\n" +
+            "    float sumPQ = 0.0;\n" +
+            "    for (int y = origin.y; y < end.y; y++) {\n" +
+            "        for (int x = origin.x; x < end.x; x++) {\n" +
+            "            vec2 value = texelFetch(inputImageTexture, ivec2(x, y), 0).rg;\n" +
+            "            maxPQ = max(maxPQ, value.r);\n" +
+            "            sumPQ += value.g;\n" +
+            "        }\n" +
+            "    }\n" +
+            "    outColor = vec4(maxPQ, sumPQ / float((end.x - origin.x) * (end.y - origin.y)), 0.0, 1.0);\n" +
+            "}";
+
+    private final FloatBuffer positionCoordinateBuffer;
+
+    private final int[] readbackBufferIds = new int[READBACK_BUFFER_COUNT];
+
+    private final long[] readbackFences = new long[READBACK_BUFFER_COUNT];
+
+    /**
+     * 每一级缩小的纹理，最后一个是1x1，视频大小变化时重新创建
+     */
+    private int[] levelTextureIds;
+
+    private int[] levelWidths;
+
+    private int[] levelHeights;
+
+    private int analyzeWidth;
+
+    private int analyzeHeight;
+
+    private int frameBufferId;
+
+    private GLProgramCache.Program analyzeProgram;
+    private int analyzePositionAttribute;
+    private int analyzeTextureUniform;
+    private int analyzeInputSizeUniform;
+
+    private GLProgramCache.Program reduceProgram;
+    private int reducePositionAttribute;
+    private int reduceTextureUniform;
+    private int reduceInputSizeUniform;
+
+    private @ColorSpace int analyzeColorSpace = ColorSpace.VIDEO_SDR;
+
+    /**
+     * 下一帧写入的PBO
+     */
+    private int writeIndex;
+
+    /**
+     * 最早提交还没读取的PBO
+     */
+    private int readIndex;
+
+    private int pendingCount;
+
+    private boolean hasResult;
+
+    private float smoothMaxPQ;
+
+    private float smoothAveragePQ;
+
+    private boolean analyzeFail;
+
+    FrameLuminanceAnalyzer() {
+        positionCoordinateBuffer = GLESUtil.createPositionFlatBuffer();
+    }
+
+    /**
+     * 提交后台编译统计用的Shader，只支持PQ和HLG
+     *
+     * @param colorSpace
+     * @param precompiler
+     */
+    static void precompile(@ColorSpace int colorSpace, GLProgramPrecompiler precompiler) {
+        if (colorSpace != ColorSpace.VIDEO_BT2020_PQ && colorSpace != ColorSpace.VIDEO_BT2020_HLG) {
+            return;
+        }
+        precompiler.precompile(VERTEX_SHADER, createAnalyzeShader(colorSpace));
+        precompiler.precompile(VERTEX_SHADER, REDUCE_FRAGMENT_SHADER);
+    }
+
+    /**
+     * 色域用宏区分，不同色域是不同的Program
+     */
+    private static String createAnalyzeShader(@ColorSpace int colorSpace) {
+        return "#version 300 es\n" +
+                "#define COLOR_SPACE " + colorSpace + "\n" +
+                ANALYZE_FRAGMENT_SHADER;
+    }
+
+    /**
+     * 先读取已经完成的统计结果，再提交这一帧的统计
+     *
+     * @param textureId  视频纹理
+     * @param width      视频纹理的宽
+     * @param height     视频纹理的高
+     * @param colorSpace 视频色域，只支持PQ和HLG
+     */
+    void analyze(int textureId, int width, int height, @ColorSpace int colorSpace) {
+        if (colorSpace != ColorSpace.VIDEO_BT2020_PQ && colorSpace != ColorSpace.VIDEO_BT2020_HLG) {
+            return;
+        }
+        if (analyzeColorSpace != colorSpace) {
+            GLProgramCache programCache = GLProgramCache.getCurrent();
+            String analyzeShader = createAnalyzeShader(colorSpace);
+            // 两个Program都准备好再切换，还在后台编译时这一帧不统计
+            boolean analyzePending = programCache.precompile(VERTEX_SHADER, analyzeShader);
+            boolean reducePending = reduceProgram == null &&
+                    programCache.precompile(VERTEX_SHADER, REDUCE_FRAGMENT_SHADER);
+            if (analyzePending || reducePending) {
+                return;
+            }
+            analyzeColorSpace = colorSpace;
+            releaseProgram(analyzeProgram);
+            analyzeProgram = programCache.obtain(VERTEX_SHADER, analyzeShader);
+            analyzePositionAttribute = analyzeProgram.getAttribLocation("position");
+            analyzeTextureUniform = analyzeProgram.getUniformLocation("inputImageTexture");
+            analyzeInputSizeUniform = analyzeProgram.getUniformLocation("inputSize");
+            if (reduceProgram == null) {
+                reduceProgram = programCache.obtain(VERTEX_SHADER, REDUCE_FRAGMENT_SHADER);
+                reducePositionAttribute = reduceProgram.getAttribLocation("position");
+                reduceTextureUniform = reduceProgram.getUniformLocation("inputImageTexture");
+                reduceInputSizeUniform = reduceProgram.getUniformLocation("inputSize");
+            }
+            reset();
+            analyzeFail = false;
+        }
+        if (analyzeFail) {
+            return;
+        }
+        readResults();
+        if (pendingCount >= READBACK_BUFFER_COUNT) {
+            return;
+        }
+        if (!prepare(width, height)) {
+            LogUtil.w(TAG, "prepare analyze fail");
+            analyzeFail = true;
+            return;
+        }
+        int[] oldFrameBuffer = new int[1];
+        int[] oldViewport = new int[4];
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, oldFrameBuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, oldViewport, 0);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        int inputTextureId = textureId;
+        int inputWidth = width;
+        int inputHeight = height;
+        for (int i = 0; i < levelTextureIds.length; i++) {
+            boolean analyzeLevel = i == 0;
+            int programId = analyzeLevel ? analyzeProgram.programId : reduceProgram.programId;
+            int positionCoordinateAttribute = analyzeLevel ? analyzePositionAttribute : reducePositionAttribute;
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, levelTextureIds[i], 0);
+            GLES20.glViewport(0, 0, levelWidths[i], levelHeights[i]);
+            GLES20.glUseProgram(programId);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, inputTextureId);
+            GLES20.glUniform1i(analyzeLevel ? analyzeTextureUniform : reduceTextureUniform, 0);
+            GLES20.glUniform2i(analyzeLevel ? analyzeInputSizeUniform : reduceInputSizeUniform, inputWidth, inputHeight);
+            positionCoordinateBuffer.clear();
+            GLES20.glEnableVertexAttribArray(positionCoordinateAttribute);
+            GLES20.glVertexAttribPointer(positionCoordinateAttribute, VERTEX_LENGTH, GLES20.GL_FLOAT, false, 0, positionCoordinateBuffer);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            GLES20.glDisableVertexAttribArray(positionCoordinateAttribute);
+            inputTextureId = levelTextureIds[i];
+            inputWidth = levelWidths[i];
+            inputHeight = levelHeights[i];
+        }
+        // 最后一级还绑定在frameBuffer上，读取到PBO，不会等待GPU完成
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, readbackBufferIds[writeIndex]);
+        GLES30.glReadPixels(0, 0, 1, 1, GLES20.GL_RGBA, GLES30.GL_UNSIGNED_INT_2_10_10_10_REV, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        readbackFences[writeIndex] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        writeIndex = (writeIndex + 1) % READBACK_BUFFER_COUNT;
+        pendingCount++;
+
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, 0, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, oldFrameBuffer[0]);
+        GLES20.glViewport(oldViewport[0], oldViewport[1], oldViewport[2], oldViewport[3]);
+        GLESUtil.checkGLError();
+    }
+
+    /**
+     * 按提交顺序读取GPU已经完成的结果，没完成的留到下一帧，超时传0不会阻塞
+     */
+    private void readResults() {
+        while (pendingCount > 0) {
+            long fence = readbackFences[readIndex];
+            int waitResult = GLES30.glClientWaitSync(fence, 0, 0);
+            if (waitResult != GLES30.GL_ALREADY_SIGNALED && waitResult != GLES30.GL_CONDITION_SATISFIED) {
+                return;
+            }
+            GLES30.glDeleteSync(fence);
+            readbackFences[readIndex] = 0;
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, readbackBufferIds[readIndex]);
+            ByteBuffer byteBuffer = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                    0, READBACK_BYTES, GLES30.GL_MAP_READ_BIT);
+            if (byteBuffer != null) {
+                int value = byteBuffer.order(ByteOrder.nativeOrder()).getInt(0);
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                // GL_UNSIGNED_INT_2_10_10_10_REV的R在低10位，G在接下来的10位
+                update((value & 0x3FF) / 1023.0f, ((value >> 10) & 0x3FF) / 1023.0f);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            readIndex = (readIndex + 1) % READBACK_BUFFER_COUNT;
+            pendingCount--;
+        }
+    }
+
+    private void update(float maxPQ, float averagePQ) {
+        if (!hasResult) {
+            hasResult = true;
+            smoothMaxPQ = maxPQ;
+            smoothAveragePQ = averagePQ;
+            return;
+        }
+        smoothMaxPQ = smooth(smoothMaxPQ, maxPQ);
+        smoothAveragePQ = smooth(smoothAveragePQ, averagePQ);
+    }
+
+    private static float smooth(float current, float target) {
+        float factor = target > current ? BRIGHTEN_SMOOTH_FACTOR : DARKEN_SMOOTH_FACTOR;
+        return current + (target - current) * factor;
+    }
+
+    private boolean prepare(int width, int height) {
+        if (analyzeProgram.programId <= 0 || reduceProgram.programId <= 0) {
+            return false;
+        }
+        if (frameBufferId == 0) {
+            frameBufferId = GLESUtil.createFrameBufferId();
+        }
+        if (readbackBufferIds[0] == 0) {
+            GLES20.glGenBuffers(READBACK_BUFFER_COUNT, readbackBufferIds, 0);
+            for (int readbackBufferId : readbackBufferIds) {
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, readbackBufferId);
+                GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, READBACK_BYTES, null, GLES30.GL_STREAM_READ);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        }
+        if (levelTextureIds != null && analyzeWidth == width && analyzeHeight == height) {
+            return true;
+        }
+        deleteLevelTextures();
+        analyzeWidth = width;
+        analyzeHeight = height;
+        int levelCount = 0;
+        for (int levelWidth = width, levelHeight = height; levelWidth > 1 || levelHeight > 1; levelCount++) {
+            levelWidth = reduceSize(levelWidth);
+            levelHeight = reduceSize(levelHeight);
+        }
+        levelCount = Math.max(1, levelCount);
+        levelTextureIds = new int[levelCount];
+        levelWidths = new int[levelCount];
+        levelHeights = new int[levelCount];
+        int levelWidth = width;
+        int levelHeight = height;
+        for (int i = 0; i < levelCount; i++) {
+            levelWidth = reduceSize(levelWidth);
+            levelHeight = reduceSize(levelHeight);
+            levelWidths[i] = levelWidth;
+            levelHeights[i] = levelHeight;
+            levelTextureIds[i] = GLESUtil.createNearestTextureId();
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, levelTextureIds[i]);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0,
+                    GLES30.GL_RGB10_A2,
+                    levelWidth, levelHeight, 0,
+                    GLES20.GL_RGBA,
+                    GLES30.GL_UNSIGNED_INT_2_10_10_10_REV,
+                    null);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        // 创建的时候检查一次能不能渲染到RGB10_A2，需要还原之前的frameBuffer
+        int[] oldFrameBuffer = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, oldFrameBuffer, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, levelTextureIds[0], 0);
+        boolean complete = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER) == GLES20.GL_FRAMEBUFFER_COMPLETE;
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, 0, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, oldFrameBuffer[0]);
+        return complete;
+    }
+
+    /**
+     * 缩小4倍，不够4个像素的边缘也要输出一个
+     */
+    private static int reduceSize(int size) {
+        return Math.max(1, (size + REDUCE_FACTOR - 1) / REDUCE_FACTOR);
+    }
+
+    private void deleteLevelTextures() {
+        if (levelTextureIds != null) {
+            for (int levelTextureId : levelTextureIds) {
+                GLESUtil.delTextureId(levelTextureId);
+            }
+        }
+        levelTextureIds = null;
+        levelWidths = null;
+        levelHeights = null;
+        analyzeWidth = 0;
+        analyzeHeight = 0;
+    }
+
+    /**
+     * @return 是否已经有统计结果
+     */
+    boolean hasResult() {
+        return hasResult;
+    }
+
+    /**
+     * @return 平滑后的最大亮度，单位nit
+     */
+    float getMaxLuminance() {
+        return TransferFunctions.pqDisplayEOTF(smoothMaxPQ) * ColorParams.PQ_MAX_LUMINANCE;
+    }
+
+    /**
+     * @return 平滑后的平均亮度，单位nit
+     */
+    float getAverageLuminance() {
+        return TransferFunctions.pqDisplayEOTF(smoothAveragePQ) * ColorParams.PQ_MAX_LUMINANCE;
+    }
+
+    /**
+     * 丢弃还没读取的结果和平滑状态，切换视频或者色域后重新统计
+     */
+    void reset() {
+        for (int i = 0; i < READBACK_BUFFER_COUNT; i++) {
+            if (readbackFences[i] != 0) {
+                GLES30.glDeleteSync(readbackFences[i]);
+                readbackFences[i] = 0;
+            }
+        }
+        writeIndex = 0;
+        readIndex = 0;
+        pendingCount = 0;
+        hasResult = false;
+        smoothMaxPQ = 0;
+        smoothAveragePQ = 0;
+    }
+
+    private static void releaseProgram(GLProgramCache.Program program) {
+        if (program != null) {
+            program.release();
+        }
+    }
+
+    void release() {
+        reset();
+        releaseProgram(analyzeProgram);
+        releaseProgram(reduceProgram);
+        GLESUtil.deleteFrameBufferId(frameBufferId);
+        deleteLevelTextures();
+        if (readbackBufferIds[0] != 0) {
+            GLES20.glDeleteBuffers(READBACK_BUFFER_COUNT, readbackBufferIds, 0);
+        }
+        for (int i = 0; i < READBACK_BUFFER_COUNT; i++) {
+            readbackBufferIds[i] = 0;
+        }
+        analyzeProgram = null;
+        reduceProgram = null;
+        frameBufferId = 0;
+        analyzeColorSpace = ColorSpace.VIDEO_SDR;
+        analyzeFail = false;
+    }
+}
@@ -0,0 +1,188 @@
+package com.norman.android.hdrsample.transform;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.norman.android.hdrsample.opengl.GLProgramCache;
+import com.norman.android.hdrsample.opengl.GLProgramPrecompiler;
+import com.norman.android.hdrsample.opengl.GLUniformBlock;
+import com.norman.android.hdrsample.transform.shader.HDRToSDRShader;
+import com.norman.android.hdrsample.transform.shader.MetaDataParams;
+import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.LogUtil;
+
+import java.nio.FloatBuffer;
+
+/**
+ * 把HDR转SDR的整个Shader渲染到3D LUT，每一层深度渲染一次，输入颜色就是LUT的网格坐标
+ * 之后每帧只需要一次3D纹理采样，不需要每个像素都计算EOTF、色调映射、色域映射和OETF
+ * <p>
+ * 输出是SDR，颜色范围在0到1，纹理用RGB10_A2格式，OpenGL ES 3.0就支持渲染到这个格式
+ * Program从{@link GLProgramCache}获取，切换色调映射、色域映射时不在渲染线程编译
+ * 所有方法都要在GL线程调用
+ */
+class HDRToSDRLutBaker {
+
+    private static final String TAG = "HDRToSDRLutBaker";
+
+    private static final int VERTEX_LENGTH = 2;
+
+    private static final String VERTEX_SHADER = "#version 300 es\n" +
+            "in vec4 position;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "}";
+
+    private static final int UNIFORM_BLOCK_BINDING = 0;
+
+    private final FloatBuffer positionCoordinateBuffer;
+
+    private HDRToSDRShader bakeShader;
+
+    private GLProgramCache.Program program;
+
+    private int frameBufferId;
+
+    private int positionCoordinateAttribute;
+    private int lutSizeUniform;
+    private int lutSliceUniform;
+
+    private GLUniformBlock uniformBlock;
+
+    HDRToSDRLutBaker() {
+        positionCoordinateBuffer = GLESUtil.createPositionFlatBuffer();
+    }
+
+    /**
+     * 提交后台编译生成LUT的Shader
+     *
+     * @param bakeShader  bakeLut为true的HDRToSDRShader
+     * @param precompiler
+     */
+    static void precompile(HDRToSDRShader bakeShader, GLProgramPrecompiler precompiler) {
+        precompiler.precompile(VERTEX_SHADER, bakeShader.getCode());
+    }
+
+    /**
+     * 缓存里没有的Program交给后台编译
+     *
+     * @param bakeShader bakeLut为true的HDRToSDRShader
+     * @return true表示还在后台编译，这时调用{@link #bake}会在渲染线程编译
+     */
+    boolean isPending(HDRToSDRShader bakeShader) {
+        if (bakeShader.equals(this.bakeShader)) {
+            return false;
+        }
+        GLProgramCache programCache = GLProgramCache.getCurrent();
+        return programCache != null && programCache.precompile(VERTEX_SHADER, bakeShader.getCode());
+    }
+
+    /**
+     * 生成3D LUT
+     *
+     * @param bakeShader              bakeLut为true的HDRToSDRShader
+     * @param lutSize                 LUT的大小
+     * @param maxDisplayLuminance     屏幕最大亮度
+     * @param currentDisplayLuminance 屏幕当前亮度
+     * @param hdrPeakLuminance        视频峰值亮度
+     * @return 纹理id，失败返回0
+     */
+    int bake(HDRToSDRShader bakeShader,
+             int lutSize,
+             float maxDisplayLuminance,
+             float currentDisplayLuminance,
+             float hdrPeakLuminance) {
+        if (!bakeShader.equals(this.bakeShader)) {
+            this.bakeShader = bakeShader;
+            releaseProgram();
+            program = GLProgramCache.getCurrent().obtain(VERTEX_SHADER, bakeShader.getCode());
+            positionCoordinateAttribute = program.getAttribLocation("position");
+            lutSizeUniform = program.getUniformLocation(HDRToSDRShader.BAKE_LUT_SIZE);
+            lutSliceUniform = program.getUniformLocation(HDRToSDRShader.BAKE_LUT_SLICE);
+            if (uniformBlock != null) {
+                uniformBlock.release();
+            }
+            uniformBlock = new GLUniformBlock(HDRToSDRShader.UNIFORM_BLOCK, MetaDataParams.uniformNames, bakeShader.getDerivedParams());
+            uniformBlock.bindProgram(program.programId, UNIFORM_BLOCK_BINDING);
+        }
+        if (program.programId <= 0) {
+            return 0;
+        }
+        if (frameBufferId == 0) {
+            frameBufferId = GLESUtil.createFrameBufferId();
+        }
+        // 在渲染视频的过程中调用，结束后要还原之前的frameBuffer和viewport
+        int[] oldFrameBuffer = new int[1];
+        int[] oldViewport = new int[4];
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, oldFrameBuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, oldViewport, 0);
+
+        int textureId = GLESUtil.create3DTextureId();
+        GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, textureId);
+        GLES30.glTexImage3D(GLES30.GL_TEXTURE_3D,
+                0, GLES30.GL_RGB10_A2,
+                lutSize,//宽
+                lutSize,//高
+                lutSize,//深度
+                0,
+                GLES30.GL_RGBA,
+                GLES30.GL_UNSIGNED_INT_2_10_10_10_REV,
+                null);
+        GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, 0);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId);
+        GLES20.glViewport(0, 0, lutSize, lutSize);
+        GLES20.glUseProgram(program.programId);
+        positionCoordinateBuffer.clear();
+        GLES20.glEnableVertexAttribArray(positionCoordinateAttribute);
+        GLES20.glVertexAttribPointer(positionCoordinateAttribute, VERTEX_LENGTH, GLES20.GL_FLOAT, false, 0, positionCoordinateBuffer);
+        GLES20.glUniform1f(lutSizeUniform, lutSize);
+        uniformBlock.set(MetaDataParams.MAX_DISPLAY_LUMINANCE, maxDisplayLuminance);
+        uniformBlock.set(MetaDataParams.CURRENT_DISPLAY_LUMINANCE, currentDisplayLuminance);
+        uniformBlock.set(MetaDataParams.HDR_PEAK_LUMINANCE, hdrPeakLuminance);
+        uniformBlock.bind(UNIFORM_BLOCK_BINDING);
+        boolean success = true;
+        for (int slice = 0; slice < lutSize; slice++) {
+            GLES30.glFramebufferTextureLayer(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, textureId, 0, slice);
+            if (slice == 0 &&
+                    GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER) != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                success = false;
+                break;
+            }
+            GLES20.glUniform1f(lutSliceUniform, slice);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        }
+        GLES30.glFramebufferTextureLayer(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, 0, 0, 0);
+        GLES20.glDisableVertexAttribArray(positionCoordinateAttribute);
+        GLES20.glUseProgram(0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, oldFrameBuffer[0]);
+        GLES20.glViewport(oldViewport[0], oldViewport[1], oldViewport[2], oldViewport[3]);
+        GLESUtil.checkGLError();
+        if (!success) {
+            LogUtil.w(TAG, "frameBuffer incomplete, bake lut fail");
+            GLESUtil.delTextureId(textureId);
+            return 0;
+        }
+        return textureId;
+    }
+
+    private void releaseProgram() {
+        if (program != null) {
+            program.release();
+            program = null;
+        }
+    }
+
+    void release() {
+        releaseProgram();
+        GLESUtil.deleteFrameBufferId(frameBufferId);
+        frameBufferId = 0;
+        bakeShader = null;
+        if (uniformBlock != null) {
+            uniformBlock.release();
+            uniformBlock = null;
+        }
+    }
+}
@@ -1,41 +1,112 @@
 package com.norman.android.hdrsample.transform;
 
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 
 import androidx.annotation.NonNull;
 
+import com.norman.android.hdrsample.opengl.GLProgramPrecompiler;
+import com.norman.android.hdrsample.opengl.GLUniformBlock;
+import com.norman.android.hdrsample.player.GLFuseProgram;
 import com.norman.android.hdrsample.player.color.ColorSpace;
 import com.norman.android.hdrsample.player.GLVideoTransform;
+import com.norman.android.hdrsample.player.extract.HDR10PlusMetadata;
 import com.norman.android.hdrsample.transform.shader.HDRToSDRShader;
 import com.norman.android.hdrsample.transform.shader.MetaDataParams;
 import com.norman.android.hdrsample.transform.shader.chromacorrect.ChromaCorrection;
 import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF;
 import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneCurve;
 import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
-import com.norman.android.hdrsample.util.DisplayUtil;
+import com.norman.android.hdrsample.util.DisplayState;
+import com.norman.android.hdrsample.util.DisplayStateService;
 import com.norman.android.hdrsample.util.GLESUtil;
 
 import java.nio.FloatBuffer;
-
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HDR转SDR，支持两种方式
+ * 1. 每个像素都执行{@link HDRToSDRShader}
+ * 2. 开启{@link #setBakeLut(boolean)}后，先把HDRToSDRShader渲染到3D LUT，每帧只需要一次3D纹理采样，适合性能差的GPU
+ * 参数或者亮度变化后才会重新生成LUT，生成过的LUT放在{@link CubeLutTextureCache}里
+ * 场景自适应和HDR10+的峰值亮度每帧都在变，不生成LUT，还是逐像素计算，峰值亮度通过Uniform Block传进去
+ * <p>
+ * 开启{@link #setSceneAdaptive(boolean)}后，用{@link FrameLuminanceAnalyzer}统计每帧的亮度，代替静态元数据里的峰值亮度
+ * HDR10+视频直接用码流里每帧的动态元数据
+ * <p>
+ * 开启{@link #setToneCurve(boolean)}后，色调映射的曲线在参数变化时算好放到{@link ToneCurveTexture}，每个像素只做一次纹理采样
+ * <p>
+ * 可以和相邻的Transform合并成一次渲染，场景自适应时只能作为合并的第一个，要先统计输入纹理的亮度
+ */
 public class HDRToSDRVideoTransform extends GLVideoTransform {
 
     public static final int TONE_DISPLAY_REFERENCE = 1;
 
     public static final int TONE_SCENE_REFERENCE = 2;
 
+    /**
+     * 默认生成的LUT大小，和常见的Cube文件一样
+     */
+    public static final int DEFAULT_BAKE_LUT_SIZE = 33;
+
     private static final int VERTEX_LENGTH = 2;
 
-    private static final String VERTEX_SHADER = "precision mediump float;\n" +
-            "attribute vec4 position;\n" +
-            "attribute vec4 inputTextureCoordinate;\n" +
-            "\n" +
-            "varying vec2 textureCoordinate;\n" +
-            "\n" +
-            "void main()\n" +
-            "{\n" +
-            "    gl_Position = position;\n" +
-            "    textureCoordinate = (inputTextureCoordinate).xy;\n" +
-            "}";
+    /**
+     * 生成LUT时峰值亮度的量化步长，变化小于这个值不重新生成
+     */
+    private static final int BAKE_PEAK_LUMINANCE_STEP = 50;
+
+    /**
+     * 生成LUT时屏幕亮度的量化步长
+     */
+    private static final int BAKE_DISPLAY_LUMINANCE_STEP = 10;
+
+    /**
+     * 生成的LUT最多占用的显存，33阶RGB10_A2的LUT大概144K
+     */
+    private static final int BAKE_LUT_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 视频没有亮度元数据时的峰值亮度
+     */
+    private static final int DEFAULT_PEAK_LUMINANCE = 1000;
+
+    /**
+     * 场景自适应时峰值亮度的下限，低于参考白的暗场景也按参考白映射，避免暗场景被提亮
+     */
+    private static final int MIN_SCENE_PEAK_LUMINANCE = 203;
+
+    private static final ToneMap[] PRECOMPILE_TONE_MAPS = {
+            ToneMap.NONE,
+            ToneMap.ANDROID8,
+            ToneMap.ANDROID13,
+            ToneMap.BT2446A,
+            ToneMap.BT2446A1,
+            ToneMap.BT2446C,
+            ToneMap.HABLE
+    };
+
+    private static final GamutMap[] PRECOMPILE_GAMUT_MAPS = {
+            GamutMap.NONE,
+            GamutMap.ADAPTIVE_L0_CUSP,
+            GamutMap.CLIP,
+            GamutMap.COMPRESS
+    };
+
+    /**
+     * Uniform Block绑定的位置
+     */
+    private static final int UNIFORM_BLOCK_BINDING = 0;
+
+    /**
+     * 用{@link CubeLutVideoTransform#LUT_SAMPLE_CODE}采样生成的LUT，%1$s是{@link #getFuseMethod()}
+     */
+    private static final String LUT_FUSE_CODE = CubeLutVideoTransform.LUT_SAMPLE_CODE +
+            "vec4 %1$s(vec4 color) {\n" +
+            "    return vec4(%1$sSampleCubeLutTexture(color.rgb), color.a);\n" +
+            "}\n";
 
 
     private FloatBuffer textureCoordinateBuffer;
@@ -47,10 +118,28 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
 
     private HDRToSDRShader hdrToSDRShader;
 
-    private ScreenBrightnessObserver screenBrightnessObserver;
-    private int maxDisplayLuminanceUniform;
-    private int currentDisplayLuminanceUniform;
-    private int hdrPeakLuminanceUniform;
+    /**
+     * hdrToSDRShader合并渲染的代码，单独渲染时也用只有一个Transform的合并Shader，和合并渲染共用编译好的Program
+     */
+    private String fuseCode;
+    private String frameShader;
+
+    private final String lutFuseCode;
+    private final String lutFrameShader;
+    private final String cubeLutTextureName;
+    private final String cubeLutSizeName;
+
+    private GLUniformBlock uniformBlock;
+
+    /**
+     * 切换Shader前的逐像素Shader，新的Program还在后台编译时之前的Program继续用它绘制，新的Program用上后再释放
+     */
+    private HDRToSDRShader previousShader;
+    private GLUniformBlock previousUniformBlock;
+    private String previousFuseCode;
+
+    private int cubeLutTextureUniform;
+    private int cubeLutSizeUniform;
 
     private ChromaCorrection chromaCorrection = ChromaCorrection.NONE;
     private ToneMap toneMap = ToneMap.NONE;
@@ -61,22 +150,82 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
 
     private int toneReference = TONE_DISPLAY_REFERENCE;
 
+    private boolean bakeLut;
+
+    private int bakeLutSize = DEFAULT_BAKE_LUT_SIZE;
+
+    /**
+     * 当前是否在使用LUT的Shader
+     */
+    private boolean lutShaderActive;
+
+    /**
+     * 参数变化后要重新设置逐像素计算的Shader
+     */
+    private boolean frameShaderChange;
+
+    /**
+     * 生成LUT失败后不再尝试，直到参数变化
+     */
+    private boolean bakeLutFail;
+
+    private HDRToSDRShader bakeShader;
+
+    private final HDRToSDRLutBaker lutBaker = new HDRToSDRLutBaker();
+
+    private final FrameLuminanceAnalyzer luminanceAnalyzer = new FrameLuminanceAnalyzer();
+
+    private boolean sceneAdaptive;
+
+    private final ToneCurveTexture toneCurveTexture = new ToneCurveTexture();
+
+    private boolean toneCurve;
+
+    private int toneCurveTextureUniform;
+
+    private int toneCurveTextureId;
+
+    private final CubeLutTextureCache bakeLutCache = new CubeLutTextureCache(BAKE_LUT_CACHE_MAX_BYTES);
+
+    private String bakeLutKey;
+    private int bakeLutTextureId;
+    private int bakePeakLuminance;
+    private int bakeMaxDisplayLuminance;
+    private int bakeCurrentDisplayLuminance;
+    private int bakedLutSize;
+
 
     public HDRToSDRVideoTransform() {
         positionCoordinateBuffer = GLESUtil.createPositionFlatBuffer();
         textureCoordinateBuffer = GLESUtil.createTextureFlatBuffer();
-        screenBrightnessObserver = new ScreenBrightnessObserver();
-        setVertexShader(VERTEX_SHADER);
+        String method = getFuseMethod();
+        lutFuseCode = String.format(LUT_FUSE_CODE, method);
+        lutFrameShader = GLFuseProgram.createFrameShader(method, lutFuseCode);
+        cubeLutTextureName = method + "CubeLutTexture";
+        cubeLutSizeName = method + "CubeLutSize";
+        setVertexShader(GLFuseProgram.VERTEX_SHADER);
     }
 
     @Override
     protected void onCreate() {
-        screenBrightnessObserver.listen();
+        DisplayStateService.getInstance().listen();
     }
 
     @Override
     protected void onDestroy() {
-        screenBrightnessObserver.unListen();
+        DisplayStateService.getInstance().unListen();
+        lutBaker.release();
+        luminanceAnalyzer.release();
+        toneCurveTexture.release();
+        if (uniformBlock != null) {
+            uniformBlock.release();
+            uniformBlock = null;
+        }
+        releasePreviousShader();
+        bakeLutCache.clear();
+        bakeLutKey = null;
+        bakeLutTextureId = 0;
+        bakeShader = null;
     }
 
     @Override
@@ -98,35 +247,189 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
         if (colorSpace == ColorSpace.VIDEO_SDR) {
             return false;
         }
+        int bitDepth = getInputBitDepth();
         if (shaderChange || (hdrToSDRShader != null &&
-                hdrToSDRShader.colorSpace != colorSpace)) {
+                (hdrToSDRShader.colorSpace != colorSpace || hdrToSDRShader.bitDepth != bitDepth))) {
+            if (previousUniformBlock == null) {
+                previousShader = hdrToSDRShader;
+                previousUniformBlock = uniformBlock;
+                previousFuseCode = fuseCode;
+            } else if (uniformBlock != null) {// 之前的Program还没切换过来，这个Shader没有用过
+                uniformBlock.release();
+            }
             hdrToSDRShader = new HDRToSDRShader(colorSpace,
                     chromaCorrection,
                     toneMap,
                     gamutMap,
                     gammaOETF,
-                    toneReference == TONE_DISPLAY_REFERENCE
-
+                    toneReference == TONE_DISPLAY_REFERENCE,
+                    false,
+                    toneCurve,
+                    bitDepth
             );
-            setFrameShader(hdrToSDRShader);
+            uniformBlock = new GLUniformBlock(HDRToSDRShader.UNIFORM_BLOCK,
+                    MetaDataParams.uniformNames,
+                    hdrToSDRShader.getDerivedParams());
+            fuseCode = hdrToSDRShader.getFuseCode(getFuseMethod());
+            frameShader = GLFuseProgram.createFrameShader(getFuseMethod(), fuseCode);
+            frameShaderChange = true;
             shaderChange  =false;
+            bakeShader = null;
+            bakeLutKey = null;
+            bakeLutFail = false;
+        }
+        if (sceneAdaptive) {
+            luminanceAnalyzer.analyze(getInputTextureId(), getInputWidth(), getInputHeight(), colorSpace);
+        }
+        setOutputColorSpace(ColorSpace.VIDEO_SDR);
+        // 线性的HDR内容可能超过1，LUT表示不了，只能逐像素计算
+        if (isBakeLutEnable(colorSpace) && bakeLutTexture()) {
+            if (!lutShaderActive) {
+                lutShaderActive = true;
+                setFrameShader(lutFrameShader);
+            }
+            return true;
+        }
+        if (lutShaderActive || frameShaderChange) {
+            lutShaderActive = false;
+            frameShaderChange = false;
+            setFrameShader(frameShader);
+        }
+        return true;
+    }
+
+    /**
+     * 峰值亮度每帧都可能变化时不生成LUT，不然每次变化都要在渲染线程重新生成
+     */
+    private boolean isBakeLutEnable(@ColorSpace int colorSpace) {
+        if (!bakeLut || bakeLutFail || colorSpace == ColorSpace.VIDEO_BT2020_LINEAR || sceneAdaptive) {
+            return false;
+        }
+        HDR10PlusMetadata dynamicMetadata = getInputDynamicMetadata();
+        return dynamicMetadata == null || dynamicMetadata.getMaxLuminance() <= 0;
+    }
+
+    /**
+     * 场景自适应要统计输入纹理的亮度，只有输入纹理已经渲染好才能合并
+     */
+    @Override
+    protected synchronized boolean isFusible(boolean inputTextureReady) {
+        return inputTextureReady || !sceneAdaptive;
+    }
+
+    @Override
+    protected String onFuseCode(String method) {
+        return lutShaderActive ? lutFuseCode : fuseCode;
+    }
+
+    /**
+     * 参数或者量化后的亮度变化时，从缓存获取或者重新生成LUT
+     *
+     * @return 是否有可用的LUT
+     */
+    private boolean bakeLutTexture() {
+        DisplayState displayState = DisplayStateService.getInstance().getState();
+        int maxDisplayLuminance = Math.round(displayState.maxLuminance);
+        int currentDisplayLuminance = quantize(displayState.brightnessFloat * maxDisplayLuminance,
+                BAKE_DISPLAY_LUMINANCE_STEP);
+        int peakLuminance = quantize(getPeakLuminance(), BAKE_PEAK_LUMINANCE_STEP);
+        if (bakeLutKey != null &&
+                bakedLutSize == bakeLutSize &&
+                bakeMaxDisplayLuminance == maxDisplayLuminance &&
+                bakeCurrentDisplayLuminance == currentDisplayLuminance &&
+                bakePeakLuminance == peakLuminance) {
+            return bakeLutTextureId > 0;
+        }
+        bakedLutSize = bakeLutSize;
+        bakeMaxDisplayLuminance = maxDisplayLuminance;
+        bakeCurrentDisplayLuminance = currentDisplayLuminance;
+        bakePeakLuminance = peakLuminance;
+        bakeLutKey = hdrToSDRShader.colorSpace +
+                ":" + hdrToSDRShader.chromaCorrection.getClass().getName() +
+                ":" + hdrToSDRShader.toneMap.getClass().getName() +
+                ":" + hdrToSDRShader.gamutMap.getClass().getName() +
+                ":" + hdrToSDRShader.gammaOETF.getClass().getName() +
+                ":" + toneReference +
+                ":" + bakedLutSize +
+                ":" + maxDisplayLuminance +
+                ":" + currentDisplayLuminance +
+                ":" + peakLuminance;
+        CubeLutTextureCache.Entry entry = bakeLutCache.get(bakeLutKey);
+        if (entry == null) {
+            if (bakeShader == null) {
+                bakeShader = createBakeShader(hdrToSDRShader.colorSpace,
+                        hdrToSDRShader.toneMap,
+                        hdrToSDRShader.gamutMap);
+            }
+            if (lutBaker.isPending(bakeShader)) {
+                // 生成LUT的Program还在后台编译，下一帧再生成，之前的LUT还在用就继续用，否则逐像素计算
+                bakeLutKey = null;
+                return lutShaderActive && bakeLutTextureId > 0;
+            }
+            int textureId = lutBaker.bake(bakeShader,
+                    bakedLutSize,
+                    maxDisplayLuminance,
+                    currentDisplayLuminance,
+                    peakLuminance);
+            if (textureId <= 0) {// 之前的LUT留给还没切换的Program
+                bakeLutFail = true;
+                return false;
+            }
+            entry = bakeLutCache.put(bakeLutKey, textureId, bakedLutSize, 4);//RGB10_A2每个像素4字节
         }
+        bakeLutTextureId = entry.textureId;
         return true;
     }
 
+    private HDRToSDRShader createBakeShader(@ColorSpace int colorSpace, ToneMap toneMap, GamutMap gamutMap) {
+        return new HDRToSDRShader(colorSpace,
+                chromaCorrection,
+                toneMap,
+                gamutMap,
+                gammaOETF,
+                toneReference == TONE_DISPLAY_REFERENCE,
+                true);
+    }
+
+    /**
+     * 优先用HDR10+每帧的最大亮度，其次是场景自适应统计的最大亮度，有静态元数据时不超过元数据的峰值亮度
+     */
+    private int getPeakLuminance() {
+        HDR10PlusMetadata dynamicMetadata = getInputDynamicMetadata();
+        if (dynamicMetadata != null && dynamicMetadata.getMaxLuminance() > 0) {
+            return Math.max(MIN_SCENE_PEAK_LUMINANCE, Math.round(dynamicMetadata.getMaxLuminance()));
+        }
+        int peakLuminance = Math.min(getInputMaxContentLuminance(), getInputMaxMasteringLuminance());
+        peakLuminance = Math.max(peakLuminance, getInputMaxFrameAverageLuminance());
+        if (sceneAdaptive && luminanceAnalyzer.hasResult()) {
+            int scenePeakLuminance = Math.max(MIN_SCENE_PEAK_LUMINANCE, Math.round(luminanceAnalyzer.getMaxLuminance()));
+            return peakLuminance == 0 ? scenePeakLuminance : Math.min(scenePeakLuminance, peakLuminance);
+        }
+        if (peakLuminance == 0) {
+            peakLuminance = DEFAULT_PEAK_LUMINANCE;
+        }
+        return peakLuminance;
+    }
+
+    private static int quantize(float value, int step) {
+        return Math.max(step, Math.round(value / step) * step);
+    }
+
     @Override
     protected void onProgramChange(int programId) {
-        positionCoordinateAttribute = GLES20.glGetAttribLocation(programId, "position");
-        textureCoordinateAttribute = GLES20.glGetAttribLocation(programId, "inputTextureCoordinate");
-        textureUnitUniform = GLES20.glGetUniformLocation(programId, "inputImageTexture");
-        maxDisplayLuminanceUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.MAX_DISPLAY_LUMINANCE);
-        currentDisplayLuminanceUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.CURRENT_DISPLAY_LUMINANCE);
-        hdrPeakLuminanceUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR_PEAK_LUMINANCE);
+        positionCoordinateAttribute = getAttribLocation("position");
+        textureCoordinateAttribute = getAttribLocation("inputTextureCoordinate");
+        textureUnitUniform = getUniformLocation("inputImageTexture");
+        if (uniformBlock != null) {
+            uniformBlock.bindProgram(programId, UNIFORM_BLOCK_BINDING);
+        }
+        cubeLutTextureUniform = getUniformLocation(cubeLutTextureName);
+        cubeLutSizeUniform = getUniformLocation(cubeLutSizeName);
+        toneCurveTextureUniform = getUniformLocation(ToneCurve.TONE_CURVE_TEXTURE);
     }
 
     @Override
     protected synchronized void onTransform() {
-        setOutputColorSpace(ColorSpace.VIDEO_SDR);
         clearColor();
         positionCoordinateBuffer.clear();
         textureCoordinateBuffer.clear();
@@ -137,21 +440,159 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, getInputTextureId());
         GLES20.glUniform1i(textureUnitUniform, 0);
-        GLES20.glUniform1f(maxDisplayLuminanceUniform, DisplayUtil.getMaxLuminance());
-        int peakLuminance = Math.min(getInputMaxContentLuminance(), getInputMaxMasteringLuminance());
-        peakLuminance = Math.max(peakLuminance, getInputMaxFrameAverageLuminance());
-        if (peakLuminance == 0) {
-            peakLuminance = 1000;
+        boolean lutProgram = isLutProgram();
+        HDRToSDRShader shader = null;
+        if (lutProgram) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, bakeLutTextureId);
+            GLES20.glUniform1i(cubeLutTextureUniform, 1);
+            GLES20.glUniform1f(cubeLutSizeUniform, bakedLutSize);
+        } else {
+            shader = getProgramShader();
+            GLUniformBlock block = getProgramUniformBlock();
+            updateUniforms(shader, block);
+            block.bind(UNIFORM_BLOCK_BINDING);
+            if (shader.toneCurve) {
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, toneCurveTextureId);
+                GLES20.glUniform1i(toneCurveTextureUniform, 1);
+            }
         }
-        GLES20.glUniform1f(hdrPeakLuminanceUniform, peakLuminance);
-        GLES20.glUniform1f(currentDisplayLuminanceUniform, screenBrightnessObserver.getBrightnessInfo().brightnessFloat * DisplayUtil.getMaxLuminance());
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         GLES20.glDisableVertexAttribArray(positionCoordinateAttribute);
         GLES20.glDisableVertexAttribArray(textureCoordinateAttribute);
+        if (lutProgram) {
+            GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, 0);
+        } else if (shader.toneCurve) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        }
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     }
 
+    @Override
+    protected synchronized void onFuseTransform(GLFuseProgram fuseProgram) {
+        if (isLutProgram()) {
+            fuseProgram.bindTexture(GLES30.GL_TEXTURE_3D, bakeLutTextureId, cubeLutTextureName);
+            GLES20.glUniform1f(fuseProgram.getUniformLocation(cubeLutSizeName), bakedLutSize);
+            return;
+        }
+        HDRToSDRShader shader = getProgramShader();
+        GLUniformBlock block = getProgramUniformBlock();
+        updateUniforms(shader, block);
+        fuseProgram.bindUniformBlock(block);
+        if (shader.toneCurve) {
+            fuseProgram.bindTexture(GLES20.GL_TEXTURE_2D, toneCurveTextureId, ToneCurve.TONE_CURVE_TEXTURE);
+        }
+    }
+
+    private boolean isLutProgram() {
+        return lutFuseCode.equals(getProgramFuseCode());
+    }
+
+    /**
+     * 正在绘制的Program还是切换前的代码时用之前的Shader，否则之前的已经不需要了，释放掉
+     */
+    private HDRToSDRShader getProgramShader() {
+        if (previousUniformBlock != null && previousFuseCode.equals(getProgramFuseCode())) {
+            return previousShader;
+        }
+        releasePreviousShader();
+        return hdrToSDRShader;
+    }
+
+    private GLUniformBlock getProgramUniformBlock() {
+        return previousUniformBlock != null ? previousUniformBlock : uniformBlock;
+    }
+
+    private void releasePreviousShader() {
+        if (previousUniformBlock != null) {
+            previousUniformBlock.release();
+        }
+        previousShader = null;
+        previousUniformBlock = null;
+        previousFuseCode = null;
+    }
+
+    /**
+     * 更新Uniform Block里的亮度，用曲线纹理时同时更新曲线
+     */
+    private void updateUniforms(HDRToSDRShader shader, GLUniformBlock block) {
+        DisplayState displayState = DisplayStateService.getInstance().getState();
+        float maxDisplayLuminance = displayState.maxLuminance;
+        int peakLuminance = getPeakLuminance();
+        block.set(MetaDataParams.MAX_DISPLAY_LUMINANCE, maxDisplayLuminance);
+        block.set(MetaDataParams.HDR_PEAK_LUMINANCE, peakLuminance);
+        block.set(MetaDataParams.CURRENT_DISPLAY_LUMINANCE, displayState.getCurrentLuminance());
+        if (shader.toneCurve) {
+            toneCurveTextureId = toneCurveTexture.update(shader.toneMap,
+                    shader.colorSpace,
+                    maxDisplayLuminance,
+                    peakLuminance);
+        }
+    }
+
+
+    /**
+     * 当前色域下所有色调映射和色域映射的组合，其他参数用当前设置
+     * 单独渲染和合并渲染的第一个Transform是同一个Shader，只编译一次
+     * 开启了生成LUT时生成LUT的Shader也是每个组合一个，还有场景自适应统计亮度的Shader
+     */
+    @Override
+    protected synchronized void onPrecompile(@ColorSpace int colorSpace, int bitDepth, GLProgramPrecompiler precompiler) {
+        if (colorSpace == ColorSpace.VIDEO_SDR) {
+            return;
+        }
+        FrameLuminanceAnalyzer.precompile(colorSpace, precompiler);
+        boolean precompileBake = bakeLut && !sceneAdaptive && colorSpace != ColorSpace.VIDEO_BT2020_LINEAR;
+        if (precompileBake) {
+            precompiler.precompile(GLFuseProgram.VERTEX_SHADER, lutFrameShader);
+        }
+        for (ToneMap toneMap : PRECOMPILE_TONE_MAPS) {
+            for (GamutMap gamutMap : PRECOMPILE_GAMUT_MAPS) {
+                if (precompileBake) {
+                    HDRToSDRLutBaker.precompile(createBakeShader(colorSpace, toneMap, gamutMap), precompiler);
+                }
+                HDRToSDRShader shader = new HDRToSDRShader(colorSpace,
+                        chromaCorrection,
+                        toneMap,
+                        gamutMap,
+                        gammaOETF,
+                        toneReference == TONE_DISPLAY_REFERENCE,
+                        false,
+                        toneCurve,
+                        bitDepth);
+                precompiler.precompile(GLFuseProgram.VERTEX_SHADER,
+                        GLFuseProgram.createFrameShader(getFuseMethod(), shader.getFuseCode(getFuseMethod())));
+            }
+        }
+    }
+
+
+    /**
+     * 当前设置下逐像素计算的代码，开启了生成LUT时还有LUT采样的代码
+     */
+    @Override
+    protected synchronized List<String> onPrecompileFuseCodes(@ColorSpace int colorSpace, int bitDepth) {
+        List<String> codes = new ArrayList<>();
+        if (colorSpace == ColorSpace.VIDEO_SDR) {
+            return codes;
+        }
+        HDRToSDRShader shader = new HDRToSDRShader(colorSpace,
+                chromaCorrection,
+                toneMap,
+                gamutMap,
+                gammaOETF,
+                toneReference == TONE_DISPLAY_REFERENCE,
+                false,
+                toneCurve,
+                bitDepth);
+        codes.add(shader.getFuseCode(getFuseMethod()));
+        if (bakeLut && !sceneAdaptive && colorSpace != ColorSpace.VIDEO_BT2020_LINEAR) {
+            codes.add(lutFuseCode);
+        }
+        return codes;
+    }
 
     public synchronized void setChromaCorrection(@NonNull ChromaCorrection chromaCorrection) {
         if (this.chromaCorrection != chromaCorrection) {
@@ -188,6 +629,72 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
         }
     }
 
+    /**
+     * 是否把HDR转SDR的过程生成3D LUT，每帧只做一次3D纹理采样
+     * 开启场景自适应或者是HDR10+视频时峰值亮度是动态的，不会生成LUT
+     *
+     * @param bakeLut
+     */
+    public synchronized void setBakeLut(boolean bakeLut) {
+        this.bakeLut = bakeLut;
+    }
+
+    /**
+     * 生成的LUT大小，越大越精确，生成越慢
+     *
+     * @param bakeLutSize
+     */
+    public synchronized void setBakeLutSize(int bakeLutSize) {
+        this.bakeLutSize = bakeLutSize;
+    }
+
+    /**
+     * 是否根据每帧统计的亮度做色调映射，统计结果延迟1到2帧并且做了平滑
+     *
+     * @param sceneAdaptive
+     */
+    public synchronized void setSceneAdaptive(boolean sceneAdaptive) {
+        this.sceneAdaptive = sceneAdaptive;
+    }
+
+    public synchronized boolean isSceneAdaptive() {
+        return sceneAdaptive;
+    }
+
+    /**
+     * 是否用预先计算的曲线纹理做色调映射，默认逐像素计算
+     * BT2446A1和NONE不支持，还是逐像素计算；开启{@link #setBakeLut(boolean)}时用LUT
+     *
+     * @param toneCurve
+     */
+    public synchronized void setToneCurve(boolean toneCurve) {
+        if (this.toneCurve != toneCurve) {
+            this.toneCurve = toneCurve;
+            shaderChange = true;
+        }
+    }
+
+    public synchronized boolean isToneCurve() {
+        return toneCurve;
+    }
+
+    public synchronized boolean isBakeLut() {
+        return bakeLut;
+    }
+
+    public synchronized int getBakeLutSize() {
+        return bakeLutSize;
+    }
+
+    /**
+     * 生成LUT的缓存，可以查看命中次数
+     *
+     * @return
+     */
+    public CubeLutTextureCache getBakeLutCache() {
+        return bakeLutCache;
+    }
+
     public synchronized ChromaCorrection getChromaCorrection() {
         return chromaCorrection;
     }
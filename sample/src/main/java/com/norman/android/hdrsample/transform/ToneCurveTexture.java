@@ -0,0 +1,109 @@
+package com.norman.android.hdrsample.transform;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.math.ColorFunction;
+import com.norman.android.hdrsample.transform.math.ColorParams;
+import com.norman.android.hdrsample.transform.math.ToneMapFunctions;
+import com.norman.android.hdrsample.transform.math.TransferFunctions;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneCurve;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
+import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.HalfFloatUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * {@link ToneCurve}用的曲线纹理，在CPU上用{@link ToneMapFunctions}计算后上传，和逐像素计算的结果一致
+ * 输入是中性灰，每个点的亮度按PQ编码均匀分布，灰色经过色调映射后的值就是曲线的值
+ * 色调映射、色域和亮度参数都没变时不会重新计算，纹理格式是R16F，OpenGL ES 3.0支持线性插值
+ * 所有方法都要在GL线程调用
+ */
+class ToneCurveTexture {
+
+    private static final int SIZE = ToneCurve.TONE_CURVE_SIZE;
+
+    private final float[] red = new float[SIZE];
+    private final float[] green = new float[SIZE];
+    private final float[] blue = new float[SIZE];
+
+    private final ShortBuffer curveBuffer = ByteBuffer.allocateDirect(SIZE * 2)
+            .order(ByteOrder.nativeOrder())
+            .asShortBuffer();
+
+    private final ColorParams colorParams = new ColorParams();
+
+    private int textureId;
+
+    private ToneMap toneMap;
+
+    private int colorSpace;
+    private float maxDisplayLuminance;
+    private float hdrPeakLuminance;
+
+    /**
+     * 参数变化时重新计算曲线，色调映射的曲线都和当前屏幕亮度无关，调节亮度不会重新计算
+     *
+     * @param toneMap             支持曲线纹理的色调映射
+     * @param colorSpace          视频的色域
+     * @param maxDisplayLuminance 屏幕最大亮度
+     * @param hdrPeakLuminance    视频峰值亮度
+     * @return 纹理id
+     */
+    int update(ToneMap toneMap,
+               @ColorSpace int colorSpace,
+               float maxDisplayLuminance,
+               float hdrPeakLuminance) {
+        if (textureId > 0 &&
+                this.toneMap == toneMap &&
+                this.colorSpace == colorSpace &&
+                this.maxDisplayLuminance == maxDisplayLuminance &&
+                this.hdrPeakLuminance == hdrPeakLuminance) {
+            return textureId;
+        }
+        this.toneMap = toneMap;
+        this.colorSpace = colorSpace;
+        this.maxDisplayLuminance = maxDisplayLuminance;
+        this.hdrPeakLuminance = hdrPeakLuminance;
+        colorParams.colorSpace = colorSpace;
+        colorParams.maxDisplayLuminance = maxDisplayLuminance;
+        colorParams.hdrPeakLuminance = hdrPeakLuminance;
+        float masterScale = colorParams.getMasterScale();
+        for (int i = 0; i < SIZE; i++) {
+            float nits = TransferFunctions.pqDisplayEOTF(i / (SIZE - 1.0f)) * ColorParams.PQ_MAX_LUMINANCE;
+            float value = nits / masterScale;
+            red[i] = value;
+            green[i] = value;
+            blue[i] = value;
+        }
+        ColorFunction toneMapFunction = ToneMapFunctions.from(toneMap);
+        toneMapFunction.apply(colorParams, red, green, blue, 0, SIZE);
+        // Android8和Android13最后除了屏幕最大亮度，Shader里的曲线要的是绝对亮度
+        float outputScale = toneMap == ToneMap.ANDROID8 || toneMap == ToneMap.ANDROID13 ? maxDisplayLuminance : 1.0f;
+        curveBuffer.clear();
+        // 亮度为0时有的曲线会除以0，所有曲线在0点的值都是0
+        curveBuffer.put(HalfFloatUtil.toHalf(0.0f));
+        for (int i = 1; i < SIZE; i++) {
+            curveBuffer.put(HalfFloatUtil.toHalf(red[i] * outputScale));
+        }
+        curveBuffer.flip();
+        if (textureId <= 0) {
+            textureId = GLESUtil.createTextureId();
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES30.GL_R16F, SIZE, 1, 0,
+                GLES30.GL_RED, GLES30.GL_HALF_FLOAT, curveBuffer);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        return textureId;
+    }
+
+    void release() {
+        GLESUtil.delTextureId(textureId);
+        textureId = 0;
+        toneMap = null;
+    }
+}
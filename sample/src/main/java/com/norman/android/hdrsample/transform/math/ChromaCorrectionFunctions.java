@@ -0,0 +1,77 @@
+package com.norman.android.hdrsample.transform.math;
+
+import com.norman.android.hdrsample.transform.shader.chromacorrect.ChromaCorrection;
+
+/**
+ * {@link ChromaCorrection}的Java版本，常量名和Kotlin里的一样
+ */
+public class ChromaCorrectionFunctions {
+
+    public static final ColorFunction NONE = ColorFunction.NONE;
+
+    /**
+     * ChromaCorrectionBT2446C，对超过HDR参考白的高光在LCH里降低色度
+     */
+    public static final ColorFunction BT2446C = new ColorFunction() {
+        private static final float CHROMA_CORRECT_STRENGTH = 0.05f;
+        private static final float CROSSTALK_STRENGTH = 0.04f;
+
+        /**
+         * Lab、LCH转换的中间结果，每个线程一个，批量处理时不分配内存
+         */
+        private final ThreadLocal<float[]> colorThreadLocal = new ThreadLocal<float[]>() {
+            @Override
+            protected float[] initialValue() {
+                return new float[3];
+            }
+        };
+
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            float masterScale = params.getMasterScale();
+            float lRef = ColorMath.luminanceToLabL(ColorParams.HDR_REFERENCE_WHITE);
+            float lMax = ColorMath.luminanceToLabL(params.hdrPeakLuminance);
+            float a = CROSSTALK_STRENGTH;
+            float crosstalkB = 1.0f - 2.0f * a;
+            float inverseB = (1.0f - a) / (1.0f - 3.0f * a);
+            float inverseA = -a / (1.0f - 3.0f * a);
+            float[] color = colorThreadLocal.get();
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float red = r[i] * masterScale;
+                float green = g[i] * masterScale;
+                float blue = b[i] * masterScale;
+                ColorMath.bt2020ToLab(crosstalkB * red + a * green + a * blue,
+                        a * red + crosstalkB * green + a * blue,
+                        a * red + a * green + crosstalkB * blue,
+                        color);
+                ColorMath.labToLch(color[0], color[1], color[2], color);
+                float l = color[0];
+                float chroma = color[1];
+                if (l > lRef) {
+                    chroma *= Math.max(1.0f - CHROMA_CORRECT_STRENGTH * (l - lRef) / (lMax - lRef), 0.0f);
+                }
+                ColorMath.lchToLab(l, chroma, color[2], color);
+                ColorMath.labToBt2020(color[0], color[1], color[2], color);
+                red = color[0];
+                green = color[1];
+                blue = color[2];
+                r[i] = (inverseB * red + inverseA * green + inverseA * blue) / masterScale;
+                g[i] = (inverseA * red + inverseB * green + inverseA * blue) / masterScale;
+                b[i] = (inverseA * red + inverseA * green + inverseB * blue) / masterScale;
+            }
+        }
+    };
+
+    /**
+     * Kotlin的ChromaCorrection对应的Java实现
+     */
+    public static ColorFunction from(ChromaCorrection chromaCorrection) {
+        if (chromaCorrection == ChromaCorrection.NONE) {
+            return NONE;
+        } else if (chromaCorrection == ChromaCorrection.BT2446C) {
+            return BT2446C;
+        }
+        throw new IllegalArgumentException("not support " + chromaCorrection);
+    }
+}
@@ -0,0 +1,66 @@
+package com.norman.android.hdrsample.transform.math;
+
+/**
+ * 对应Shader里vec3 METHOD(vec3 color)形式的函数，按平面批量处理，r、g、b分别是三个通道的数组
+ * 结果直接写回输入数组，不分配内存，同一个对象可以在多个线程同时使用
+ * <p>
+ * 和GLSL保持一样的计算顺序和float精度，GLSL里结果未定义的情况(比如pow的底数是负数)这里返回NaN；
+ * Shader里mix(a, b, step(edge, x))这种分支写成条件选择，只计算选中的分支
+ */
+public abstract class ColorFunction {
+
+    /**
+     * 处理[offset, offset+count)范围的颜色
+     *
+     * @param params 对应Shader的uniform
+     * @param r      红色通道
+     * @param g      绿色通道
+     * @param b      蓝色通道
+     * @param offset 开始位置
+     * @param count  颜色数量
+     */
+    public abstract void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count);
+
+    public final void apply(ColorParams params, float[] r, float[] g, float[] b) {
+        apply(params, r, g, b, 0, Math.min(r.length, Math.min(g.length, b.length)));
+    }
+
+    /**
+     * 对每个通道分别做同一个计算的函数，比如PQ、HLG这些传递函数
+     */
+    public abstract static class ChannelFunction extends ColorFunction {
+
+        public abstract float apply(ColorParams params, float x);
+
+        /**
+         * 单个通道的批量处理，子类可以重写把不变的参数提到循环外面
+         */
+        public void apply(ColorParams params, float[] x, int offset, int count) {
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                x[i] = apply(params, x[i]);
+            }
+        }
+
+        @Override
+        public final void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            apply(params, r, offset, count);
+            apply(params, g, offset, count);
+            apply(params, b, offset, count);
+        }
+    }
+
+    /**
+     * 不做处理，对应各种NONE
+     */
+    public static final ColorFunction NONE = new ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return x;
+        }
+
+        @Override
+        public void apply(ColorParams params, float[] x, int offset, int count) {
+        }
+    };
+}
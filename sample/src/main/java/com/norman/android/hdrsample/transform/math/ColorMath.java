@@ -0,0 +1,222 @@
+package com.norman.android.hdrsample.transform.math;
+
+import com.norman.android.hdrsample.transform.shader.ColorConversion;
+
+/**
+ * GLSL内置函数和{@link ColorConversion}的Java版本
+ * 矩阵和GLSL的mat3一样按列存储，数值直接从Shader里复制，方便对照
+ */
+public class ColorMath {
+
+    public static final float[] BT2020_TO_BT709 = {
+            1.660491f, -0.12455047f, -0.01815076f,
+            -0.58764114f, 1.1328999f, -0.1005789f,
+            -0.07284986f, -0.00834942f, 1.11872966f};
+
+    public static final float[] BT709_TO_BT2020 = {
+            0.6274040f, 0.0690970f, 0.0163916f,
+            0.3292820f, 0.9195400f, 0.0880132f,
+            0.0433136f, 0.0113612f, 0.8955950f};
+
+    public static final float[] BT2020_TO_XYZ = {
+            0.636958f, 0.262700f, 0.000000f,
+            0.144617f, 0.677998f, 0.028073f,
+            0.168881f, 0.059302f, 1.060985f};
+
+    public static final float[] XYZ_TO_BT2020 = {
+            1.716651f, -0.666684f, 0.017640f,
+            -0.355671f, 1.616481f, -0.042771f,
+            -0.253366f, 0.015769f, 0.942103f};
+
+    public static final float[] XYZ_TO_BT709 = {
+            3.240970f, -0.969244f, 0.055630f,
+            -1.537383f, 1.875968f, -0.203977f,
+            -0.498611f, 0.041555f, 1.056972f};
+
+    public static final float[] XYZD65_TO_XYZD50 = {
+            1.047930f, 0.029628f, -0.009243f,
+            0.022947f, 0.990434f, 0.015055f,
+            -0.050192f, -0.017074f, 0.751874f};
+
+    public static final float[] XYZD50_TO_XYZD65 = {
+            0.955473f, -0.028370f, 0.012314f,
+            -0.023099f, 1.009995f, -0.020508f,
+            0.063259f, 0.021041f, 1.330366f};
+
+    /**
+     * BT2020的亮度系数
+     */
+    public static final float BT2020_LUMA_R = 0.262700f;
+    public static final float BT2020_LUMA_G = 0.677998f;
+    public static final float BT2020_LUMA_B = 0.059302f;
+
+    private static final float LAB_DELTA = 6.0f / 29.0f;
+    private static final float LAB_DELTAC = LAB_DELTA * 2.0f / 3.0f;
+    private static final float LAB_DELTA_CUBE = LAB_DELTA * LAB_DELTA * LAB_DELTA;
+    private static final float LAB_DELTA_SQUARE_3 = 3.0f * LAB_DELTA * LAB_DELTA;
+
+    /**
+     * BT2020_TO_LAB里的参考白，BT2020_TO_XYZ(vec3(HDR_REFERENCE_WHITE))
+     */
+    private static final float LAB_REF_X = ColorParams.HDR_REFERENCE_WHITE * (BT2020_TO_XYZ[0] + BT2020_TO_XYZ[3] + BT2020_TO_XYZ[6]);
+    private static final float LAB_REF_Y = ColorParams.HDR_REFERENCE_WHITE * (BT2020_TO_XYZ[1] + BT2020_TO_XYZ[4] + BT2020_TO_XYZ[7]);
+    private static final float LAB_REF_Z = ColorParams.HDR_REFERENCE_WHITE * (BT2020_TO_XYZ[2] + BT2020_TO_XYZ[5] + BT2020_TO_XYZ[8]);
+
+    public static float pow(float x, float y) {
+        return (float) Math.pow(x, y);
+    }
+
+    public static float log(float x) {
+        return (float) Math.log(x);
+    }
+
+    public static float exp(float x) {
+        return (float) Math.exp(x);
+    }
+
+    public static float sqrt(float x) {
+        return (float) Math.sqrt(x);
+    }
+
+    public static float cbrt(float x) {
+        return sign(x) * pow(Math.abs(x), 1.0f / 3.0f);
+    }
+
+    public static float mix(float x, float y, float a) {
+        return x * (1.0f - a) + y * a;
+    }
+
+    /**
+     * 对应mix(x, y, step(edge, value))，只计算选中的分支
+     */
+    public static float select(float edge, float value, float x, float y) {
+        return value < edge ? x : y;
+    }
+
+    public static float step(float edge, float x) {
+        return x < edge ? 0.0f : 1.0f;
+    }
+
+    public static float sign(float x) {
+        return x > 0.0f ? 1.0f : (x < 0.0f ? -1.0f : 0.0f);
+    }
+
+    public static float clamp(float x, float min, float max) {
+        return Math.min(Math.max(x, min), max);
+    }
+
+    public static float mod(float x, float y) {
+        return x - y * (float) Math.floor(x / y);
+    }
+
+    /**
+     * 批量计算mat3 * vec3
+     */
+    public static void multiply(float[] mat3, float[] r, float[] g, float[] b, int offset, int count) {
+        float m0 = mat3[0], m1 = mat3[1], m2 = mat3[2];
+        float m3 = mat3[3], m4 = mat3[4], m5 = mat3[5];
+        float m6 = mat3[6], m7 = mat3[7], m8 = mat3[8];
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            float x = r[i];
+            float y = g[i];
+            float z = b[i];
+            r[i] = m0 * x + m3 * y + m6 * z;
+            g[i] = m1 * x + m4 * y + m7 * z;
+            b[i] = m2 * x + m5 * y + m8 * z;
+        }
+    }
+
+    /**
+     * mat3 * vec3，结果写到out
+     */
+    public static void multiply(float[] mat3, float x, float y, float z, float[] out) {
+        out[0] = mat3[0] * x + mat3[3] * y + mat3[6] * z;
+        out[1] = mat3[1] * x + mat3[4] * y + mat3[7] * z;
+        out[2] = mat3[2] * x + mat3[5] * y + mat3[8] * z;
+    }
+
+    private static float labf1(float x) {
+        return x > LAB_DELTA_CUBE ?
+                cbrt(x) :
+                LAB_DELTAC + x / LAB_DELTA_SQUARE_3;
+    }
+
+    private static float labf2(float x) {
+        return x > LAB_DELTA ?
+                x * x * x :
+                (x - LAB_DELTAC) * LAB_DELTA_SQUARE_3;
+    }
+
+    /**
+     * 对应BT2020_TO_LAB，先转XYZ再从D65转到D50，参考白是HDR参考白
+     */
+    public static void bt2020ToLab(float r, float g, float b, float[] out) {
+        multiply(BT2020_TO_XYZ, r, g, b, out);
+        multiply(XYZD65_TO_XYZD50, out[0], out[1], out[2], out);
+        float x = labf1(out[0] / LAB_REF_X);
+        float y = labf1(out[1] / LAB_REF_Y);
+        float z = labf1(out[2] / LAB_REF_Z);
+        out[0] = 116.0f * y - 16.0f;
+        out[1] = 500.0f * (x - y);
+        out[2] = 200.0f * (y - z);
+    }
+
+    /**
+     * 对应BT2020_TO_LAB(vec3(luminance)).x，灰色的Lab亮度
+     */
+    public static float luminanceToLabL(float luminance) {
+        float x = LAB_REF_X * luminance / ColorParams.HDR_REFERENCE_WHITE;
+        float y = LAB_REF_Y * luminance / ColorParams.HDR_REFERENCE_WHITE;
+        float z = LAB_REF_Z * luminance / ColorParams.HDR_REFERENCE_WHITE;
+        float y50 = XYZD65_TO_XYZD50[1] * x + XYZD65_TO_XYZD50[4] * y + XYZD65_TO_XYZD50[7] * z;
+        return 116.0f * labf1(y50 / LAB_REF_Y) - 16.0f;
+    }
+
+    public static void labToBt2020(float l, float a, float b, float[] out) {
+        float y = (l + 16.0f) / 116.0f;
+        float x = y + a / 500.0f;
+        float z = y - b / 200.0f;
+        multiply(XYZD50_TO_XYZD65, labf2(x) * LAB_REF_X, labf2(y) * LAB_REF_Y, labf2(z) * LAB_REF_Z, out);
+        multiply(XYZ_TO_BT2020, out[0], out[1], out[2], out);
+    }
+
+    public static void labToLch(float l, float a, float b, float[] out) {
+        float c = (float) Math.sqrt(a * a + b * b);
+        float h = 0.0f;
+        if (!(Math.abs(a) < ColorParams.EPSILON && Math.abs(b) < ColorParams.EPSILON)) {
+            h = (float) Math.atan2(b, a);
+            h = h * 180.0f / ColorParams.PI;
+            h = mod(mod(h, 360.0f) + 360.0f, 360.0f);
+        }
+        out[0] = l;
+        out[1] = c;
+        out[2] = h;
+    }
+
+    public static void lchToLab(float l, float c, float h, float[] out) {
+        c = Math.max(c, 0.0f);
+        h = h * ColorParams.PI / 180.0f;
+        out[0] = l;
+        out[1] = c * (float) Math.cos(h);
+        out[2] = c * (float) Math.sin(h);
+    }
+
+    public static void xyzToXyY(float x, float y, float z, float[] out) {
+        float divisor = x + y + z;
+        if (divisor == 0.0f) {
+            divisor = 1e-6f;
+        }
+        out[0] = x / divisor;
+        out[1] = y / divisor;
+        out[2] = y;
+    }
+
+    public static void xyYToXyz(float x, float y, float luminance, float[] out) {
+        float multiplo = luminance / Math.max(y, 1e-6f);
+        float z = 1.0f - x - y;
+        out[0] = x * multiplo;
+        out[1] = luminance;
+        out[2] = z * multiplo;
+    }
+}
@@ -0,0 +1,82 @@
+package com.norman.android.hdrsample.transform.math;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.shader.MetaDataParams;
+
+/**
+ * 对应{@link MetaDataParams}里的uniform和宏，Shader里是uniform的值这里都是字段，调用方自己赋值
+ */
+public class ColorParams {
+
+    public static final float PI = 3.1415926f;
+
+    public static final float EPSILON = 1e-6f;
+
+    public static final float HDR_REFERENCE_WHITE = 203.0f;
+
+    public static final float HLG_MAX_LUMINANCE = 1000.0f;
+
+    public static final float PQ_MAX_LUMINANCE = 10000.0f;
+
+    /**
+     * 视频的色域，对应VIDEO_COLOR_SPACE
+     */
+    public @ColorSpace int colorSpace = ColorSpace.VIDEO_BT2020_PQ;
+
+    /**
+     * 最小屏幕亮度，Shader里没有设置过，默认是0
+     */
+    public float minDisplayLuminance;
+
+    /**
+     * 最大屏幕亮度
+     */
+    public float maxDisplayLuminance = HDR_REFERENCE_WHITE;
+
+    /**
+     * 当前屏幕亮度
+     */
+    public float currentDisplayLuminance = HDR_REFERENCE_WHITE;
+
+    /**
+     * HDR内容的峰值亮度
+     */
+    public float hdrPeakLuminance = HLG_MAX_LUMINANCE;
+
+    public ColorParams() {
+    }
+
+    public ColorParams(@ColorSpace int colorSpace,
+                       float maxDisplayLuminance,
+                       float currentDisplayLuminance,
+                       float hdrPeakLuminance) {
+        this.colorSpace = colorSpace;
+        this.maxDisplayLuminance = maxDisplayLuminance;
+        this.currentDisplayLuminance = currentDisplayLuminance;
+        this.hdrPeakLuminance = hdrPeakLuminance;
+    }
+
+    /**
+     * 对应ReScale的SCALE_TO_MASTER，归一化的颜色放大到绝对亮度
+     */
+    public float getMasterScale() {
+        if (colorSpace == ColorSpace.VIDEO_BT2020_PQ) {
+            return PQ_MAX_LUMINANCE;
+        } else if (colorSpace == ColorSpace.VIDEO_BT2020_HLG) {
+            return HLG_MAX_LUMINANCE;
+        }
+        return 1.0f;
+    }
+
+    /**
+     * 对应ReScale的SCALE_ONE_TO_REFERENCE_WHITE，归一化的颜色放大到参考白为1
+     */
+    public float getReferenceWhiteScale() {
+        if (colorSpace == ColorSpace.VIDEO_BT2020_PQ) {
+            return PQ_MAX_LUMINANCE / HDR_REFERENCE_WHITE;
+        } else if (colorSpace == ColorSpace.VIDEO_BT2020_HLG) {
+            return HLG_MAX_LUMINANCE / HDR_REFERENCE_WHITE;
+        }
+        return 1.0f;
+    }
+}
@@ -0,0 +1,300 @@
+package com.norman.android.hdrsample.transform.math;
+
+import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
+
+/**
+ * {@link GamutMap}的Java版本，常量名和Kotlin里的一样
+ * 输入是线性的BT2020颜色，除了NONE输出都是线性的BT709颜色
+ */
+public class GamutMapFunctions {
+
+    public static final ColorFunction NONE = ColorFunction.NONE;
+
+    /**
+     * GamutMapClip，转换后直接裁剪到0到1
+     */
+    public static final ColorFunction CLIP = new ColorFunction() {
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            ColorMath.multiply(ColorMath.BT2020_TO_BT709, r, g, b, offset, count);
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                r[i] = ColorMath.clamp(r[i], 0.0f, 1.0f);
+                g[i] = ColorMath.clamp(g[i], 0.0f, 1.0f);
+                b[i] = ColorMath.clamp(b[i], 0.0f, 1.0f);
+            }
+        }
+    };
+
+    /**
+     * GamutMapCompress，按到消色轴的距离用抛物线压缩
+     */
+    public static final ColorFunction COMPRESS = new ColorFunction() {
+        private static final float CYAN_LIMIT = 1.518705262732682f;
+        private static final float MAGENTA_LIMIT = 1.0750082200767368f;
+        private static final float YELLOW_LIMIT = 1.0887800398456782f;
+        private static final float CYAN_THRESHOLD = 1.0505085424784364f;
+        private static final float MAGENTA_THRESHOLD = 0.9405097727736265f;
+        private static final float YELLOW_THRESHOLD = 0.9771607745933959f;
+
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            ColorMath.multiply(ColorMath.BT2020_TO_BT709, r, g, b, offset, count);
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float red = r[i];
+                float green = g[i];
+                float blue = b[i];
+                float ac = Math.max(Math.max(red, green), blue);
+                float absAc = Math.abs(ac);
+                float dr = ac == 0.0f ? 0.0f : (ac - red) / absAc;
+                float dg = ac == 0.0f ? 0.0f : (ac - green) / absAc;
+                float db = ac == 0.0f ? 0.0f : (ac - blue) / absAc;
+                r[i] = ac - parabolic(dr, CYAN_LIMIT, CYAN_THRESHOLD) * absAc;
+                g[i] = ac - parabolic(dg, MAGENTA_LIMIT, MAGENTA_THRESHOLD) * absAc;
+                b[i] = ac - parabolic(db, YELLOW_LIMIT, YELLOW_THRESHOLD) * absAc;
+            }
+        }
+    };
+
+    private static float parabolic(float dist, float lim, float thr) {
+        if (dist > thr) {
+            float scale = (1.0f - thr) / ColorMath.sqrt(lim - 1.0f);
+            float scale2 = scale * scale / 4.0f;
+            dist = scale * (ColorMath.sqrt(dist - thr + scale2) - ColorMath.sqrt(scale2)) + thr;
+        }
+        return dist;
+    }
+
+    /**
+     * GamutMapAdaptiveL0Cusp，超出范围的颜色在OKLab里保持色调投射到色域边界
+     */
+    public static final ColorFunction ADAPTIVE_L0_CUSP = new ColorFunction() {
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            ColorMath.multiply(ColorMath.BT2020_TO_BT709, r, g, b, offset, count);
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float red = r[i];
+                float green = g[i];
+                float blue = b[i];
+                if (red < 1.0f && green < 1.0f && blue < 1.0f && red > 0.0f && green > 0.0f && blue > 0.0f) {
+                    continue;
+                }
+                gamutClipAdaptiveL0LCusp(red, green, blue, 0.05f, r, g, b, i);
+            }
+        }
+    };
+
+    private static final float FLT_MAX = 3.402823466e+38f;
+
+    private static void gamutClipAdaptiveL0LCusp(float red, float green, float blue, float alpha,
+                                                 float[] r, float[] g, float[] b, int index) {
+        // linear_srgb_to_oklab
+        float l = 0.4122214708f * red + 0.5363325363f * green + 0.0514459929f * blue;
+        float m = 0.2119034982f * red + 0.6806995451f * green + 0.1073969566f * blue;
+        float s = 0.0883024619f * red + 0.2817188376f * green + 0.6299787005f * blue;
+        float l_ = ColorMath.cbrt(l);
+        float m_ = ColorMath.cbrt(m);
+        float s_ = ColorMath.cbrt(s);
+        float labL = 0.2104542553f * l_ + 0.7936177850f * m_ - 0.0040720468f * s_;
+        float labA = 1.9779984951f * l_ - 2.4285922050f * m_ + 0.4505937099f * s_;
+        float labB = 0.0259040371f * l_ + 0.7827717662f * m_ - 0.8086757660f * s_;
+
+        float eps = 0.00001f;
+        float c = Math.max(eps, ColorMath.sqrt(labA * labA + labB * labB));
+        float a = labA / c;
+        float bb = labB / c;
+
+        float sCusp = computeMaxSaturation(a, bb);
+        float lCusp = findCuspL(a, bb, sCusp);
+        float cCusp = lCusp * sCusp;
+
+        float ld = labL - lCusp;
+        float k = 2.0f * (ld > 0.0f ? 1.0f - lCusp : lCusp);
+
+        float e1 = 0.5f * k + Math.abs(ld) + alpha * c / k;
+        float l0 = lCusp + 0.5f * (ColorMath.sign(ld) * (e1 - ColorMath.sqrt(e1 * e1 - 2.0f * k * Math.abs(ld))));
+
+        float t = findGamutIntersection(a, bb, labL, c, l0, lCusp, cCusp);
+        float lClipped = l0 * (1.0f - t) + t * labL;
+        float cClipped = t * c;
+
+        oklabToLinearSrgb(lClipped, cClipped * a, cClipped * bb, r, g, b, index);
+    }
+
+    private static void oklabToLinearSrgb(float labL, float labA, float labB,
+                                          float[] r, float[] g, float[] b, int index) {
+        float l_ = labL + 0.3963377774f * labA + 0.2158037573f * labB;
+        float m_ = labL - 0.1055613458f * labA - 0.0638541728f * labB;
+        float s_ = labL - 0.0894841775f * labA - 1.2914855480f * labB;
+        float l = l_ * l_ * l_;
+        float m = m_ * m_ * m_;
+        float s = s_ * s_ * s_;
+        r[index] = +4.0767416621f * l - 3.3077115913f * m + 0.2309699292f * s;
+        g[index] = -1.2684380046f * l + 2.6097574011f * m - 0.3413193965f * s;
+        b[index] = -0.0041960863f * l - 0.7034186147f * m + 1.7076147010f * s;
+    }
+
+    /**
+     * 给定色调在sRGB里的最大饱和度S=C/L，a和b要归一化
+     */
+    private static float computeMaxSaturation(float a, float b) {
+        float k0, k1, k2, k3, k4, wl, wm, ws;
+        if (-1.88170328f * a - 0.80936493f * b > 1.0f) {
+            k0 = +1.19086277f;
+            k1 = +1.76576728f;
+            k2 = +0.59662641f;
+            k3 = +0.75515197f;
+            k4 = +0.56771245f;
+            wl = +4.0767416621f;
+            wm = -3.3077115913f;
+            ws = +0.2309699292f;
+        } else if (1.81444104f * a - 1.19445276f * b > 1.0f) {
+            k0 = +0.73956515f;
+            k1 = -0.45954404f;
+            k2 = +0.08285427f;
+            k3 = +0.12541070f;
+            k4 = +0.14503204f;
+            wl = -1.2684380046f;
+            wm = +2.6097574011f;
+            ws = -0.3413193965f;
+        } else {
+            k0 = +1.35733652f;
+            k1 = -0.00915799f;
+            k2 = -1.15130210f;
+            k3 = -0.50559606f;
+            k4 = +0.00692167f;
+            wl = -0.0041960863f;
+            wm = -0.7034186147f;
+            ws = +1.7076147010f;
+        }
+        float saturation = k0 + k1 * a + k2 * b + k3 * a * a + k4 * a * b;
+
+        float kl = +0.3963377774f * a + 0.2158037573f * b;
+        float km = -0.1055613458f * a - 0.0638541728f * b;
+        float ks = -0.0894841775f * a - 1.2914855480f * b;
+
+        float l_ = 1.0f + saturation * kl;
+        float m_ = 1.0f + saturation * km;
+        float s_ = 1.0f + saturation * ks;
+
+        float l = l_ * l_ * l_;
+        float m = m_ * m_ * m_;
+        float s = s_ * s_ * s_;
+
+        float lDS = 3.0f * kl * l_ * l_;
+        float mDS = 3.0f * km * m_ * m_;
+        float sDS = 3.0f * ks * s_ * s_;
+
+        float lDS2 = 6.0f * kl * kl * l_;
+        float mDS2 = 6.0f * km * km * m_;
+        float sDS2 = 6.0f * ks * ks * s_;
+
+        float f = wl * l + wm * m + ws * s;
+        float f1 = wl * lDS + wm * mDS + ws * sDS;
+        float f2 = wl * lDS2 + wm * mDS2 + ws * sDS2;
+
+        return saturation - f * f1 / (f1 * f1 - 0.5f * f * f2);
+    }
+
+    /**
+     * find_cusp里的L_cusp
+     */
+    private static float findCuspL(float a, float b, float sCusp) {
+        float labA = sCusp * a;
+        float labB = sCusp * b;
+        float l_ = 1.0f + 0.3963377774f * labA + 0.2158037573f * labB;
+        float m_ = 1.0f - 0.1055613458f * labA - 0.0638541728f * labB;
+        float s_ = 1.0f - 0.0894841775f * labA - 1.2914855480f * labB;
+        float l = l_ * l_ * l_;
+        float m = m_ * m_ * m_;
+        float s = s_ * s_ * s_;
+        float red = +4.0767416621f * l - 3.3077115913f * m + 0.2309699292f * s;
+        float green = -1.2684380046f * l + 2.6097574011f * m - 0.3413193965f * s;
+        float blue = -0.0041960863f * l - 0.7034186147f * m + 1.7076147010f * s;
+        float invMaxC = 1.0f / Math.max(Math.max(red, green), blue);
+        return ColorMath.cbrt(invMaxC);
+    }
+
+    private static float findGamutIntersection(float a, float b, float l1, float c1, float l0,
+                                               float lCusp, float cCusp) {
+        float t;
+        if (((l1 - l0) * cCusp - (lCusp - l0) * c1) <= 0.0f) {
+            t = cCusp * l0 / (c1 * lCusp + cCusp * (l0 - l1));
+        } else {
+            t = cCusp * (l0 - 1.0f) / (c1 * (lCusp - 1.0f) + cCusp * (l0 - l1));
+
+            float dL = l1 - l0;
+            float dC = c1;
+
+            float kl = +0.3963377774f * a + 0.2158037573f * b;
+            float km = -0.1055613458f * a - 0.0638541728f * b;
+            float ks = -0.0894841775f * a - 1.2914855480f * b;
+
+            float lDt = dL + dC * kl;
+            float mDt = dL + dC * km;
+            float sDt = dL + dC * ks;
+
+            float lum = l0 * (1.0f - t) + t * l1;
+            float chroma = t * c1;
+
+            float l_ = lum + chroma * kl;
+            float m_ = lum + chroma * km;
+            float s_ = lum + chroma * ks;
+
+            float l = l_ * l_ * l_;
+            float m = m_ * m_ * m_;
+            float s = s_ * s_ * s_;
+
+            float ldt = 3.0f * lDt * l_ * l_;
+            float mdt = 3.0f * mDt * m_ * m_;
+            float sdt = 3.0f * sDt * s_ * s_;
+
+            float ldt2 = 6.0f * lDt * lDt * l_;
+            float mdt2 = 6.0f * mDt * mDt * m_;
+            float sdt2 = 6.0f * sDt * sDt * s_;
+
+            float r0 = 4.0767416621f * l - 3.3077115913f * m + 0.2309699292f * s - 1.0f;
+            float r1 = 4.0767416621f * ldt - 3.3077115913f * mdt + 0.2309699292f * sdt;
+            float r2 = 4.0767416621f * ldt2 - 3.3077115913f * mdt2 + 0.2309699292f * sdt2;
+            float uR = r1 / (r1 * r1 - 0.5f * r0 * r2);
+            float tR = -r0 * uR;
+
+            float g0 = -1.2684380046f * l + 2.6097574011f * m - 0.3413193965f * s - 1.0f;
+            float g1 = -1.2684380046f * ldt + 2.6097574011f * mdt - 0.3413193965f * sdt;
+            float g2 = -1.2684380046f * ldt2 + 2.6097574011f * mdt2 - 0.3413193965f * sdt2;
+            float uG = g1 / (g1 * g1 - 0.5f * g0 * g2);
+            float tG = -g0 * uG;
+
+            float b0 = -0.0041960863f * l - 0.7034186147f * m + 1.7076147010f * s - 1.0f;
+            float b1 = -0.0041960863f * ldt - 0.7034186147f * mdt + 1.7076147010f * sdt;
+            float b2 = -0.0041960863f * ldt2 - 0.7034186147f * mdt2 + 1.7076147010f * sdt2;
+            float uB = b1 / (b1 * b1 - 0.5f * b0 * b2);
+            float tB = -b0 * uB;
+
+            tR = uR >= 0.0f ? tR : FLT_MAX;
+            tG = uG >= 0.0f ? tG : FLT_MAX;
+            tB = uB >= 0.0f ? tB : FLT_MAX;
+
+            t += Math.min(tR, Math.min(tG, tB));
+        }
+        return t;
+    }
+
+    /**
+     * Kotlin的GamutMap对应的Java实现
+     */
+    public static ColorFunction from(GamutMap gamutMap) {
+        if (gamutMap == GamutMap.NONE) {
+            return NONE;
+        } else if (gamutMap == GamutMap.ADAPTIVE_L0_CUSP) {
+            return ADAPTIVE_L0_CUSP;
+        } else if (gamutMap == GamutMap.CLIP) {
+            return CLIP;
+        } else if (gamutMap == GamutMap.COMPRESS) {
+            return COMPRESS;
+        }
+        throw new IllegalArgumentException("not support " + gamutMap);
+    }
+}
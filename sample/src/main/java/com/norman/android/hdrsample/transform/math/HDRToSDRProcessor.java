@@ -0,0 +1,134 @@
+package com.norman.android.hdrsample.transform.math;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.shader.HDRToSDRShader;
+import com.norman.android.hdrsample.transform.shader.chromacorrect.ChromaCorrection;
+import com.norman.android.hdrsample.transform.shader.gamma.GammaEOTF;
+import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF;
+import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
+
+/**
+ * {@link HDRToSDRShader}的Java版本，步骤和Shader的main一样：EOTF、色度矫正、色调映射、色域映射、OETF
+ * 可以在CPU上生成LUT、对比GPU的结果，或者在没有GPU的机器上测性能
+ * <p>
+ * 按块处理，每块依次做完所有步骤，中间结果留在缓存里；每个步骤都是对数组的简单循环，方便JIT优化
+ */
+public class HDRToSDRProcessor {
+
+    /**
+     * 每次处理的颜色数量，三个通道一共12KB，能放进L1缓存
+     */
+    private static final int BLOCK_SIZE = 1024;
+
+    public final @ColorSpace int colorSpace;
+
+    private final ColorFunction gammaEOTF;
+    private final ColorFunction chromaCorrection;
+    private final ColorFunction toneMap;
+    private final ColorFunction gamutMap;
+    private final ColorFunction gammaOETF;
+
+    public HDRToSDRProcessor(@ColorSpace int colorSpace,
+                             ChromaCorrection chromaCorrection,
+                             ToneMap toneMap,
+                             GamutMap gamutMap,
+                             GammaOETF gammaOETF,
+                             boolean referenceDisplay) {
+        this(colorSpace,
+                getGammaEOTF(colorSpace, referenceDisplay),
+                chromaCorrection,
+                toneMap,
+                gamutMap,
+                gammaOETF);
+    }
+
+    /**
+     * 和Shader用一样的参数
+     */
+    public HDRToSDRProcessor(HDRToSDRShader shader) {
+        this(shader.colorSpace,
+                shader.getGammaEOTF(),
+                shader.chromaCorrection,
+                shader.toneMap,
+                shader.gamutMap,
+                shader.gammaOETF);
+    }
+
+    private HDRToSDRProcessor(@ColorSpace int colorSpace,
+                              GammaEOTF gammaEOTF,
+                              ChromaCorrection chromaCorrection,
+                              ToneMap toneMap,
+                              GamutMap gamutMap,
+                              GammaOETF gammaOETF) {
+        this.colorSpace = colorSpace;
+        this.gammaEOTF = TransferFunctions.fromEOTF(gammaEOTF);
+        this.chromaCorrection = ChromaCorrectionFunctions.from(chromaCorrection);
+        this.toneMap = ToneMapFunctions.from(toneMap);
+        this.gamutMap = GamutMapFunctions.from(gamutMap);
+        this.gammaOETF = TransferFunctions.fromOETF(gammaOETF);
+    }
+
+    /**
+     * 和HDRToSDRShader选择EOTF的规则一样
+     */
+    private static GammaEOTF getGammaEOTF(@ColorSpace int colorSpace, boolean referenceDisplay) {
+        if (colorSpace == ColorSpace.VIDEO_BT2020_PQ) {
+            return referenceDisplay ? GammaEOTF.PQDisPlay : GammaEOTF.PQScene;
+        } else if (colorSpace == ColorSpace.VIDEO_BT2020_HLG) {
+            return referenceDisplay ? GammaEOTF.HLGDisplay : GammaEOTF.HLGScene;
+        }
+        return GammaEOTF.NONE;
+    }
+
+    /**
+     * 处理[offset, offset+count)范围的颜色，输入是视频的非线性颜色，结果写回输入数组
+     *
+     * @param params colorSpace要和构造时的一样
+     */
+    public void process(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+        if (params.colorSpace != colorSpace) {
+            throw new IllegalArgumentException("params colorSpace " + params.colorSpace + " not equal " + colorSpace);
+        }
+        int end = offset + count;
+        for (int start = offset; start < end; start += BLOCK_SIZE) {
+            int blockCount = Math.min(BLOCK_SIZE, end - start);
+            gammaEOTF.apply(params, r, g, b, start, blockCount);
+            chromaCorrection.apply(params, r, g, b, start, blockCount);
+            if (colorSpace != ColorSpace.VIDEO_BT2020_LINEAR) {
+                toneMap.apply(params, r, g, b, start, blockCount);
+            }
+            gamutMap.apply(params, r, g, b, start, blockCount);
+            gammaOETF.apply(params, r, g, b, start, blockCount);
+        }
+    }
+
+    public void process(ColorParams params, float[] r, float[] g, float[] b) {
+        process(params, r, g, b, 0, Math.min(r.length, Math.min(g.length, b.length)));
+    }
+
+    /**
+     * 生成3D LUT，和HDRToSDRLutBaker的网格一样，红色变化最快，数组长度至少是size的三次方
+     *
+     * @param params
+     * @param size   LUT大小
+     * @param r      输出的红色
+     * @param g      输出的绿色
+     * @param b      输出的蓝色
+     */
+    public void bakeLut(ColorParams params, int size, float[] r, float[] g, float[] b) {
+        float scale = 1.0f / (size - 1);
+        int index = 0;
+        for (int z = 0; z < size; z++) {
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    r[index] = x * scale;
+                    g[index] = y * scale;
+                    b[index] = z * scale;
+                    index++;
+                }
+            }
+        }
+        process(params, r, g, b, 0, index);
+    }
+}
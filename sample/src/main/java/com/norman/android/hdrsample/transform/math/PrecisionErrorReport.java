@@ -0,0 +1,283 @@
+package com.norman.android.hdrsample.transform.math;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.CubeLutBuffer;
+import com.norman.android.hdrsample.transform.shader.HDRToSDRShader;
+import com.norman.android.hdrsample.util.HalfFloatUtil;
+
+/**
+ * {@link HDRToSDRShader}和CubeLutVideoTransform的mediump变体和全部highp的误差报告，在CPU上计算，不需要GPU
+ * <p>
+ * 用mediump的步骤在输入和输出时把颜色舍入成半精度浮点数，非规格化数当作0(很多GPU的mediump会直接清零)，
+ * 步骤内部还是float计算，所以结果是误差的下限，用来确认哪些步骤不能用mediump
+ * 误差的单位是输出位深的码值，和输出纹理一样先限制在0到1再比较
+ */
+public class PrecisionErrorReport {
+
+    /**
+     * 量化后最多差1个码值
+     */
+    public static final float MAX_ACCEPTABLE_ERROR = 1.0f;
+
+    /**
+     * 16位输出都用highp，只评估8位和10位
+     */
+    public static final int MAX_MEDIUMP_BIT_DEPTH = 10;
+
+    /**
+     * 灰阶用10位的所有码值
+     */
+    private static final int GREY_SIZE = 1024;
+
+    /**
+     * 彩色用17x17x17的网格，包含了饱和色和边界
+     */
+    private static final int GRID_SIZE = 17;
+
+    /**
+     * 半精度最小的规格化数
+     */
+    private static final float HALF_MIN_NORMAL = 6.1035156e-5f;
+
+    public final int sampleCount;
+
+    /**
+     * 最大误差，单位是码值
+     */
+    public final float maxError;
+
+    /**
+     * 平均误差，单位是码值
+     */
+    public final float meanError;
+
+    /**
+     * 量化后码值不一样的颜色数量
+     */
+    public final int mismatchCount;
+
+    /**
+     * 误差最大的输入颜色
+     */
+    public final float[] worstInput;
+
+    private PrecisionErrorReport(int sampleCount, float maxError, float meanError, int mismatchCount, float[] worstInput) {
+        this.sampleCount = sampleCount;
+        this.maxError = maxError;
+        this.meanError = meanError;
+        this.mismatchCount = mismatchCount;
+        this.worstInput = worstInput;
+    }
+
+    /**
+     * 按shader的{@link HDRToSDRShader#bitDepth}和各步骤的精度计算误差
+     *
+     * @param shader 要评估的变体
+     * @param params colorSpace要和shader的一样
+     * @return
+     */
+    public static PrecisionErrorReport create(HDRToSDRShader shader, ColorParams params) {
+        float[][] input = createInput(new float[]{0.0f, 0.0f, 0.0f}, new float[]{1.0f, 1.0f, 1.0f});
+        float[] r = input[0].clone();
+        float[] g = input[1].clone();
+        float[] b = input[2].clone();
+        float[] testR = input[0].clone();
+        float[] testG = input[1].clone();
+        float[] testB = input[2].clone();
+        new HDRToSDRProcessor(shader).process(params, r, g, b);
+        processMediump(shader, params, testR, testG, testB);
+        return compare(input, r, g, b, testR, testG, testB, shader.bitDepth);
+    }
+
+    /**
+     * CubeLutVideoTransform用mediump时的误差，坐标和输入输出舍入成半精度，3D纹理的采样和插值用float
+     * 有shaper时只舍入输入输出
+     *
+     * @param cubeLutBuffer 要评估的LUT
+     * @param bitDepth      输出位深
+     * @return
+     */
+    public static PrecisionErrorReport create(CubeLutBuffer cubeLutBuffer, int bitDepth) {
+        boolean shaper = cubeLutBuffer.hasShaper();
+        float[] domainMin = shaper ? cubeLutBuffer.shaperDomainMin : cubeLutBuffer.domainMin;
+        float[] domainMax = shaper ? cubeLutBuffer.shaperDomainMax : cubeLutBuffer.domainMax;
+        float[][] input = createInput(domainMin, domainMax);
+        int count = input[0].length;
+        float[] r = new float[count];
+        float[] g = new float[count];
+        float[] b = new float[count];
+        float[] testR = new float[count];
+        float[] testG = new float[count];
+        float[] testB = new float[count];
+        float[] color = new float[3];
+        float[] rgb = new float[3];
+        int size = cubeLutBuffer.size;
+        float scale = toMediump((size - 1.0f) / size);
+        float offset = toMediump(1.0f / (2.0f * size));
+        for (int i = 0; i < count; i++) {
+            cubeLutBuffer.sample(input[0][i], input[1][i], input[2][i], rgb);
+            r[i] = rgb[0];
+            g[i] = rgb[1];
+            b[i] = rgb[2];
+            for (int channel = 0; channel < 3; channel++) {
+                float value = toMediump(input[channel][i]);
+                if (!shaper) {
+                    float range = domainMax[channel] - domainMin[channel];
+                    float coordinate = toMediump(Math.max(0.0f, Math.min(1.0f, (value - domainMin[channel]) / range)));
+                    // Shader里的纹理坐标是scale * coordinate + offset，换算回定义域再用float采样
+                    float textureCoordinate = toMediump(toMediump(scale * coordinate) + offset);
+                    value = domainMin[channel] + (textureCoordinate - offset) / scale * range;
+                }
+                color[channel] = value;
+            }
+            cubeLutBuffer.sample(color[0], color[1], color[2], rgb);
+            testR[i] = toMediump(rgb[0]);
+            testG[i] = toMediump(rgb[1]);
+            testB[i] = toMediump(rgb[2]);
+        }
+        return compare(input, r, g, b, testR, testG, testB, bitDepth);
+    }
+
+    /**
+     * 10位输出没问题时返回10，只有8位没问题返回8，都不行返回0
+     * 两次评估大概一万两千次三线性插值，在加载LUT的线程调用
+     *
+     * @param cubeLutBuffer
+     * @return 可以用mediump的最大输出位深
+     */
+    public static int getMediumpBitDepth(CubeLutBuffer cubeLutBuffer) {
+        if (create(cubeLutBuffer, MAX_MEDIUMP_BIT_DEPTH).isAcceptable()) {
+            return MAX_MEDIUMP_BIT_DEPTH;
+        }
+        if (create(cubeLutBuffer, 8).isAcceptable()) {
+            return 8;
+        }
+        return 0;
+    }
+
+    /**
+     * 灰阶和彩色网格，从定义域的最小值到最大值
+     */
+    private static float[][] createInput(float[] domainMin, float[] domainMax) {
+        int count = GREY_SIZE + GRID_SIZE * GRID_SIZE * GRID_SIZE;
+        float[][] input = new float[3][count];
+        int index = 0;
+        for (int i = 0; i < GREY_SIZE; i++) {
+            float value = i / (GREY_SIZE - 1.0f);
+            for (int channel = 0; channel < 3; channel++) {
+                input[channel][index] = domainMin[channel] + value * (domainMax[channel] - domainMin[channel]);
+            }
+            index++;
+        }
+        float scale = 1.0f / (GRID_SIZE - 1);
+        for (int z = 0; z < GRID_SIZE; z++) {
+            for (int y = 0; y < GRID_SIZE; y++) {
+                for (int x = 0; x < GRID_SIZE; x++) {
+                    input[0][index] = domainMin[0] + x * scale * (domainMax[0] - domainMin[0]);
+                    input[1][index] = domainMin[1] + y * scale * (domainMax[1] - domainMin[1]);
+                    input[2][index] = domainMin[2] + z * scale * (domainMax[2] - domainMin[2]);
+                    index++;
+                }
+            }
+        }
+        return input;
+    }
+
+    private static PrecisionErrorReport compare(float[][] input,
+                                                float[] r, float[] g, float[] b,
+                                                float[] testR, float[] testG, float[] testB,
+                                                int bitDepth) {
+        int count = r.length;
+        float codeScale = (1 << bitDepth) - 1;
+        float maxError = 0;
+        double sumError = 0;
+        int mismatchCount = 0;
+        int worstIndex = 0;
+        for (int i = 0; i < count; i++) {
+            float error = Math.max(Math.abs(clamp(r[i]) - clamp(testR[i])),
+                    Math.max(Math.abs(clamp(g[i]) - clamp(testG[i])), Math.abs(clamp(b[i]) - clamp(testB[i])))) * codeScale;
+            if (error > maxError) {
+                maxError = error;
+                worstIndex = i;
+            }
+            sumError += error;
+            if (quantize(r[i], codeScale) != quantize(testR[i], codeScale) ||
+                    quantize(g[i], codeScale) != quantize(testG[i], codeScale) ||
+                    quantize(b[i], codeScale) != quantize(testB[i], codeScale)) {
+                mismatchCount++;
+            }
+        }
+        float[] worstInput = {input[0][worstIndex], input[1][worstIndex], input[2][worstIndex]};
+        return new PrecisionErrorReport(count, maxError, (float) (sumError / count), mismatchCount, worstInput);
+    }
+
+    /**
+     * 和{@link HDRToSDRProcessor#process}的步骤一样，mediump的步骤前后舍入成半精度
+     */
+    private static void processMediump(HDRToSDRShader shader, ColorParams params, float[] r, float[] g, float[] b) {
+        ColorFunction gammaEOTF = TransferFunctions.fromEOTF(shader.getGammaEOTF());
+        ColorFunction chromaCorrection = ChromaCorrectionFunctions.from(shader.chromaCorrection);
+        ColorFunction toneMap = ToneMapFunctions.from(shader.toneMap);
+        ColorFunction gamutMap = GamutMapFunctions.from(shader.gamutMap);
+        ColorFunction gammaOETF = TransferFunctions.fromOETF(shader.gammaOETF);
+
+        gammaEOTF.apply(params, r, g, b);
+        chromaCorrection.apply(params, r, g, b);
+        if (shader.colorSpace != ColorSpace.VIDEO_BT2020_LINEAR) {
+            toneMap.apply(params, r, g, b);
+        }
+        gamutMap.apply(params, r, g, b);
+        applyStage(gammaOETF, shader.gammaOETFMediump, params, r, g, b);
+    }
+
+    private static void applyStage(ColorFunction function, boolean mediump,
+                                   ColorParams params, float[] r, float[] g, float[] b) {
+        if (mediump) {
+            toMediump(r);
+            toMediump(g);
+            toMediump(b);
+        }
+        function.apply(params, r, g, b);
+        if (mediump) {
+            toMediump(r);
+            toMediump(g);
+            toMediump(b);
+        }
+    }
+
+    private static void toMediump(float[] x) {
+        for (int i = 0; i < x.length; i++) {
+            x[i] = toMediump(x[i]);
+        }
+    }
+
+    private static float toMediump(float value) {
+        return Math.abs(value) < HALF_MIN_NORMAL ? 0.0f : HalfFloatUtil.toFloat(HalfFloatUtil.toHalf(value));
+    }
+
+    /**
+     * 8位和10位的输出纹理都是归一化整数，写入时会限制在0到1，NaN按0处理
+     */
+    private static float clamp(float value) {
+        return value > 0.0f ? Math.min(value, 1.0f) : 0.0f;
+    }
+
+    private static int quantize(float value, float codeScale) {
+        return Math.round(clamp(value) * codeScale);
+    }
+
+    public boolean isAcceptable() {
+        return maxError <= MAX_ACCEPTABLE_ERROR;
+    }
+
+    @Override
+    public String toString() {
+        return "PrecisionErrorReport{" +
+                "sampleCount=" + sampleCount +
+                ", maxError=" + maxError +
+                ", meanError=" + meanError +
+                ", mismatchCount=" + mismatchCount +
+                ", worstInput=[" + worstInput[0] + ", " + worstInput[1] + ", " + worstInput[2] + "]" +
+                '}';
+    }
+}
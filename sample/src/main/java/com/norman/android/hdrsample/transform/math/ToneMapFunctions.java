@@ -0,0 +1,379 @@
+package com.norman.android.hdrsample.transform.math;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
+
+/**
+ * {@link ToneMap}的Java版本，常量名和Kotlin里的一样，输入输出都是线性的BT2020颜色
+ * 每种方法里和像素无关的参数先在循环外算好
+ */
+public class ToneMapFunctions {
+
+    public static final ColorFunction NONE = ColorFunction.NONE;
+
+    /**
+     * ToneMapAndroid8，对XYZ的Y用分段曲线调整
+     */
+    public static final ColorFunction ANDROID8 = new ColorFunction() {
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            float maxInLumi = params.hdrPeakLuminance;
+            float maxOutLumi = params.maxDisplayLuminance;
+            float masterScale = params.getMasterScale();
+            float x0 = 10.0f;
+            float y0 = 17.0f;
+            float x1 = maxOutLumi * 0.75f;
+            float y1 = x1;
+            float x2 = x1 + (maxInLumi - x1) / 2.0f;
+            float y2 = y1 + (maxOutLumi - y1) * 0.75f;
+            float h12 = x2 - x1;
+            float h23 = maxInLumi - x2;
+            float m1 = (y2 - y1) / h12;
+            float m3 = (maxOutLumi - y2) / h23;
+            float m2 = (m1 + m3) / 2.0f;
+            boolean noToneMap = maxInLumi <= maxOutLumi;
+            float[] m = ColorMath.BT2020_TO_XYZ;
+            float[] n = ColorMath.XYZ_TO_BT2020;
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float red = r[i] * masterScale;
+                float green = g[i] * masterScale;
+                float blue = b[i] * masterScale;
+                float x = m[0] * red + m[3] * green + m[6] * blue;
+                float y = m[1] * red + m[4] * green + m[7] * blue;
+                float z = m[2] * red + m[5] * green + m[8] * blue;
+                float gain = 1.0f;
+                if (y > 0.0f) {
+                    float nits = y;
+                    if (!noToneMap) {
+                        if (nits < x0) {
+                            nits = nits * (y0 / x0);
+                        } else if (nits < x1) {
+                            nits = y0 + (nits - x0) * ((y1 - y0) / (x1 - x0));
+                        } else if (nits < x2) {
+                            float t = (nits - x1) / h12;
+                            nits = (y1 * (1.0f + 2.0f * t) + h12 * m1 * t) *
+                                    (1.0f - t) * (1.0f - t) +
+                                    (y2 * (3.0f - 2.0f * t) +
+                                            h12 * m2 * (t - 1.0f)) * t * t;
+                        } else {
+                            float t = (nits - x2) / h23;
+                            nits = (y2 * (1.0f + 2.0f * t) + h23 * m2 * t) *
+                                    (1.0f - t) * (1.0f - t) + (maxOutLumi *
+                                    (3.0f - 2.0f * t) + h23 * m3 *
+                                    (t - 1.0f)) * t * t;
+                        }
+                    }
+                    gain = nits / y;
+                }
+                x *= gain;
+                y *= gain;
+                z *= gain;
+                r[i] = (n[0] * x + n[3] * y + n[6] * z) / maxOutLumi;
+                g[i] = (n[1] * x + n[4] * y + n[7] * z) / maxOutLumi;
+                b[i] = (n[2] * x + n[5] * y + n[8] * z) / maxOutLumi;
+            }
+        }
+    };
+
+    /**
+     * ToneMapAndroid13，HLG按屏幕亮度缩放，PQ对maxRGB在PQ域里分段线性调整
+     */
+    public static final ColorFunction ANDROID13 = new ColorFunction() {
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            boolean hlg = params.colorSpace == ColorSpace.VIDEO_BT2020_HLG;
+            float maxInLumi = params.hdrPeakLuminance;
+            float maxOutLumi = params.maxDisplayLuminance;
+            float masterScale = params.getMasterScale();
+            float x1 = maxOutLumi * 0.65f;
+            float y1 = x1;
+            float x3 = maxInLumi;
+            float y3 = maxOutLumi;
+            float x2 = x1 + (x3 - x1) * 4.0f / 17.0f;
+            float y2 = maxOutLumi * 0.9f;
+            float greyNorm1 = TransferFunctions.pqDisplayOETF(x1 / ColorParams.PQ_MAX_LUMINANCE);
+            float greyNorm2 = TransferFunctions.pqDisplayOETF(x2 / ColorParams.PQ_MAX_LUMINANCE);
+            float greyNorm3 = TransferFunctions.pqDisplayOETF(x3 / ColorParams.PQ_MAX_LUMINANCE);
+            float slope2 = (y2 - y1) / (greyNorm2 - greyNorm1);
+            float slope3 = (y3 - y2) / (greyNorm3 - greyNorm2);
+            float[] m = ColorMath.BT2020_TO_XYZ;
+            float[] n = ColorMath.XYZ_TO_BT2020;
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float red = r[i] * masterScale;
+                float green = g[i] * masterScale;
+                float blue = b[i] * masterScale;
+                float x = m[0] * red + m[3] * green + m[6] * blue;
+                float y = m[1] * red + m[4] * green + m[7] * blue;
+                float z = m[2] * red + m[5] * green + m[8] * blue;
+                float maxRGB = Math.max(red, Math.max(green, blue));
+                float gain = 1.0f;
+                if (maxRGB > 0.0f) {
+                    float nits;
+                    if (hlg) {
+                        nits = maxRGB * maxOutLumi / ColorParams.HLG_MAX_LUMINANCE;
+                    } else if (maxRGB < x1) {
+                        nits = maxRGB;
+                    } else if (maxRGB > maxInLumi) {
+                        nits = maxOutLumi;
+                    } else {
+                        float greyNits = TransferFunctions.pqDisplayOETF(maxRGB / ColorParams.PQ_MAX_LUMINANCE);
+                        if (greyNits <= greyNorm2) {
+                            nits = (greyNits - greyNorm2) * slope2 + y2;
+                        } else if (greyNits <= greyNorm3) {
+                            nits = (greyNits - greyNorm3) * slope3 + y3;
+                        } else {
+                            nits = maxOutLumi;
+                        }
+                    }
+                    gain = nits / maxRGB;
+                }
+                x *= gain;
+                y *= gain;
+                z *= gain;
+                r[i] = (n[0] * x + n[3] * y + n[6] * z) / maxOutLumi;
+                g[i] = (n[1] * x + n[4] * y + n[7] * z) / maxOutLumi;
+                b[i] = (n[2] * x + n[5] * y + n[8] * z) / maxOutLumi;
+            }
+        }
+    };
+
+    /**
+     * ToneMapBT2446A，YCbCr里只对Y在感知域调整
+     */
+    public static final ColorFunction BT2446A = new ColorFunction() {
+        private static final float A = 0.2627002120112671f;
+        private static final float B = 0.6779980715188708f;
+        private static final float C = 0.05930171646986196f;
+        private static final float D = 2.0f * (1.0f - C);
+        private static final float E = 2.0f * (1.0f - A);
+
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            float scale = params.getReferenceWhiteScale();
+            float pHDR = 1.0f + 32.0f * ColorMath.pow(params.hdrPeakLuminance / ColorParams.PQ_MAX_LUMINANCE, 1.0f / 2.4f);
+            float pSDR = 1.0f + 32.0f * ColorMath.pow(ColorParams.HDR_REFERENCE_WHITE / ColorParams.PQ_MAX_LUMINANCE, 1.0f / 2.4f);
+            float logPHDR = ColorMath.log(pHDR);
+            float w = params.hdrPeakLuminance / ColorParams.HDR_REFERENCE_WHITE;
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float red = r[i] * scale;
+                float green = g[i] * scale;
+                float blue = b[i] * scale;
+                float y = red * A + green * B + blue * C;
+                float cb = (blue - y) / D;
+                float cr = (red - y) / E;
+                y /= w;
+                cb /= w;
+                cr /= w;
+
+                float yp = ColorMath.log(1.0f + (pHDR - 1.0f) * ColorMath.pow(y, 1.0f / 2.4f)) / logPHDR;
+                float yc;
+                if (yp <= 0.7399f) {
+                    yc = yp * 1.0770f;
+                } else if (yp < 0.9909f) {
+                    yc = yp * (-1.1510f * yp + 2.7811f) - 0.6302f;
+                } else {
+                    yc = yp * 0.5000f + 0.5000f;
+                }
+                float ySdr = ColorMath.pow((ColorMath.pow(pSDR, yc) - 1.0f) / (pSDR - 1.0f), 2.4f);
+
+                float yr = ySdr / (1.1f * y);
+                cb *= yr;
+                cr *= yr;
+                y = ySdr - Math.max(0.1f * cr, 0.0f);
+
+                r[i] = y + E * cr;
+                g[i] = y - (A * E / B) * cr - (C * D / B) * cb;
+                b[i] = y + D * cb;
+            }
+        }
+    };
+
+    /**
+     * ToneMapBT2446A1，PQ先用BT2408的EETF压缩到1000亮度，再在伽马域做BT2446A
+     */
+    public static final ColorFunction BT2446A1 = new ColorFunction() {
+        private static final float LUMA_R = 0.262700f;
+        private static final float LUMA_G = 0.677998f;
+        private static final float LUMA_B = 0.059302f;
+        private static final float GCR = LUMA_R / LUMA_G;
+        private static final float GCB = LUMA_B / LUMA_G;
+
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            boolean pq = params.colorSpace == ColorSpace.VIDEO_BT2020_PQ;
+            float pHdr = 1.0f + 32.0f * ColorMath.pow(params.hdrPeakLuminance / ColorParams.PQ_MAX_LUMINANCE, 1.0f / 2.4f);
+            float pSdr = 1.0f + 32.0f * ColorMath.pow(ColorParams.HDR_REFERENCE_WHITE / ColorParams.PQ_MAX_LUMINANCE, 1.0f / 2.4f);
+            float logPHdr = ColorMath.log(pHdr);
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float red = r[i];
+                float green = g[i];
+                float blue = b[i];
+                if (pq) {
+                    red *= 10000.0f;
+                    green *= 10000.0f;
+                    blue *= 10000.0f;
+                    float m1 = Math.max(red, Math.max(green, blue));
+                    float m2 = pqEOTF(pqEETF(pqOETF(m1)));
+                    float scale = m2 / m1 / 1000.0f;
+                    red *= scale;
+                    green *= scale;
+                    blue *= scale;
+                }
+                float xr = ColorMath.pow(red, 1.0f / 2.4f);
+                float xg = ColorMath.pow(green, 1.0f / 2.4f);
+                float xb = ColorMath.pow(blue, 1.0f / 2.4f);
+                float yHdr = LUMA_R * xr + LUMA_G * xg + LUMA_B * xb;
+
+                float yp = ColorMath.log(1.0f + (pHdr - 1.0f) * yHdr) / logPHdr;
+                float yc;
+                if (yp > 0.7399f) {
+                    yc = yp > 0.9909f ? 0.5f * yp + 0.5f : (-1.1510f * yp + 2.7811f) * yp - 0.6302f;
+                } else {
+                    yc = 1.077f * yp;
+                }
+                float ySdr = (ColorMath.pow(pSdr, yc) - 1.0f) / (pSdr - 1.0f);
+
+                float scale = ySdr / (1.1f * yHdr);
+                float cbTmo = scale * (xb - yHdr);
+                float crTmo = scale * (xr - yHdr);
+                float yTmo = ySdr - Math.max(0.1f * crTmo, 0.0f);
+                float cgTmo = -(GCR * crTmo + GCB * cbTmo);
+                r[i] = ColorMath.pow(yTmo + crTmo, 2.4f);
+                g[i] = ColorMath.pow(yTmo + cgTmo, 2.4f);
+                b[i] = ColorMath.pow(yTmo + cbTmo, 2.4f);
+            }
+        }
+    };
+
+    private static final float EETF_V_MIN = pqOETF(0.0f);
+    private static final float EETF_V_MAX = pqOETF(10000.0f);
+    private static final float EETF_MIN_LUM = (pqOETF(0.0f) - EETF_V_MIN) / (EETF_V_MAX - EETF_V_MIN);
+    private static final float EETF_MAX_LUM = (pqOETF(1000.0f) - EETF_V_MIN) / (EETF_V_MAX - EETF_V_MIN);
+
+    private static float pqEOTF(float x) {
+        return TransferFunctions.pqDisplayEOTF(x) * ColorParams.PQ_MAX_LUMINANCE;
+    }
+
+    private static float pqOETF(float x) {
+        return TransferFunctions.pqDisplayOETF(x / ColorParams.PQ_MAX_LUMINANCE);
+    }
+
+    /**
+     * BT2408附录5的EETF，PQ信号到PQ信号
+     */
+    private static float pqEETF(float x) {
+        float e1 = (x - EETF_V_MIN) / (EETF_V_MAX - EETF_V_MIN);
+        float ks = 1.5f * EETF_MAX_LUM - 0.5f;
+        float t = (e1 - ks) / (1.0f - ks);
+        float t2 = t * t;
+        float t3 = t2 * t;
+        float p = (2.0f * t3 - 3.0f * t2 + 1.0f) * ks
+                + (t3 - 2.0f * t2 + t) * (1.0f - ks)
+                + (-2.0f * t3 + 3.0f * t2) * EETF_MAX_LUM;
+        float e2 = ColorMath.select(e1, ks, p, e1);
+        e2 = ColorMath.clamp(e2, 0.0f, 1.0f);
+        float e3 = e2 + EETF_MIN_LUM * ColorMath.pow(1.0f - e2, 4.0f);
+        return ColorMath.mix(EETF_V_MIN, EETF_V_MAX, e3);
+    }
+
+    /**
+     * ToneMapBT2446C，对xyY的Y用分段曲线调整
+     */
+    public static final ColorFunction BT2446C = new ColorFunction() {
+        private static final float IP = 58.535f;
+        private static final float K1 = 0.83802f;
+        private static final float K3 = 0.74204f;
+        private static final float OVER_WHITE = 1019.0f / 940.0f;
+
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            float scale = params.getReferenceWhiteScale();
+            float ip = IP / K1;
+            float k2 = (K1 * ip) * (1.0f - K3);
+            float k4 = (K1 * ip) - (k2 * ColorMath.log(1.0f - K3));
+            float[] m = ColorMath.BT2020_TO_XYZ;
+            float[] n = ColorMath.XYZ_TO_BT2020;
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float red = r[i] * scale;
+                float green = g[i] * scale;
+                float blue = b[i] * scale;
+                float x = m[0] * red + m[3] * green + m[6] * blue;
+                float y = m[1] * red + m[4] * green + m[7] * blue;
+                float z = m[2] * red + m[5] * green + m[8] * blue;
+                float divisor = x + y + z;
+                if (divisor == 0.0f) {
+                    divisor = 1e-6f;
+                }
+                float cx = x / divisor;
+                float cy = y / divisor;
+                float luminance = (y < ip ? y * K1 : ColorMath.log((y / ip) - K3) * k2 + k4) / OVER_WHITE;
+                float multiplo = luminance / Math.max(cy, 1e-6f);
+                x = cx * multiplo;
+                y = luminance;
+                z = (1.0f - cx - cy) * multiplo;
+                r[i] = n[0] * x + n[3] * y + n[6] * z;
+                g[i] = n[1] * x + n[4] * y + n[7] * z;
+                b[i] = n[2] * x + n[5] * y + n[8] * z;
+            }
+        }
+    };
+
+    /**
+     * ToneMappingHable，按maxRGB调整
+     */
+    public static final ColorFunction HABLE = new ColorFunction() {
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            float scale = params.getReferenceWhiteScale();
+            float hablePeak = hable(params.hdrPeakLuminance / ColorParams.HDR_REFERENCE_WHITE);
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float red = r[i] * scale;
+                float green = g[i] * scale;
+                float blue = b[i] * scale;
+                float sigOrig = Math.max(Math.max(red, green), blue);
+                float gain = hable(sigOrig) / hablePeak / sigOrig;
+                r[i] = red * gain;
+                g[i] = green * gain;
+                b[i] = blue * gain;
+            }
+        }
+    };
+
+    private static float hable(float x) {
+        final float a = 0.15f;
+        final float b = 0.50f;
+        final float c = 0.10f;
+        final float d = 0.20f;
+        final float e = 0.02f;
+        final float f = 0.30f;
+        return ((x * (a * x + c * b) + d * e) / (x * (a * x + b) + d * f)) - e / f;
+    }
+
+    /**
+     * Kotlin的ToneMap对应的Java实现
+     */
+    public static ColorFunction from(ToneMap toneMap) {
+        if (toneMap == ToneMap.NONE) {
+            return NONE;
+        } else if (toneMap == ToneMap.ANDROID8) {
+            return ANDROID8;
+        } else if (toneMap == ToneMap.ANDROID13) {
+            return ANDROID13;
+        } else if (toneMap == ToneMap.BT2446A) {
+            return BT2446A;
+        } else if (toneMap == ToneMap.BT2446A1) {
+            return BT2446A1;
+        } else if (toneMap == ToneMap.BT2446C) {
+            return BT2446C;
+        } else if (toneMap == ToneMap.HABLE) {
+            return HABLE;
+        }
+        throw new IllegalArgumentException("not support " + toneMap);
+    }
+}
@@ -0,0 +1,318 @@
+package com.norman.android.hdrsample.transform.math;
+
+import com.norman.android.hdrsample.transform.shader.gamma.GammaEOTF;
+import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF;
+
+/**
+ * {@link GammaEOTF}和{@link GammaOETF}的Java版本，常量名和Kotlin里的一样
+ */
+public class TransferFunctions {
+
+    private static final float PQ_M1 = 0.1593017578125f;
+    private static final float PQ_M2 = 78.84375f;
+    private static final float PQ_C1 = 0.8359375f;
+    private static final float PQ_C2 = 18.8515625f;
+    private static final float PQ_C3 = 18.6875f;
+
+    private static final float HLG_A = 0.17883277f;
+    private static final float HLG_B = 0.28466892f;
+    private static final float HLG_C = 0.55991073f;
+    private static final float HLG_MAX_NITS = 1000.0f;
+    private static final float HLG_MIN_NITS = 500.0f;
+
+    private static final float BT709_ALPHA = 1.09929682680944f;
+    private static final float BT709_BETA = 0.018053968510807f;
+
+    private static final float PQ_SCENE_OOTF_SCALE = 59.49080238715383f;
+
+    /**
+     * PQDisplayEOTF，输入会先限制在0到1
+     */
+    public static float pqDisplayEOTF(float color) {
+        color = ColorMath.clamp(color, 0.0f, 1.0f);
+        float p = ColorMath.pow(color, 1.0f / PQ_M2);
+        float num = Math.max(p - PQ_C1, 0.0f);
+        float den = PQ_C2 - PQ_C3 * p;
+        return ColorMath.pow(num / den, 1.0f / PQ_M1);
+    }
+
+    /**
+     * PQDisplayOETF，也就是PQ EOTF的逆函数
+     */
+    public static float pqDisplayOETF(float x) {
+        float ym = ColorMath.pow(x, PQ_M1);
+        return ColorMath.pow((PQ_C1 + PQ_C2 * ym) / (1.0f + PQ_C3 * ym), PQ_M2);
+    }
+
+    public static float pqSceneEOTF(float color) {
+        float display;
+        if (color <= 0.0f) {
+            display = 0.0f;
+        } else {
+            float p = ColorMath.pow(color, 1.0f / PQ_M2);
+            float num = Math.max(p - PQ_C1, 0.0f);
+            float den = PQ_C2 - PQ_C3 * p;
+            display = ColorMath.pow(num / den, 1.0f / PQ_M1);
+        }
+        // 逆OOTF：先BT1886的逆EOTF，再BT709的逆OETF
+        float x = display * 100.0f;
+        x = x >= 0.0f ? ColorMath.pow(x, 1.0f / 2.4f) : 0.0f;
+        x = Math.max(x, 0.0f);
+        if (x < 4.5f * BT709_BETA) {
+            x = x / 4.5f;
+        } else {
+            x = ColorMath.pow((x + (BT709_ALPHA - 1.0f)) / BT709_ALPHA, 1.0f / 0.45f);
+        }
+        return x / PQ_SCENE_OOTF_SCALE;
+    }
+
+    public static float pqSceneOETF(float x) {
+        float y = ColorMath.select(0.0003024f, x,
+                267.84f * x,
+                1.099f * ColorMath.pow(59.5208f * x, 0.45f) - 0.099f);
+        float display = ColorMath.pow(y, 2.4f) / 100.0f;
+        if (display <= 0.0f) {
+            return 0.0f;
+        }
+        float ym = ColorMath.pow(display, PQ_M1);
+        return ColorMath.pow((PQ_C1 + PQ_C2 * ym) / (1.0f + PQ_C3 * ym), PQ_M2);
+    }
+
+    public static float hlgSceneEOTF(float x) {
+        return ColorMath.select(0.5f, x,
+                x * x / 3.0f,
+                (ColorMath.exp((x - HLG_C) / HLG_A) + HLG_B) / 12.0f);
+    }
+
+    public static float hlgSceneOETF(float x) {
+        return ColorMath.select(1.0f / 12.0f, x,
+                ColorMath.sqrt(3.0f * x),
+                HLG_A * ColorMath.log(12.0f * x - HLG_B) + HLG_C);
+    }
+
+    /**
+     * HLG的系统伽马，1000亮度时是1.2
+     */
+    public static float hlgGamma(float lw) {
+        lw = Math.max(lw, HLG_MIN_NITS);
+        return 1.2f + 0.42f * ColorMath.log(lw / HLG_MAX_NITS) / ColorMath.log(10.0f);
+    }
+
+    private static float hlgBlackLiftBeta(ColorParams params, float gamma) {
+        return ColorMath.sqrt(3.0f *
+                ColorMath.pow(params.minDisplayLuminance / params.maxDisplayLuminance, 1.0f / gamma));
+    }
+
+    public static float bt709EOTF(float x) {
+        return ColorMath.select(BT709_BETA * 4.5f, x,
+                x / 4.5f,
+                ColorMath.pow((x + (BT709_ALPHA - 1.0f)) / BT709_ALPHA, 1.0f / 0.45f));
+    }
+
+    public static float bt709OETF(float x) {
+        return ColorMath.select(BT709_BETA, x,
+                x * 4.5f,
+                BT709_ALPHA * ColorMath.pow(x, 0.45f) - (BT709_ALPHA - 1.0f));
+    }
+
+    public static float s170mEOTF(float x) {
+        return ColorMath.select(0.0812f, x,
+                x / 4.5f,
+                ColorMath.pow((x + 0.099f) / 1.099f, 1.0f / 0.45f));
+    }
+
+    public static float s170mOETF(float x) {
+        return ColorMath.select(0.018f, x,
+                x * 4.5f,
+                1.099f * ColorMath.pow(x, 0.45f) - 0.099f);
+    }
+
+    public static float bt1886EOTF(float x) {
+        return ColorMath.pow(x, 2.4f);
+    }
+
+    public static float bt1886OETF(float x) {
+        return ColorMath.pow(x, 1.0f / 2.4f);
+    }
+
+    public static final ColorFunction EOTF_NONE = ColorFunction.NONE;
+
+    public static final ColorFunction EOTF_BT1886 = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return bt1886EOTF(x);
+        }
+    };
+
+    public static final ColorFunction EOTF_S170M = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return s170mEOTF(x);
+        }
+    };
+
+    public static final ColorFunction EOTF_BT709 = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return bt709EOTF(x);
+        }
+    };
+
+    public static final ColorFunction EOTF_HLG_SCENE = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return hlgSceneEOTF(x);
+        }
+    };
+
+    public static final ColorFunction EOTF_PQ_DISPLAY = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return pqDisplayEOTF(x);
+        }
+    };
+
+    public static final ColorFunction EOTF_PQ_SCENE = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return pqSceneEOTF(x);
+        }
+    };
+
+    /**
+     * HLGDisplayEOTF：黑电平调整、HLG逆OETF、再按屏幕亮度做OOTF
+     */
+    public static final ColorFunction EOTF_HLG_DISPLAY = new ColorFunction() {
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            float gamma = hlgGamma(params.maxDisplayLuminance);
+            float beta = hlgBlackLiftBeta(params, gamma);
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float x = hlgSceneEOTF(Math.max(0.0f, (1.0f - beta) * r[i] + beta));
+                float y = hlgSceneEOTF(Math.max(0.0f, (1.0f - beta) * g[i] + beta));
+                float z = hlgSceneEOTF(Math.max(0.0f, (1.0f - beta) * b[i] + beta));
+                float luma = ColorMath.BT2020_LUMA_R * x + ColorMath.BT2020_LUMA_G * y + ColorMath.BT2020_LUMA_B * z;
+                float scale = ColorMath.pow(luma, gamma - 1.0f);
+                r[i] = x * scale;
+                g[i] = y * scale;
+                b[i] = z * scale;
+            }
+        }
+    };
+
+    public static final ColorFunction OETF_NONE = ColorFunction.NONE;
+
+    public static final ColorFunction OETF_BT1886 = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return bt1886OETF(x);
+        }
+    };
+
+    public static final ColorFunction OETF_S170M = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return s170mOETF(x);
+        }
+    };
+
+    public static final ColorFunction OETF_BT709 = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return bt709OETF(x);
+        }
+    };
+
+    public static final ColorFunction OETF_HLG_SCENE = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return hlgSceneOETF(x);
+        }
+    };
+
+    public static final ColorFunction OETF_PQ_DISPLAY = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return pqDisplayOETF(x);
+        }
+    };
+
+    public static final ColorFunction OETF_PQ_SCENE = new ColorFunction.ChannelFunction() {
+        @Override
+        public float apply(ColorParams params, float x) {
+            return pqSceneOETF(x);
+        }
+    };
+
+    /**
+     * HLGDisplayOETF：逆OOTF、HLG OETF、再去掉黑电平调整
+     */
+    public static final ColorFunction OETF_HLG_DISPLAY = new ColorFunction() {
+        @Override
+        public void apply(ColorParams params, float[] r, float[] g, float[] b, int offset, int count) {
+            float gamma = hlgGamma(params.maxDisplayLuminance);
+            float beta = hlgBlackLiftBeta(params, gamma);
+            float exponent = (1.0f - gamma) / gamma;
+            int end = offset + count;
+            for (int i = offset; i < end; i++) {
+                float x = r[i];
+                float y = g[i];
+                float z = b[i];
+                float luma = ColorMath.BT2020_LUMA_R * x + ColorMath.BT2020_LUMA_G * y + ColorMath.BT2020_LUMA_B * z;
+                float scale = ColorMath.pow(luma, exponent);
+                r[i] = Math.max(0.0f, (hlgSceneOETF(x * scale) - beta) / (1.0f - beta));
+                g[i] = Math.max(0.0f, (hlgSceneOETF(y * scale) - beta) / (1.0f - beta));
+                b[i] = Math.max(0.0f, (hlgSceneOETF(z * scale) - beta) / (1.0f - beta));
+            }
+        }
+    };
+
+    /**
+     * Kotlin的GammaEOTF对应的Java实现
+     */
+    public static ColorFunction fromEOTF(GammaEOTF gammaEOTF) {
+        if (gammaEOTF == GammaEOTF.BT1886) {
+            return EOTF_BT1886;
+        } else if (gammaEOTF == GammaEOTF.S170M) {
+            return EOTF_S170M;
+        } else if (gammaEOTF == GammaEOTF.BT709) {
+            return EOTF_BT709;
+        } else if (gammaEOTF == GammaEOTF.HLGDisplay) {
+            return EOTF_HLG_DISPLAY;
+        } else if (gammaEOTF == GammaEOTF.HLGScene) {
+            return EOTF_HLG_SCENE;
+        } else if (gammaEOTF == GammaEOTF.PQDisPlay) {
+            return EOTF_PQ_DISPLAY;
+        } else if (gammaEOTF == GammaEOTF.PQScene) {
+            return EOTF_PQ_SCENE;
+        } else if (gammaEOTF == GammaEOTF.NONE) {
+            return EOTF_NONE;
+        }
+        throw new IllegalArgumentException("not support " + gammaEOTF);
+    }
+
+    /**
+     * Kotlin的GammaOETF对应的Java实现
+     */
+    public static ColorFunction fromOETF(GammaOETF gammaOETF) {
+        if (gammaOETF == GammaOETF.BT1886) {
+            return OETF_BT1886;
+        } else if (gammaOETF == GammaOETF.S170M) {
+            return OETF_S170M;
+        } else if (gammaOETF == GammaOETF.BT709) {
+            return OETF_BT709;
+        } else if (gammaOETF == GammaOETF.HLGDisplay) {
+            return OETF_HLG_DISPLAY;
+        } else if (gammaOETF == GammaOETF.HLGScene) {
+            return OETF_HLG_SCENE;
+        } else if (gammaOETF == GammaOETF.PQDisplay) {
+            return OETF_PQ_DISPLAY;
+        } else if (gammaOETF == GammaOETF.PQScene) {
+            return OETF_PQ_SCENE;
+        } else if (gammaOETF == GammaOETF.NONE) {
+            return OETF_NONE;
+        }
+        throw new IllegalArgumentException("not support " + gammaOETF);
+    }
+}
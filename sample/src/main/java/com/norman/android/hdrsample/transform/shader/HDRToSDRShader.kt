@@ -1,26 +1,54 @@
 package com.norman.android.hdrsample.transform.shader
 
+import com.norman.android.hdrsample.opengl.GLDerivedParam
 import com.norman.android.hdrsample.opengl.GLShaderCode
+import com.norman.android.hdrsample.opengl.GLUniformBlock
 import com.norman.android.hdrsample.player.color.ColorSpace
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.COLOR_SPACE_BT2020_LINEAR
 import com.norman.android.hdrsample.transform.shader.chromacorrect.ChromaCorrection
 import com.norman.android.hdrsample.transform.shader.gamma.GammaEOTF
 import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF
 import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneCurve
 import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap
 
 /**
  * HDR转SDR的Shader，
+ * bakeLut为true时输入的颜色是3D LUT的网格坐标而不是视频纹理，用来把整个转换过程渲染到3D LUT
+ * toneCurve为true并且色调映射支持时，色调映射的曲线从{@link ToneCurve}纹理采样
+ * 屏幕亮度、峰值亮度这些uniform和派生参数都放在{@link #UNIFORM_BLOCK}里，用GLSL ES 3.0
+ * bitDepth是输出纹理的位深，{@link GammaOETF#mediumpBitDepth}支持时Gamma压缩用mediump，其他步骤都是highp
+ * {@link #getFuseCode}是合并渲染用的代码，和其他Transform合并到一个Shader
  */
-class HDRToSDRShader(
+class HDRToSDRShader @JvmOverloads constructor(
     @ColorSpace colorSpace: Int,
     chromaCorrection: ChromaCorrection,
     toneMap: ToneMap,
     gamutMap: GamutMap,
     gammaOETF: GammaOETF,
-    referenceDisplay: Boolean
+    referenceDisplay: Boolean,
+    bakeLut: Boolean = false,
+    toneCurve: Boolean = false,
+    bitDepth: Int = 16
 ) : GLShaderCode() {
 
+    companion object {
+        /**
+         * 生成3D LUT时LUT的大小
+         */
+        const val BAKE_LUT_SIZE = "bakeLutSize"
+
+        /**
+         * 生成3D LUT时当前渲染的深度
+         */
+        const val BAKE_LUT_SLICE = "bakeLutSlice"
+
+        /**
+         * {@link MetaDataParams}里的uniform和所有模块的派生参数放在这个Uniform Block里
+         */
+        const val UNIFORM_BLOCK = "HDRToSDRParams"
+    }
+
     /**
      * 色度矫正，处理高光转SDR后的色调变化问题
      */
@@ -59,6 +87,30 @@ class HDRToSDRShader(
      */
     val gammaEOTF: GammaEOTF
 
+    /**
+     * 是否用来生成3D LUT
+     */
+    @JvmField
+    val bakeLut: Boolean
+
+    /**
+     * 是否用曲线纹理做色调映射，色调映射不支持或者生成3D LUT时为false
+     */
+    @JvmField
+    val toneCurve: Boolean
+
+    /**
+     * 输出纹理的位深
+     */
+    @JvmField
+    val bitDepth: Int
+
+    /**
+     * Gamma压缩是否用mediump，EOTF到色域映射的误差在PrecisionErrorReport里都超过1个码值，只能用highp
+     */
+    @JvmField
+    val gammaOETFMediump: Boolean
+
 
     init {
         this.chromaCorrection = chromaCorrection
@@ -66,6 +118,12 @@ class HDRToSDRShader(
         this.toneMap = toneMap
         this.colorSpace = colorSpace
         this.gammaOETF = gammaOETF
+        this.bakeLut = bakeLut
+        //生成LUT时整个转换都会预先算好，不需要曲线纹理
+        this.toneCurve = toneCurve && !bakeLut && toneMap.curveCode != null
+        this.bitDepth = bitDepth
+        //生成的LUT还要再插值，保持highp
+        this.gammaOETFMediump = !bakeLut && bitDepth <= gammaOETF.mediumpBitDepth
         //显示参考和场景参考对HDR转SDR的内容有影响
         this.gammaEOTF = if (colorSpace == ColorSpace.VIDEO_BT2020_PQ) {
             if (referenceDisplay) GammaEOTF.PQDisPlay else GammaEOTF.PQScene
@@ -76,17 +134,74 @@ class HDRToSDRShader(
         }
     }
 
-    override val code: String
-        get() =
+    /**
+     * 输入的声明，生成3D LUT时用当前像素的位置和深度作为输入颜色
+     */
+    private val inputCode: String
+        get() = if (bakeLut)
             """
-            |precision highp float;
-            |varying highp vec2 textureCoordinate;
+            |uniform float $BAKE_LUT_SIZE;
+            |uniform float $BAKE_LUT_SLICE;
+            """.trimMargin()
+        else
+            """
+            |in highp vec2 textureCoordinate;
             |uniform sampler2D inputImageTexture;
+            """.trimMargin()
+
+    private val inputColor: String
+        get() = if (bakeLut)
+            "vec4(vec3(gl_FragCoord.xy - 0.5, $BAKE_LUT_SLICE) / ($BAKE_LUT_SIZE - 1.0), 1.0)"
+        else
+            "texture(inputImageTexture, textureCoordinate)"
+
+    /**
+     * precision语句只对后面的声明有效，Gamma压缩的函数声明完再改回highp
+     */
+    private val gammaOETFCode: String
+        get() = if (gammaOETFMediump)
+            """
+            |precision mediump float;
+            |${gammaOETF.code}
+            |precision highp float;
+            """.trimMargin()
+        else
+            gammaOETF.code
+
+    private val toneMapCode: String
+        get() = if (toneCurve)
+            """
+            |${ToneCurve.code}
+            |
+            |${toneMap.curveCode}
+            """.trimMargin()
+        else
+            toneMap.code
+
+    /**
+     * 用到的所有模块的派生参数，曲线纹理做色调映射时不需要色调映射的派生参数
+     */
+    override val derivedParams: List<GLDerivedParam>
+        get() = (ReScale.derivedParams +
+                gammaEOTF.derivedParams +
+                chromaCorrection.derivedParams +
+                (if (toneCurve) emptyList() else toneMap.derivedParams) +
+                gamutMap.derivedParams +
+                gammaOETF.derivedParams).distinctBy { it.name }
+
+    /**
+     * 所有模块的声明，单独的Shader和合并渲染的代码共用
+     */
+    private val declarationCode: String
+        get() =
+            """
             |#define ${MetaDataParams.VIDEO_COLOR_SPACE}  $colorSpace
             |
             |${MetaDataParams.code}
             |
-            |${gammaOETF.code}
+            |${GLUniformBlock.createCode(UNIFORM_BLOCK, MetaDataParams.uniformNames, derivedParams)}
+            |
+            |$gammaOETFCode
             |
             |${gammaEOTF.code}
             |
@@ -98,11 +213,15 @@ class HDRToSDRShader(
             |
             |${gamutMap.code}
             |
-            |${toneMap.code}
-            |
-            |void main()
-            |{
-            |  vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);
+            |$toneMapCode
+            """.trimMargin()
+
+    /**
+     * 从textureColor转换到finalColor
+     */
+    private val transformCode: String
+        get() =
+            """
             |  vec3 rgb = textureColor.rgb;
             |  vec3 linearColor = ${gammaEOTF.methodGamma}(rgb);//转成线性
             |  linearColor = ${chromaCorrection.methodChromaCorrect}(linearColor);//色度矫正
@@ -111,8 +230,40 @@ class HDRToSDRShader(
             |  }
             |  vec3 gamutMapColor = ${gamutMap.methodGamutMap}(linearColor);//色域转换
             |  vec3 finalColor = ${gammaOETF.methodGamma}(gamutMapColor);//gamma压缩
-            |  gl_FragColor.rgb = finalColor;
-            |  gl_FragColor.a = textureColor.a;
+            """.trimMargin()
+
+    /**
+     * 合并渲染的代码，声明函数vec4 method(vec4 color)，生成3D LUT的Shader不能合并
+     * 模块的函数和uniform没有前缀，同一个类的Transform不会合并到一起，不会重名
+     *
+     * @param method 函数名
+     */
+    fun getFuseCode(method: String): String =
+        """
+        |$declarationCode
+        |
+        |vec4 $method(vec4 textureColor)
+        |{
+        |$transformCode
+        |  return vec4(finalColor, textureColor.a);
+        |}
+        """.trimMargin()
+
+    override val code: String
+        get() =
+            """
+            |#version 300 es
+            |precision highp float;
+            |$inputCode
+            |out vec4 outColor;
+            |$declarationCode
+            |
+            |void main()
+            |{
+            |  vec4 textureColor = $inputColor;
+            |$transformCode
+            |  outColor.rgb = finalColor;
+            |  outColor.a = textureColor.a;
             |}
             """.trimMargin()
 
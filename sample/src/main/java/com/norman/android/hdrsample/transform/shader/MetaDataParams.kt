@@ -17,12 +17,20 @@ object MetaDataParams : GLShaderCode() {
     const val HDR_REFERENCE_WHITE ="HDR_REFERENCE_WHITE"
     const val HLG_MAX_LUMINANCE ="HLG_MAX_LUMINANCE"
     const val PQ_MAX_LUMINANCE ="PQ_MAX_LUMINANCE"
+
+    /**
+     * 需要在CPU上设置的uniform，放在HDRToSDRShader的Uniform Block里，不在这里声明
+     */
+    @JvmField
+    val uniformNames = listOf(
+        MIN_DISPLAY_LUMINANCE,// 最小屏幕亮度
+        MAX_DISPLAY_LUMINANCE,// 最大屏幕亮度
+        CURRENT_DISPLAY_LUMINANCE,// 当前亮度
+        HDR_PEAK_LUMINANCE// 最大亮度
+    )
+
     override val code: String
         get() = """
-              uniform float $MIN_DISPLAY_LUMINANCE;// 最大屏幕亮度
-              uniform float $MAX_DISPLAY_LUMINANCE;// 最大屏幕亮度
-              uniform float $CURRENT_DISPLAY_LUMINANCE;// 当前亮度
-              uniform float $HDR_PEAK_LUMINANCE;// 最大亮度
               #define $COLOR_SPACE_BT2020_PQ ${ColorSpace.VIDEO_BT2020_PQ}
               #define $COLOR_SPACE_BT2020_HLG ${ColorSpace.VIDEO_BT2020_HLG}
               #define $COLOR_SPACE_BT2020_LINEAR ${ColorSpace.VIDEO_BT2020_LINEAR}
@@ -1,5 +1,6 @@
 package com.norman.android.hdrsample.transform.shader
 
+import com.norman.android.hdrsample.opengl.GLDerivedParam
 import com.norman.android.hdrsample.opengl.GLShaderCode
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.COLOR_SPACE_BT2020_HLG
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.COLOR_SPACE_BT2020_PQ
@@ -20,6 +21,12 @@ object ReScale : GLShaderCode() {
     val methodNormalizeDisplay =  "NORMALIZE_DISPLAY"
     val methodScaleReferenceWhiteToOne =  "SCALE_ONE_TO_REFERENCE_WHITE"
 
+    const val INV_MAX_DISPLAY_LUMINANCE = "INV_MAX_DISPLAY_LUMINANCE"
+
+    override val derivedParams = listOf(
+        GLDerivedParam(INV_MAX_DISPLAY_LUMINANCE) { 1.0f / it[MAX_DISPLAY_LUMINANCE] }//每个像素的除法改成乘法
+    )
+
     override val code: String
         get() = """
                 vec3 $methodScaleToMaster(vec3 color){
@@ -50,7 +57,7 @@ object ReScale : GLShaderCode() {
                 }
                 
                 vec3 $methodNormalizeDisplay(vec3 color){
-                     return color / $MAX_DISPLAY_LUMINANCE;
+                     return color * $INV_MAX_DISPLAY_LUMINANCE;
                 }
                 
                  vec3 $methodScaleReferenceWhiteToOne(vec3 color){
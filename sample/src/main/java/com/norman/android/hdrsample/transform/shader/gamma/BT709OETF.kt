@@ -3,6 +3,10 @@ package com.norman.android.hdrsample.transform.shader.gamma
 // BT709 OETF公式
 // 详解见 https://juejin.cn/post/7231369710024310821#heading-5
 class BT709OETF : GammaOETF() {
+
+    override val mediumpBitDepth: Int
+        get() = 10
+
     private val alpha = "${prefix}ALPHA"
     private val beta = "${prefix}BETA"
     private val gammaInverse = "${prefix}GAMMA_INVERSE"
@@ -3,6 +3,13 @@ package com.norman.android.hdrsample.transform.shader.gamma
 
 abstract class GammaOETF : GammaFunction() {
 
+    /**
+     * 输出位深不超过这个值时可以用mediump计算，0表示只能用highp
+     * 要先用PrecisionErrorReport确认误差不超过1个码值
+     */
+    open val mediumpBitDepth: Int
+        get() = 0
+
     companion object{
         @JvmField
         val BT1886 = BT1886OETF()
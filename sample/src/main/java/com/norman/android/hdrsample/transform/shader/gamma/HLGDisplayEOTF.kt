@@ -1,7 +1,12 @@
 package com.norman.android.hdrsample.transform.shader.gamma
 
+import com.norman.android.hdrsample.opengl.GLDerivedParam
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.MAX_DISPLAY_LUMINANCE
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.MIN_DISPLAY_LUMINANCE
+import kotlin.math.log10
+import kotlin.math.max
+import kotlin.math.pow
+import kotlin.math.sqrt
 
 
 /**
@@ -20,6 +25,21 @@ class HLGDisplayEOTF : GammaEOTF() {
     val c = "${prefix}C"
     val minNits= "${prefix}MIN_NITS"
     val maxNits= "${prefix}MAX_NITS"
+
+    val systemGamma = "${prefix}SYSTEM_GAMMA"
+    val beta = "${prefix}BETA"
+
+    /**
+     * 系统伽马和黑电平只和屏幕亮度有关
+     */
+    override val derivedParams = listOf(
+        GLDerivedParam(systemGamma) { hlgGamma(it[MAX_DISPLAY_LUMINANCE]) },
+        GLDerivedParam(beta) {
+            sqrt(3.0f * (it[MIN_DISPLAY_LUMINANCE] / it[MAX_DISPLAY_LUMINANCE]).pow(1.0f / hlgGamma(it[MAX_DISPLAY_LUMINANCE])))
+        }
+    )
+
+    private fun hlgGamma(lw: Float) = 1.2f + 0.42f * log10(max(lw, 500.0f) / 1000.0f)
     val bt2020LumaCoefficient= "${prefix}BT2020_LUMA_COEFFICIENT"
 
     override val code: String
@@ -48,15 +68,12 @@ class HLGDisplayEOTF : GammaEOTF() {
         vec3 $methodOOTF(vec3 x)//HLG是相对亮度，需要根据屏幕亮度做对应调整，公式在BT2100文档中有
         {
             float Y = dot($bt2020LumaCoefficient, x);
-            float gamma = $methodHLGGamma($MAX_DISPLAY_LUMINANCE);
+            float gamma = $systemGamma;
             return x * pow(Y,gamma-1.0);
         }
 
         vec3 $methodBlackLift(vec3 x){//调整黑电平
-            float gamma = $methodHLGGamma($MAX_DISPLAY_LUMINANCE);
-            float beta = sqrt(3.0 * 
-            pow($MIN_DISPLAY_LUMINANCE/$MAX_DISPLAY_LUMINANCE, 
-            1.0/gamma));
+            float beta = $beta;
             return max(vec3(0.0), (1.0-beta)*x + beta);
         }
 
@@ -1,7 +1,12 @@
 package com.norman.android.hdrsample.transform.shader.gamma
 
+import com.norman.android.hdrsample.opengl.GLDerivedParam
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.MAX_DISPLAY_LUMINANCE
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.MIN_DISPLAY_LUMINANCE
+import kotlin.math.log10
+import kotlin.math.max
+import kotlin.math.pow
+import kotlin.math.sqrt
 
 
 /**
@@ -20,6 +25,21 @@ class HLGDisplayOETF : GammaOETF() {
     val minNits = "${prefix}MIN_NITS"
     val maxNits = "${prefix}MAX_NITS"
 
+    val systemGamma = "${prefix}SYSTEM_GAMMA"
+    val beta = "${prefix}BETA"
+
+    /**
+     * 系统伽马和黑电平只和屏幕亮度有关
+     */
+    override val derivedParams = listOf(
+        GLDerivedParam(systemGamma) { hlgGamma(it[MAX_DISPLAY_LUMINANCE]) },
+        GLDerivedParam(beta) {
+            sqrt(3.0f * (it[MIN_DISPLAY_LUMINANCE] / it[MAX_DISPLAY_LUMINANCE]).pow(1.0f / hlgGamma(it[MAX_DISPLAY_LUMINANCE])))
+        }
+    )
+
+    private fun hlgGamma(lw: Float) = 1.2f + 0.42f * log10(max(lw, 500.0f) / 1000.0f)
+
     override val code: String
         get() = """
         #define  $maxNits 1000.0  //HLG最大亮度
@@ -44,15 +64,13 @@ class HLGDisplayOETF : GammaOETF() {
 
         vec3 $methodInverseOOTF(vec3 x)//HLG是相对亮度，需要根据屏幕亮度做对应调整，公式在BT2100文档中有
         {
-            float gamma = $methodHLGGamma($MAX_DISPLAY_LUMINANCE);
+            float gamma = $systemGamma;
             float Y = dot(vec3(0.262700, 0.677998, 0.059302), x);
             return x*pow(Y,(1.0-gamma)/gamma);
         }
 
         vec3 $methodInverseBlackLift(vec3 x){//
-            float beta = sqrt(3.0 * 
-            pow($MIN_DISPLAY_LUMINANCE/$MAX_DISPLAY_LUMINANCE, 
-            1.0/$methodHLGGamma($MAX_DISPLAY_LUMINANCE)));
+            float beta = $beta;
             return max(vec3(0.0), (x-beta)/(1.0-beta));
         }
 
@@ -2,6 +2,10 @@ package com.norman.android.hdrsample.transform.shader.gamma
 
 
 class NoneOETF : GammaOETF() {
+
+    override val mediumpBitDepth: Int
+        get() = 10
+
     override val code: String
         get() = """
       
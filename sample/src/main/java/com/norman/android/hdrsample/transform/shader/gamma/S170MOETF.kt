@@ -6,6 +6,9 @@ package com.norman.android.hdrsample.transform.shader.gamma
  */
 class S170MOETF : GammaOETF() {
 
+    override val mediumpBitDepth: Int
+        get() = 10
+
     val gammaInverse = "${prefix}GAMMA_INVERSE"
     override val code: String
         get() = """
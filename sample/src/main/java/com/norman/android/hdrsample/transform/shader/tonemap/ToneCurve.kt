@@ -0,0 +1,41 @@
+package com.norman.android.hdrsample.transform.shader.tonemap
+
+import com.norman.android.hdrsample.opengl.GLShaderCode
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.PQ_MAX_LUMINANCE
+
+/**
+ * 色调映射曲线纹理
+ * 色调映射的曲线只和峰值亮度、屏幕亮度这些参数有关，参数变化时在CPU上算好，放到TONE_CURVE_SIZE x 1的浮点纹理里
+ * 纹理按输入绝对亮度的PQ编码均匀采样，暗部的点更密，每个像素只要一次线性插值的采样，不用每次都算pow和log
+ * 纹理里存的值由各个ToneMap的curveCode自己定义
+ * OpenGL ES没有1D纹理，用高度为1的2D纹理代替
+ */
+object ToneCurve : GLShaderCode() {
+
+    const val TONE_CURVE_TEXTURE = "toneCurveTexture"
+
+    /**
+     * 曲线纹理的宽度
+     */
+    const val TONE_CURVE_SIZE = 4096
+
+    val methodToneCurve = "TONE_CURVE"
+
+    override val code: String
+        get() = """
+            |uniform highp sampler2D $TONE_CURVE_TEXTURE;//默认的lowp精度不够存绝对亮度
+            |
+            |float $methodToneCurve(float nits) {
+            |    const float m1 = 2610.0 / 16384.0;
+            |    const float m2 = 2523.0 / 4096.0 * 128.0;
+            |    const float c1 = 3424.0 / 4096.0;
+            |    const float c2 = 2413.0 / 4096.0 * 32.0;
+            |    const float c3 = 2392.0 / 4096.0 * 32.0;
+            |    float ym = pow(clamp(nits / $PQ_MAX_LUMINANCE, 0.0, 1.0), m1);
+            |    float pq = pow((c1 + c2 * ym) / (1.0 + c3 * ym), m2);
+            |    const float size = ${TONE_CURVE_SIZE}.0;
+            |    //对齐到纹素中心，0和1正好落在第一个和最后一个点上
+            |    return texture($TONE_CURVE_TEXTURE, vec2(pq * (size - 1.0) / size + 0.5 / size, 0.5)).r;
+            |}
+        """.trimMargin()
+}
@@ -9,6 +9,12 @@ abstract class ToneMap: GLShaderCode() {
 
     val methodToneMap = "TONE_MAP"
 
+    /**
+     * 用{@link ToneCurve}曲线纹理代替逐像素计算曲线的代码，null表示只能逐像素计算
+     */
+    open val curveCode: String?
+        get() = null
+
     companion object{
         @JvmField
         val  NONE = object: ToneMap() {
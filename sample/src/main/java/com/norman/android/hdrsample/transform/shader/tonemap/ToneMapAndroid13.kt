@@ -1,5 +1,8 @@
 package com.norman.android.hdrsample.transform.shader.tonemap
 
+import com.norman.android.hdrsample.opengl.GLDerivedParam
+import com.norman.android.hdrsample.opengl.GLUniformValues
+import com.norman.android.hdrsample.transform.math.TransferFunctions
 import com.norman.android.hdrsample.transform.shader.ColorConversion.methodBt2020ToXYZ
 import com.norman.android.hdrsample.transform.shader.ColorConversion.methodXYZToBt2020
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.COLOR_SPACE_BT2020_HLG
@@ -25,6 +28,40 @@ import com.norman.android.hdrsample.transform.shader.gamma.PQDisplayOETF
 class ToneMapAndroid13 : ToneMap() {
 
     val pqDisplayOETF = PQDisplayOETF()
+
+    val x1 = "ANDROID13_X1"
+    val greyNorm2 = "ANDROID13_GREY_NORM2"
+    val greyNorm3 = "ANDROID13_GREY_NORM3"
+    val slope2 = "ANDROID13_SLOPE2"
+    val slope3 = "ANDROID13_SLOPE3"
+
+    /**
+     * 控制点在PQ域的值和斜率只和峰值亮度、屏幕亮度有关，不用每个像素算3次PQ OETF
+     */
+    override val derivedParams = listOf(
+        GLDerivedParam(x1) { controlPoints(it)[0] },
+        GLDerivedParam(greyNorm2) { controlPoints(it)[1] },
+        GLDerivedParam(greyNorm3) { controlPoints(it)[2] },
+        GLDerivedParam(slope2) { controlPoints(it)[3] },
+        GLDerivedParam(slope3) { controlPoints(it)[4] }
+    )
+
+    private fun controlPoints(values: GLUniformValues): FloatArray {
+        val maxInLumi = values[HDR_PEAK_LUMINANCE]
+        val maxOutLumi = values[MAX_DISPLAY_LUMINANCE]
+        val x1 = maxOutLumi * 0.65f
+        val y1 = x1
+        val x3 = maxInLumi
+        val y3 = maxOutLumi
+        val x2 = x1 + (x3 - x1) * 4.0f / 17.0f
+        val y2 = maxOutLumi * 0.9f
+        val greyNorm1 = TransferFunctions.pqDisplayOETF(x1 / 10000.0f)
+        val greyNorm2 = TransferFunctions.pqDisplayOETF(x2 / 10000.0f)
+        val greyNorm3 = TransferFunctions.pqDisplayOETF(x3 / 10000.0f)
+        val slope2 = (y2 - y1) / (greyNorm2 - greyNorm1)
+        val slope3 = (y3 - y2) / (greyNorm3 - greyNorm2)
+        return floatArrayOf(x1, greyNorm2, greyNorm3, slope2, slope3)
+    }
     override val code: String
         get() = """
             |${pqDisplayOETF.code}     
@@ -37,19 +74,14 @@ class ToneMapAndroid13 : ToneMap() {
             |    float maxInLumi = $HDR_PEAK_LUMINANCE;
             |    float maxOutLumi = $MAX_DISPLAY_LUMINANCE;
             |    float nits = maxRGB;
-            |    float x1 = maxOutLumi * 0.65;
-            |    float y1 = x1;
-            |    float x3 = maxInLumi;
+            |    float x1 = $x1;
             |    float y3 = maxOutLumi;
-            |    float x2 = x1 + (x3 - x1) * 4.0 / 17.0;
             |    float y2 = maxOutLumi * 0.9;
-            |    vec3 greyNorm = ${pqDisplayOETF.methodGamma}(vec3(x1,x2,x3) / $PQ_MAX_LUMINANCE);
-            |    float greyNorm1 = greyNorm.x;//Android用的PQOETF其实是PQEOTF的逆函数，这里改成改成真正的OETF也许是对的
-            |    float greyNorm2 = greyNorm.y;
-            |    float greyNorm3 = greyNorm.z;
-            |    float slope1 = 0.0;
-            |    float slope2 = (y2 - y1) / (greyNorm2 - greyNorm1);
-            |    float slope3 = (y3 - y2) / (greyNorm3 - greyNorm2);
+            |    //Android用的PQOETF其实是PQEOTF的逆函数，这里改成改成真正的OETF也许是对的
+            |    float greyNorm2 = $greyNorm2;
+            |    float greyNorm3 = $greyNorm3;
+            |    float slope2 = $slope2;
+            |    float slope3 = $slope3;
             |    if (nits < x1) {
             |        return nits;
             |    }
@@ -74,6 +106,26 @@ class ToneMapAndroid13 : ToneMap() {
             |    }
             |    return toneMapTargetNits(maxRGB) / maxRGB;
             | }
+            |$toneMapCode
+        """.trimMargin()
+
+    /**
+     * 曲线纹理里存的是maxRGB调整后的亮度，单位nit，PQ和HLG在CPU上按色域分开计算
+     */
+    override val curveCode: String
+        get() = """
+            |float lookupTonemapGain(vec3 linearRGB) {
+            |    float maxRGB = max(linearRGB.r, max(linearRGB.g, linearRGB.b));
+            |    if (maxRGB <= 0.0) {
+            |        return 1.0;
+            |    }
+            |    return ${ToneCurve.methodToneCurve}(maxRGB) / maxRGB;
+            |}
+            |$toneMapCode
+        """.trimMargin()
+
+    private val toneMapCode: String
+        get() = """
             |
             |vec3 $methodToneMap(vec3 rgb)
             |{
@@ -84,6 +136,5 @@ class ToneMapAndroid13 : ToneMap() {
             |    rgb =  $methodXYZToBt2020(xyz);
             |    rgb = ${ReScale.methodNormalizeDisplay}(rgb);
             |    return rgb;
-            |}
-        """.trimMargin()
+            |}"""
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package com.norman.android.hdrsample.transform.shader.tonemap
 
+import com.norman.android.hdrsample.opengl.GLDerivedParam
+import com.norman.android.hdrsample.opengl.GLUniformValues
 import com.norman.android.hdrsample.transform.shader.ColorConversion.methodBt2020ToXYZ
 import com.norman.android.hdrsample.transform.shader.ColorConversion.methodXYZToBt2020
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.HDR_PEAK_LUMINANCE
@@ -18,6 +20,45 @@ import com.norman.android.hdrsample.transform.shader.ReScale
  * https://www.itu.int/dms_pub/itu-r/opb/rep/R-REP-BT.2390-10-2021-PDF-E.pdf
  */
 class ToneMapAndroid8 : ToneMap() {
+
+    val x1 = "ANDROID8_X1"
+    val x2 = "ANDROID8_X2"
+    val y2 = "ANDROID8_Y2"
+    val h12 = "ANDROID8_H12"
+    val h23 = "ANDROID8_H23"
+    val m1 = "ANDROID8_M1"
+    val m2 = "ANDROID8_M2"
+    val m3 = "ANDROID8_M3"
+
+    /**
+     * 曲线的控制点和切线只和峰值亮度、屏幕亮度有关
+     */
+    override val derivedParams = listOf(
+        GLDerivedParam(x1) { controlPoints(it)[0] },
+        GLDerivedParam(x2) { controlPoints(it)[1] },
+        GLDerivedParam(y2) { controlPoints(it)[2] },
+        GLDerivedParam(h12) { controlPoints(it)[3] },
+        GLDerivedParam(h23) { controlPoints(it)[4] },
+        GLDerivedParam(m1) { controlPoints(it)[5] },
+        GLDerivedParam(m2) { controlPoints(it)[6] },
+        GLDerivedParam(m3) { controlPoints(it)[7] }
+    )
+
+    private fun controlPoints(values: GLUniformValues): FloatArray {
+        val maxInLumi = values[HDR_PEAK_LUMINANCE]
+        val maxOutLumi = values[MAX_DISPLAY_LUMINANCE]
+        val x1 = maxOutLumi * 0.75f
+        val y1 = x1
+        val x2 = x1 + (maxInLumi - x1) / 2.0f
+        val y2 = y1 + (maxOutLumi - y1) * 0.75f
+        val h12 = x2 - x1
+        val h23 = maxInLumi - x2
+        val m1 = (y2 - y1) / h12
+        val m3 = (maxOutLumi - y2) / h23
+        val m2 = (m1 + m3) / 2.0f
+        return floatArrayOf(x1, x2, y2, h12, h23, m1, m2, m3)
+    }
+
     override val code: String
         get() = """
             
@@ -36,18 +77,18 @@ class ToneMapAndroid8 : ToneMap() {
                 // three control points
                 const float x0 = 10.0;
                 const float y0 = 17.0;
-                float x1 = maxOutLumi * 0.75;
+                float x1 = $x1;
                 float y1 = x1;
-                float x2 = x1 + (maxInLumi - x1) / 2.0;
-                float y2 = y1 + (maxOutLumi - y1) * 0.75;
+                float x2 = $x2;
+                float y2 = $y2;
                 // horizontal distances between the last three
                 // control points
-                float h12 = x2 - x1;
-                float h23 = maxInLumi - x2;
+                float h12 = $h12;
+                float h23 = $h23;
                 // tangents at the last three control points
-                float m1 = (y2 - y1) / h12;
-                float m3 = (maxOutLumi - y2) / h23;
-                float m2 = (m1 + m3) / 2.0;
+                float m1 = $m1;
+                float m3 = $m3;
+                float m2 = $m2;
                 if (nits < x0) {
                     // scale [0.0, x0] to [0.0, y0] linearly
                     float slope = y0 / x0;
@@ -83,7 +124,26 @@ class ToneMapAndroid8 : ToneMap() {
             return toneMapTargetNits(xyz) / xyz.y;
         }
         
+$toneMapCode
+        """.trimIndent()
+
+    /**
+     * 曲线纹理里存的是调整后的亮度，单位nit
+     */
+    override val curveCode: String
+        get() = """
+        float lookupTonemapGain(vec3 xyz) {
+            if (xyz.y <= 0.0) {
+                return 1.0;
+            }
+            return ${ToneCurve.methodToneCurve}(xyz.y) / xyz.y;
+        }
+        
+$toneMapCode
+        """.trimIndent()
 
+    private val toneMapCode: String
+        get() = """
         vec3 $methodToneMap(vec3 rgb)
         {
             rgb = ${ReScale.methodScaleToMaster}(rgb);
@@ -94,5 +154,5 @@ class ToneMapAndroid8 : ToneMap() {
             rgb = ${ReScale.methodNormalizeDisplay}(rgb);
             return rgb;
         }
-        """.trimIndent()
+        """
 }
\ No newline at end of file
@@ -1,7 +1,10 @@
 package com.norman.android.hdrsample.transform.shader.tonemap
 
+import com.norman.android.hdrsample.opengl.GLDerivedParam
 import com.norman.android.hdrsample.transform.shader.MetaDataParams
 import com.norman.android.hdrsample.transform.shader.ReScale.methodScaleReferenceWhiteToOne
+import kotlin.math.ln
+import kotlin.math.pow
 
 /**
  * 该实现是BT2446中介绍的a方法
@@ -17,8 +20,59 @@ import com.norman.android.hdrsample.transform.shader.ReScale.methodScaleReferenc
  * //
  */
 class ToneMapBT2446A : ToneMap() {
+
+    val pHDR = "BT2446A_P_HDR"
+    val logPHDR = "BT2446A_LOG_P_HDR"
+
+    /**
+     * pSDR只和参考白有关，直接算成常量
+     */
+    private val pSDR = 1.0 + 32.0 * (203.0 / 10000.0).pow(1.0 / 2.4)
+
+    override val derivedParams = listOf(
+        GLDerivedParam(pHDR) { computePHDR(it[MetaDataParams.HDR_PEAK_LUMINANCE]) },
+        GLDerivedParam(logPHDR) { ln(computePHDR(it[MetaDataParams.HDR_PEAK_LUMINANCE])) }
+    )
+
+    private fun computePHDR(peakLuminance: Float) = 1.0f + 32.0f * (peakLuminance / 10000.0f).pow(1.0f / 2.4f)
+
     override val code: String
-        get() = """
+        get() = buildCode(
+            """
+            float f(float Y) {
+                Y = pow(Y, 1.0 / 2.4);
+
+                 float pSDR = $pSDR;
+
+                 float Yp = log(1.0 + ($pHDR - 1.0) * Y) / $logPHDR;
+
+                float Yc;
+                if      (Yp <= 0.7399)  Yc = Yp * 1.0770;
+                else if (Yp <  0.9909)  Yc = Yp * (-1.1510 * Yp + 2.7811) - 0.6302;
+                else                    Yc = Yp * 0.5000 + 0.5000;
+
+                 float Ysdr = (pow(pSDR, Yc) - 1.0) / (pSDR - 1.0);
+
+                Y = pow(Ysdr, 2.4);
+
+                return Y;
+            }
+            """
+        )
+
+    /**
+     * 曲线纹理里存的是f(Y)，tone_mapping里的Y是除以峰值亮度后的值，乘回峰值亮度就是输入的绝对亮度
+     */
+    override val curveCode: String
+        get() = buildCode(
+            """
+            float f(float Y) {
+                return ${ToneCurve.methodToneCurve}(Y * ${MetaDataParams.HDR_PEAK_LUMINANCE});
+            }
+            """
+        )
+
+    private fun buildCode(fCode: String) = """
             const float a = 0.2627002120112671;
             const float b = 0.6779980715188708;
             const float c = 0.05930171646986196;
@@ -49,26 +103,7 @@ class ToneMapBT2446A : ToneMap() {
                 return vec3(R, G, B);
             }
 
-            float f(float Y) {
-                Y = pow(Y, 1.0 / 2.4);
-
-                 float pHDR = 1.0 + 32.0 * pow(${MetaDataParams.HDR_PEAK_LUMINANCE}/ ${MetaDataParams.PQ_MAX_LUMINANCE} , 1.0 / 2.4);
-                 float pSDR = 1.0 + 32.0 * pow(${MetaDataParams.HDR_REFERENCE_WHITE} / ${MetaDataParams.PQ_MAX_LUMINANCE}, 1.0 / 2.4);
-
-                 float Yp = log(1.0 + (pHDR - 1.0) * Y) / log(pHDR);
-
-                float Yc;
-                if      (Yp <= 0.7399)  Yc = Yp * 1.0770;
-                else if (Yp <  0.9909)  Yc = Yp * (-1.1510 * Yp + 2.7811) - 0.6302;
-                else                    Yc = Yp * 0.5000 + 0.5000;
-
-                 float Ysdr = (pow(pSDR, Yc) - 1.0) / (pSDR - 1.0);
-
-                Y = pow(Ysdr, 2.4);
-
-                return Y;
-            }
-
+$fCode
             vec3 tone_mapping(vec3 YCbCr) {
                  float W = ${MetaDataParams.HDR_PEAK_LUMINANCE} / ${MetaDataParams.HDR_REFERENCE_WHITE};
                 YCbCr /= W;
@@ -1,6 +1,7 @@
 package com.norman.android.hdrsample.transform.shader.tonemap
 
 import com.norman.android.hdrsample.transform.shader.ColorConversion
+import com.norman.android.hdrsample.transform.shader.MetaDataParams
 import com.norman.android.hdrsample.transform.shader.ReScale
 
 /**
@@ -21,7 +22,8 @@ import com.norman.android.hdrsample.transform.shader.ReScale
 
 class ToneMapBT2446C : ToneMap() {
     override val code: String
-        get() = """
+        get() = buildCode(
+            """
           const float ip = 58.535;   // linear length 输入是绝对值，把hdr-toys中的0.58535乘100，
           const float k1 = 0.83802;   // linear strength
           const float k3 = 0.74204;   // shoulder strength
@@ -39,7 +41,23 @@ class ToneMapBT2446C : ToneMap() {
               float over_white = 1019.0 / 940.0;    // 109% range (super-whites)
               return f(x, k1, k3, ip)/ over_white;
           }
+        """
+        )
 
+    /**
+     * 曲线纹理里存的是curve(Y)，Y是参考白为1的值，乘上参考白就是输入的绝对亮度
+     */
+    override val curveCode: String
+        get() = buildCode(
+            """
+          float curve(float x) {
+              return ${ToneCurve.methodToneCurve}(x * ${MetaDataParams.HDR_REFERENCE_WHITE});
+          }
+        """
+        )
+
+    private fun buildCode(curveFunctionCode: String) = """
+$curveFunctionCode
           vec3 $methodToneMap(vec3 color) {
               color = ${ReScale.methodScaleReferenceWhiteToOne}(color);
               color= ${ColorConversion.methodBt2020ToXYZ}(color);
@@ -1,5 +1,6 @@
 package com.norman.android.hdrsample.transform.shader.tonemap
 
+import com.norman.android.hdrsample.opengl.GLDerivedParam
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.HDR_REFERENCE_WHITE
 import com.norman.android.hdrsample.transform.shader.MetaDataParams.HDR_PEAK_LUMINANCE
 import com.norman.android.hdrsample.transform.shader.ReScale.methodScaleReferenceWhiteToOne
@@ -11,8 +12,26 @@ import com.norman.android.hdrsample.transform.shader.ReScale.methodScaleReferenc
  *  参考代码:https://github.com/FFmpeg/FFmpeg/blob/master/libavfilter/vf_tonemap.c
  */
 class ToneMappingHable : ToneMap() {
+
+    val hablePeak = "HABLE_PEAK"
+
+    override val derivedParams = listOf(
+        GLDerivedParam(hablePeak) { hable(it[HDR_PEAK_LUMINANCE] / 203.0f) }
+    )
+
+    private fun hable(x: Float): Float {
+        val a = 0.15f
+        val b = 0.50f
+        val c = 0.10f
+        val d = 0.20f
+        val e = 0.02f
+        val f = 0.30f
+        return ((x * (a * x + c * b) + d * e) / (x * (a * x + b) + d * f)) - e / f
+    }
+
     override val code: String
-        get() = """
+        get() = buildCode(
+            """
             const float A = 0.15;   // Shoulder Strength
             const float B = 0.50;   // Linear Strength
             const float C = 0.10;   // Linear Angle
@@ -25,11 +44,32 @@ class ToneMappingHable : ToneMap() {
                  return ((x * (A * x + C * B) + D * E) / (x * (A * x + B) + D * F)) - E / F;
             }
 
+            float hable_curve(float sig_orig)
+            {
+                return hable(sig_orig) / $hablePeak;
+            }
+            """
+        )
+
+    /**
+     * 曲线纹理里存的是hable(sig)/hable(peak)，sig是参考白为1的maxRGB，乘上参考白就是输入的绝对亮度
+     */
+    override val curveCode: String
+        get() = buildCode(
+            """
+            float hable_curve(float sig_orig)
+            {
+                return ${ToneCurve.methodToneCurve}(sig_orig * $HDR_REFERENCE_WHITE);
+            }
+            """
+        )
+
+    private fun buildCode(curveFunctionCode: String) = """
+$curveFunctionCode
             vec3 $methodToneMap(vec3 rgb) {
                 rgb = $methodScaleReferenceWhiteToOne(rgb);
                 float sig_orig = max(max(rgb.r, rgb.g), rgb.b);
-                float peak = $HDR_PEAK_LUMINANCE/$HDR_REFERENCE_WHITE;
-                float sig = hable(sig_orig) / hable(peak);
+                float sig = hable_curve(sig_orig);
                 return  rgb  * sig / sig_orig;
             }
         """.trimIndent()
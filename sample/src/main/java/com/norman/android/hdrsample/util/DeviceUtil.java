@@ -0,0 +1,82 @@
+package com.norman.android.hdrsample.util;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import androidx.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * 获取设备性能信息，根据内存和CPU核数粗略划分性能等级，用来选择LUT大小之类的画质参数
+ */
+public class DeviceUtil {
+
+    private static final String TAG = "DeviceUtil";
+
+    /**
+     * 内存小于这个值是低端机
+     */
+    private static final long LOW_TIER_TOTAL_MEMORY = 3L * 1024 * 1024 * 1024;
+
+    /**
+     * 内存大于等于这个值并且CPU核数足够是高端机
+     */
+    private static final long HIGH_TIER_TOTAL_MEMORY = 6L * 1024 * 1024 * 1024;
+
+    private static final int LOW_TIER_CPU_COUNT = 4;
+
+    private static final int HIGH_TIER_CPU_COUNT = 8;
+
+    private static Integer PERFORMANCE_TIER = null;
+
+    /**
+     * 设备性能等级，第一次调用时计算
+     * @return
+     */
+    public static synchronized @PerformanceTier int getPerformanceTier() {
+        if (PERFORMANCE_TIER == null) {
+            PERFORMANCE_TIER = computePerformanceTier();
+            LogUtil.v(TAG, "PERFORMANCE_TIER: " + PERFORMANCE_TIER);
+        }
+        return PERFORMANCE_TIER;
+    }
+
+    private static @PerformanceTier int computePerformanceTier() {
+        int cpuCount = Runtime.getRuntime().availableProcessors();
+        long totalMemory = 0;
+        boolean lowRamDevice = false;
+        Context context = AppUtil.getAppContext();
+        if (context != null) {
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            if (activityManager != null) {
+                lowRamDevice = activityManager.isLowRamDevice();
+                ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+                activityManager.getMemoryInfo(memoryInfo);
+                totalMemory = memoryInfo.totalMem;
+            }
+        }
+        LogUtil.v(TAG, "cpuCount: " + cpuCount + " totalMemory: " + totalMemory + " lowRamDevice: " + lowRamDevice);
+        if (lowRamDevice ||
+                cpuCount < LOW_TIER_CPU_COUNT ||
+                (totalMemory > 0 && totalMemory < LOW_TIER_TOTAL_MEMORY)) {
+            return PerformanceTier.LOW;
+        }
+        if (cpuCount >= HIGH_TIER_CPU_COUNT && totalMemory >= HIGH_TIER_TOTAL_MEMORY) {
+            return PerformanceTier.HIGH;
+        }
+        return PerformanceTier.MEDIUM;
+    }
+
+    /**
+     * 设备性能等级
+     */
+    @IntDef({PerformanceTier.LOW, PerformanceTier.MEDIUM, PerformanceTier.HIGH})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface PerformanceTier {
+        int LOW = 0;
+        int MEDIUM = 1;
+        int HIGH = 2;
+    }
+}
@@ -0,0 +1,146 @@
+package com.norman.android.hdrsample.util;
+
+import android.view.Display;
+
+/**
+ * 屏幕状态的快照，创建后不会再修改，可以在任意线程直接读取
+ * 状态变化时由{@link DisplayStateService}创建新的对象替换
+ */
+public final class DisplayState {
+
+    /**
+     * 默认屏幕最大亮度
+     */
+    private static final float DEFAULT_MAX_LUMINANCE = 100;
+
+    /**
+     * 当前明度，设置里面的亮度
+     */
+    public final int brightness;
+
+    /**
+     * 设置里面亮度的最大值，一般是100或者255
+     */
+    public final int maxBrightness;
+
+    /**
+     * 当前明度和最大明度的比值，0到1
+     */
+    public final float brightnessFloat;
+
+    /**
+     * 屏幕最大亮度，实际物理亮度
+     */
+    public final float maxLuminance;
+
+    /**
+     * 屏幕最小亮度，实际物理亮度
+     */
+    public final float minLuminance;
+
+    public final boolean supportHdr;
+
+    public final boolean supportHdr10;
+
+    public final boolean supportHdr10Plus;
+
+    public final boolean supportHlg;
+
+    public final boolean supportDolbyVision;
+
+    private DisplayState(int brightness,
+                         int maxBrightness,
+                         float maxLuminance,
+                         float minLuminance,
+                         boolean supportHdr10,
+                         boolean supportHdr10Plus,
+                         boolean supportHlg,
+                         boolean supportDolbyVision) {
+        this.brightness = brightness;
+        this.maxBrightness = maxBrightness;
+        this.brightnessFloat = Math.max(0.0f, Math.min(1.0f, brightness * 1.0f / maxBrightness));
+        this.maxLuminance = maxLuminance;
+        this.minLuminance = minLuminance;
+        this.supportHdr10 = supportHdr10;
+        this.supportHdr10Plus = supportHdr10Plus;
+        this.supportHlg = supportHlg;
+        this.supportDolbyVision = supportDolbyVision;
+        this.supportHdr = supportHdr10 || supportHdr10Plus || supportHlg || supportDolbyVision;
+    }
+
+    /**
+     * 从屏幕的HDR能力创建
+     *
+     * @param brightness    当前明度
+     * @param maxBrightness 最大明度
+     * @param display       获取不到屏幕时传null
+     * @return
+     */
+    static DisplayState create(int brightness, int maxBrightness, Display display) {
+        float maxLuminance = 0;
+        float minLuminance = 0;
+        boolean supportHdr10 = false;
+        boolean supportHdr10Plus = false;
+        boolean supportHlg = false;
+        boolean supportDolbyVision = false;
+        Display.HdrCapabilities hdrCapabilities = display != null ? display.getHdrCapabilities() : null;
+        if (hdrCapabilities != null) {
+            maxLuminance = hdrCapabilities.getDesiredMaxLuminance();
+            minLuminance = hdrCapabilities.getDesiredMinLuminance();
+            int[] hdrTypes = hdrCapabilities.getSupportedHdrTypes();
+            if (hdrTypes != null) {
+                for (int hdrType : hdrTypes) {
+                    if (hdrType == Display.HdrCapabilities.HDR_TYPE_DOLBY_VISION) {
+                        supportDolbyVision = true;
+                    } else if (hdrType == Display.HdrCapabilities.HDR_TYPE_HLG) {
+                        supportHlg = true;
+                    } else if (hdrType == Display.HdrCapabilities.HDR_TYPE_HDR10) {
+                        supportHdr10 = true;
+                    } else if (hdrType == Display.HdrCapabilities.HDR_TYPE_HDR10_PLUS) {
+                        supportHdr10Plus = true;
+                    }
+                }
+            }
+        }
+        if (maxLuminance <= 0) {
+            maxLuminance = DEFAULT_MAX_LUMINANCE;
+        }
+        return new DisplayState(brightness, maxBrightness, maxLuminance, minLuminance,
+                supportHdr10, supportHdr10Plus, supportHlg, supportDolbyVision);
+    }
+
+    /**
+     * 只有明度变化，其他状态不变
+     *
+     * @param brightness
+     * @return
+     */
+    DisplayState withBrightness(int brightness) {
+        if (brightness == this.brightness) {
+            return this;
+        }
+        return new DisplayState(brightness, maxBrightness, maxLuminance, minLuminance,
+                supportHdr10, supportHdr10Plus, supportHlg, supportDolbyVision);
+    }
+
+    /**
+     * @return 当前屏幕亮度，最大亮度乘上明度比值
+     */
+    public float getCurrentLuminance() {
+        return brightnessFloat * maxLuminance;
+    }
+
+    @Override
+    public String toString() {
+        return "DisplayState{" +
+                "brightness=" + brightness +
+                ", maxBrightness=" + maxBrightness +
+                ", maxLuminance=" + maxLuminance +
+                ", minLuminance=" + minLuminance +
+                ", supportHdr10=" + supportHdr10 +
+                ", supportHdr10Plus=" + supportHdr10Plus +
+                ", supportHlg=" + supportHlg +
+                ", supportDolbyVision=" + supportDolbyVision +
+                '}';
+    }
+}
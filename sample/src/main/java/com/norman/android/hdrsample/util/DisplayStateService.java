@@ -0,0 +1,156 @@
+package com.norman.android.hdrsample.util;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.hardware.display.DisplayManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Settings;
+import android.view.Display;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 屏幕亮度和HDR能力的缓存
+ * 只在亮度设置的ContentObserver和DisplayManager.DisplayListener回调时更新，更新后替换{@link DisplayState}快照，
+ * 渲染线程通过volatile引用读取，不需要加锁，也不会每帧都通过binder查询设置
+ * <p>
+ * 没有调用{@link #listen()}时状态只在第一次读取时加载，之后不会更新
+ */
+public class DisplayStateService {
+
+    private static final String TAG = "DisplayStateService";
+
+    private static final DisplayStateService INSTANCE = new DisplayStateService();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<OnDisplayStateChangeListener> listenerList = new CopyOnWriteArrayList<>();
+
+    private final ContentObserver brightnessObserver = new ContentObserver(mainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            DisplayState displayState = getState();
+            publish(displayState.withBrightness(DisplayUtil.getBrightness()));
+        }
+    };
+
+    private final DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId == Display.DEFAULT_DISPLAY) {
+                publish(loadState());
+            }
+        }
+    };
+
+    private volatile DisplayState displayState;
+
+    private int listenCount;
+
+    private DisplayStateService() {
+    }
+
+    public static DisplayStateService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 当前屏幕状态，不会加锁和查询系统服务(第一次除外)，可以每帧调用
+     *
+     * @return
+     */
+    public DisplayState getState() {
+        DisplayState state = displayState;
+        if (state != null) {
+            return state;
+        }
+        synchronized (this) {
+            if (displayState == null) {
+                displayState = loadState();
+            }
+            return displayState;
+        }
+    }
+
+    /**
+     * 开始监听亮度和屏幕变化，和{@link #unListen()}成对调用，多个地方调用时只注册一次
+     */
+    public synchronized void listen() {
+        if (listenCount++ > 0) {
+            return;
+        }
+        Context context = AppUtil.getAppContext();
+        Uri brightnessUri = Settings.System.getUriFor(Settings.System.SCREEN_BRIGHTNESS);
+        context.getContentResolver().registerContentObserver(brightnessUri, true, brightnessObserver);
+        DisplayManager displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        displayManager.registerDisplayListener(displayListener, mainHandler);
+        // 没有监听的这段时间状态可能已经变了
+        displayState = loadState();
+    }
+
+    public synchronized void unListen() {
+        if (listenCount == 0 || --listenCount > 0) {
+            return;
+        }
+        Context context = AppUtil.getAppContext();
+        context.getContentResolver().unregisterContentObserver(brightnessObserver);
+        DisplayManager displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        displayManager.unregisterDisplayListener(displayListener);
+    }
+
+    public synchronized boolean isListen() {
+        return listenCount > 0;
+    }
+
+    /**
+     * 状态变化的回调在主线程
+     *
+     * @param listener
+     */
+    public void addOnDisplayStateChangeListener(OnDisplayStateChangeListener listener) {
+        if (!listenerList.contains(listener)) {
+            listenerList.add(listener);
+        }
+    }
+
+    public void removeOnDisplayStateChangeListener(OnDisplayStateChangeListener listener) {
+        listenerList.remove(listener);
+    }
+
+    private void publish(DisplayState state) {
+        synchronized (this) {
+            if (state == displayState) {
+                return;
+            }
+            displayState = state;
+        }
+        LogUtil.v(TAG, "display state change " + state);
+        for (OnDisplayStateChangeListener listener : listenerList) {
+            listener.onDisplayStateChange(state);
+        }
+    }
+
+    private static DisplayState loadState() {
+        Context context = AppUtil.getAppContext();
+        DisplayManager displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        Display display = displayManager.getDisplay(Display.DEFAULT_DISPLAY);
+        DisplayState state = DisplayState.create(DisplayUtil.getBrightness(), DisplayUtil.getMaxBrightness(), display);
+        LogUtil.v(TAG, "load display state " + state);
+        return state;
+    }
+
+    public interface OnDisplayStateChangeListener {
+        void onDisplayStateChange(DisplayState displayState);
+    }
+}
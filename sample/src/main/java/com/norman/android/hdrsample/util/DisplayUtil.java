@@ -4,8 +4,6 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.os.PowerManager;
 import android.provider.Settings;
-import android.view.Display;
-import android.view.WindowManager;
 
 import java.lang.reflect.Field;
 
@@ -16,94 +14,30 @@ public class DisplayUtil {
 
     private static final String TAG = "DisplayUtil";
 
-    /**
-     * 屏幕最大亮度，实际物理亮度
-     */
-    private static Float MAX_SCREEN_LUMINANCE = null;
-
-    /**
-     * 屏幕最小亮度，实际物理亮度
-     */
-    private static Float MIN_SCREEN_LUMINANCE = null;
     /**
      * 屏幕最大明度指的是设置里面亮度的最大值，一般是100或者255
      */
     private static Integer MAX_SCREEN_BRIGHTNESS = null;
 
-    /**
-     * 默认屏幕最大亮度
-     */
-    private static float DEFAULT_MAX_SCREEN_LUMINANCE = 100;
-
     /**
      * 默认屏幕最大明度
      */
     private static int DEFAULT_MAX_SCREEN_BRIGHTNESS = 255;
 
-    /**
-     * 屏幕是否支持DOLBY_VISION
-     */
-    private static boolean HDR_CAPABILITY_DOLBY_VISION = false;
-    /**
-     * 屏幕是否支持HDR10
-     */
-    private static boolean HDR_CAPABILITY_HDR10 = false;
-
-    /**
-     * 屏幕是否支持HLG
-     */
-    private static boolean HDR_CAPABILITY_HLG = false;
-
-    /**
-     * 屏幕是否支持HDR10+
-     */
-    private static boolean HDR_CAPABILITY_HDR10_PLUS = false;
-
-    /**
-     * 屏幕是否支持HDR
-     */
-    private static Boolean HDR_CAPABILITY_SCREEN = null;
-
     /**
      * 最大屏幕亮度
      * @return
      */
-    public static synchronized float getMaxLuminance() {
-        if (MAX_SCREEN_LUMINANCE == null) {
-            float maxScreenLuminance = 0;
-            Context context = AppUtil.getAppContext();
-            WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-            Display display = windowManager.getDefaultDisplay();
-            Display.HdrCapabilities hdrCapabilities = display.getHdrCapabilities();
-            float maxDesiredLuminance = hdrCapabilities.getDesiredMaxLuminance();
-            LogUtil.v(TAG,"screen getDesiredMaxLuminance: "+maxDesiredLuminance);
-            maxScreenLuminance = maxDesiredLuminance;
-            if (maxScreenLuminance <= 0) {
-                MAX_SCREEN_LUMINANCE = DEFAULT_MAX_SCREEN_LUMINANCE;
-            } else {
-                MAX_SCREEN_LUMINANCE = maxScreenLuminance;
-            }
-            LogUtil.v(TAG,"MAX_SCREEN_LUMINANCE: "+MAX_SCREEN_LUMINANCE);
-        }
-        return MAX_SCREEN_LUMINANCE;
+    public static float getMaxLuminance() {
+        return DisplayStateService.getInstance().getState().maxLuminance;
     }
 
     /**
      * 最小屏幕亮度
      * @return
      */
-    public static synchronized float getMinLuminance() {
-        if (MIN_SCREEN_LUMINANCE == null) {
-            Context context = AppUtil.getAppContext();
-            WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-            Display display = windowManager.getDefaultDisplay();
-            Display.HdrCapabilities hdrCapabilities = display.getHdrCapabilities();
-            float minDesiredLuminance = hdrCapabilities.getDesiredMinLuminance();
-            LogUtil.v(TAG,"screen getDesiredMinLuminance: "+minDesiredLuminance);
-            MIN_SCREEN_LUMINANCE = minDesiredLuminance;
-            LogUtil.v(TAG,"MIN_SCREEN_LUMINANCE: "+MIN_SCREEN_LUMINANCE);
-        }
-        return MIN_SCREEN_LUMINANCE;
+    public static float getMinLuminance() {
+        return DisplayStateService.getInstance().getState().minLuminance;
     }
 
     /***
@@ -147,7 +81,7 @@ public class DisplayUtil {
     }
 
     /***
-     * 当前明度，指的是设置里面的亮度
+     * 当前明度，指的是设置里面的亮度，每次都会查询系统设置，渲染线程用{@link DisplayStateService}缓存的值
      * @return
      */
     public static int getBrightness() {
@@ -165,8 +99,7 @@ public class DisplayUtil {
      */
 
     public static boolean isSupportDolbyVision() {
-        loadHdrCapability();
-        return HDR_CAPABILITY_DOLBY_VISION;
+        return DisplayStateService.getInstance().getState().supportDolbyVision;
     }
 
     /**
@@ -174,8 +107,7 @@ public class DisplayUtil {
      * @return
      */
     public static boolean isSupportHlg() {
-        loadHdrCapability();
-        return HDR_CAPABILITY_HLG;
+        return DisplayStateService.getInstance().getState().supportHlg;
     }
 
     /**
@@ -184,8 +116,7 @@ public class DisplayUtil {
      */
 
     public static boolean isSupportHdr10() {
-        loadHdrCapability();
-        return HDR_CAPABILITY_HDR10;
+        return DisplayStateService.getInstance().getState().supportHdr10;
     }
 
     /**
@@ -193,8 +124,7 @@ public class DisplayUtil {
      * @return
      */
     public static boolean isSupportHdr10Plus() {
-        loadHdrCapability();
-        return HDR_CAPABILITY_HDR10_PLUS;
+        return DisplayStateService.getInstance().getState().supportHdr10Plus;
     }
 
     /**
@@ -202,41 +132,7 @@ public class DisplayUtil {
      * @return
      */
     public static boolean isSupportHdr() {
-        loadHdrCapability();
-        return HDR_CAPABILITY_SCREEN;
+        return DisplayStateService.getInstance().getState().supportHdr;
     }
 
-
-    private static synchronized void loadHdrCapability() {
-        if (HDR_CAPABILITY_SCREEN != null) {
-            return;
-        }
-        Context context = AppUtil.getAppContext();
-        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-        Display display = wm.getDefaultDisplay();
-        Display.HdrCapabilities hdrCapabilities = display.getHdrCapabilities();
-        int[] hdrTypes = hdrCapabilities.getSupportedHdrTypes();
-        if (hdrTypes != null && hdrTypes.length > 0) {
-            for (int hdrType : hdrTypes) {
-                if (hdrType == Display.HdrCapabilities.HDR_TYPE_DOLBY_VISION) {
-                    HDR_CAPABILITY_DOLBY_VISION = true;
-                } else if (hdrType == Display.HdrCapabilities.HDR_TYPE_HLG) {
-                    HDR_CAPABILITY_HLG = true;
-                } else if (hdrType == Display.HdrCapabilities.HDR_TYPE_HDR10) {
-                    HDR_CAPABILITY_HDR10 = true;
-                } else if (hdrType == Display.HdrCapabilities.HDR_TYPE_HDR10_PLUS) {
-                    HDR_CAPABILITY_HDR10_PLUS = true;
-                }
-            }
-            HDR_CAPABILITY_SCREEN = true;
-        }
-        if (HDR_CAPABILITY_SCREEN == null) {
-            HDR_CAPABILITY_SCREEN = false;
-        }
-        LogUtil.v(TAG,"HDR_CAPABILITY_DOLBY_VISION: "+HDR_CAPABILITY_DOLBY_VISION);
-        LogUtil.v(TAG,"HDR_CAPABILITY_HLG: "+HDR_CAPABILITY_HLG);
-        LogUtil.v(TAG,"HDR_CAPABILITY_HDR10: "+HDR_CAPABILITY_HDR10);
-        LogUtil.v(TAG,"HDR_CAPABILITY_HDR10_PLUS: "+HDR_CAPABILITY_HDR10_PLUS);
-        LogUtil.v(TAG,"HDR_CAPABILITY_SCREEN: "+HDR_CAPABILITY_SCREEN);
-    }
 }
@@ -0,0 +1,248 @@
+package com.norman.android.hdrsample.util;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.norman.android.hdrsample.handler.MessageHandler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Program二进制的磁盘缓存，编译链接Shader在有些驱动上要50到300ms，从二进制加载只要几ms
+ * 用顶点着色器、片段着色器代码和GL_RENDERER、GL_VERSION一起计算SHA-256作为文件名，驱动升级后缓存自然失效
+ * 驱动拒绝二进制(链接失败)时删除缓存，再从源码编译
+ * <p>
+ * 文件格式：int 二进制格式 + 二进制数据，需要OpenGL ES 3.0，低版本直接从源码编译
+ * 所有方法都要在GL线程调用，写文件在后台线程
+ */
+public class GLProgramBinaryCache {
+
+    private static final String TAG = "GLProgramBinaryCache";
+
+    private static final String CACHE_DIR_NAME = "program_binary";
+
+    private static final String CACHE_FILE_SUFFIX = ".bin";
+
+    private static final String CACHE_FILE_TEMP_SUFFIX = ".tmp";
+
+    private static final String SAVE_THREAD_NAME = "ProgramBinarySaveThread";
+
+    private static final String GLES3_VERSION_PREFIX = "OpenGL ES 3";
+
+    private static final int HEADER_LENGTH = 4;
+
+    private static MessageHandler SAVE_HANDLER;
+
+    /**
+     * 创建Program，优先从缓存的二进制加载
+     *
+     * @param vertCode 顶点着色器代码
+     * @param fragCode 片段着色器代码
+     * @return
+     */
+    public static int createProgramId(String vertCode, String fragCode) {
+        File cacheFile = getCacheFile(vertCode, fragCode);
+        if (cacheFile == null) {
+            return GLESUtil.createProgramId(vertCode, fragCode);
+        }
+        int programId = loadProgramId(cacheFile);
+        if (programId > 0) {
+            return programId;
+        }
+        programId = GLESUtil.createProgramId();
+        int vertexShaderId = GLESUtil.createVertexShader(vertCode);
+        int fragmentShaderId = GLESUtil.createFragmentShader(fragCode);
+        GLES20.glAttachShader(programId, vertexShaderId);
+        GLES20.glAttachShader(programId, fragmentShaderId);
+        // 提示驱动链接后保留二进制
+        GLES30.glProgramParameteri(programId, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        GLES20.glLinkProgram(programId);
+        GLESUtil.deleteShaderId(vertexShaderId);
+        GLESUtil.deleteShaderId(fragmentShaderId);
+        if (!isLinkSuccess(programId)) {
+            LogUtil.e(TAG, "could not link program: \n" + GLES20.glGetProgramInfoLog(programId));
+            return programId;
+        }
+        saveProgramBinary(programId, cacheFile);
+        return programId;
+    }
+
+    private static int loadProgramId(File cacheFile) {
+        if (!cacheFile.exists()) {
+            return 0;
+        }
+        ByteBuffer binaryBuffer;
+        int binaryFormat;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(cacheFile, "r");
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            long fileLength = fileChannel.size();
+            if (fileLength <= HEADER_LENGTH) {
+                deleteCache(cacheFile);
+                return 0;
+            }
+            ByteBuffer fileBuffer = ByteBuffer.allocateDirect((int) fileLength);
+            fileBuffer.order(ByteOrder.nativeOrder());
+            while (fileBuffer.hasRemaining() && fileChannel.read(fileBuffer) >= 0) {
+            }
+            fileBuffer.flip();
+            binaryFormat = fileBuffer.getInt();
+            binaryBuffer = fileBuffer.slice();
+        } catch (IOException e) {
+            LogUtil.w(TAG, "read " + cacheFile.getName() + " fail " + e.getMessage());
+            deleteCache(cacheFile);
+            return 0;
+        } finally {
+            try {
+                if (randomAccessFile != null) {
+                    randomAccessFile.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+        int programId = GLESUtil.createProgramId();
+        GLES30.glProgramBinary(programId, binaryFormat, binaryBuffer, binaryBuffer.remaining());
+        // 驱动不认识这个二进制时glProgramBinary会报GL_INVALID_ENUM，先清掉错误，避免影响后面的检查
+        while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+        }
+        if (!isLinkSuccess(programId)) {
+            LogUtil.w(TAG, "program binary " + cacheFile.getName() + " rejected, compile from source");
+            GLESUtil.delProgramId(programId);
+            deleteCache(cacheFile);
+            return 0;
+        }
+        return programId;
+    }
+
+    private static void saveProgramBinary(int programId, File cacheFile) {
+        int[] binaryLength = new int[1];
+        GLES20.glGetProgramiv(programId, GLES30.GL_PROGRAM_BINARY_LENGTH, binaryLength, 0);
+        if (binaryLength[0] <= 0) {
+            return;
+        }
+        ByteBuffer fileBuffer = ByteBuffer.allocateDirect(HEADER_LENGTH + binaryLength[0]);
+        fileBuffer.order(ByteOrder.nativeOrder());
+        fileBuffer.position(HEADER_LENGTH);
+        ByteBuffer binaryBuffer = fileBuffer.slice();
+        int[] length = new int[1];
+        int[] binaryFormat = new int[1];
+        GLES30.glGetProgramBinary(programId, binaryLength[0], length, 0, binaryFormat, 0, binaryBuffer);
+        if (length[0] <= 0) {
+            return;
+        }
+        fileBuffer.putInt(0, binaryFormat[0]);
+        fileBuffer.position(0);
+        fileBuffer.limit(HEADER_LENGTH + length[0]);
+        getSaveHandler().post(() -> writeCache(cacheFile, fileBuffer));
+    }
+
+    /**
+     * 先写入临时文件再重命名，避免写了一半的文件被读取
+     */
+    private static void writeCache(File cacheFile, ByteBuffer fileBuffer) {
+        File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + CACHE_FILE_TEMP_SUFFIX);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            FileChannel fileChannel = outputStream.getChannel();
+            while (fileBuffer.hasRemaining()) {
+                fileChannel.write(fileBuffer);
+            }
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(cacheFile)) {
+                deleteCache(tempFile);
+            }
+        } catch (IOException e) {
+            LogUtil.w(TAG, "save " + cacheFile.getName() + " fail " + e.getMessage());
+            deleteCache(tempFile);
+        } finally {
+            try {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static boolean isLinkSuccess(int programId) {
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(programId, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        return linkStatus[0] == GLES20.GL_TRUE;
+    }
+
+    /**
+     * 不是OpenGL ES 3.0或者驱动不支持二进制格式返回null
+     */
+    private static File getCacheFile(String vertCode, String fragCode) {
+        String glVersion = GLES20.glGetString(GLES20.GL_VERSION);
+        if (glVersion == null || !glVersion.startsWith(GLES3_VERSION_PREFIX)) {
+            return null;
+        }
+        int[] formatCount = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formatCount, 0);
+        if (formatCount[0] <= 0) {
+            return null;
+        }
+        Context context = AppUtil.getAppContext();
+        if (context == null) {
+            return null;
+        }
+        File cacheDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            return null;
+        }
+        String glRenderer = GLES20.glGetString(GLES20.GL_RENDERER);
+        String key = createKey(vertCode, fragCode, glRenderer, glVersion);
+        if (key == null) {
+            return null;
+        }
+        return new File(cacheDir, key + CACHE_FILE_SUFFIX);
+    }
+
+    private static String createKey(String... texts) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            for (String text : texts) {
+                if (text != null) {
+                    messageDigest.update(text.getBytes(StandardCharsets.UTF_8));
+                }
+                messageDigest.update((byte) 0);//分隔符，避免拼接后相同
+            }
+            byte[] digest = messageDigest.digest();
+            StringBuilder keyBuilder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                keyBuilder.append(Character.forDigit((b >> 4) & 0xF, 16));
+                keyBuilder.append(Character.forDigit(b & 0xF, 16));
+            }
+            return keyBuilder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static synchronized MessageHandler getSaveHandler() {
+        if (SAVE_HANDLER == null || SAVE_HANDLER.isFinish()) {
+            SAVE_HANDLER = MessageHandler.obtain(SAVE_THREAD_NAME);
+        }
+        return SAVE_HANDLER;
+    }
+
+    private static void deleteCache(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            LogUtil.w(TAG, "delete cache " + file.getName() + " fail");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.norman.android.hdrsample.util;
+
+/**
+ * float和IEEE754半精度浮点数(half float)的转换工具类
+ * android.util.Half要API26才能用，这里只用位运算实现，不会创建对象，可以直接在解析循环里调用
+ */
+public class HalfFloatUtil {
+
+    /**
+     * float转half，舍入方式是就近舍入(和GPU一样)，超出范围变成无穷大，太小变成0
+     *
+     * @param value
+     * @return half的16位数据
+     */
+    public static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;//符号位
+        int exponent = (bits >>> 23) & 0xff;//float的指数位
+        int mantissa = bits & 0x7fffff;//float的尾数位
+        if (exponent == 0xff) {//无穷大或者NaN
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int halfExponent = exponent - 127 + 15;//float指数偏移127，half指数偏移15
+        if (halfExponent >= 0x1f) {//超过half的最大值变成无穷大
+            return (short) (sign | 0x7c00);
+        }
+        if (halfExponent <= 0) {//非规格化数
+            if (halfExponent < -10) {//太小了直接变成0
+                return (short) sign;
+            }
+            mantissa = mantissa | 0x800000;//加上隐藏的1
+            int shift = 14 - halfExponent;
+            int halfMantissa = mantissa >> shift;
+            int roundBit = 1 << (shift - 1);
+            // 就近舍入，刚好一半的时候向偶数舍入
+            if ((mantissa & roundBit) != 0 && (mantissa & (3 * roundBit - 1)) != 0) {
+                halfMantissa++;
+            }
+            return (short) (sign | halfMantissa);
+        }
+        int half = sign | (halfExponent << 10) | (mantissa >> 13);
+        int roundBit = 0x1000;
+        // 就近舍入，进位到指数位也是正确的结果
+        if ((mantissa & roundBit) != 0 && (mantissa & (3 * roundBit - 1)) != 0) {
+            half++;
+        }
+        return (short) half;
+    }
+
+    /**
+     * half转float
+     *
+     * @param half half的16位数据
+     * @return
+     */
+    public static float toFloat(short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        if (exponent == 0) {//0或者非规格化数，值就是mantissa*2^-24
+            float value = mantissa * (1.0f / 16777216.0f);
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 0x1f) {//无穷大或者NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
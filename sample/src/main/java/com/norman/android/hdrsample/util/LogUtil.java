@@ -36,6 +36,19 @@ public class LogUtil {
         Log.d(LOG_NAME, stringBuilder.toString());
     }
 
+    public static void i(String message) {
+        i(null, message);
+    }
+
+    public static void i(String name, String message) {
+        StringBuilder stringBuilder = new StringBuilder();
+        if (!TextUtils.isEmpty(name)) {
+            stringBuilder.append(name).append("\n");
+        }
+        stringBuilder.append(message);
+        Log.i(LOG_NAME, stringBuilder.toString());
+    }
+
     public static void w(String name, String message) {
         StringBuilder stringBuilder = new StringBuilder();
         if (!TextUtils.isEmpty(name)) {
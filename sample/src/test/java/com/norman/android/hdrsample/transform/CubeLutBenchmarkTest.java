@@ -0,0 +1,168 @@
+package com.norman.android.hdrsample.transform;
+
+import static org.junit.Assert.assertTrue;
+
+import com.norman.android.hdrsample.exception.IORuntimeException;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 在JVM上测量assets/lut下所有Cube文件的解析和重采样耗时，结果保存成JSON方便对比不同版本
+ * 解析和重采样都是纯Java，不依赖asset和GLES；{@link CubeLutCache}要用App的cache目录，不在这里测量
+ * 每个用例先预热再测量多次，记录最小、平均和最大耗时
+ * <p>
+ * 耗时比较长，普通的单元测试不运行，要传-PcubeLutBenchmark：
+ * ./gradlew :sample:testReleaseUnitTest -PcubeLutBenchmark --tests '*CubeLutBenchmarkTest'
+ * 结果写到build/reports/cubelut_benchmark.json，目录和输出路径由build.gradle传进来
+ */
+public class CubeLutBenchmarkTest {
+
+    private static final String ASSET_DIR_PROPERTY = "cubeLutAssetDir";
+
+    private static final String OUTPUT_PROPERTY = "cubeLutBenchmarkOutput";
+
+    private static final String CUBE_FILE_SUFFIX = ".cube";
+
+    private static final int WARMUP_COUNT = 3;
+
+    private static final int MEASURE_COUNT = 10;
+
+    @Test
+    public void benchmark() throws IOException {
+        String assetDir = System.getProperty(ASSET_DIR_PROPERTY);
+        String output = System.getProperty(OUTPUT_PROPERTY);
+        Assume.assumeTrue("run with -PcubeLutBenchmark", assetDir != null && output != null);
+        File assetRoot = new File(assetDir);
+        List<File> cubeFileList = listCubeFiles(assetRoot);
+        assertTrue("no cube file in " + assetRoot, !cubeFileList.isEmpty());
+        List<String> resultList = new ArrayList<>();
+        for (File cubeFile : cubeFileList) {
+            String asset = assetRoot.getName() + "/" + assetRoot.toURI().relativize(cubeFile.toURI()).getPath();
+            runFile(asset, cubeFile, resultList);
+        }
+        File outputFile = new File(output);
+        File outputDir = outputFile.getParentFile();
+        if (outputDir != null && !outputDir.exists() && !outputDir.mkdirs()) {
+            throw new IOException("create " + outputDir + " fail");
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8)) {
+            writer.write(createJson(resultList));
+        }
+        System.out.println("save benchmark result " + outputFile.getAbsolutePath());
+    }
+
+    private static void runFile(String asset, File cubeFile, List<String> resultList) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(cubeFile)) {
+            FileChannel fileChannel = inputStream.getChannel();
+            long length = fileChannel.size();
+            CubeLutBuffer floatBuffer = CubeLutBuffer.load(fileChannel, 0, length, false, CubeLutBuffer.DataType.FLOAT);
+            int size = floatBuffer.size;
+
+            resultList.add(measure(asset, size, "parseSequentialFloat",
+                    () -> CubeLutBuffer.load(fileChannel, 0, length, false, CubeLutBuffer.DataType.FLOAT)));
+            resultList.add(measure(asset, size, "parseParallelFloat",
+                    () -> CubeLutBuffer.load(fileChannel, 0, length, true, CubeLutBuffer.DataType.FLOAT)));
+            resultList.add(measure(asset, size, "parseParallelHalfFloat",
+                    () -> CubeLutBuffer.load(fileChannel, 0, length, true, CubeLutBuffer.DataType.HALF_FLOAT)));
+            resultList.add(measure(asset, size, "parseParallelRGB10A2",
+                    () -> CubeLutBuffer.load(fileChannel, 0, length, true, CubeLutBuffer.DataType.RGB10_A2)));
+
+            for (int resampleSize : new int[]{CubeLutResampler.MAX_SIZE_MEDIUM_TIER, CubeLutResampler.MAX_SIZE_LOW_TIER}) {
+                if (resampleSize >= size) {
+                    continue;
+                }
+                CubeLutResampler.Result result = CubeLutResampler.resample(floatBuffer, resampleSize, CubeLutBuffer.DataType.HALF_FLOAT);
+                String resultJson = measure(asset, size, "resample" + resampleSize,
+                        () -> CubeLutResampler.resample(floatBuffer, resampleSize, CubeLutBuffer.DataType.HALF_FLOAT));
+                resultList.add(resultJson.substring(0, resultJson.length() - 1) +
+                        String.format(Locale.US, ", \"maxDeltaE\": %.4f, \"meanDeltaE\": %.4f}", result.maxDeltaE, result.meanDeltaE));
+            }
+        } catch (IORuntimeException e) {
+            throw new IOException("load " + cubeFile + " fail", e);
+        }
+    }
+
+    private static String measure(String asset, int size, String name, Runnable runnable) {
+        for (int i = 0; i < WARMUP_COUNT; i++) {
+            runnable.run();
+        }
+        long minTime = Long.MAX_VALUE;
+        long maxTime = 0;
+        long totalTime = 0;
+        for (int i = 0; i < MEASURE_COUNT; i++) {
+            long startTime = System.nanoTime();
+            runnable.run();
+            long costTime = System.nanoTime() - startTime;
+            minTime = Math.min(minTime, costTime);
+            maxTime = Math.max(maxTime, costTime);
+            totalTime += costTime;
+        }
+        String resultJson = String.format(Locale.US,
+                "{\"asset\": %s, \"size\": %d, \"benchmark\": \"%s\", \"minMs\": %.3f, \"avgMs\": %.3f, \"maxMs\": %.3f}",
+                quote(asset), size, name, minTime / 1e6, totalTime / 1e6 / MEASURE_COUNT, maxTime / 1e6);
+        System.out.println(resultJson);
+        return resultJson;
+    }
+
+    /**
+     * 按路径排序，每次结果的顺序一样方便对比
+     */
+    private static List<File> listCubeFiles(File dir) {
+        List<File> cubeFileList = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return cubeFileList;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                cubeFileList.addAll(listCubeFiles(file));
+            } else if (file.getName().endsWith(CUBE_FILE_SUFFIX)) {
+                cubeFileList.add(file);
+            }
+        }
+        return cubeFileList;
+    }
+
+    /**
+     * 单元测试里没有org.json，直接拼接
+     */
+    private static String createJson(List<String> resultList) {
+        StringBuilder jsonBuilder = new StringBuilder();
+        jsonBuilder.append("{\n")
+                .append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n")
+                .append("  \"warmupCount\": ").append(WARMUP_COUNT).append(",\n")
+                .append("  \"measureCount\": ").append(MEASURE_COUNT).append(",\n")
+                .append("  \"jvm\": {")
+                .append("\"javaVersion\": ").append(quote(System.getProperty("java.version"))).append(", ")
+                .append("\"osArch\": ").append(quote(System.getProperty("os.arch"))).append(", ")
+                .append("\"cpuCount\": ").append(Runtime.getRuntime().availableProcessors())
+                .append("},\n")
+                .append("  \"results\": [\n");
+        for (int i = 0; i < resultList.size(); i++) {
+            jsonBuilder.append("    ").append(resultList.get(i));
+            jsonBuilder.append(i < resultList.size() - 1 ? ",\n" : "\n");
+        }
+        jsonBuilder.append("  ]\n")
+                .append("}\n");
+        return jsonBuilder.toString();
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
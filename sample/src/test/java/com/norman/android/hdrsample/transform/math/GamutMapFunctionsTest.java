@@ -0,0 +1,191 @@
+package com.norman.android.hdrsample.transform.math;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
+
+import org.junit.Test;
+
+/**
+ * 色域映射和gamutmap目录下GLSL公式的对比，BT2020转BT709的矩阵用BT.2087里的值
+ */
+public class GamutMapFunctionsTest {
+
+    private static final int GRID_SIZE = 17;
+
+    /**
+     * BT.2087的BT2020到BT709矩阵，按行存储
+     */
+    private static final double[][] BT2020_TO_BT709 = {
+            {1.6605, -0.5876, -0.0728},
+            {-0.1246, 1.1329, -0.0083},
+            {-0.0182, -0.1006, 1.1187}
+    };
+
+    private static final ColorFunction[] GAMUT_MAPS = {
+            GamutMapFunctions.CLIP,
+            GamutMapFunctions.COMPRESS,
+            GamutMapFunctions.ADAPTIVE_L0_CUSP
+    };
+
+    @Test
+    public void clipMatchesGLSL() {
+        int count = GRID_SIZE * GRID_SIZE * GRID_SIZE;
+        float[] r = new float[count];
+        float[] g = new float[count];
+        float[] b = new float[count];
+        TransferFunctionsTest.fillGrid(GRID_SIZE, r, g, b);
+        float[] inputR = r.clone();
+        float[] inputG = g.clone();
+        float[] inputB = b.clone();
+        GamutMapFunctions.CLIP.apply(new ColorParams(), r, g, b);
+        float[] actual = new float[3];
+        for (int i = 0; i < count; i++) {
+            double[] expected = toBT709(inputR[i], inputG[i], inputB[i]);
+            actual[0] = r[i];
+            actual[1] = g[i];
+            actual[2] = b[i];
+            for (int channel = 0; channel < 3; channel++) {
+                double clamp = Math.max(0.0, Math.min(1.0, expected[channel]));
+                //BT.2087的矩阵只有4位小数
+                assertEquals("clip " + i + " channel " + channel, clamp, actual[channel], 2e-4);
+            }
+        }
+    }
+
+    @Test
+    public void whiteIsPreserved() {
+        for (ColorFunction gamutMap : GAMUT_MAPS) {
+            for (float grey : new float[]{0.01f, 0.18f, 0.5f, 1.0f}) {
+                float[] r = {grey};
+                float[] g = {grey};
+                float[] b = {grey};
+                gamutMap.apply(new ColorParams(), r, g, b);
+                assertEquals(gamutMap + " r " + grey, grey, r[0], 1e-4f);
+                assertEquals(gamutMap + " g " + grey, grey, g[0], 1e-4f);
+                assertEquals(gamutMap + " b " + grey, grey, b[0], 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void outputInRange() {
+        int count = GRID_SIZE * GRID_SIZE * GRID_SIZE;
+        for (ColorFunction gamutMap : new ColorFunction[]{GamutMapFunctions.CLIP, GamutMapFunctions.ADAPTIVE_L0_CUSP}) {
+            float[] r = new float[count];
+            float[] g = new float[count];
+            float[] b = new float[count];
+            TransferFunctionsTest.fillGrid(GRID_SIZE, r, g, b);
+            gamutMap.apply(new ColorParams(), r, g, b);
+            for (int i = 1; i < count; i++) {//黑色在OKLab里没有色相，GLSL里也是NaN，写入纹理时按0处理
+                assertInRange(gamutMap + " r " + i, r[i]);
+                assertInRange(gamutMap + " g " + i, g[i]);
+                assertInRange(gamutMap + " b " + i, b[i]);
+            }
+        }
+    }
+
+    @Test
+    public void compressMatchesGLSL() {
+        int count = GRID_SIZE * GRID_SIZE * GRID_SIZE;
+        float[] r = new float[count];
+        float[] g = new float[count];
+        float[] b = new float[count];
+        TransferFunctionsTest.fillGrid(GRID_SIZE, r, g, b);
+        float[] linearR = r.clone();
+        float[] linearG = g.clone();
+        float[] linearB = b.clone();
+        //矩阵已经在clipMatchesGLSL里比较过，这里只比较压缩的部分
+        ColorMath.multiply(ColorMath.BT2020_TO_BT709, linearR, linearG, linearB, 0, count);
+        GamutMapFunctions.COMPRESS.apply(new ColorParams(), r, g, b);
+        for (int i = 0; i < count; i++) {
+            double ac = Math.max(Math.max(linearR[i], linearG[i]), linearB[i]);
+            double absAc = Math.abs(ac);
+            double dr = ac == 0.0 ? 0.0 : (ac - linearR[i]) / absAc;
+            double dg = ac == 0.0 ? 0.0 : (ac - linearG[i]) / absAc;
+            double db = ac == 0.0 ? 0.0 : (ac - linearB[i]) / absAc;
+            assertEquals("compress r " + i, ac - parabolic(dr, 1.518705262732682, 1.0505085424784364) * absAc, r[i], 1e-5);
+            assertEquals("compress g " + i, ac - parabolic(dg, 1.0750082200767368, 0.9405097727736265) * absAc, g[i], 1e-5);
+            assertEquals("compress b " + i, ac - parabolic(db, 1.0887800398456782, 0.9771607745933959) * absAc, b[i], 1e-5);
+        }
+    }
+
+    @Test
+    public void adaptiveKeepsInGamutColor() {
+        //BT709里的颜色转成BT2020后，ADAPTIVE_L0_CUSP只做矩阵转换
+        float[][] colors = {
+                {0.8f, 0.2f, 0.1f},
+                {0.1f, 0.6f, 0.3f},
+                {0.25f, 0.3f, 0.9f},
+                {0.5f, 0.5f, 0.4f}
+        };
+        for (float[] color : colors) {
+            float[] r = {color[0]};
+            float[] g = {color[1]};
+            float[] b = {color[2]};
+            ColorMath.multiply(ColorMath.BT709_TO_BT2020, r, g, b, 0, 1);
+            GamutMapFunctions.ADAPTIVE_L0_CUSP.apply(new ColorParams(), r, g, b);
+            assertEquals(color[0], r[0], 1e-4f);
+            assertEquals(color[1], g[0], 1e-4f);
+            assertEquals(color[2], b[0], 1e-4f);
+        }
+    }
+
+    @Test
+    public void offsetAndCount() {
+        for (ColorFunction gamutMap : GAMUT_MAPS) {
+            float[] r = {1.0f, 0.0f, 0.2f, 0.5f};
+            float[] g = {0.0f, 1.0f, 0.9f, 0.5f};
+            float[] b = {0.0f, 0.0f, 0.1f, 0.5f};
+            float[] batchR = r.clone();
+            float[] batchG = g.clone();
+            float[] batchB = b.clone();
+            gamutMap.apply(new ColorParams(), batchR, batchG, batchB, 1, 2);
+            assertEquals(r[0], batchR[0], 0.0f);
+            assertEquals(g[3], batchG[3], 0.0f);
+            for (int i = 1; i < 3; i++) {
+                float[] singleR = {r[i]};
+                float[] singleG = {g[i]};
+                float[] singleB = {b[i]};
+                gamutMap.apply(new ColorParams(), singleR, singleG, singleB);
+                assertEquals(singleR[0], batchR[i], 0.0f);
+                assertEquals(singleG[0], batchG[i], 0.0f);
+                assertEquals(singleB[0], batchB[i], 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void fromKotlin() {
+        assertSame(GamutMapFunctions.NONE, GamutMapFunctions.from(GamutMap.NONE));
+        assertSame(GamutMapFunctions.CLIP, GamutMapFunctions.from(GamutMap.CLIP));
+        assertSame(GamutMapFunctions.COMPRESS, GamutMapFunctions.from(GamutMap.COMPRESS));
+        assertSame(GamutMapFunctions.ADAPTIVE_L0_CUSP, GamutMapFunctions.from(GamutMap.ADAPTIVE_L0_CUSP));
+    }
+
+    private static double[] toBT709(float r, float g, float b) {
+        double[] color = new double[3];
+        for (int row = 0; row < 3; row++) {
+            color[row] = BT2020_TO_BT709[row][0] * r + BT2020_TO_BT709[row][1] * g + BT2020_TO_BT709[row][2] * b;
+        }
+        return color;
+    }
+
+    /**
+     * GamutMapCompress的parabolic
+     */
+    private static double parabolic(double dist, double lim, double thr) {
+        if (dist > thr) {
+            double scale = (1.0 - thr) / Math.sqrt(lim - 1.0);
+            double scale2 = scale * scale / 4.0;
+            dist = scale * (Math.sqrt(dist - thr + scale2) - Math.sqrt(scale2)) + thr;
+        }
+        return dist;
+    }
+
+    private static void assertInRange(String message, float value) {
+        assertTrue(message + " " + value, value >= -1e-3f && value <= 1.0f + 1e-3f);
+    }
+}
@@ -0,0 +1,109 @@
+package com.norman.android.hdrsample.transform.math;
+
+import static org.junit.Assert.assertEquals;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.shader.chromacorrect.ChromaCorrection;
+import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF;
+import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
+
+import org.junit.Test;
+
+/**
+ * 整个HDR转SDR流程，分块处理的结果要和逐个步骤处理一样
+ */
+public class HDRToSDRProcessorTest {
+
+    @Test
+    public void processMatchesStages() {
+        HDRToSDRProcessor processor = new HDRToSDRProcessor(ColorSpace.VIDEO_BT2020_PQ,
+                ChromaCorrection.NONE,
+                ToneMap.HABLE,
+                GamutMap.CLIP,
+                GammaOETF.BT709,
+                true);
+        ColorParams params = new ColorParams();
+        params.colorSpace = ColorSpace.VIDEO_BT2020_PQ;
+        int size = 17;//17的三次方超过分块的大小
+        int count = size * size * size;
+        float[] r = new float[count];
+        float[] g = new float[count];
+        float[] b = new float[count];
+        TransferFunctionsTest.fillGrid(size, r, g, b);
+        float[] stageR = r.clone();
+        float[] stageG = g.clone();
+        float[] stageB = b.clone();
+        processor.process(params, r, g, b);
+        TransferFunctions.EOTF_PQ_DISPLAY.apply(params, stageR, stageG, stageB);
+        ToneMapFunctions.HABLE.apply(params, stageR, stageG, stageB);
+        GamutMapFunctions.CLIP.apply(params, stageR, stageG, stageB);
+        TransferFunctions.OETF_BT709.apply(params, stageR, stageG, stageB);
+        for (int i = 0; i < count; i++) {
+            assertEquals(stageR[i], r[i], 0.0f);
+            assertEquals(stageG[i], g[i], 0.0f);
+            assertEquals(stageB[i], b[i], 0.0f);
+        }
+    }
+
+    @Test
+    public void linearSkipsToneMap() {
+        HDRToSDRProcessor processor = new HDRToSDRProcessor(ColorSpace.VIDEO_BT2020_LINEAR,
+                ChromaCorrection.NONE,
+                ToneMap.HABLE,
+                GamutMap.NONE,
+                GammaOETF.NONE,
+                true);
+        ColorParams params = new ColorParams();
+        params.colorSpace = ColorSpace.VIDEO_BT2020_LINEAR;
+        float[] r = {0.1f, 0.5f, 0.9f};
+        float[] g = {0.2f, 0.6f, 0.3f};
+        float[] b = {0.3f, 0.7f, 0.0f};
+        float[] inputR = r.clone();
+        processor.process(params, r, g, b);
+        for (int i = 0; i < r.length; i++) {
+            assertEquals(inputR[i], r[i], 0.0f);
+        }
+    }
+
+    @Test
+    public void bakeLutMatchesProcess() {
+        HDRToSDRProcessor processor = new HDRToSDRProcessor(ColorSpace.VIDEO_BT2020_HLG,
+                ChromaCorrection.NONE,
+                ToneMap.ANDROID13,
+                GamutMap.COMPRESS,
+                GammaOETF.BT1886,
+                false);
+        ColorParams params = new ColorParams();
+        params.colorSpace = ColorSpace.VIDEO_BT2020_HLG;
+        int size = 9;
+        int count = size * size * size;
+        float[] r = new float[count];
+        float[] g = new float[count];
+        float[] b = new float[count];
+        processor.bakeLut(params, size, r, g, b);
+        float[] gridR = new float[count];
+        float[] gridG = new float[count];
+        float[] gridB = new float[count];
+        TransferFunctionsTest.fillGrid(size, gridR, gridG, gridB);
+        processor.process(params, gridR, gridG, gridB, 0, count);
+        for (int i = 0; i < count; i++) {
+            assertEquals(gridR[i], r[i], 0.0f);
+            assertEquals(gridG[i], g[i], 0.0f);
+            assertEquals(gridB[i], b[i], 0.0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void colorSpaceMismatch() {
+        HDRToSDRProcessor processor = new HDRToSDRProcessor(ColorSpace.VIDEO_BT2020_PQ,
+                ChromaCorrection.NONE,
+                ToneMap.ANDROID8,
+                GamutMap.CLIP,
+                GammaOETF.BT709,
+                true);
+        ColorParams params = new ColorParams();
+        params.colorSpace = ColorSpace.VIDEO_BT2020_HLG;
+        processor.process(params, new float[1], new float[1], new float[1]);
+    }
+}
@@ -0,0 +1,156 @@
+package com.norman.android.hdrsample.transform.math;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.CubeLutBuffer;
+import com.norman.android.hdrsample.transform.shader.HDRToSDRShader;
+import com.norman.android.hdrsample.transform.shader.chromacorrect.ChromaCorrection;
+import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF;
+import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * mediump误差的阈值，{@link GammaOETF#getMediumpBitDepth()}声明的位深要在这里通过
+ */
+public class PrecisionErrorReportTest {
+
+    private static final GammaOETF[] GAMMA_OETFS = {
+            GammaOETF.BT1886,
+            GammaOETF.S170M,
+            GammaOETF.BT709,
+            GammaOETF.HLGScene,
+            GammaOETF.HLGDisplay,
+            GammaOETF.PQDisplay,
+            GammaOETF.PQScene,
+            GammaOETF.NONE
+    };
+
+    private static final int SAMPLE_COUNT = 1024 + 17 * 17 * 17;
+
+    @Test
+    public void highpHasNoError() {
+        HDRToSDRShader shader = createShader(GammaOETF.BT709, 16);
+        assertFalse(shader.gammaOETFMediump);
+        PrecisionErrorReport report = PrecisionErrorReport.create(shader, createParams());
+        assertEquals(SAMPLE_COUNT, report.sampleCount);
+        assertEquals(0.0f, report.maxError, 0.0f);
+        assertEquals(0, report.mismatchCount);
+        assertTrue(report.isAcceptable());
+    }
+
+    @Test
+    public void mediumpBitDepthIsAcceptable() {
+        for (GammaOETF gammaOETF : GAMMA_OETFS) {
+            int bitDepth = gammaOETF.getMediumpBitDepth();
+            if (bitDepth == 0) {
+                continue;
+            }
+            assertTrue(gammaOETF + " " + bitDepth, bitDepth <= PrecisionErrorReport.MAX_MEDIUMP_BIT_DEPTH);
+            for (int depth = 8; depth <= bitDepth; depth += 2) {
+                HDRToSDRShader shader = createShader(gammaOETF, depth);
+                assertTrue(shader.gammaOETFMediump);
+                PrecisionErrorReport report = PrecisionErrorReport.create(shader, createParams());
+                assertTrue(gammaOETF + " " + depth + " " + report, report.isAcceptable());
+                assertTrue(report.maxError <= PrecisionErrorReport.MAX_ACCEPTABLE_ERROR);
+            }
+        }
+    }
+
+    @Test
+    public void identityLutUsesMediump() throws IOException {
+        File file = writeCube(33, new LutFunction() {
+            @Override
+            public float apply(float x) {
+                return x;
+            }
+        });
+        try {
+            CubeLutBuffer cubeLutBuffer = CubeLutBuffer.loadFile(file, false, CubeLutBuffer.DataType.FLOAT);
+            PrecisionErrorReport report = PrecisionErrorReport.create(cubeLutBuffer, PrecisionErrorReport.MAX_MEDIUMP_BIT_DEPTH);
+            assertEquals(SAMPLE_COUNT, report.sampleCount);
+            assertTrue(report.toString(), report.isAcceptable());
+            assertEquals(PrecisionErrorReport.MAX_MEDIUMP_BIT_DEPTH, PrecisionErrorReport.getMediumpBitDepth(cubeLutBuffer));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void steepLutUsesHighp() throws IOException {
+        //一个格子里从0跳到1，纹理坐标舍入成半精度后差好几个码值
+        File file = writeCube(65, new LutFunction() {
+            @Override
+            public float apply(float x) {
+                return x < 0.5f ? 0.0f : 1.0f;
+            }
+        });
+        try {
+            CubeLutBuffer cubeLutBuffer = CubeLutBuffer.loadFile(file, false, CubeLutBuffer.DataType.FLOAT);
+            PrecisionErrorReport report = PrecisionErrorReport.create(cubeLutBuffer, 8);
+            assertFalse(report.toString(), report.isAcceptable());
+            assertTrue(report.maxError > PrecisionErrorReport.MAX_ACCEPTABLE_ERROR);
+            assertTrue(report.mismatchCount > 0);
+            assertEquals(0, PrecisionErrorReport.getMediumpBitDepth(cubeLutBuffer));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static HDRToSDRShader createShader(GammaOETF gammaOETF, int bitDepth) {
+        return new HDRToSDRShader(ColorSpace.VIDEO_BT2020_PQ,
+                ChromaCorrection.NONE,
+                ToneMap.ANDROID13,
+                GamutMap.CLIP,
+                gammaOETF,
+                true,
+                false,
+                false,
+                bitDepth);
+    }
+
+    private static ColorParams createParams() {
+        ColorParams params = new ColorParams();
+        params.colorSpace = ColorSpace.VIDEO_BT2020_PQ;
+        params.hdrPeakLuminance = 1000.0f;
+        return params;
+    }
+
+    /**
+     * 每个通道用同一个函数的Cube文件，红色变化最快
+     */
+    private static File writeCube(int size, LutFunction function) throws IOException {
+        File file = File.createTempFile("precision", ".cube");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write("LUT_3D_SIZE " + size + "\n");
+            float scale = 1.0f / (size - 1);
+            for (int z = 0; z < size; z++) {
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        writer.write(String.format(Locale.US, "%.6f %.6f %.6f\n",
+                                function.apply(x * scale),
+                                function.apply(y * scale),
+                                function.apply(z * scale)));
+                    }
+                }
+            }
+        }
+        return file;
+    }
+
+    private interface LutFunction {
+        float apply(float x);
+    }
+}
@@ -0,0 +1,303 @@
+package com.norman.android.hdrsample.transform.math;
+
+import static com.norman.android.hdrsample.transform.math.TransferFunctionsTest.assertClose;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
+
+import org.junit.Test;
+
+/**
+ * 色调映射和tonemap目录下GLSL公式的对比
+ * 灰色的XYZ的Y就是通道的值，ANDROID8、ANDROID13和BT2446C用灰色直接和GLSL里的曲线比较
+ */
+public class ToneMapFunctionsTest {
+
+    private static final int SAMPLE_COUNT = 1024;
+
+    private static final ColorFunction[] TONE_MAPS = {
+            ToneMapFunctions.ANDROID8,
+            ToneMapFunctions.ANDROID13,
+            ToneMapFunctions.BT2446A,
+            ToneMapFunctions.BT2446A1,
+            ToneMapFunctions.BT2446C,
+            ToneMapFunctions.HABLE
+    };
+
+    @Test
+    public void hableMatchesGLSL() {
+        ColorParams params = createPQParams();
+        int size = 17;
+        int count = size * size * size;
+        float[] r = new float[count];
+        float[] g = new float[count];
+        float[] b = new float[count];
+        TransferFunctionsTest.fillGrid(size, r, g, b);
+        float[] inputR = r.clone();
+        float[] inputG = g.clone();
+        float[] inputB = b.clone();
+        ToneMapFunctions.HABLE.apply(params, r, g, b);
+        double scale = ColorParams.PQ_MAX_LUMINANCE / ColorParams.HDR_REFERENCE_WHITE;
+        double hablePeak = hable(params.hdrPeakLuminance / ColorParams.HDR_REFERENCE_WHITE);
+        for (int i = 1; i < count; i++) {//0的时候GLSL是0/0
+            double red = inputR[i] * scale;
+            double green = inputG[i] * scale;
+            double blue = inputB[i] * scale;
+            double sigOrig = Math.max(Math.max(red, green), blue);
+            double gain = hable(sigOrig) / hablePeak / sigOrig;
+            assertClose("hable r " + i, red * gain, r[i]);
+            assertClose("hable g " + i, green * gain, g[i]);
+            assertClose("hable b " + i, blue * gain, b[i]);
+        }
+    }
+
+    @Test
+    public void hablePeakIsOne() {
+        ColorParams params = createPQParams();
+        float peak = params.hdrPeakLuminance / ColorParams.PQ_MAX_LUMINANCE;
+        float[] r = {peak};
+        float[] g = {peak};
+        float[] b = {peak};
+        ToneMapFunctions.HABLE.apply(params, r, g, b);
+        assertEquals(1.0f, r[0], 1e-5f);
+        assertEquals(1.0f, g[0], 1e-5f);
+        assertEquals(1.0f, b[0], 1e-5f);
+    }
+
+    @Test
+    public void android8GreyMatchesGLSL() {
+        ColorParams params = createPQParams();
+        float[] grey = createGrey(params.hdrPeakLuminance * 1.5f / ColorParams.PQ_MAX_LUMINANCE);
+        float[] r = grey.clone();
+        float[] g = grey.clone();
+        float[] b = grey.clone();
+        ToneMapFunctions.ANDROID8.apply(params, r, g, b);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            double nits = grey[i] * ColorParams.PQ_MAX_LUMINANCE;
+            double expected = android8TargetNits(nits, params.hdrPeakLuminance, params.maxDisplayLuminance) / params.maxDisplayLuminance;
+            assertEquals("android8 r " + nits, expected, r[i], 1e-4);
+            assertEquals("android8 g " + nits, expected, g[i], 1e-4);
+            assertEquals("android8 b " + nits, expected, b[i], 1e-4);
+        }
+    }
+
+    @Test
+    public void android8WithoutToneMap() {
+        ColorParams params = createPQParams();
+        params.hdrPeakLuminance = params.maxDisplayLuminance;//峰值亮度不超过屏幕亮度时只缩放
+        float[] grey = createGrey(params.maxDisplayLuminance / ColorParams.PQ_MAX_LUMINANCE);
+        float[] r = grey.clone();
+        float[] g = grey.clone();
+        float[] b = grey.clone();
+        ToneMapFunctions.ANDROID8.apply(params, r, g, b);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            double expected = grey[i] * ColorParams.PQ_MAX_LUMINANCE / params.maxDisplayLuminance;
+            assertEquals("android8 " + grey[i], expected, g[i], 1e-4);
+        }
+    }
+
+    @Test
+    public void android13GreyMatchesGLSL() {
+        ColorParams params = createPQParams();
+        float[] grey = createGrey(params.hdrPeakLuminance * 1.5f / ColorParams.PQ_MAX_LUMINANCE);
+        float[] r = grey.clone();
+        float[] g = grey.clone();
+        float[] b = grey.clone();
+        ToneMapFunctions.ANDROID13.apply(params, r, g, b);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            double nits = grey[i] * ColorParams.PQ_MAX_LUMINANCE;
+            double expected = android13TargetNits(nits, params.hdrPeakLuminance, params.maxDisplayLuminance) / params.maxDisplayLuminance;
+            assertEquals("android13 r " + nits, expected, r[i], 1e-4);
+            assertEquals("android13 g " + nits, expected, g[i], 1e-4);
+            assertEquals("android13 b " + nits, expected, b[i], 1e-4);
+        }
+    }
+
+    @Test
+    public void android13HLGScalesToDisplay() {
+        ColorParams params = createPQParams();
+        params.colorSpace = ColorSpace.VIDEO_BT2020_HLG;
+        float[] grey = createGrey(1.0f);
+        float[] r = grey.clone();
+        float[] g = grey.clone();
+        float[] b = grey.clone();
+        ToneMapFunctions.ANDROID13.apply(params, r, g, b);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            //HLG的1对应1000亮度，缩放到屏幕亮度后再除以屏幕亮度，结果就是输入
+            assertEquals("android13 hlg " + grey[i], grey[i], g[i], 1e-4f);
+        }
+    }
+
+    @Test
+    public void bt2446cGreyMatchesGLSL() {
+        ColorParams params = createPQParams();
+        float[] grey = createGrey(params.hdrPeakLuminance / ColorParams.PQ_MAX_LUMINANCE);
+        float[] r = grey.clone();
+        float[] g = grey.clone();
+        float[] b = grey.clone();
+        ToneMapFunctions.BT2446C.apply(params, r, g, b);
+        for (int i = 1; i < SAMPLE_COUNT; i++) {//0的时候xyY的色度没有意义
+            double y = grey[i] * ColorParams.PQ_MAX_LUMINANCE / ColorParams.HDR_REFERENCE_WHITE;
+            double expected = bt2446cCurve(y);
+            assertClose("bt2446c r " + y, expected, r[i]);
+            assertClose("bt2446c g " + y, expected, g[i]);
+            assertClose("bt2446c b " + y, expected, b[i]);
+        }
+    }
+
+    @Test
+    public void greyIsMonotonic() {
+        ColorParams params = createPQParams();
+        float[] grey = createGrey(params.hdrPeakLuminance / ColorParams.PQ_MAX_LUMINANCE);
+        for (ColorFunction toneMap : TONE_MAPS) {
+            float[] r = grey.clone();
+            float[] g = grey.clone();
+            float[] b = grey.clone();
+            toneMap.apply(params, r, g, b);
+            for (int i = 2; i < SAMPLE_COUNT; i++) {//HABLE在0的时候是0/0，从第二个开始比较
+                assertTrue(toneMap + " not finite at " + grey[i], Float.isFinite(g[i]));
+                assertTrue(toneMap + " not monotonic at " + grey[i], g[i] >= g[i - 1] - 1e-5f);
+            }
+        }
+    }
+
+    @Test
+    public void offsetAndCount() {
+        ColorParams params = createPQParams();
+        for (ColorFunction toneMap : TONE_MAPS) {
+            float[] r = {0.1f, 0.3f, 0.5f, 0.7f};
+            float[] g = {0.2f, 0.4f, 0.6f, 0.05f};
+            float[] b = {0.3f, 0.05f, 0.1f, 0.2f};
+            float[] batchR = r.clone();
+            float[] batchG = g.clone();
+            float[] batchB = b.clone();
+            toneMap.apply(params, batchR, batchG, batchB, 1, 2);
+            assertEquals(r[0], batchR[0], 0.0f);
+            assertEquals(b[3], batchB[3], 0.0f);
+            for (int i = 1; i < 3; i++) {
+                float[] singleR = {r[i]};
+                float[] singleG = {g[i]};
+                float[] singleB = {b[i]};
+                toneMap.apply(params, singleR, singleG, singleB);
+                assertEquals(singleR[0], batchR[i], 0.0f);
+                assertEquals(singleG[0], batchG[i], 0.0f);
+                assertEquals(singleB[0], batchB[i], 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void fromKotlin() {
+        assertSame(ToneMapFunctions.NONE, ToneMapFunctions.from(ToneMap.NONE));
+        assertSame(ToneMapFunctions.ANDROID8, ToneMapFunctions.from(ToneMap.ANDROID8));
+        assertSame(ToneMapFunctions.ANDROID13, ToneMapFunctions.from(ToneMap.ANDROID13));
+        assertSame(ToneMapFunctions.BT2446A, ToneMapFunctions.from(ToneMap.BT2446A));
+        assertSame(ToneMapFunctions.BT2446A1, ToneMapFunctions.from(ToneMap.BT2446A1));
+        assertSame(ToneMapFunctions.BT2446C, ToneMapFunctions.from(ToneMap.BT2446C));
+        assertSame(ToneMapFunctions.HABLE, ToneMapFunctions.from(ToneMap.HABLE));
+    }
+
+    private static ColorParams createPQParams() {
+        ColorParams params = new ColorParams();
+        params.colorSpace = ColorSpace.VIDEO_BT2020_PQ;
+        params.maxDisplayLuminance = 500.0f;
+        params.hdrPeakLuminance = 1000.0f;
+        return params;
+    }
+
+    private static float[] createGrey(float max) {
+        float[] grey = new float[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            grey[i] = max * i / (SAMPLE_COUNT - 1.0f);
+        }
+        return grey;
+    }
+
+    private static double hable(double x) {
+        double a = 0.15;
+        double b = 0.50;
+        double c = 0.10;
+        double d = 0.20;
+        double e = 0.02;
+        double f = 0.30;
+        return ((x * (a * x + c * b) + d * e) / (x * (a * x + b) + d * f)) - e / f;
+    }
+
+    /**
+     * ToneMapBT2446C的curve，灰色在xyY里只有Y变化
+     */
+    private static double bt2446cCurve(double y) {
+        double k1 = 0.83802;
+        double k3 = 0.74204;
+        double ip = 58.535 / k1;
+        double k2 = (k1 * ip) * (1.0 - k3);
+        double k4 = (k1 * ip) - (k2 * Math.log(1.0 - k3));
+        double overWhite = 1019.0 / 940.0;
+        return (y < ip ? y * k1 : Math.log((y / ip) - k3) * k2 + k4) / overWhite;
+    }
+
+    /**
+     * ToneMapAndroid8的toneMapTargetNits
+     */
+    private static double android8TargetNits(double nits, double maxInLumi, double maxOutLumi) {
+        if (maxInLumi <= maxOutLumi) {
+            return nits;
+        }
+        double x0 = 10.0;
+        double y0 = 17.0;
+        double x1 = maxOutLumi * 0.75;
+        double y1 = x1;
+        double x2 = x1 + (maxInLumi - x1) / 2.0;
+        double y2 = y1 + (maxOutLumi - y1) * 0.75;
+        double h12 = x2 - x1;
+        double h23 = maxInLumi - x2;
+        double m1 = (y2 - y1) / h12;
+        double m3 = (maxOutLumi - y2) / h23;
+        double m2 = (m1 + m3) / 2.0;
+        if (nits < x0) {
+            return nits * y0 / x0;
+        } else if (nits < x1) {
+            return y0 + (nits - x0) * (y1 - y0) / (x1 - x0);
+        } else if (nits < x2) {
+            double t = (nits - x1) / h12;
+            return (y1 * (1.0 + 2.0 * t) + h12 * m1 * t) * (1.0 - t) * (1.0 - t) +
+                    (y2 * (3.0 - 2.0 * t) + h12 * m2 * (t - 1.0)) * t * t;
+        } else {
+            double t = (nits - x2) / h23;
+            return (y2 * (1.0 + 2.0 * t) + h23 * m2 * t) * (1.0 - t) * (1.0 - t) +
+                    (maxOutLumi * (3.0 - 2.0 * t) + h23 * m3 * (t - 1.0)) * t * t;
+        }
+    }
+
+    /**
+     * ToneMapAndroid13的PQ分支，灰色的maxRGB就是亮度
+     */
+    private static double android13TargetNits(double nits, double maxInLumi, double maxOutLumi) {
+        double x1 = maxOutLumi * 0.65;
+        double y1 = x1;
+        double x3 = maxInLumi;
+        double y3 = maxOutLumi;
+        double x2 = x1 + (x3 - x1) * 4.0 / 17.0;
+        double y2 = maxOutLumi * 0.9;
+        double greyNorm1 = TransferFunctionsTest.pqOETF(x1 / ColorParams.PQ_MAX_LUMINANCE);
+        double greyNorm2 = TransferFunctionsTest.pqOETF(x2 / ColorParams.PQ_MAX_LUMINANCE);
+        double greyNorm3 = TransferFunctionsTest.pqOETF(x3 / ColorParams.PQ_MAX_LUMINANCE);
+        double slope2 = (y2 - y1) / (greyNorm2 - greyNorm1);
+        double slope3 = (y3 - y2) / (greyNorm3 - greyNorm2);
+        if (nits < x1) {
+            return nits;
+        } else if (nits > maxInLumi) {
+            return maxOutLumi;
+        }
+        double greyNits = TransferFunctionsTest.pqOETF(nits / ColorParams.PQ_MAX_LUMINANCE);
+        if (greyNits <= greyNorm2) {
+            return (greyNits - greyNorm2) * slope2 + y2;
+        } else if (greyNits <= greyNorm3) {
+            return (greyNits - greyNorm3) * slope3 + y3;
+        }
+        return maxOutLumi;
+    }
+}
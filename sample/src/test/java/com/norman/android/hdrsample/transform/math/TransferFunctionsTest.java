@@ -0,0 +1,247 @@
+package com.norman.android.hdrsample.transform.math;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.shader.gamma.GammaEOTF;
+import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF;
+
+import org.junit.Test;
+
+/**
+ * 传递函数和gamma目录下GLSL公式的对比，参考值用double按GLSL的写法重新计算
+ */
+public class TransferFunctionsTest {
+
+    private static final int SAMPLE_COUNT = 1024;
+
+    private static final double PQ_M1 = 0.1593017578125;
+    private static final double PQ_M2 = 78.84375;
+    private static final double PQ_C1 = 0.8359375;
+    private static final double PQ_C2 = 18.8515625;
+    private static final double PQ_C3 = 18.6875;
+
+    private static final double HLG_A = 0.17883277;
+    private static final double HLG_B = 0.28466892;
+    private static final double HLG_C = 0.55991073;
+
+    private static final double BT709_ALPHA = 1.09929682680944;
+    private static final double BT709_BETA = 0.018053968510807;
+
+    @Test
+    public void pqDisplayEOTFMatchesGLSL() {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            float x = i / (SAMPLE_COUNT - 1.0f);
+            assertClose("PQ EOTF " + x, pqEOTF(x), TransferFunctions.pqDisplayEOTF(x));
+        }
+        //GLSL先clamp到0到1
+        assertEquals(1.0f, TransferFunctions.pqDisplayEOTF(1.5f), 1e-6f);
+        assertEquals(0.0f, TransferFunctions.pqDisplayEOTF(-0.5f), 0.0f);
+    }
+
+    @Test
+    public void pqDisplayOETFMatchesGLSL() {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            float x = i / (SAMPLE_COUNT - 1.0f);
+            assertClose("PQ OETF " + x, pqOETF(x), TransferFunctions.pqDisplayOETF(x));
+        }
+        //ST 2084里常用的几个亮度
+        assertEquals(0.5081f, TransferFunctions.pqDisplayOETF(100.0f / ColorParams.PQ_MAX_LUMINANCE), 1e-4f);
+        assertEquals(0.5807f, TransferFunctions.pqDisplayOETF(ColorParams.HDR_REFERENCE_WHITE / ColorParams.PQ_MAX_LUMINANCE), 1e-4f);
+        assertEquals(0.7518f, TransferFunctions.pqDisplayOETF(1000.0f / ColorParams.PQ_MAX_LUMINANCE), 1e-4f);
+        assertEquals(1.0f, TransferFunctions.pqDisplayOETF(1.0f), 1e-6f);
+    }
+
+    @Test
+    public void pqRoundTrip() {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            float x = i / (SAMPLE_COUNT - 1.0f);
+            float y = TransferFunctions.pqDisplayOETF(TransferFunctions.pqDisplayEOTF(x));
+            assertEquals("PQ " + x, x, y, 1e-4f);
+        }
+    }
+
+    @Test
+    public void hlgSceneMatchesGLSL() {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            float x = i / (SAMPLE_COUNT - 1.0f);
+            assertClose("HLG EOTF " + x, hlgEOTF(x), TransferFunctions.hlgSceneEOTF(x));
+            assertClose("HLG OETF " + x, hlgOETF(x), TransferFunctions.hlgSceneOETF(x));
+            float y = TransferFunctions.hlgSceneOETF(TransferFunctions.hlgSceneEOTF(x));
+            assertEquals("HLG " + x, x, y, 1e-5f);
+        }
+        //两段曲线在1/12连接，1的时候是1
+        assertEquals(0.5f, TransferFunctions.hlgSceneOETF(1.0f / 12.0f), 1e-6f);
+        assertEquals(1.0f, TransferFunctions.hlgSceneOETF(1.0f), 1e-5f);
+    }
+
+    @Test
+    public void hlgGamma() {
+        assertEquals(1.2f, TransferFunctions.hlgGamma(ColorParams.HLG_MAX_LUMINANCE), 1e-6f);
+        assertEquals(1.2f + 0.42f * Math.log10(2.0f), TransferFunctions.hlgGamma(2000.0f), 1e-5f);
+        //低于500的按500计算
+        assertEquals(TransferFunctions.hlgGamma(500.0f), TransferFunctions.hlgGamma(100.0f), 0.0f);
+    }
+
+    @Test
+    public void hlgDisplayRoundTrip() {
+        ColorParams params = new ColorParams();
+        params.colorSpace = ColorSpace.VIDEO_BT2020_HLG;
+        params.maxDisplayLuminance = 1000.0f;
+        int size = 9;
+        int count = size * size * size;
+        float[] r = new float[count];
+        float[] g = new float[count];
+        float[] b = new float[count];
+        fillGrid(size, r, g, b);
+        float[] inputR = r.clone();
+        float[] inputG = g.clone();
+        float[] inputB = b.clone();
+        TransferFunctions.EOTF_HLG_DISPLAY.apply(params, r, g, b);
+        TransferFunctions.OETF_HLG_DISPLAY.apply(params, r, g, b);
+        for (int i = 1; i < count; i++) {//0的时候亮度是0，pow(0, 负数)没有意义
+            assertEquals("HLG display r " + i, inputR[i], r[i], 1e-4f);
+            assertEquals("HLG display g " + i, inputG[i], g[i], 1e-4f);
+            assertEquals("HLG display b " + i, inputB[i], b[i], 1e-4f);
+        }
+    }
+
+    @Test
+    public void hlgDisplayGreyMatchesOOTF() {
+        ColorParams params = new ColorParams();
+        params.colorSpace = ColorSpace.VIDEO_BT2020_HLG;
+        params.maxDisplayLuminance = 1000.0f;
+        float[] grey = new float[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            grey[i] = i / (SAMPLE_COUNT - 1.0f);
+        }
+        float[] r = grey.clone();
+        float[] g = grey.clone();
+        float[] b = grey.clone();
+        TransferFunctions.EOTF_HLG_DISPLAY.apply(params, r, g, b);
+        for (int i = 1; i < SAMPLE_COUNT; i++) {
+            //灰色的亮度就是通道的值，OOTF是pow(E, gamma)
+            double expected = Math.pow(hlgEOTF(grey[i]), 1.2);
+            assertClose("HLG display " + grey[i], expected, r[i]);
+            assertEquals(r[i], g[i], 1e-6f);
+            assertEquals(r[i], b[i], 1e-6f);
+        }
+    }
+
+    @Test
+    public void bt709MatchesGLSL() {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            float x = i / (SAMPLE_COUNT - 1.0f);
+            assertClose("BT709 OETF " + x, bt709OETF(x), TransferFunctions.bt709OETF(x));
+            assertClose("BT709 EOTF " + x, bt709EOTF(x), TransferFunctions.bt709EOTF(x));
+            assertEquals("BT709 " + x, x, TransferFunctions.bt709OETF(TransferFunctions.bt709EOTF(x)), 1e-5f);
+        }
+    }
+
+    @Test
+    public void s170mMatchesGLSL() {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            float x = i / (SAMPLE_COUNT - 1.0f);
+            double oetf = x < 0.018 ? x * 4.5 : 1.099 * Math.pow(x, 0.45) - 0.099;
+            double eotf = x < 0.0812 ? x / 4.5 : Math.pow((x + 0.099) / 1.099, 1.0 / 0.45);
+            assertClose("S170M OETF " + x, oetf, TransferFunctions.s170mOETF(x));
+            assertClose("S170M EOTF " + x, eotf, TransferFunctions.s170mEOTF(x));
+            //EOTF的分段点0.0812和OETF的0.018*4.5不完全对应，交界附近会差几个1e-4
+            assertEquals("S170M " + x, x, TransferFunctions.s170mOETF(TransferFunctions.s170mEOTF(x)), 1e-3f);
+        }
+    }
+
+    @Test
+    public void bt1886MatchesGLSL() {
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            float x = i / (SAMPLE_COUNT - 1.0f);
+            assertClose("BT1886 EOTF " + x, Math.pow(x, 2.4), TransferFunctions.bt1886EOTF(x));
+            assertClose("BT1886 OETF " + x, Math.pow(x, 1.0 / 2.4), TransferFunctions.bt1886OETF(x));
+        }
+    }
+
+    @Test
+    public void channelFunctionOnlyChangesRange() {
+        float[] r = {0.5f, 0.5f, 0.5f, 0.5f};
+        float[] g = r.clone();
+        float[] b = r.clone();
+        TransferFunctions.OETF_BT709.apply(new ColorParams(), r, g, b, 1, 2);
+        float expected = TransferFunctions.bt709OETF(0.5f);
+        assertEquals(0.5f, r[0], 0.0f);
+        assertEquals(expected, r[1], 0.0f);
+        assertEquals(expected, g[2], 0.0f);
+        assertEquals(0.5f, b[3], 0.0f);
+    }
+
+    @Test
+    public void fromKotlin() {
+        assertSame(TransferFunctions.EOTF_PQ_DISPLAY, TransferFunctions.fromEOTF(GammaEOTF.PQDisPlay));
+        assertSame(TransferFunctions.EOTF_PQ_SCENE, TransferFunctions.fromEOTF(GammaEOTF.PQScene));
+        assertSame(TransferFunctions.EOTF_HLG_DISPLAY, TransferFunctions.fromEOTF(GammaEOTF.HLGDisplay));
+        assertSame(TransferFunctions.EOTF_HLG_SCENE, TransferFunctions.fromEOTF(GammaEOTF.HLGScene));
+        assertSame(TransferFunctions.EOTF_NONE, TransferFunctions.fromEOTF(GammaEOTF.NONE));
+        assertSame(TransferFunctions.OETF_BT709, TransferFunctions.fromOETF(GammaOETF.BT709));
+        assertSame(TransferFunctions.OETF_S170M, TransferFunctions.fromOETF(GammaOETF.S170M));
+        assertSame(TransferFunctions.OETF_BT1886, TransferFunctions.fromOETF(GammaOETF.BT1886));
+        assertSame(TransferFunctions.OETF_HLG_DISPLAY, TransferFunctions.fromOETF(GammaOETF.HLGDisplay));
+        assertSame(TransferFunctions.OETF_PQ_DISPLAY, TransferFunctions.fromOETF(GammaOETF.PQDisplay));
+        assertSame(TransferFunctions.OETF_NONE, TransferFunctions.fromOETF(GammaOETF.NONE));
+    }
+
+    static double pqEOTF(double color) {
+        color = Math.max(0.0, Math.min(1.0, color));
+        double p = Math.pow(color, 1.0 / PQ_M2);
+        double num = Math.max(p - PQ_C1, 0.0);
+        double den = PQ_C2 - PQ_C3 * p;
+        return Math.pow(num / den, 1.0 / PQ_M1);
+    }
+
+    static double pqOETF(double x) {
+        double ym = Math.pow(x, PQ_M1);
+        return Math.pow((PQ_C1 + PQ_C2 * ym) / (1.0 + PQ_C3 * ym), PQ_M2);
+    }
+
+    static double hlgEOTF(double x) {
+        return x < 0.5 ? x * x / 3.0 : (Math.exp((x - HLG_C) / HLG_A) + HLG_B) / 12.0;
+    }
+
+    static double hlgOETF(double x) {
+        return x < 1.0 / 12.0 ? Math.sqrt(3.0 * x) : HLG_A * Math.log(12.0 * x - HLG_B) + HLG_C;
+    }
+
+    static double bt709OETF(double x) {
+        return x < BT709_BETA ? x * 4.5 : BT709_ALPHA * Math.pow(x, 0.45) - (BT709_ALPHA - 1.0);
+    }
+
+    static double bt709EOTF(double x) {
+        return x < BT709_BETA * 4.5 ? x / 4.5 : Math.pow((x + (BT709_ALPHA - 1.0)) / BT709_ALPHA, 1.0 / 0.45);
+    }
+
+    /**
+     * float和double的误差，绝对误差和相对误差有一个满足就行
+     */
+    static void assertClose(String message, double expected, float actual) {
+        double delta = Math.max(2e-6, Math.abs(expected) * 2e-4);
+        assertTrue(message + " expected " + expected + " actual " + actual, Math.abs(expected - actual) <= delta);
+    }
+
+    /**
+     * 红色变化最快的网格，和HDRToSDRProcessor#bakeLut一样
+     */
+    static void fillGrid(int size, float[] r, float[] g, float[] b) {
+        float scale = 1.0f / (size - 1);
+        int index = 0;
+        for (int z = 0; z < size; z++) {
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    r[index] = x * scale;
+                    g[index] = y * scale;
+                    b[index] = z * scale;
+                    index++;
+                }
+            }
+        }
+    }
+}